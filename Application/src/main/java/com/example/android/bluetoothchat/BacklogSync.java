@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the readings a sensor buffered while it was out of reach. On
+ * connect the phone asks for the samples taken after the newest one it
+ * stored for that sensor; the sensor answers with BACKLOG frames while it
+ * keeps sending live samples in between. Backlog rows are collected in
+ * large batches and stored off the reading thread, one transaction per
+ * batch, so neither the live samples nor the UI wait for the database.
+ *
+ * <p>Payloads are big endian; times are milliseconds since the epoch:
+ *
+ * <pre>
+ *   SYNC         send the samples taken after this time (8)
+ *   BACKLOG      base time (8) | records of time offset (4) and value in hundredths (2)
+ *   BACKLOG_END  number of records sent (4)
+ * </pre>
+ */
+public class BacklogSync {
+    // Debugging
+    private static final String TAG = "BacklogSync";
+
+    // Frame types, after those of BulkTransfer
+    public static final int TYPE_SYNC = 14;
+    public static final int TYPE_BACKLOG = 15;
+    public static final int TYPE_BACKLOG_END = 16;
+
+    /**
+     * Size of one record of a BACKLOG frame.
+     */
+    public static final int RECORD_LENGTH = 6;
+
+    /**
+     * Records in a full BACKLOG frame.
+     */
+    public static final int RECORDS_PER_FRAME = (FrameCodec.MAX_PAYLOAD - 8) / RECORD_LENGTH;
+
+    /**
+     * Rows stored per transaction unless told otherwise.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 2000;
+
+    /**
+     * Told about the sync, on the thread that stores the rows.
+     */
+    public interface Listener {
+        /**
+         * @param stored        Rows committed so far
+         * @param received      Rows received so far, stored or not
+         * @param rowsPerSecond Rows committed per second since the first one arrived
+         */
+        void onProgress(long stored, long received, double rowsPerSecond);
+
+        /**
+         * @param catchUpMillis Time from the request until the last row was committed
+         */
+        void onComplete(long stored, long catchUpMillis);
+
+        void onFailed(IOException e);
+    }
+
+    /**
+     * Return the single thread the rows of every sync are stored on.
+     */
+    public static ExecutorService newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BacklogSync");
+                thread.setDaemon(true);
+                // Below the reading threads, so live samples come first
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final long mSensorId;
+    private final SampleStore mStore;
+    private final BulkTransfer.Link mLink;
+    private final ExecutorService mExecutor;
+    private final Listener mListener;
+    private final int mBatchSize;
+
+    // Filled by the reading thread, then handed to the executor
+    private final long[] mSensorIds;
+    private long[] mCreated;
+    private float[] mValues;
+    private int mCount;
+    // Emptied batches, for the reading thread to fill again
+    private final ArrayDeque<Batch> mFreeBatches = new ArrayDeque<Batch>();
+
+    // Samples up to this time are stored already; later rows are asked for
+    private volatile long mSince = -1;
+    private volatile long mRequestNanos;
+    private volatile long mFirstRowNanos;
+    private volatile long mReceived;
+    private volatile long mStored;
+    private volatile long mCatchUpNanos = -1;
+    private volatile boolean mDone;
+
+    /**
+     * @param sensorId  The sensorid the rows are stored under
+     * @param link      Where the request is sent
+     * @param executor  Stores the rows, see {@link #newExecutor}
+     * @param listener  Told about progress, may be null
+     * @param batchSize Rows per transaction
+     */
+    public BacklogSync(long sensorId, SampleStore store, BulkTransfer.Link link,
+                       ExecutorService executor, Listener listener, int batchSize) {
+        mSensorId = sensorId;
+        mStore = store;
+        mLink = link;
+        mExecutor = executor;
+        mListener = listener;
+        mBatchSize = batchSize;
+        mSensorIds = new long[batchSize];
+        Arrays.fill(mSensorIds, sensorId);
+        mCreated = new long[batchSize];
+        mValues = new float[batchSize];
+    }
+
+    /**
+     * Look up the newest stored sample and ask the sensor for the ones
+     * after it. The lookup runs on the executor.
+     */
+    public void start() {
+        mRequestNanos = System.nanoTime();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long since = mStore.getLastCreated(mSensorId);
+                mSince = since;
+                byte[] payload = new byte[8];
+                BulkTransfer.writeLong(payload, 0, since);
+                Log.i(TAG, "sensor " + mSensorId + ": asking for samples after " + since);
+                if (!mLink.send(FrameCodec.encode(TYPE_SYNC, 0, payload))) {
+                    mDone = true;
+                    fail(new IOException("sync request refused"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Handle a BACKLOG or BACKLOG_END frame, on the reading thread.
+     */
+    public void onFrame(int type, byte[] buffer, int offset, int length) {
+        if (mDone) {
+            return;
+        }
+        if (type == TYPE_BACKLOG_END) {
+            long sent = length >= 4 ? BulkTransfer.readInt(buffer, offset) & 0xffffffffL : -1;
+            if (sent >= 0 && sent != mReceived) {
+                Log.w(TAG, "sensor " + mSensorId + " sent " + sent + " rows, " + mReceived
+                        + " arrived");
+            }
+            mDone = true;
+            flush(true);
+            return;
+        }
+        if (type != TYPE_BACKLOG || length < 8) {
+            return;
+        }
+        if (mFirstRowNanos == 0) {
+            mFirstRowNanos = System.nanoTime();
+        }
+        long base = BulkTransfer.readLong(buffer, offset);
+        long since = mSince;
+        long received = mReceived;
+        for (int i = offset + 8; i + RECORD_LENGTH <= offset + length; i += RECORD_LENGTH) {
+            long created = base + (BulkTransfer.readInt(buffer, i) & 0xffffffffL);
+            received++;
+            if (created <= since) {
+                // Overlaps what we have; the sensor's buffer may start earlier
+                continue;
+            }
+            short centi = (short) ((buffer[i + 4] & 0xff) << 8 | (buffer[i + 5] & 0xff));
+            mCreated[mCount] = created;
+            mValues[mCount] = centi / 100f;
+            if (++mCount == mBatchSize) {
+                mReceived = received;
+                flush(false);
+            }
+        }
+        mReceived = received;
+    }
+
+    /**
+     * Stop taking rows; the batches already handed over are still stored.
+     */
+    public void cancel() {
+        mDone = true;
+    }
+
+    // Hand the current batch to the executor and start a new one
+    private void flush(final boolean last) {
+        final Batch batch = new Batch(mCreated, mValues, mCount);
+        synchronized (mFreeBatches) {
+            Batch free = mFreeBatches.poll();
+            if (free != null) {
+                mCreated = free.mCreated;
+                mValues = free.mValues;
+            } else if (!last) {
+                mCreated = new long[mBatchSize];
+                mValues = new float[mBatchSize];
+            }
+        }
+        mCount = 0;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                store(batch, last);
+            }
+        });
+    }
+
+    private void store(Batch batch, boolean last) {
+        try {
+            if (batch.mCount > 0) {
+                mStored += mStore.insert(mSensorIds, batch.mCreated, batch.mValues,
+                        batch.mCount);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "storing the backlog of sensor " + mSensorId + " failed", e);
+            mDone = true;
+            fail(new IOException("storing the backlog failed", e));
+            return;
+        }
+        synchronized (mFreeBatches) {
+            mFreeBatches.add(batch);
+        }
+        long now = System.nanoTime();
+        if (mListener != null && batch.mCount > 0) {
+            mListener.onProgress(mStored, mReceived, getRowsPerSecond());
+        }
+        if (last) {
+            mCatchUpNanos = now - mRequestNanos;
+            Log.i(TAG, "sensor " + mSensorId + ": " + mStored + " rows in "
+                    + getCatchUpMillis() + " ms, " + (long) getRowsPerSecond() + " rows/s");
+            if (mListener != null) {
+                mListener.onComplete(mStored, getCatchUpMillis());
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        if (mListener != null) {
+            mListener.onFailed(e);
+        }
+    }
+
+    public long getSensorId() {
+        return mSensorId;
+    }
+
+    /**
+     * Return the rows received so far, including the ones skipped because
+     * they were stored already.
+     */
+    public long getReceivedCount() {
+        return mReceived;
+    }
+
+    /**
+     * Return the rows committed so far.
+     */
+    public long getStoredCount() {
+        return mStored;
+    }
+
+    /**
+     * Return the rows committed per second since the first one arrived.
+     */
+    public double getRowsPerSecond() {
+        long first = mFirstRowNanos;
+        long nanos = (mCatchUpNanos >= 0 ? mRequestNanos + mCatchUpNanos : System.nanoTime())
+                - first;
+        return first == 0 || nanos <= 0 ? 0 : mStored * 1e9 / nanos;
+    }
+
+    /**
+     * Return the time from the request until the last row was committed,
+     * or -1 while the sync is running.
+     */
+    public long getCatchUpMillis() {
+        long nanos = mCatchUpNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Return true once every row was committed.
+     */
+    public boolean isComplete() {
+        return mCatchUpNanos >= 0;
+    }
+
+    private static class Batch {
+        final long[] mCreated;
+        final float[] mValues;
+        final int mCount;
+
+        Batch(long[] created, float[] values, int count) {
+            mCreated = created;
+            mValues = values;
+            mCount = count;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import android.os.Message;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
+import android.util.SparseArray;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -42,8 +43,12 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.bluetoothchat.data.TemperatureRetention;
 import com.example.android.common.logger.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * This fragment controls Bluetooth to communicate with other devices.
  */
@@ -66,6 +71,11 @@ public class BluetoothChatFragment extends Fragment {
      */
     private String mConnectedDeviceName = null;
 
+    /**
+     * Names of the connected devices, by connection id
+     */
+    private final SparseArray<String> mDeviceNames = new SparseArray<String>();
+
     /**
      * Array adapter for the conversation thread
      */
@@ -76,6 +86,28 @@ public class BluetoothChatFragment extends Fragment {
      */
     private StringBuffer mOutStringBuffer;
 
+    /**
+     * Buffers to drain the service's sample rings into
+     */
+    private final long[] mSampleTimes = new long[256];
+    private final float[] mSampleValues = new float[256];
+
+    /**
+     * Debug overlay with the sample pipeline latencies, refreshed while shown
+     */
+    private static final long LATENCY_REFRESH_MS = 500;
+    private TextView mLatencyView;
+    private final Runnable mLatencyRefresher = new Runnable() {
+        @Override
+        public void run() {
+            if (mChatService != null) {
+                mLatencyView.setText(PipelineLatency.format(
+                        mChatService.getPipelineLatency().snapshot()));
+            }
+            mHandler.postDelayed(this, LATENCY_REFRESH_MS);
+        }
+    };
+
     /**
      * Local Bluetooth adapter
      */
@@ -86,6 +118,16 @@ public class BluetoothChatFragment extends Fragment {
      */
     private BluetoothChatService mChatService = null;
 
+    /**
+     * Writes the samples of the connected sensors to the temperature table
+     */
+    private SampleIngest mIngest = null;
+
+    /**
+     * Prunes readings and rollups past their retention
+     */
+    private TemperatureRetention mRetention = null;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -124,9 +166,20 @@ public class BluetoothChatFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mLatencyRefresher);
         if (mChatService != null) {
             mChatService.stop();
         }
+        if (mIngest != null) {
+            try {
+                mIngest.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mRetention != null) {
+            mRetention.stop();
+        }
     }
 
     @Override
@@ -156,6 +209,7 @@ public class BluetoothChatFragment extends Fragment {
         mConversationView = (ListView) view.findViewById(R.id.in);
         mOutEditText = (EditText) view.findViewById(R.id.edit_text_out);
         mSendButton = (Button) view.findViewById(R.id.button_send);
+        mLatencyView = (TextView) view.findViewById(R.id.latency_overlay);
     }
 
     /**
@@ -187,6 +241,22 @@ public class BluetoothChatFragment extends Fragment {
 
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(getActivity(), mHandler);
+        // Sensors with binary framing firmware switch to it, others stay on ASCII
+        mChatService.setBinaryFramingOffered(true);
+        // Notice dead links within a few seconds instead of waiting for the stack
+        mChatService.setHeartbeat(HeartbeatMonitor.DEFAULT_INTERVAL_MS,
+                HeartbeatMonitor.DEFAULT_MAX_MISSED);
+        // Keep the readings, and fetch what sensors buffered while out of reach
+        SampleStore.ProviderStore store =
+                new SampleStore.ProviderStore(getActivity().getContentResolver());
+        mIngest = new SampleIngest(store, store);
+        mIngest.setPolicy(SampleIngest.POLICY_AGGREGATE);
+        mIngest.start();
+        mChatService.setSampleIngest(mIngest);
+        mChatService.setBacklogSync(store, store, null);
+        mRetention = new TemperatureRetention(getActivity().getContentResolver(),
+                TemperatureRetention.DEFAULT_POLICY);
+        mRetention.start(TemperatureRetention.DEFAULT_INTERVAL_MILLIS);
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
@@ -289,12 +359,15 @@ public class BluetoothChatFragment extends Fragment {
                     switch (msg.arg1) {
                         case BluetoothChatService.STATE_CONNECTED:
                             setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
                             break;
                         case BluetoothChatService.STATE_CONNECTING:
                             setStatus(R.string.title_connecting);
                             break;
+                        case BluetoothChatService.STATE_RECONNECTING:
+                            setStatus(R.string.title_reconnecting);
+                            break;
                         case BluetoothChatService.STATE_LISTEN:
+                        case BluetoothChatService.STATE_CLOSING:
                         case BluetoothChatService.STATE_NONE:
                             setStatus(R.string.title_not_connected);
                             break;
@@ -310,11 +383,28 @@ public class BluetoothChatFragment extends Fragment {
 //                    byte[] readBuf = (byte[]) msg.obj;
 //                    // construct a string from the valid bytes in the buffer
 //                    String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + msg.obj);
+                    mConversationArrayAdapter.add(mDeviceNames.get(msg.arg2) + ":  " + msg.obj);
+                    break;
+                case Constants.MESSAGE_SAMPLES:
+                    int count;
+                    while ((count = mChatService.drainSamples(msg.arg2,
+                            mSampleTimes, mSampleValues)) > 0) {
+                        for (int i = 0; i < count; i++) {
+                            mConversationArrayAdapter.add(mDeviceNames.get(msg.arg2) + ":  "
+                                    + mSampleValues[i]);
+                        }
+                        mChatService.getPipelineLatency().record(
+                                PipelineLatency.STAGE_DISPLAYED, mSampleTimes, 0, count);
+                    }
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
                     mConnectedDeviceName = msg.getData().getString(Constants.DEVICE_NAME);
+                    mDeviceNames.put(msg.arg2, mConnectedDeviceName);
+                    // Only the first device to connect starts a new conversation
+                    if (mChatService.getConnectionCount() <= 1) {
+                        mConversationArrayAdapter.clear();
+                    }
                     if (null != activity) {
                         Toast.makeText(activity, "Connected to "
                                 + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
@@ -375,6 +465,39 @@ public class BluetoothChatFragment extends Fragment {
         mChatService.connect(device, secure);
     }
 
+    /**
+     * Show or hide the latency overlay. Latencies are only recorded while it
+     * is shown, starting afresh each time.
+     */
+    private void showLatency(boolean show) {
+        if (mChatService == null) {
+            return;
+        }
+        PipelineLatency latency = mChatService.getPipelineLatency();
+        mHandler.removeCallbacks(mLatencyRefresher);
+        if (show) {
+            latency.reset();
+            latency.setEnabled(true);
+            mLatencyView.setText("");
+            mLatencyView.setVisibility(View.VISIBLE);
+            mHandler.postDelayed(mLatencyRefresher, LATENCY_REFRESH_MS);
+        } else {
+            latency.setEnabled(false);
+            mLatencyView.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Include the service's counters in "adb shell dumpsys activity".
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mChatService != null) {
+            mChatService.dump(writer);
+        }
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.bluetooth_chat, menu);
@@ -389,6 +512,11 @@ public class BluetoothChatFragment extends Fragment {
                 startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_SECURE);
                 return true;
             }
+            case R.id.show_latency: {
+                showLatency(!item.isChecked());
+                item.setChecked(!item.isChecked());
+                return true;
+            }
             /*
             case R.id.insecure_connect_scan: {
                 // Launch the DeviceListActivity to see devices and do scan
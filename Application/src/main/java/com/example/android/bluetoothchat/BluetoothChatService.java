@@ -18,60 +18,134 @@ package com.example.android.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import com.example.android.bluetoothchat.transport.RfcommTransport;
+import com.example.android.bluetoothchat.transport.Transport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
 import com.example.android.common.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
- * connections with other devices. It has a thread that listens for
- * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * connections with other devices. It has threads that listen for
+ * incoming connections, a thread per device being connected, and a
+ * thread per connected device performing data transmissions. Any number
+ * of devices can be connected at once; each connection gets an id that
+ * is passed as arg2 of every message sent to the Handler. The links
+ * themselves come from a {@link Transport}, RFCOMM unless told otherwise.
+ * With many devices, a {@link ConnectionReactor} can replace the two
+ * threads per connection. Links we made are restored by a
+ * {@link ReconnectManager} when they drop.
  */
 public class BluetoothChatService {
     // Debugging
     private static final String TAG = "BluetoothChatService";
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME_SECURE = "BluetoothChatSecure";
-    private static final String NAME_INSECURE = "BluetoothChatInsecure";
-
-    // Unique UUID for this application
-    // Não vou precisar disto
-    // O Android vai participar como client bluetooth
-    private static final UUID MY_UUID_SECURE =
-            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private static final UUID MY_UUID_INSECURE =
-            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    //    private static final UUID MY_UUID_SECURE =
-    //            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
-    //    private static final UUID MY_UUID_INSECURE =
-    //            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+    // Sensor lines are plain ASCII
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Number of parsed samples kept per connection for the consumers
+    private static final int SAMPLE_CAPACITY = 4096;
+
+    // Bytes asked for by the first read of a connection; adapts to the traffic
+    private static final int INITIAL_READ_SIZE = 1024;
+
+    // Channels of binary frames with a ring of their own; higher ones share the last
+    private static final int MAX_CHANNELS = 8;
+
+    private static final byte[] HANDSHAKE_ACCEPT = FrameCodec.HANDSHAKE_ACCEPT.getBytes(ASCII);
+
+    // Heartbeat lines of devices that kept ASCII framing, followed by the timestamp
+    private static final String PING_LINE = "#PING ";
+    private static final String PONG_LINE = "#PONG ";
+    private static final byte[] PING_BYTES = PING_LINE.getBytes(ASCII);
+    private static final byte[] PONG_BYTES = PONG_LINE.getBytes(ASCII);
+
+    // Default head start of the preferred socket type when connecting
+    private static final long CONNECT_STAGGER_MS = 400;
 
     // Member fields
-    private final BluetoothAdapter mAdapter;
+    private final Transport mTransport;
     private final Handler mHandler;
+    // Drives the connections when set; otherwise each one gets its own threads
+    private volatile ConnectionReactor mReactor;
+    // What write() does when an outgoing queue is full
+    private volatile int mWriteOverflowPolicy = OutboundQueue.OVERFLOW_REJECT;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    // Connection attempts and established connections, by remote address
+    private final Map<String, ConnectThread> mConnectThreads =
+            new HashMap<String, ConnectThread>();
+    private final ConcurrentHashMap<String, Connection> mConnections =
+            new ConcurrentHashMap<String, Connection>();
+    private final AtomicInteger mNextConnectionId = new AtomicInteger(1);
+    // Which socket type wins per device, and how long connecting takes
+    private final ConnectStats mConnectStats = new ConnectStats();
+    // Whether new connections offer binary framing to the device
+    private volatile boolean mOfferBinaryFraming;
+    // How long to wait for the preferred socket type before racing the other
+    private volatile long mConnectStaggerMs = CONNECT_STAGGER_MS;
+    // Restores the links to devices we connected to when they drop
+    private final ReconnectManager mReconnect;
+    // The overall state; read and changed without taking the service lock
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine();
+    // Pings the connections and drops the ones that went silent; off until setHeartbeat()
+    private final HeartbeatMonitor mHeartbeat = new HeartbeatMonitor();
+    // How long samples take to get through each stage, from read to display
+    private final PipelineLatency mLatency = new PipelineLatency();
+    // Retransmission checks of the bulk transfers
+    private final ScheduledExecutorService mBulkTimer = BulkTransfer.newTimer();
+    // How files offered or requested by devices are handled; null refuses them
+    private volatile BulkTransfer.IncomingFiles mIncomingFiles;
+    private volatile BulkTransfer.OutgoingFiles mOutgoingFiles;
+    private volatile BulkTransfer.Listener mPeerTransferListener;
+    // Persists the samples of new connections; null until setSampleIngest()
+    private volatile SampleIngest mIngest;
+    // Stores the backlogs of reconnected sensors; no sync until setBacklogSync()
+    private final ExecutorService mBacklogExecutor = BacklogSync.newExecutor();
+    private volatile SampleStore mBacklogStore;
+    private volatile SampleStore.SensorIds mBacklogSensorIds;
+    private volatile BacklogSync.Listener mBacklogListener;
+    // Read buffers, reused across connections
+    private volatile BufferPool mReadBuffers = new BufferPool();
+    // Counters of the service and of every connection, for dump()
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final MetricsRegistry.Scope mServiceMetrics = mMetrics.scope("service");
+    private final StripedCounter mConnectFailures = mServiceMetrics.counter("connect_failures");
+    private final StripedCounter mConnectionsLost = mServiceMetrics.counter("connections_lost");
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_RECONNECTING = 4; // restoring dropped links
+    public static final int STATE_CLOSING = 5;    // stop() is running
+
+    // arg2 of messages that are not about a particular connection
+    public static final int NO_CONNECTION = -1;
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -80,29 +154,461 @@ public class BluetoothChatService {
      * @param handler A Handler to send messages back to the UI Activity
      */
     public BluetoothChatService(Context context, Handler handler) {
-        mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
+        this(handler, new RfcommTransport(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    /**
+     * Constructor. Prepares a new chat session over any transport.
+     *
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param transport The transport used to listen and connect
+     */
+    public BluetoothChatService(Handler handler, Transport transport) {
+        mTransport = transport;
         mHandler = handler;
+        mStateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState, long version,
+                                       int connectionId) {
+                Log.d(TAG, "setState() " + oldState + " -> " + newState);
+                // Give the new state to the Handler so the UI Activity can update
+                mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, newState, connectionId)
+                        .sendToTarget();
+            }
+        });
+        mServiceMetrics.gauge("connections", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mConnections.size();
+            }
+        });
+        mServiceMetrics.gauge("state_transitions_refused", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mStateMachine.getRefusedCount();
+            }
+        });
+        mReconnect = new ReconnectManager(new ReconnectManager.Connector() {
+            @Override
+            public void connect(String address, boolean secure) {
+                synchronized (BluetoothChatService.this) {
+                    // Not if stop() or the user cancelled it meanwhile
+                    if (mReconnect.isReconnecting(address)) {
+                        startConnect(address, secure);
+                    }
+                }
+            }
+
+            @Override
+            public void onGaveUp(String address) {
+                postToast("Unable to reconnect device", NO_CONNECTION);
+                updateState(NO_CONNECTION);
+            }
+        });
+        mServiceMetrics.gauge("reconnects", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mReconnect.getReconnectCount();
+            }
+        });
+        mServiceMetrics.gauge("reconnects_given_up", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mReconnect.getGaveUpCount();
+            }
+        });
+        mServiceMetrics.gauge("read_buffers_allocated_bytes", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mReadBuffers.getAllocatedBytes();
+            }
+        });
     }
 
     /**
-     * Set the current state of the chat connection
+     * Return the manager restoring dropped links, to tune it or read its
+     * time-to-reconnect metric.
+     */
+    public ReconnectManager getReconnectManager() {
+        return mReconnect;
+    }
+
+    /**
+     * Drive the connections made from now on with a reactor instead of a
+     * reader and a writer thread each. Existing connections are unchanged.
      *
-     * @param state An integer defining the current connection state
+     * @param reactor The reactor, or null to go back to threads
      */
-    private synchronized void setState(int state) {
-        Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    public void setReactor(ConnectionReactor reactor) {
+        mReactor = reactor;
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    /**
+     * Return the per-device record of which socket type connected and of
+     * the connection setup latencies.
+     */
+    public ConnectStats getConnectStats() {
+        return mConnectStats;
+    }
+
+    /**
+     * Set how long a connect waits for the preferred socket type before
+     * also trying the other one.
+     *
+     * @param staggerMs The head start, or a negative value to try only one type
+     */
+    public void setConnectStagger(long staggerMs) {
+        mConnectStaggerMs = staggerMs;
+    }
+
+    /**
+     * Be told about every state change. The Handler gets them as
+     * {@link Constants#MESSAGE_STATE_CHANGE} in any case.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.removeListener(listener);
+    }
+
+    /**
+     * Set the current state of the chat connection, if the state machine
+     * allows the transition.
+     *
+     * @param state        An integer defining the current connection state
+     * @param connectionId The connection that caused the change, or NO_CONNECTION
+     */
+    private void setState(int state, int connectionId) {
+        mStateMachine.moveTo(state, connectionId);
+    }
+
+    /**
+     * Recompute the overall state from the connections and attempts in
+     * progress. Synchronized only to read the bookkeeping consistently.
+     */
+    private synchronized void updateState(int connectionId) {
+        int state;
+        if (!mConnections.isEmpty()) {
+            state = STATE_CONNECTED;
+        } else if (mReconnect.hasReconnecting()) {
+            state = STATE_RECONNECTING;
+        } else if (!mConnectThreads.isEmpty()) {
+            state = STATE_CONNECTING;
+        } else if (mSecureAcceptThread != null || mInsecureAcceptThread != null) {
+            state = STATE_LISTEN;
+        } else {
+            state = STATE_NONE;
+        }
+        setState(state, connectionId);
     }
 
     /**
-     * Return the current connection state.
+     * Return the current connection state: STATE_CONNECTED while at least
+     * one device is connected.
      */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mStateMachine.getState();
+    }
+
+    /**
+     * Return the number of connected devices.
+     */
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Return the ids of the connected devices.
+     */
+    public List<Integer> getConnectionIds() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Connection r : mConnections.values()) {
+            ids.add(r.mmId);
+        }
+        return ids;
+    }
+
+    /**
+     * Return the remote address of a connection, or null if it is gone.
+     */
+    public String getConnectionAddress(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? null : r.mmAddress;
+    }
+
+    /**
+     * Return the id of the connection to an address, or NO_CONNECTION.
+     */
+    public int getConnectionId(String address) {
+        Connection r = mConnections.get(address);
+        return r == null ? NO_CONNECTION : r.mmId;
+    }
+
+    private Connection findConnection(int connectionId) {
+        for (Connection r : mConnections.values()) {
+            if (r.mmId == connectionId) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the ring holding the numeric samples read from a connection, or
+     * null if it is gone. Consumers create their own {@link SampleRing.Reader} on it.
+     */
+    public SampleRing getSampleRing(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? null : r.mmSamples;
+    }
+
+    /**
+     * Return the ring of one channel of a connection using binary framing,
+     * or null if nothing was received on it. Channel 0 is the ring returned
+     * by {@link #getSampleRing(int)}.
+     */
+    public SampleRing getSampleRing(int connectionId, int channel) {
+        Connection r = findConnection(connectionId);
+        return r == null || channel < 0 || channel >= MAX_CHANNELS
+                ? null : r.mmChannelRings.get(channel);
+    }
+
+    /**
+     * Return true if a connection switched to binary framing.
+     */
+    public boolean isBinaryFraming(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r != null && r.mmBinary;
+    }
+
+    /**
+     * Return the number of binary frames of a connection rejected for a
+     * bad length or CRC.
+     */
+    public long getFrameErrorCount(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? 0 : r.mmDecoder.getErrorCount();
+    }
+
+    /**
+     * Offer binary framing to the devices connected from now on. Devices
+     * that answer the handshake switch to {@link FrameCodec} frames; the
+     * others keep sending ASCII lines.
+     */
+    public void setBinaryFramingOffered(boolean offered) {
+        mOfferBinaryFraming = offered;
+    }
+
+    /**
+     * Ping every connection periodically and close the ones from which nothing
+     * was received for maxMissed heartbeats in a row, so that the
+     * {@link ReconnectManager} can restore them.
+     *
+     * @param intervalMs Time between pings, or 0 to stop the heartbeat
+     * @param maxMissed  Number of silent heartbeats after which a link is dead
+     */
+    public void setHeartbeat(long intervalMs, int maxMissed) {
+        if (intervalMs > 0) {
+            mHeartbeat.start(intervalMs, maxMissed);
+        } else {
+            mHeartbeat.stop();
+        }
+    }
+
+    /**
+     * Return the round trip times of the recent heartbeats of a connection,
+     * or null if it is gone.
+     */
+    public LatencyHistogram.Snapshot getRtt(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? null : r.mmHeartbeat.getRtt();
+    }
+
+    /**
+     * Return the number of heartbeats a connection missed so far.
+     */
+    public long getMissedHeartbeats(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? 0 : r.mmHeartbeat.getMissedCount();
+    }
+
+    /**
+     * Return the latency histograms of the sample pipeline. The service
+     * records the read, framed and dispatched stages; whoever persists and
+     * displays the samples records the others.
+     */
+    public PipelineLatency getPipelineLatency() {
+        return mLatency;
+    }
+
+    /**
+     * Send a file to a device in chunks, see {@link BulkTransfer}. The
+     * device must have accepted binary framing.
+     *
+     * @param listener Told about progress and the outcome, on the service's threads
+     * @return The transfer id, for {@link #cancelTransfer}
+     * @throws IOException if the connection is gone, does not use binary
+     *                     framing, or the file cannot be read
+     */
+    public int sendFile(int connectionId, File file, BulkTransfer.Listener listener)
+            throws IOException {
+        return bulkEndpoint(connectionId).sendFile(file, listener);
+    }
+
+    /**
+     * Fetch a file from a device, e.g. its on-board log. If destination
+     * already holds the start of the file, only the rest is transferred.
+     *
+     * @return The transfer id, for {@link #cancelTransfer}
+     */
+    public int requestFile(int connectionId, String name, File destination,
+                           BulkTransfer.Listener listener) throws IOException {
+        return bulkEndpoint(connectionId).requestFile(name, destination, listener);
+    }
+
+    public void cancelTransfer(int connectionId, int transferId) {
+        Connection r = findConnection(connectionId);
+        if (r != null) {
+            r.mmBulk.cancel(transferId);
+        }
+    }
+
+    /**
+     * Set how the service answers devices that offer or request files.
+     * Either may be null to refuse.
+     */
+    public void setPeerFiles(BulkTransfer.IncomingFiles incoming,
+                             BulkTransfer.OutgoingFiles outgoing,
+                             BulkTransfer.Listener listener) {
+        mIncomingFiles = incoming;
+        mOutgoingFiles = outgoing;
+        mPeerTransferListener = listener;
+        for (Connection r : mConnections.values()) {
+            r.mmBulk.setPeerFiles(incoming, outgoing, listener);
+        }
+    }
+
+    private BulkTransfer.Endpoint bulkEndpoint(int connectionId) throws IOException {
+        Connection r = findConnection(connectionId);
+        if (r == null) {
+            throw new IOException("no connection " + connectionId);
+        }
+        if (!r.mmBinary) {
+            throw new IOException(r.mmAddress + " does not use binary framing");
+        }
+        return r.mmBulk;
+    }
+
+    /**
+     * Persist the samples of the main channel of every connection through
+     * ingest, including the ones already connected. Pass null to stop; the
+     * caller starts and stops the ingest thread.
+     */
+    public void setSampleIngest(SampleIngest ingest) {
+        if (ingest != null) {
+            ingest.setPipelineLatency(mLatency);
+        }
+        mIngest = ingest;
+        for (Connection r : mConnections.values()) {
+            r.setIngest(ingest);
+        }
+    }
+
+    /**
+     * Fetch the backlog of every device that accepts binary framing from
+     * now on, see {@link BacklogSync}. Pass a null store to stop.
+     *
+     * @param ids      Maps devices to the sensorid their rows are stored under
+     * @param listener Told about progress, on the storing thread; may be null
+     */
+    public void setBacklogSync(SampleStore store, SampleStore.SensorIds ids,
+                               BacklogSync.Listener listener) {
+        mBacklogListener = listener;
+        mBacklogSensorIds = ids;
+        mBacklogStore = store;
+    }
+
+    /**
+     * Ask a connected device for the samples it took after the newest one
+     * stored for sensorId, replacing a sync that is still running.
+     *
+     * @throws IOException if the connection is gone or does not use binary
+     *                     framing, or no store was set
+     */
+    public BacklogSync syncBacklog(int connectionId, long sensorId) throws IOException {
+        Connection r = findConnection(connectionId);
+        if (r == null) {
+            throw new IOException("no connection " + connectionId);
+        }
+        if (!r.mmBinary) {
+            throw new IOException(r.mmAddress + " does not use binary framing");
+        }
+        SampleStore store = mBacklogStore;
+        if (store == null) {
+            throw new IOException("no backlog store");
+        }
+        return r.startBacklogSync(store, sensorId);
+    }
+
+    /**
+     * Return the running or last backlog sync of a connection, or null.
+     */
+    public BacklogSync getBacklogSync(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? null : r.mmBacklog;
+    }
+
+    /**
+     * Set the pool the reading threads of new connections lease their
+     * buffers from.
+     */
+    public void setBufferPool(BufferPool pool) {
+        mReadBuffers = pool;
+    }
+
+    public BufferPool getBufferPool() {
+        return mReadBuffers;
+    }
+
+    /**
+     * Return the counters of the service and its connections.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Print the state, the counters and the per-second rates of the service
+     * and of every connection, plus totals that include closed connections.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("BluetoothChatService state="
+                + ConnectionStateMachine.nameOf(getState())
+                + " connections=" + mConnections.size());
+        mMetrics.dump(writer);
+    }
+
+    /**
+     * Drain the samples announced by {@link Constants#MESSAGE_SAMPLES}. Call
+     * this from the Handler until it returns 0; a new message is posted when
+     * more samples arrive afterwards.
+     *
+     * @param connectionId The connection, from arg2 of the message
+     * @param times        Destination for the capture times, in nanoseconds
+     * @param values       Destination for the values
+     * @return The number of samples copied
+     */
+    public int drainSamples(int connectionId, long[] times, float[] values) {
+        Connection r = findConnection(connectionId);
+        if (r == null) {
+            return 0;
+        }
+        r.mmSamplesPosted.set(false);
+        int count = r.mmHandlerReader.drain(times, values);
+        mLatency.record(PipelineLatency.STAGE_DISPATCHED, times, 0, count);
+        return count;
     }
 
     /**
@@ -111,22 +617,29 @@ public class BluetoothChatService {
      */
     public synchronized void start() {
         Log.d(TAG, "start");
+        mReconnect.cancelAll();
 
         // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        for (ConnectThread r : mConnectThreads.values()) {
+            r.cancel();
         }
+        mConnectThreads.clear();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        for (Connection r : mConnections.values()) {
+            r.cancel();
         }
+        mConnections.clear();
 
-        setState(STATE_LISTEN);
+        startListening();
+        updateState(NO_CONNECTION);
+    }
 
-        // Start the thread to listen on a BluetoothServerSocket
+    /**
+     * Make sure both AcceptThreads are running.
+     */
+    private synchronized void startListening() {
+        // Start the thread to listen on the transport
         if (mSecureAcceptThread == null) {
             mSecureAcceptThread = new AcceptThread(true);
             mSecureAcceptThread.start();
@@ -143,73 +656,88 @@ public class BluetoothChatService {
      * @param device The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device, boolean secure) {
+        connect(device.getAddress(), secure);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
+    /**
+     * Start a ConnectThread to initiate a connection to a remote address.
+     * Connections to other addresses are left alone. The socket type that
+     * won the last connection to this address is tried first, and the
+     * other one after the stagger.
+     *
+     * @param address The remote address, in the transport's format
+     * @param secure  Socket Security type tried first when the address has
+     *                no history - Secure (true) , Insecure (false)
+     */
+    public synchronized void connect(String address, boolean secure) {
+        // The user's choice replaces any reconnection in progress
+        mReconnect.cancel(address);
+        startConnect(address, secure);
+    }
+
+    private synchronized void startConnect(String address, boolean secure) {
+        Log.d(TAG, "connect to: " + address);
+
+        // Cancel any thread attempting to make a connection to this address
+        ConnectThread attempt = mConnectThreads.remove(address);
+        if (attempt != null) {
+            attempt.cancel();
         }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel any thread currently running a connection to this address
+        Connection r = mConnections.remove(address);
+        if (r != null) {
+            r.cancel();
         }
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        attempt = new ConnectThread(address, secure);
+        mConnectThreads.put(address, attempt);
+        attempt.start();
+        updateState(NO_CONNECTION);
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start managing a connection, on its own threads or on the reactor.
+     * The AcceptThreads keep running so more devices can connect.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param connection The connection that has been made
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device, final String socketType) {
+    public synchronized void connected(TransportConnection connection,
+                                       final String socketType) {
         Log.d(TAG, "connected, Socket Type:" + socketType);
+        String address = connection.getRemoteAddress();
 
         // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        ConnectThread attempt = mConnectThreads.remove(address);
+        if (attempt != null) {
+            attempt.cancel();
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        // Cancel any thread currently running a connection to the same device
+        Connection previous = mConnections.remove(address);
+        if (previous != null) {
+            previous.cancel();
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+        Connection r = new Connection(connection, socketType,
+                mNextConnectionId.getAndIncrement());
+        mConnections.put(address, r);
+        r.start();
+
+        mReconnect.onConnected(address);
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME, -1, r.mmId);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
+        bundle.putString(Constants.DEVICE_NAME, connection.getRemoteName());
+        bundle.putString(Constants.DEVICE_ADDRESS, address);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
-        setState(STATE_CONNECTED);
+        updateState(r.mmId);
     }
 
     /**
@@ -217,16 +745,18 @@ public class BluetoothChatService {
      */
     public synchronized void stop() {
         Log.d(TAG, "stop");
+        setState(STATE_CLOSING, NO_CONNECTION);
+        mReconnect.cancelAll();
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        for (ConnectThread r : mConnectThreads.values()) {
+            r.cancel();
         }
+        mConnectThreads.clear();
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        for (Connection r : mConnections.values()) {
+            r.cancel();
         }
+        mConnections.clear();
 
         if (mSecureAcceptThread != null) {
             mSecureAcceptThread.cancel();
@@ -237,80 +767,180 @@ public class BluetoothChatService {
             mInsecureAcceptThread.cancel();
             mInsecureAcceptThread = null;
         }
-        setState(STATE_NONE);
+        mStateMachine.transition(STATE_CLOSING, STATE_NONE, NO_CONNECTION);
+    }
+
+    /**
+     * Disconnect one device, leaving the others connected.
+     */
+    public synchronized void disconnect(int connectionId) {
+        Connection r = findConnection(connectionId);
+        if (r != null && mConnections.remove(r.mmAddress, r)) {
+            mReconnect.cancel(r.mmAddress);
+            r.cancel();
+            updateState(connectionId);
+        }
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to every connected device in an unsynchronized manner
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @see Connection#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+        for (Connection r : mConnections.values()) {
+            r.write(out);
         }
+    }
+
+    /**
+     * Queue bytes for one connection's writer without blocking (unless the
+     * overflow policy is {@link OutboundQueue#OVERFLOW_BLOCK}).
+     * {@link Constants#MESSAGE_WRITE} is sent once they have been flushed.
+     *
+     * @param connectionId The connection to write to
+     * @param out          The bytes to write; must not be modified afterwards
+     * @return false if not connected or the queue refused the bytes
+     */
+    public boolean offer(int connectionId, byte[] out) {
+        return offer(connectionId, out, OutboundQueue.PRIORITY_CONTROL);
+    }
+
+    /**
+     * Queue bytes for one connection in a priority class. Large payloads
+     * should use {@link OutboundQueue#PRIORITY_BULK}, so commands and
+     * heartbeats queued after them still go out promptly.
+     *
+     * @param priority One of the OutboundQueue PRIORITY_ constants
+     * @see #offer(int, byte[])
+     */
+    public boolean offer(int connectionId, byte[] out, int priority) {
+        Connection r = findConnection(connectionId);
         // Perform the write unsynchronized
-        r.write(out);
+        return r != null && r.write(out, priority);
+    }
+
+    /**
+     * Set what write() does when an outgoing queue is full.
+     *
+     * @param policy One of the OutboundQueue OVERFLOW_ constants
+     */
+    public void setWriteOverflowPolicy(int policy) {
+        mWriteOverflowPolicy = policy;
+        for (Connection r : mConnections.values()) {
+            r.mmQueue.setOverflowPolicy(policy);
+        }
+    }
+
+    /**
+     * Return the number of messages waiting to be written to a connection.
+     */
+    public int getWriteQueueDepth(int connectionId) {
+        Connection r = findConnection(connectionId);
+        return r == null ? 0 : r.mmQueue.size();
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    private void connectionFailed(ConnectThread attempt) {
+        // Send a failure message back to the Activity, unless we are only retrying
+        mConnectFailures.increment();
+        if (!mReconnect.isReconnecting(attempt.mmAddress)) {
+            postToast("Unable to connect device", NO_CONNECTION);
+        }
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+        synchronized (this) {
+            if (mConnectThreads.get(attempt.mmAddress) == attempt) {
+                mConnectThreads.remove(attempt.mmAddress);
+            }
+            // Keep listening for incoming connections
+            int state = getState();
+            if (state != STATE_NONE && state != STATE_CLOSING) {
+                startListening();
+                updateState(NO_CONNECTION);
+            }
+        }
+        mReconnect.onAttemptFailed(attempt.mmAddress);
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that a connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
+    private void connectionLost(Connection r) {
+        synchronized (this) {
+            // Only report connections that were not replaced or stopped on purpose
+            if (!mConnections.remove(r.mmAddress, r)) {
+                return;
+            }
+        }
+        mHeartbeat.unregister(r.mmHeartbeat);
+        r.mmBulk.close();
+        BacklogSync sync = r.mmBacklog;
+        if (sync != null) {
+            sync.cancel();
+        }
+        r.setIngest(null);
+        mMetrics.retire(r.mmMetrics);
+        mConnectionsLost.increment();
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+        postToast("Device connection was lost", r.mmId);
+
+        // Try to get the link back if we made it
+        mReconnect.onConnectionLost(r.mmAddress);
+
+        synchronized (this) {
+            // Keep listening for incoming connections
+            startListening();
+            updateState(r.mmId);
+        }
+    }
+
+    private static boolean equalsAscii(byte[] buffer, int offset, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithAscii(byte[] buffer, byte[] prefix) {
+        return buffer.length >= prefix.length
+                && equalsAscii(buffer, 0, prefix.length, prefix);
+    }
+
+    private void postToast(String text, int connectionId) {
+        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST, -1, connectionId);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
+        bundle.putString(Constants.TOAST, text);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
-
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
     }
 
     /**
      * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * like a server-side client. It runs until cancelled, accepting any
+     * number of connections.
      */
     private class AcceptThread extends Thread {
         // The local server socket
-        private final BluetoothServerSocket mmServerSocket;
+        private final TransportServer mmServerSocket;
         private String mSocketType;
+        private volatile boolean mmCancelled;
 
         public AcceptThread(boolean secure) {
-            BluetoothServerSocket tmp = null;
+            TransportServer tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
             // Create a new listening server socket
             try {
-                if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-                            MY_UUID_SECURE);
-                } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
-                            NAME_INSECURE, MY_UUID_INSECURE);
-                }
+                tmp = mTransport.listen(secure);
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
@@ -322,38 +952,38 @@ public class BluetoothChatService {
                     "BEGIN mAcceptThread" + this);
             setName("AcceptThread" + mSocketType);
 
-            BluetoothSocket socket = null;
+            if (mmServerSocket == null) {
+                return;
+            }
+            TransportConnection socket = null;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket until cancelled
+            while (!mmCancelled) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
                     socket = mmServerSocket.accept();
                 } catch (IOException e) {
-                    Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    if (!mmCancelled) {
+                        Log.e(TAG, "Socket Type: " + mSocketType + "accept() failed", e);
+                    }
                     break;
                 }
 
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        int state = BluetoothChatService.this.getState();
+                        if (state == STATE_NONE || state == STATE_CLOSING || mmCancelled) {
+                            // Not ready. Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
+                        } else {
+                            // Situation normal. Start the connected thread.
+                            connected(socket, mSocketType);
                         }
                     }
                 }
@@ -364,6 +994,10 @@ public class BluetoothChatService {
 
         public void cancel() {
             Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            mmCancelled = true;
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -375,159 +1009,682 @@ public class BluetoothChatService {
 
     /**
      * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * with a device. It first tries the socket type that won last time for
+     * this device, or the one asked for. If that has not connected within
+     * the stagger, it also tries the other type, keeps whichever connects
+     * first and closes the other.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        private final String mmAddress;
+        private final boolean mmPreferSecure;
+        private final long mmStaggerMs;
+        private final List<SocketAttempt> mmAttempts = new ArrayList<SocketAttempt>(2);
+        private SocketAttempt mmWinner;
+        private int mmFailed;
+        private volatile boolean mmCancelled;
+
+        public ConnectThread(String address, boolean secure) {
+            mmAddress = address;
+            mmPreferSecure = mConnectStats.preferSecure(address, secure);
+            mmStaggerMs = mConnectStaggerMs;
+        }
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectThread " + mmAddress);
+            setName("ConnectThread-" + mmAddress);
+
+            // Always cancel discovery because it will slow down a connection
+            mTransport.prepareConnect();
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+            long start = System.nanoTime();
+            SocketAttempt winner;
             try {
-                if (secure) {
-                    tmp = device.createRfcommSocketToServiceRecord(
-                            MY_UUID_SECURE);
+                winner = race();
+            } catch (InterruptedException e) {
+                winner = null;
+            }
+            if (winner == null) {
+                boolean cancelled = mmCancelled;
+                cancel();
+                if (!cancelled) {
+                    connectionFailed(this);
+                }
+                return;
+            }
+            mConnectStats.record(mmAddress, winner.mmSecure, System.nanoTime() - start);
+
+            synchronized (BluetoothChatService.this) {
+                // Give up quietly if we were cancelled or replaced meanwhile
+                if (mmCancelled || mConnectThreads.get(mmAddress) != this) {
+                    cancel();
+                    return;
+                }
+                // Reset the ConnectThread because we're done
+                mConnectThreads.remove(mmAddress);
+                mReconnect.remember(mmAddress, winner.mmSecure);
+
+                // Start the connected thread
+                connected(winner.mmSocket, winner.mmSocketType);
+            }
+        }
+
+        /**
+         * Run the attempts until one connects or all have failed.
+         *
+         * @return The attempt that connected, or null
+         */
+        private synchronized SocketAttempt race() throws InterruptedException {
+            startAttempt(mmPreferSecure);
+            long staggerEnd = System.currentTimeMillis() + mmStaggerMs;
+            while (mmWinner == null && !mmCancelled) {
+                boolean canRace = mmStaggerMs >= 0 && mmAttempts.size() == 1;
+                long left = staggerEnd - System.currentTimeMillis();
+                if (canRace && (mmFailed == 1 || left <= 0)) {
+                    // The preferred type is slow or failed; try the other one too
+                    startAttempt(!mmPreferSecure);
+                } else if (mmFailed == mmAttempts.size() && !canRace) {
+                    return null;
                 } else {
-                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-                            MY_UUID_INSECURE);
+                    wait(canRace ? left : 0);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
-            mmSocket = tmp;
+            return mmWinner;
         }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
+        private void startAttempt(boolean secure) {
+            SocketAttempt attempt = new SocketAttempt(secure);
+            mmAttempts.add(attempt);
+            attempt.start();
+        }
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+        private synchronized void attemptDone(SocketAttempt attempt, boolean connected) {
+            if (!connected) {
+                mmFailed++;
+            } else if (mmWinner == null && !mmCancelled) {
+                mmWinner = attempt;
+                // The loser is not needed any more
+                for (SocketAttempt other : mmAttempts) {
+                    if (other != attempt) {
+                        other.cancel();
+                    }
+                }
+            } else {
+                attempt.cancel();
+            }
+            notifyAll();
+        }
 
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                // Close the socket
+        public void cancel() {
+            mmCancelled = true;
+            synchronized (this) {
+                for (SocketAttempt attempt : mmAttempts) {
+                    if (attempt != mmWinner) {
+                        attempt.cancel();
+                    }
+                }
+                if (mmWinner != null) {
+                    mmWinner.cancel();
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Connects one socket type.
+         */
+        private class SocketAttempt extends Thread {
+            private final boolean mmSecure;
+            private final String mmSocketType;
+            private volatile TransportConnection mmSocket;
+            private volatile boolean mmClosed;
+
+            SocketAttempt(boolean secure) {
+                mmSecure = secure;
+                mmSocketType = secure ? "Secure" : "Insecure";
+                setName("ConnectThread" + mmSocketType + "-" + mmAddress);
+            }
+
+            public void run() {
+                try {
+                    // Get a connection to the given address
+                    mmSocket = mTransport.createConnection(mmAddress, mmSecure);
+                    if (mmClosed) {
+                        throw new IOException("cancelled");
+                    }
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    mmSocket.connect();
+                } catch (IOException e) {
+                    Log.e(TAG, "Socket Type: " + mmSocketType + " connect() failed", e);
+                    cancel();
+                    attemptDone(this, false);
+                    return;
+                }
+                attemptDone(this, true);
+            }
+
+            void cancel() {
+                mmClosed = true;
+                TransportConnection socket = mmSocket;
+                if (socket == null) {
+                    return;
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of connect " + mmSocketType + " socket failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one connected device: its id, address, line framer and
+     * sample ring. The bytes are moved either by a {@link ConnectedThread}
+     * and a {@link WriterThread} of its own or, when the service was given a
+     * {@link ConnectionReactor}, by the reactor's shared threads.
+     */
+    private class Connection implements LineFramer.LineListener, FrameCodec.FrameListener,
+            WriterThread.Listener, ConnectionReactor.Callback, HeartbeatMonitor.Link,
+            BulkTransfer.Link {
+        private final TransportConnection mmSocket;
+        private final int mmId;
+        private final String mmAddress;
+        private final OutboundQueue mmQueue = new OutboundQueue();
+        private final LineFramer mmFramer = new LineFramer();
+        // Samples parsed from this connection; only the reading thread adds to it
+        private final SampleRing mmSamples = new SampleRing(SAMPLE_CAPACITY);
+        // The reader drained through drainSamples() by the Handler
+        private final SampleRing.Reader mmHandlerReader = mmSamples.newReader();
+        // Set while a MESSAGE_SAMPLES is queued and not yet drained
+        private final AtomicBoolean mmSamplesPosted = new AtomicBoolean();
+        // Rings of the other channels of binary frames, created on first use
+        private final AtomicReferenceArray<SampleRing> mmChannelRings =
+                new AtomicReferenceArray<SampleRing>(MAX_CHANNELS);
+        private final FrameCodec.Decoder mmDecoder = new FrameCodec.Decoder();
+        // Delta stream state per channel, created on first use
+        private final DeltaCodec.Decoder[] mmDeltaDecoders = new DeltaCodec.Decoder[MAX_CHANNELS];
+        private final boolean mmBinaryOffered;
+        // Set once the device accepted binary framing
+        private volatile boolean mmBinary;
+        // Exactly one of these drives the connection
+        private final ConnectedThread mmThread;
+        private final ConnectionReactor.Registration mmRegistration;
+        // Capture time of the bytes being framed
+        private long mmReadNanos;
+        // Capture time of the last bytes, read by the heartbeat
+        private volatile long mmLastReadNanos = System.nanoTime();
+        private final HeartbeatMonitor.LinkState mmHeartbeat;
+        // File transfers over this connection
+        private final BulkTransfer.Endpoint mmBulk;
+        // The running or last backlog sync
+        private volatile BacklogSync mmBacklog;
+        // Persists the samples of the main channel, if set
+        private SampleIngest mmIngest;
+        private SampleIngest.Source mmIngestSource;
+        // Counters kept by the reading and writing paths
+        private final MetricsRegistry.Scope mmMetrics;
+        private final StripedCounter mmBytesIn;
+        private final RateMeter mmBytesInRate;
+        private final StripedCounter mmLines;
+        private final StripedCounter mmFrames;
+        private final RateMeter mmSampleRate;
+        private final StripedCounter mmBytesOut;
+        private final StripedCounter mmMessagesOut;
+        private final StripedCounter mmWriteFailures;
+
+        public Connection(TransportConnection socket, String socketType, int id) {
+            Log.d(TAG, "create Connection: " + socketType);
+            mmSocket = socket;
+            mmId = id;
+            mmAddress = socket.getRemoteAddress();
+            mmQueue.setOverflowPolicy(mWriteOverflowPolicy);
+            mmBinaryOffered = mOfferBinaryFraming;
+            mmChannelRings.set(0, mmSamples);
+            mmHeartbeat = mHeartbeat.register(this);
+            mmBulk = new BulkTransfer.Endpoint(mmAddress, this, true, mBulkTimer);
+            mmBulk.setPeerFiles(mIncomingFiles, mOutgoingFiles, mPeerTransferListener);
+
+            mmMetrics = mMetrics.scope("connection " + id + " " + mmAddress);
+            mmBytesIn = mmMetrics.counter("bytes_in");
+            mmBytesInRate = mmMetrics.meter("bytes_in");
+            mmLines = mmMetrics.counter("lines");
+            mmFrames = mmMetrics.counter("frames");
+            mmSampleRate = mmMetrics.meter("samples");
+            mmBytesOut = mmMetrics.counter("bytes_out");
+            mmMessagesOut = mmMetrics.counter("messages_out");
+            mmWriteFailures = mmMetrics.counter("write_failures");
+            mmMetrics.gauge("malformed_lines", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    // Lines longer than the framer takes
+                    return mmFramer.getOverflowCount();
+                }
+            });
+            mmMetrics.gauge("malformed_frames", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return mmDecoder.getErrorCount();
+                }
+            });
+            mmMetrics.gauge("dropped_writes", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return mmQueue.getDroppedCount();
+                }
+            });
+            mmMetrics.gauge("dropped_samples", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    // Overwritten in the ring before the Handler drained them
+                    return mmHandlerReader.getDroppedCount();
+                }
+            });
+            mmMetrics.gauge("missed_heartbeats", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return mmHeartbeat.getMissedCount();
+                }
+            });
+            mmMetrics.gauge("backlog_rows", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    BacklogSync sync = mmBacklog;
+                    return sync == null ? 0 : sync.getStoredCount();
+                }
+            });
+
+            // Last: a reactor thread may call onRead() as soon as this returns
+            ConnectionReactor.Registration registration = null;
+            if (mReactor != null) {
                 try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
+                    registration = mReactor.register(socket, mmQueue, this);
+                } catch (IOException e) {
+                    Log.e(TAG, "register() failed, using threads", e);
                 }
-                connectionFailed();
+            }
+            mmRegistration = registration;
+            mmThread = registration == null ? new ConnectedThread(this) : null;
+        }
+
+        public void start() {
+            setIngest(mIngest);
+            if (mmThread != null) {
+                mmThread.start();
+            }
+            if (mmBinaryOffered) {
+                write((FrameCodec.HANDSHAKE_OFFER + "\n").getBytes(ASCII));
+            }
+        }
+
+        @Override
+        public void onRead(byte[] buffer, int offset, int length, long nanos) {
+            mmReadNanos = nanos;
+            mmLastReadNanos = nanos;
+            mmBytesIn.add(length);
+            mmBytesInRate.mark(length, nanos);
+            long before = mmSamples.getWriteSequence();
+            if (!mLatency.isEnabled()) {
+                frame(buffer, offset, length);
+                mmSampleRate.mark(mmSamples.getWriteSequence() - before, nanos);
                 return;
             }
+            long start = System.nanoTime();
+            frame(buffer, offset, length);
+            int framed = (int) (mmSamples.getWriteSequence() - before);
+            mmSampleRate.mark(framed, nanos);
+            mLatency.record(PipelineLatency.STAGE_READ, nanos, start, framed);
+            mLatency.record(PipelineLatency.STAGE_FRAMED, nanos, framed);
+        }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
+        private void frame(byte[] buffer, int offset, int length) {
+            if (mmBinary) {
+                mmDecoder.feed(buffer, offset, length, this);
+                return;
+            }
+            // Only the bytes just read are scanned; every complete line is
+            // passed to onLine()
+            mmFramer.feed(buffer, offset, length, this);
+            int rest = mmFramer.getStopOffset();
+            if (rest >= 0) {
+                // The device switched to binary frames within this read
+                mmDecoder.feed(buffer, rest, offset + length - rest, this);
+            }
+        }
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            mmLines.increment();
+            if (mmBinaryOffered && equalsAscii(buffer, offset, length, HANDSHAKE_ACCEPT)) {
+                Log.i(TAG, "binary framing accepted by " + mmAddress);
+                mmBinary = true;
+                mmFramer.stop();
+                SampleStore store = mBacklogStore;
+                SampleStore.SensorIds ids = mBacklogSensorIds;
+                long sensorId = store == null || ids == null ? -1 : ids.sensorIdFor(mmAddress);
+                if (sensorId >= 0) {
+                    startBacklogSync(store, sensorId);
+                }
+                return;
+            }
+            if (length > PING_LINE.length() && buffer[offset] == '#') {
+                String line = new String(buffer, offset, length, ASCII);
+                if (line.startsWith(PING_LINE)) {
+                    send((PONG_LINE + line.substring(PING_LINE.length()) + "\n")
+                            .getBytes(ASCII));
+                    return;
+                }
+                if (line.startsWith(PONG_LINE)) {
+                    try {
+                        mmHeartbeat.onPong(Long.parseLong(line.substring(PONG_LINE.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "bad pong from " + mmAddress + ": " + line);
+                    }
+                    return;
+                }
+            }
+            float value = SampleParser.parseFloat(buffer, offset, length);
+            if (!Float.isNaN(value)) {
+                mmSamples.add(mmReadNanos, value);
+                // Wake the UI once per batch, not once per sample
+                if (!mmSamplesPosted.get() && mmSamplesPosted.compareAndSet(false, true)) {
+                    mHandler.obtainMessage(Constants.MESSAGE_SAMPLES, -1, mmId).sendToTarget();
+                }
+                return;
+            }
+            // Anything else is a chat message
+            String line = new String(buffer, offset, length, ASCII);
+            mHandler.obtainMessage(Constants.MESSAGE_READ, length, mmId, line).sendToTarget();
+        }
+
+        @Override
+        public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+            mmFrames.increment();
+            switch (type) {
+                case FrameCodec.TYPE_SAMPLES_FLOAT:
+                    SampleRing ring = ringFor(channel);
+                    for (int i = offset; i + 4 <= offset + length; i += 4) {
+                        int bits = (buffer[i] & 0xff) << 24 | (buffer[i + 1] & 0xff) << 16
+                                | (buffer[i + 2] & 0xff) << 8 | (buffer[i + 3] & 0xff);
+                        ring.add(mmReadNanos, Float.intBitsToFloat(bits));
+                    }
+                    samplesAdded(channel);
+                    break;
+                case FrameCodec.TYPE_SAMPLES_CENTI:
+                    ring = ringFor(channel);
+                    for (int i = offset; i + 2 <= offset + length; i += 2) {
+                        short centi = (short) ((buffer[i] & 0xff) << 8 | (buffer[i + 1] & 0xff));
+                        ring.add(mmReadNanos, centi / 100f);
+                    }
+                    samplesAdded(channel);
+                    break;
+                case DeltaCodec.TYPE_SAMPLES_KEY:
+                case DeltaCodec.TYPE_SAMPLES_DELTA:
+                    ring = ringFor(channel);
+                    int slot = Math.min(channel, MAX_CHANNELS - 1);
+                    if (mmDeltaDecoders[slot] == null) {
+                        mmDeltaDecoders[slot] = new DeltaCodec.Decoder();
+                    }
+                    if (mmDeltaDecoders[slot].decode(type, buffer, offset, length,
+                            mmReadNanos, ring) > 0) {
+                        samplesAdded(channel);
+                    }
+                    break;
+                case FrameCodec.TYPE_TEXT:
+                    String line = new String(buffer, offset, length, ASCII);
+                    mHandler.obtainMessage(Constants.MESSAGE_READ, length, mmId, line)
+                            .sendToTarget();
+                    break;
+                case FrameCodec.TYPE_PING:
+                    send(FrameCodec.encode(FrameCodec.TYPE_PONG, channel,
+                            Arrays.copyOfRange(buffer, offset, offset + length)));
+                    break;
+                case FrameCodec.TYPE_PONG:
+                    if (length == 8) {
+                        long sent = 0;
+                        for (int i = offset; i < offset + 8; i++) {
+                            sent = sent << 8 | (buffer[i] & 0xff);
+                        }
+                        mmHeartbeat.onPong(sent);
+                    }
+                    break;
+                case BacklogSync.TYPE_BACKLOG:
+                case BacklogSync.TYPE_BACKLOG_END:
+                    BacklogSync sync = mmBacklog;
+                    if (sync != null) {
+                        sync.onFrame(type, buffer, offset, length);
+                    }
+                    break;
+                default:
+                    // File transfer frames; a newer frame type is skipped
+                    mmBulk.onFrame(type, channel, buffer, offset, length);
+                    break;
+            }
+        }
+
+        synchronized void setIngest(SampleIngest ingest) {
+            if (mmIngestSource != null) {
+                mmIngest.unregister(mmIngestSource);
+            }
+            mmIngest = ingest;
+            mmIngestSource = ingest != null ? ingest.register(mmAddress, mmSamples) : null;
+        }
+
+        BacklogSync startBacklogSync(SampleStore store, long sensorId) {
+            BacklogSync sync = new BacklogSync(sensorId, store, this, mBacklogExecutor,
+                    mBacklogListener, BacklogSync.DEFAULT_BATCH_SIZE);
+            BacklogSync old = mmBacklog;
+            if (old != null) {
+                old.cancel();
+            }
+            mmBacklog = sync;
+            sync.start();
+            return sync;
+        }
+
+        private SampleRing ringFor(int channel) {
+            if (channel >= MAX_CHANNELS) {
+                channel = MAX_CHANNELS - 1;
+            }
+            SampleRing ring = mmChannelRings.get(channel);
+            if (ring == null) {
+                // Only the reading thread creates rings
+                ring = new SampleRing(SAMPLE_CAPACITY);
+                mmChannelRings.set(channel, ring);
+            }
+            return ring;
+        }
+
+        private void samplesAdded(int channel) {
+            // The Handler is only told about the main channel
+            if (channel == 0
+                    && !mmSamplesPosted.get() && mmSamplesPosted.compareAndSet(false, true)) {
+                mHandler.obtainMessage(Constants.MESSAGE_SAMPLES, -1, mmId).sendToTarget();
+            }
+        }
+
+        /**
+         * Queue bytes for the connected OutStream, in a text frame once the
+         * device uses binary framing.
+         *
+         * @param buffer The bytes to write
+         * @return false if the queue refused them
+         */
+        public boolean write(byte[] buffer) {
+            return write(buffer, OutboundQueue.PRIORITY_CONTROL);
+        }
+
+        public boolean write(byte[] buffer, int priority) {
+            if (mmBinary) {
+                buffer = FrameCodec.encode(FrameCodec.TYPE_TEXT, 0, buffer);
+            }
+            return send(buffer, priority);
+        }
+
+        @Override
+        public boolean send(byte[] buffer) {
+            // File chunks give way to everything else on the link
+            boolean bulk = mmBinary && buffer.length > FrameCodec.HEADER_LENGTH
+                    && buffer[0] == FrameCodec.SYNC && buffer[1] == BulkTransfer.TYPE_DATA;
+            return send(buffer,
+                    bulk ? OutboundQueue.PRIORITY_BULK : OutboundQueue.PRIORITY_CONTROL);
+        }
+
+        private boolean send(byte[] buffer, int priority) {
+            return mmRegistration != null ? mmRegistration.offer(buffer, priority)
+                    : mmThread.mmWriter.offer(buffer, priority);
+        }
+
+        @Override
+        public void sendPing(long nanos) {
+            if (mmBinary) {
+                byte[] payload = new byte[8];
+                for (int i = 7; i >= 0; i--) {
+                    payload[i] = (byte) nanos;
+                    nanos >>>= 8;
+                }
+                send(FrameCodec.encode(FrameCodec.TYPE_PING, 0, payload));
+            } else {
+                send((PING_LINE + nanos + "\n").getBytes(ASCII));
+            }
+        }
+
+        @Override
+        public long getLastReceiveNanos() {
+            return mmLastReadNanos;
+        }
+
+        @Override
+        public void onDead(int missed) {
+            IOException e = new IOException("no answer to " + missed + " heartbeats");
+            if (mmRegistration != null) {
+                mmRegistration.fail(e);
+                return;
+            }
+            // The reading thread fails on the closed socket and reports the loss
+            Log.e(TAG, "closing silent connection " + mmId, e);
+            try {
+                mmSocket.close();
+            } catch (IOException closeFailed) {
+                Log.e(TAG, "close() of connect socket failed", closeFailed);
+            }
+        }
+
+        @Override
+        public void onWritten(byte[] message) {
+            mmBytesOut.add(message.length);
+            mmMessagesOut.increment();
+            if (startsWithAscii(message, PING_BYTES) || startsWithAscii(message, PONG_BYTES)) {
+                return;
+            }
+            if (mmBinary && message.length >= FrameCodec.HEADER_LENGTH + FrameCodec.TRAILER_LENGTH
+                    && message[0] == FrameCodec.SYNC) {
+                if (message[1] != FrameCodec.TYPE_TEXT) {
+                    // Heartbeats and file transfers are not shown
+                    mmBulk.onWritten(message);
+                    return;
+                }
+                // Show the text, not the frame around it
+                message = Arrays.copyOfRange(message, FrameCodec.HEADER_LENGTH,
+                        message.length - FrameCodec.TRAILER_LENGTH);
             }
+            // Share the sent message back to the UI Activity
+            mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, mmId, message)
+                    .sendToTarget();
+        }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+        @Override
+        public void onWriteFailed(IOException e) {
+            mmWriteFailures.increment();
+            // The read side notices the broken link and reports it
+        }
+
+        @Override
+        public void onClosed(IOException e) {
+            Log.e(TAG, "disconnected", e);
+            connectionLost(this);
         }
 
         public void cancel() {
+            mHeartbeat.unregister(mmHeartbeat);
+            mmBulk.close();
+            BacklogSync sync = mmBacklog;
+            if (sync != null) {
+                sync.cancel();
+            }
+            setIngest(null);
+            mMetrics.retire(mmMetrics);
+            if (mmRegistration != null) {
+                mmRegistration.close();
+                return;
+            }
+            mmThread.mmWriter.cancel();
             try {
                 mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "close() of connect socket failed", e);
             }
         }
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * This thread runs during a connection with a remote device when there
+     * is no reactor. It reads the incoming bytes; its WriterThread handles
+     * the outgoing ones.
      */
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Connection mmConnection;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        private final WriterThread mmWriter;
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
+        public ConnectedThread(Connection connection) {
+            mmConnection = connection;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the connection input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = connection.mmSocket.getInputStream();
+                tmpOut = connection.mmSocket.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmWriter = new WriterThread(tmpOut, connection, connection.mmQueue);
         }
 
         public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
+            Log.i(TAG, "BEGIN mConnectedThread " + mmConnection.mmId);
+            setName("ConnectedThread-" + mmConnection.mmId);
+            mmWriter.start();
+            BufferPool pool = mReadBuffers;
+            BufferPool.ReadSize readSize = new BufferPool.ReadSize(INITIAL_READ_SIZE);
+            BufferPool.Lease lease = pool.acquire(readSize.get());
             int bytes;
-            StringBuilder queue = new StringBuilder("");
-            String temp;
             // Keep listening to the InputStream while connected
-            while (true) {
-                try {
+            try {
+                while (true) {
+                    byte[] buffer = lease.array();
                     bytes = mmInStream.read(buffer);
-                    if (bytes > 0) {
-                        String decoded = new String(buffer, "ASCII"); // or UTF-8
-                        queue.append(decoded);
-                        // Log.d("Temperatura", "read() #" + Integer.toString(bytes) + " -> " + queue.substring(0, 40));
-                        int pos = queue.indexOf("\n");
-                        if (pos >= 0) {
-                            // Log.d("Temperatura", "indexOf() #" + pos);
-                            temp = queue.substring(0, pos - 1);
-                            queue.delete(0, pos + 1);
-                            // Log.d("Temperatura", "limpa() #" + " -> " + temp);
-                            mHandler.obtainMessage(Constants.MESSAGE_READ, 0, 0, temp).sendToTarget();
-                        }
+                    if (bytes < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    mmConnection.onRead(buffer, 0, bytes, System.nanoTime());
+                    // The bytes are consumed, so the buffer can be swapped
+                    if (readSize.onRead(bytes, buffer.length)) {
+                        lease.release();
+                        lease = pool.acquire(readSize.get());
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothChatService.this.start();
-                    break;
                 }
-            }
-        }
-
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-        }
-
-        public void cancel() {
-            try {
-                mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                mmWriter.cancel();
+                mmConnection.onClosed(e);
+            } finally {
+                lease.release();
             }
         }
     }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read buffers shared by the connections of a service, so connections that
+ * come and go reuse the same arrays instead of leaving one behind each
+ * time. Buffers come in power of two sizes between {@link #MIN_SIZE} and
+ * {@link #MAX_SIZE}; a {@link Lease} is returned with {@link Lease#release()}
+ * once its bytes have been consumed. Each size keeps at most a fixed number
+ * of idle buffers; a pool that keeps none allocates on every lease.
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 16 * 1024;
+
+    // Idle buffers kept per size unless told otherwise
+    public static final int DEFAULT_BUFFERS_PER_SIZE = 16;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int SIZES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    private final ArrayBlockingQueue<byte[]>[] mIdle;
+    private final AtomicLong mLeases = new AtomicLong();
+    private final AtomicLong mAllocations = new AtomicLong();
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * @param buffersPerSize Idle buffers kept per size; 0 turns pooling off
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int buffersPerSize) {
+        mIdle = new ArrayBlockingQueue[SIZES];
+        if (buffersPerSize > 0) {
+            for (int i = 0; i < SIZES; i++) {
+                mIdle[i] = new ArrayBlockingQueue<byte[]>(buffersPerSize);
+            }
+        }
+    }
+
+    /**
+     * A buffer on loan from the pool. Not thread safe; the lease belongs to
+     * whoever holds it until released.
+     */
+    public final class Lease {
+        private byte[] mArray;
+
+        Lease(byte[] array) {
+            mArray = array;
+        }
+
+        /**
+         * Return the buffer. Its length is the size asked for, rounded up.
+         */
+        public byte[] array() {
+            if (mArray == null) {
+                throw new IllegalStateException("lease released");
+            }
+            return mArray;
+        }
+
+        /**
+         * Give the buffer back; it must not be used afterwards.
+         */
+        public void release() {
+            byte[] array = mArray;
+            if (array != null) {
+                mArray = null;
+                recycle(array);
+            }
+        }
+    }
+
+    /**
+     * Lease a buffer of at least size bytes, clamped to MIN_SIZE..MAX_SIZE.
+     */
+    public Lease acquire(int size) {
+        int index = indexOf(size);
+        mLeases.incrementAndGet();
+        byte[] array = mIdle[index] != null ? mIdle[index].poll() : null;
+        if (array == null) {
+            array = new byte[MIN_SIZE << index];
+            mAllocations.incrementAndGet();
+            mAllocatedBytes.addAndGet(array.length);
+        }
+        return new Lease(array);
+    }
+
+    private void recycle(byte[] array) {
+        int index = Integer.numberOfTrailingZeros(array.length) - MIN_SHIFT;
+        if (mIdle[index] != null) {
+            // A full pool leaves the buffer to the garbage collector
+            mIdle[index].offer(array);
+        }
+    }
+
+    private static int indexOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        if (size >= MAX_SIZE) {
+            return SIZES - 1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Return the number of leases handed out.
+     */
+    public long getLeaseCount() {
+        return mLeases.get();
+    }
+
+    /**
+     * Return the number of leases that needed a new buffer.
+     */
+    public long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    /**
+     * Return the bytes of the buffers allocated so far.
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    /**
+     * Chooses how many bytes to ask for on the next read of a stream: twice
+     * as many after a read that filled the buffer, half as many after a run
+     * of reads that used less than a quarter of it.
+     */
+    public static class ReadSize {
+        // Reads using less than a quarter of the buffer before it shrinks
+        static final int SHRINK_AFTER = 64;
+
+        private final int mMin;
+        private final int mMax;
+        private int mSize;
+        private int mSmallReads;
+
+        public ReadSize(int initial) {
+            this(MIN_SIZE, initial, MAX_SIZE);
+        }
+
+        public ReadSize(int min, int initial, int max) {
+            mMin = min;
+            mMax = max;
+            mSize = Math.max(min, Math.min(initial, max));
+        }
+
+        public int get() {
+            return mSize;
+        }
+
+        /**
+         * Account for a read of bytes into a buffer of capacity bytes.
+         *
+         * @return true if the size changed
+         */
+        public boolean onRead(int bytes, int capacity) {
+            if (bytes >= capacity && mSize < mMax) {
+                mSize = Math.min(mMax, mSize * 2);
+                mSmallReads = 0;
+                return true;
+            }
+            if (bytes < capacity / 4 && mSize > mMin) {
+                if (++mSmallReads >= SHRINK_AFTER) {
+                    mSize = Math.max(mMin, mSize / 2);
+                    mSmallReads = 0;
+                    return true;
+                }
+            } else {
+                mSmallReads = 0;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,810 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves files over a link that uses binary framing, e.g. a sensor's
+ * on-board log or a firmware image. The file is cut into chunks with
+ * sequence numbers; the sender keeps a window of chunks in flight and the
+ * receiver acknowledges them cumulatively. A chunk lost to a bad CRC makes
+ * the receiver repeat its last acknowledgement, and the sender goes back
+ * to the first unacknowledged chunk. A receiver holding part of the file
+ * from an earlier attempt asks the sender to resume from its length.
+ * A receiver that has the whole file keeps acknowledging resent chunks
+ * for a while, so a lost final acknowledgement does not fail the transfer.
+ *
+ * <p>The frame's channel byte carries the transfer id. Payloads are big
+ * endian:
+ *
+ * <pre>
+ *   OFFER    size (8) | file name
+ *   ACCEPT   offset to start from (8)
+ *   DATA     sequence number (4) | chunk
+ *   ACK      next sequence number expected (4)
+ *   CANCEL   reason
+ *   REQUEST  file name; the peer answers with an OFFER of the same id
+ * </pre>
+ *
+ * Files are read and written through a {@link FileChannel} and one direct
+ * buffer per transfer; frames of full chunks are recycled once written, so
+ * memory use does not depend on the file size.
+ */
+public final class BulkTransfer {
+    // Debugging
+    private static final String TAG = "BulkTransfer";
+
+    // Frame types, after those of FrameCodec and DeltaCodec
+    public static final int TYPE_OFFER = 8;
+    public static final int TYPE_ACCEPT = 9;
+    public static final int TYPE_DATA = 10;
+    public static final int TYPE_ACK = 11;
+    public static final int TYPE_CANCEL = 12;
+    public static final int TYPE_REQUEST = 13;
+
+    /**
+     * Bytes of file per DATA frame; the last one may be shorter.
+     */
+    public static final int CHUNK_SIZE = FrameCodec.MAX_PAYLOAD - 4;
+
+    /**
+     * Chunks sent ahead of the last acknowledgement.
+     */
+    public static final int WINDOW = 32;
+
+    // The receiver acknowledges every this many chunks
+    static final int ACK_EVERY = WINDOW / 4;
+
+    private static final long TICK_MS = 250;
+    // Time without progress after which the sender goes back, or gives up
+    private static final long RETRANSMIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_RETRIES = 5;
+    // How long a finished receiver still answers a sender that missed its last ACK
+    private static final long LINGER_NANOS = (MAX_RETRIES + 1) * RETRANSMIT_NANOS;
+
+    private static final int DATA_FRAME_LENGTH =
+            FrameCodec.HEADER_LENGTH + 4 + CHUNK_SIZE + FrameCodec.TRAILER_LENGTH;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BulkTransfer() {
+    }
+
+    /**
+     * The connection frames are sent on.
+     */
+    public interface Link {
+        /**
+         * Queue a frame without blocking.
+         *
+         * @return false if it was refused
+         */
+        boolean send(byte[] frame);
+    }
+
+    /**
+     * Told about one transfer, on the thread that made the progress.
+     */
+    public interface Listener {
+        void onProgress(int id, long bytes, long size);
+
+        void onComplete(int id, File file);
+
+        void onFailed(int id, IOException e);
+    }
+
+    /**
+     * Decides where files offered by a peer are written.
+     */
+    public interface IncomingFiles {
+        /**
+         * @return The destination, or null to refuse the file. If it exists
+         *         and is not longer than size, the transfer resumes at its end.
+         */
+        File fileFor(String address, String name, long size);
+    }
+
+    /**
+     * Decides which files a peer may request.
+     */
+    public interface OutgoingFiles {
+        /**
+         * @return The file to send, or null to refuse
+         */
+        File fileFor(String address, String name);
+    }
+
+    /**
+     * Return a timer for the endpoints, on a daemon thread.
+     */
+    public static ScheduledExecutorService newTimer() {
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BulkTransfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    static long readLong(byte[] buffer, int offset) {
+        return (long) readInt(buffer, offset) << 32 | (readInt(buffer, offset + 4) & 0xffffffffL);
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static void writeLong(byte[] buffer, int offset, long value) {
+        writeInt(buffer, offset, (int) (value >>> 32));
+        writeInt(buffer, offset + 4, (int) value);
+    }
+
+    /**
+     * The transfers of one connection. Frames received on it are passed to
+     * {@link #onFrame}, and frames written on it to {@link #onWritten}.
+     */
+    public static class Endpoint {
+        private final String mAddress;
+        private final Link mLink;
+        private final ScheduledExecutorService mTimer;
+        private final Map<Integer, Sender> mSenders = new HashMap<Integer, Sender>();
+        private final Map<Integer, Receiver> mReceivers = new HashMap<Integer, Receiver>();
+        // Receivers done lately, by id: the final acknowledgement and when it was sent
+        private final LinkedHashMap<Integer, long[]> mFinished =
+                new LinkedHashMap<Integer, long[]>();
+        // Frames of full chunks, returned once written
+        private final ArrayDeque<byte[]> mFramePool = new ArrayDeque<byte[]>();
+        // Ids this side hands out: even on the side that connected, odd on the other
+        private int mNextId;
+        private volatile IncomingFiles mIncomingFiles;
+        private volatile OutgoingFiles mOutgoingFiles;
+        private volatile Listener mPeerListener;
+        private boolean mClosed;
+
+        /**
+         * @param address   The remote address, passed to the file callbacks
+         * @param link      Where the frames go
+         * @param evenIds   True on one side of the link and false on the other
+         * @param timer     Runs the retransmission checks
+         */
+        public Endpoint(String address, Link link, boolean evenIds,
+                        ScheduledExecutorService timer) {
+            mAddress = address;
+            mLink = link;
+            mTimer = timer;
+            mNextId = evenIds ? 0 : 1;
+        }
+
+        /**
+         * Set how files offered or requested by the peer are handled, and
+         * the listener told about those transfers. Null refuses them.
+         */
+        public void setPeerFiles(IncomingFiles incoming, OutgoingFiles outgoing,
+                                 Listener listener) {
+            mIncomingFiles = incoming;
+            mOutgoingFiles = outgoing;
+            mPeerListener = listener;
+        }
+
+        private int nextId() throws IOException {
+            for (int i = 0; i < 128; i++) {
+                int id = mNextId;
+                mNextId = (mNextId + 2) & 0xff;
+                if (!mSenders.containsKey(id) && !mReceivers.containsKey(id)
+                        && !mFinished.containsKey(id)) {
+                    return id;
+                }
+            }
+            throw new IOException("too many transfers");
+        }
+
+        /**
+         * Offer a file to the peer.
+         *
+         * @return The transfer id
+         */
+        public synchronized int sendFile(File file, Listener listener) throws IOException {
+            if (mClosed) {
+                throw new IOException("connection closed");
+            }
+            Sender sender = new Sender(this, nextId(), file, listener);
+            mSenders.put(sender.mId, sender);
+            sender.offer(file.getName());
+            return sender.mId;
+        }
+
+        /**
+         * Ask the peer for one of its files.
+         *
+         * @param destination Where to write it; an existing part is resumed
+         * @return The transfer id
+         */
+        public synchronized int requestFile(String name, File destination, Listener listener)
+                throws IOException {
+            if (mClosed) {
+                throw new IOException("connection closed");
+            }
+            Receiver receiver = new Receiver(this, nextId(), destination, listener);
+            mReceivers.put(receiver.mId, receiver);
+            byte[] payload = name.getBytes(UTF8);
+            if (!mLink.send(FrameCodec.encode(TYPE_REQUEST, receiver.mId, payload))) {
+                remove(receiver);
+                throw new IOException("write queue full");
+            }
+            receiver.startTimer();
+            return receiver.mId;
+        }
+
+        /**
+         * Cancel a transfer and tell the peer.
+         */
+        public void cancel(int id) {
+            Transfer transfer;
+            synchronized (this) {
+                transfer = mSenders.get(id);
+                if (transfer == null) {
+                    transfer = mReceivers.get(id);
+                }
+            }
+            if (transfer != null) {
+                transfer.fail(new IOException("cancelled"), true);
+            }
+        }
+
+        /**
+         * Handle a frame read from the link.
+         *
+         * @return false if it is not a bulk transfer frame
+         */
+        public boolean onFrame(int type, int id, byte[] buffer, int offset, int length) {
+            switch (type) {
+                case TYPE_OFFER:
+                    if (length >= 8) {
+                        onOffer(id, readLong(buffer, offset),
+                                new String(buffer, offset + 8, length - 8, UTF8));
+                    }
+                    return true;
+                case TYPE_ACCEPT:
+                    Sender sender = findSender(id);
+                    if (sender != null && length == 8) {
+                        sender.onAccept(readLong(buffer, offset));
+                    }
+                    return true;
+                case TYPE_DATA:
+                    Receiver receiver = findReceiver(id);
+                    if (receiver != null && length >= 4) {
+                        receiver.onData(readInt(buffer, offset), buffer, offset + 4, length - 4);
+                    } else if (receiver == null) {
+                        ackFinished(id);
+                    }
+                    return true;
+                case TYPE_ACK:
+                    sender = findSender(id);
+                    if (sender != null && length == 4) {
+                        sender.onAck(readInt(buffer, offset));
+                    }
+                    return true;
+                case TYPE_CANCEL:
+                    IOException e = new IOException("cancelled by peer: "
+                            + new String(buffer, offset, length, UTF8));
+                    sender = findSender(id);
+                    if (sender != null) {
+                        sender.fail(e, false);
+                    }
+                    receiver = findReceiver(id);
+                    if (receiver != null) {
+                        receiver.fail(e, false);
+                    }
+                    return true;
+                case TYPE_REQUEST:
+                    onRequest(id, new String(buffer, offset, length, UTF8));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void onOffer(int id, long size, String name) {
+            Receiver receiver;
+            synchronized (this) {
+                receiver = mReceivers.get(id);
+                if (receiver == null && !mClosed) {
+                    // Offered by the peer rather than requested by us
+                    IncomingFiles files = mIncomingFiles;
+                    File file = files == null ? null : files.fileFor(mAddress, name, size);
+                    if (file != null) {
+                        receiver = new Receiver(this, id, file, mPeerListener);
+                        mReceivers.put(id, receiver);
+                        mFinished.remove(id);
+                        receiver.startTimer();
+                    }
+                }
+            }
+            if (receiver == null) {
+                sendCancel(id, "refused");
+                return;
+            }
+            receiver.onOffer(size);
+        }
+
+        private void onRequest(int id, String name) {
+            OutgoingFiles files = mOutgoingFiles;
+            File file = files == null ? null : files.fileFor(mAddress, name);
+            if (file == null) {
+                sendCancel(id, "no such file");
+                return;
+            }
+            synchronized (this) {
+                if (mClosed || mSenders.containsKey(id)) {
+                    return;
+                }
+                try {
+                    Sender sender = new Sender(this, id, file, mPeerListener);
+                    mSenders.put(id, sender);
+                    sender.offer(name);
+                } catch (IOException e) {
+                    Log.e(TAG, "cannot send " + file, e);
+                    mSenders.remove(id);
+                    sendCancel(id, "cannot read file");
+                }
+            }
+        }
+
+        /**
+         * A receiver got the whole file. Its id keeps answering resent DATA
+         * for a while, in case the sender never saw the last acknowledgement.
+         */
+        synchronized void finished(int id, int ack) {
+            long now = System.nanoTime();
+            Iterator<long[]> it = mFinished.values().iterator();
+            while (it.hasNext() && now - it.next()[1] > LINGER_NANOS) {
+                it.remove();
+            }
+            mFinished.remove(id);
+            mFinished.put(id, new long[] {ack, now});
+        }
+
+        private void ackFinished(int id) {
+            long[] finished;
+            synchronized (this) {
+                finished = mFinished.get(id);
+                if (finished == null || System.nanoTime() - finished[1] > LINGER_NANOS) {
+                    return;
+                }
+            }
+            byte[] payload = new byte[4];
+            writeInt(payload, 0, (int) finished[0]);
+            mLink.send(FrameCodec.encode(TYPE_ACK, id, payload));
+        }
+
+        void sendCancel(int id, String reason) {
+            mLink.send(FrameCodec.encode(TYPE_CANCEL, id, reason.getBytes(UTF8)));
+        }
+
+        /**
+         * A frame was written; full DATA frames are reused.
+         */
+        public void onWritten(byte[] frame) {
+            if (frame.length == DATA_FRAME_LENGTH && frame[1] == TYPE_DATA) {
+                synchronized (mFramePool) {
+                    if (mFramePool.size() < 2 * WINDOW) {
+                        mFramePool.add(frame);
+                    }
+                }
+            }
+        }
+
+        byte[] takeFrame() {
+            synchronized (mFramePool) {
+                byte[] frame = mFramePool.poll();
+                return frame != null ? frame : new byte[DATA_FRAME_LENGTH];
+            }
+        }
+
+        private synchronized Sender findSender(int id) {
+            return mSenders.get(id);
+        }
+
+        private synchronized Receiver findReceiver(int id) {
+            return mReceivers.get(id);
+        }
+
+        synchronized void remove(Transfer transfer) {
+            if (transfer instanceof Sender) {
+                mSenders.remove(transfer.mId);
+            } else {
+                mReceivers.remove(transfer.mId);
+            }
+        }
+
+        /**
+         * Return the number of transfers in progress.
+         */
+        public synchronized int getActiveCount() {
+            return mSenders.size() + mReceivers.size();
+        }
+
+        /**
+         * The connection is gone; fail every transfer.
+         */
+        public void close() {
+            List<Transfer> transfers;
+            synchronized (this) {
+                mClosed = true;
+                transfers = new ArrayList<Transfer>(mSenders.values());
+                transfers.addAll(mReceivers.values());
+            }
+            for (Transfer transfer : transfers) {
+                transfer.fail(new IOException("connection closed"), false);
+            }
+        }
+    }
+
+    /**
+     * What senders and receivers share: the file, the timer and the end.
+     */
+    abstract static class Transfer implements Runnable {
+        final Endpoint mEndpoint;
+        final int mId;
+        final File mFile;
+        final Listener mListener;
+        final ByteBuffer mBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        FileChannel mChannel;
+        long mSize = -1;
+        long mLastProgressNanos = System.nanoTime();
+        int mRetries;
+        private ScheduledFuture<?> mTimerTask;
+        private boolean mDone;
+
+        Transfer(Endpoint endpoint, int id, File file, Listener listener) {
+            mEndpoint = endpoint;
+            mId = id;
+            mFile = file;
+            mListener = listener;
+        }
+
+        synchronized void startTimer() {
+            if (!mDone && mTimerTask == null) {
+                mTimerTask = mEndpoint.mTimer.scheduleWithFixedDelay(this, TICK_MS, TICK_MS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!mDone && System.nanoTime() - mLastProgressNanos > RETRANSMIT_NANOS) {
+                mLastProgressNanos = System.nanoTime();
+                if (++mRetries > MAX_RETRIES) {
+                    fail(new IOException("no progress after " + MAX_RETRIES + " retries"),
+                            true);
+                } else {
+                    retry();
+                }
+            }
+        }
+
+        /**
+         * Called when nothing moved for a while.
+         */
+        abstract void retry();
+
+        void progressed() {
+            mLastProgressNanos = System.nanoTime();
+            mRetries = 0;
+        }
+
+        /**
+         * End the transfer. Returns false if it had already ended.
+         */
+        synchronized boolean finish() {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            if (mTimerTask != null) {
+                mTimerTask.cancel(false);
+            }
+            mEndpoint.remove(this);
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of " + mFile + " failed", e);
+                }
+            }
+            return true;
+        }
+
+        synchronized boolean isDone() {
+            return mDone;
+        }
+
+        void fail(IOException e, boolean tellPeer) {
+            if (!finish()) {
+                return;
+            }
+            Log.w(TAG, "transfer " + mId + " of " + mFile + " failed: " + e.getMessage());
+            if (tellPeer) {
+                mEndpoint.sendCancel(mId, e.getMessage());
+            }
+            if (mListener != null) {
+                mListener.onFailed(mId, e);
+            }
+        }
+
+        void complete() {
+            if (finish() && mListener != null) {
+                mListener.onComplete(mId, mFile);
+            }
+        }
+    }
+
+    /**
+     * Sends one file: go-back-N over a window of chunks.
+     */
+    static class Sender extends Transfer {
+        private long mStart;
+        private int mChunks;
+        // The first chunk not acknowledged, and the next one to send
+        private int mAcked;
+        private int mNext;
+        // The acknowledgement that last made us go back
+        private int mRewoundAt = -1;
+        private boolean mStreaming;
+
+        Sender(Endpoint endpoint, int id, File file, Listener listener) throws IOException {
+            super(endpoint, id, file, listener);
+            mChannel = new RandomAccessFile(file, "r").getChannel();
+            mSize = mChannel.size();
+        }
+
+        synchronized void offer(String name) throws IOException {
+            byte[] nameBytes = name.getBytes(UTF8);
+            byte[] payload = new byte[8 + nameBytes.length];
+            writeLong(payload, 0, mSize);
+            System.arraycopy(nameBytes, 0, payload, 8, nameBytes.length);
+            if (!mEndpoint.mLink.send(FrameCodec.encode(TYPE_OFFER, mId, payload))) {
+                finish();
+                throw new IOException("write queue full");
+            }
+            startTimer();
+        }
+
+        synchronized void onAccept(long offset) {
+            if (isDone() || mStreaming) {
+                return;
+            }
+            if (offset < 0 || offset > mSize) {
+                fail(new IOException("bad resume offset " + offset), true);
+                return;
+            }
+            mStart = offset;
+            mChunks = (int) ((mSize - offset + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            mStreaming = true;
+            progressed();
+            if (mChunks == 0) {
+                complete();
+                return;
+            }
+            pump();
+        }
+
+        synchronized void onAck(int next) {
+            if (isDone() || !mStreaming || next > mNext) {
+                return;
+            }
+            if (next > mAcked) {
+                mAcked = next;
+                progressed();
+                if (mListener != null) {
+                    mListener.onProgress(mId, Math.min(mSize,
+                            mStart + (long) mAcked * CHUNK_SIZE), mSize);
+                }
+                if (mAcked == mChunks) {
+                    complete();
+                    return;
+                }
+            } else if (next == mAcked && mNext > mAcked && mRewoundAt != next) {
+                // The receiver saw a gap: resend from the first chunk it lacks
+                mRewoundAt = next;
+                mNext = mAcked;
+            }
+            pump();
+        }
+
+        @Override
+        void retry() {
+            if (!mStreaming) {
+                Log.w(TAG, "no answer to the offer of " + mFile);
+                return;
+            }
+            mRewoundAt = -1;
+            mNext = mAcked;
+            pump();
+        }
+
+        private void pump() {
+            while (mNext < mChunks && mNext - mAcked < WINDOW) {
+                byte[] frame;
+                try {
+                    frame = readChunk(mNext);
+                } catch (IOException e) {
+                    fail(e, true);
+                    return;
+                }
+                if (!mEndpoint.mLink.send(frame)) {
+                    // The queue is full; the next acknowledgement or tick goes on
+                    mEndpoint.onWritten(frame);
+                    return;
+                }
+                mNext++;
+            }
+        }
+
+        private byte[] readChunk(int seq) throws IOException {
+            long position = mStart + (long) seq * CHUNK_SIZE;
+            int length = (int) Math.min(CHUNK_SIZE, mSize - position);
+            mBuffer.clear();
+            mBuffer.limit(length);
+            while (mBuffer.hasRemaining()) {
+                if (mChannel.read(mBuffer, position + mBuffer.position()) < 0) {
+                    throw new IOException(mFile + " shrank while being sent");
+                }
+            }
+            mBuffer.flip();
+            byte[] frame = length == CHUNK_SIZE ? mEndpoint.takeFrame()
+                    : new byte[FrameCodec.HEADER_LENGTH + 4 + length + FrameCodec.TRAILER_LENGTH];
+            // Build the payload in place, then frame it around itself
+            int payload = FrameCodec.HEADER_LENGTH;
+            writeInt(frame, payload, seq);
+            mBuffer.get(frame, payload + 4, length);
+            FrameCodec.encode(TYPE_DATA, mId, frame, payload, 4 + length, frame, 0);
+            return frame;
+        }
+    }
+
+    /**
+     * Receives one file, in order.
+     */
+    static class Receiver extends Transfer {
+        private long mStart;
+        private long mReceived;
+        private int mExpected;
+        // Set once the current gap was reported, so it is reported once
+        private boolean mGapAcked;
+        private final byte[] mAck = new byte[4];
+
+        Receiver(Endpoint endpoint, int id, File file, Listener listener) {
+            super(endpoint, id, file, listener);
+        }
+
+        synchronized void onOffer(long size) {
+            if (isDone() || mChannel != null) {
+                return;
+            }
+            try {
+                mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+                mSize = size;
+                mStart = mChannel.size();
+                if (mStart > size) {
+                    // Not a part of this file
+                    mChannel.truncate(0);
+                    mStart = 0;
+                }
+            } catch (IOException e) {
+                fail(e, true);
+                return;
+            }
+            byte[] payload = new byte[8];
+            writeLong(payload, 0, mStart);
+            mEndpoint.mLink.send(FrameCodec.encode(TYPE_ACCEPT, mId, payload));
+            progressed();
+            if (mStart == size) {
+                complete();
+            }
+        }
+
+        synchronized void onData(int seq, byte[] buffer, int offset, int length) {
+            if (isDone() || mChannel == null) {
+                return;
+            }
+            long position = mStart + (long) seq * CHUNK_SIZE;
+            if (seq != mExpected || length > CHUNK_SIZE
+                    || (length < CHUNK_SIZE && position + length != mSize)) {
+                if (!mGapAcked) {
+                    mGapAcked = true;
+                    sendAck();
+                }
+                return;
+            }
+            try {
+                mBuffer.clear();
+                mBuffer.put(buffer, offset, length);
+                mBuffer.flip();
+                while (mBuffer.hasRemaining()) {
+                    mChannel.write(mBuffer, position + mBuffer.position());
+                }
+            } catch (IOException e) {
+                fail(e, true);
+                return;
+            }
+            mExpected++;
+            mGapAcked = false;
+            mReceived += length;
+            progressed();
+            if (mStart + mReceived == mSize) {
+                sendAck();
+                try {
+                    mChannel.force(false);
+                } catch (IOException e) {
+                    fail(e, false);
+                    return;
+                }
+                mEndpoint.finished(mId, mExpected);
+                complete();
+            } else if (mExpected % ACK_EVERY == 0) {
+                sendAck();
+                if (mListener != null) {
+                    mListener.onProgress(mId, mStart + mReceived, mSize);
+                }
+            }
+        }
+
+        private void sendAck() {
+            writeInt(mAck, 0, mExpected);
+            mEndpoint.mLink.send(FrameCodec.encode(TYPE_ACK, mId, mAck));
+        }
+
+        @Override
+        void retry() {
+            if (mChannel != null) {
+                // Our last acknowledgement may have been lost
+                sendAck();
+            }
+        }
+    }
+}
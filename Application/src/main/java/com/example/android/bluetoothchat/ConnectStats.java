@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers, per device, which socket type (secure or insecure) connected
+ * first the last time, and how long recent connection setups took. The
+ * latencies are kept in a small ring per device, so the percentiles
+ * describe recent behaviour.
+ */
+public class ConnectStats {
+
+    // Connection setups remembered per device
+    private static final int HISTORY = 64;
+
+    private static class Device {
+        boolean mSecureWon;
+        final long[] mLatencies = new long[HISTORY];
+        long mCount;
+    }
+
+    private final Map<String, Device> mDevices = new HashMap<String, Device>();
+
+    /**
+     * Return the socket type to try first for a device: the one that won
+     * last time, or the given default for a device never connected to.
+     */
+    public synchronized boolean preferSecure(String address, boolean defaultSecure) {
+        Device device = mDevices.get(address);
+        return device == null ? defaultSecure : device.mSecureWon;
+    }
+
+    /**
+     * Record a successful connection setup.
+     *
+     * @param secure Whether the secure socket won
+     * @param nanos  Time from starting the setup to being connected
+     */
+    public synchronized void record(String address, boolean secure, long nanos) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device();
+            mDevices.put(address, device);
+        }
+        device.mSecureWon = secure;
+        device.mLatencies[(int) (device.mCount % HISTORY)] = nanos;
+        device.mCount++;
+    }
+
+    /**
+     * Return the devices with recorded setups.
+     */
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<String>(mDevices.keySet());
+    }
+
+    /**
+     * Return the number of setups recorded for a device.
+     */
+    public synchronized long getCount(String address) {
+        Device device = mDevices.get(address);
+        return device == null ? 0 : device.mCount;
+    }
+
+    /**
+     * Return a percentile of the recent setup latencies of a device.
+     *
+     * @param percentile Between 0 and 100, e.g. 50 for the median
+     * @return The latency in milliseconds, or -1 if nothing was recorded
+     */
+    public synchronized long getLatencyPercentileMillis(String address, double percentile) {
+        Device device = mDevices.get(address);
+        if (device == null || device.mCount == 0) {
+            return -1;
+        }
+        int n = (int) Math.min(device.mCount, HISTORY);
+        long[] sorted = Arrays.copyOf(device.mLatencies, n);
+        Arrays.sort(sorted);
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100 * n);
+        return sorted[Math.max(0, Math.min(n - 1, rank - 1))] / 1000000;
+    }
+}
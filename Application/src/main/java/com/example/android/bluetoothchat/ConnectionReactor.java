@@ -0,0 +1,605 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.bluetoothchat.transport.SelectableConnection;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives many connections with a fixed number of threads instead of a
+ * reader and a writer thread per connection.
+ *
+ * <p>Connections backed by a channel ({@link SelectableConnection}, e.g. the
+ * TCP transport) are multiplexed by event loop threads, each with its own
+ * Selector. Connections that only offer blocking streams (RFCOMM, pipes)
+ * are shared by a small pool of reader threads: a shared queue holds the
+ * connections waiting to be read, a reader takes one, makes a blocking
+ * read and puts it back, and hands the bytes to the event loop the
+ * connection was given, so every read callback of a connection runs on the
+ * same event loop, in order. A blocking read is the only way to see the
+ * end of such a stream, as available() stays 0 after the peer goes, but a
+ * quiet connection holds a reader until its next bytes: give the pool as
+ * many readers as connections that may be quiet at once. Writes go through
+ * a pool of the same size, so a peer that stops reading holds up one
+ * writer and not the readers.</p>
+ */
+public class ConnectionReactor {
+    // Debugging
+    private static final String TAG = "ConnectionReactor";
+
+    // Size of the buffers reads are made into
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    // Largest number of bytes coalesced into one write
+    private static final int BATCH_BYTES = 4096;
+
+    // Reads a channel may do in a row before the loop moves on
+    private static final int MAX_READS_PER_EVENT = 4;
+
+    // How long an idle reader or writer thread is kept for the next task
+    private static final long STREAM_KEEP_ALIVE_SECONDS = 30;
+
+    // Chunks kept for reuse between the readers and the loops
+    private static final int CHUNK_POOL_SIZE = 64;
+
+    /**
+     * Receives the events of one registered connection. onRead() is called
+     * on an event loop thread, one call at a time.
+     */
+    public interface Callback {
+        /**
+         * Bytes arrived. They are only valid for the duration of the call.
+         *
+         * @param nanos When the bytes were read, from {@link System#nanoTime()}
+         */
+        void onRead(byte[] buffer, int offset, int length, long nanos);
+
+        /**
+         * The message has been written.
+         */
+        void onWritten(byte[] message);
+
+        /**
+         * The connection failed or reached end of stream. Not called after
+         * {@link Registration#close()}.
+         */
+        void onClosed(IOException cause);
+    }
+
+    private final EventLoop[] mLoops;
+    private final ThreadPoolExecutor mReaders;
+    private final ThreadPoolExecutor mWriters;
+    // The connections driven by the readers and writers, closed on shutdown
+    private final CopyOnWriteArrayList<StreamRegistration> mStreams =
+            new CopyOnWriteArrayList<StreamRegistration>();
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+    private final ArrayBlockingQueue<Chunk> mChunkPool =
+            new ArrayBlockingQueue<Chunk>(CHUNK_POOL_SIZE);
+    private volatile boolean mShutdown;
+
+    /**
+     * @param loops   Number of event loop threads
+     * @param streams Number of threads reading, and of threads writing,
+     *                blocking connections
+     */
+    public ConnectionReactor(int loops, int streams) throws IOException {
+        if (loops < 1 || streams < 1) {
+            throw new IllegalArgumentException("Need at least one loop and one stream thread");
+        }
+        mLoops = new EventLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            mLoops[i] = new EventLoop(i);
+            mLoops[i].start();
+        }
+        mReaders = newStreamPool("reader", streams);
+        mWriters = newStreamPool("writer", streams);
+    }
+
+    /*
+        A fixed number of threads, started on first use and let go when idle.
+     */
+    private static ThreadPoolExecutor newStreamPool(final String name, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                STREAM_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ConnectionReactor-" + name + "-"
+                        + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Start driving a connected connection.
+     *
+     * @param connection The connection; the reactor now owns its streams
+     * @param queue      The queue its outgoing messages are taken from
+     * @param callback   Receives its events
+     */
+    public Registration register(TransportConnection connection, OutboundQueue queue,
+                                 Callback callback) throws IOException {
+        if (mShutdown) {
+            throw new IOException("reactor shut down");
+        }
+        EventLoop loop = mLoops[(mNextLoop.getAndIncrement() & 0x7fffffff) % mLoops.length];
+        if (connection instanceof SelectableConnection) {
+            ChannelRegistration r = new ChannelRegistration(
+                    (SelectableConnection) connection, queue, callback, loop);
+            loop.mPendingRegister.add(r);
+            loop.mSelector.wakeup();
+            return r;
+        }
+        StreamRegistration r = new StreamRegistration(connection, queue, callback, loop);
+        mStreams.add(r);
+        r.requestRead();
+        // Anything offered before registration
+        r.requestWrite();
+        return r;
+    }
+
+    /**
+     * Stop all threads and close every registered connection.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        // Closing the streams ends the blocking reads and writes
+        for (StreamRegistration r : mStreams) {
+            r.close();
+        }
+        mReaders.shutdown();
+        mWriters.shutdown();
+        for (EventLoop loop : mLoops) {
+            loop.mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Return the most threads used, whatever the number of connections.
+     */
+    public int getThreadCount() {
+        return mLoops.length + mReaders.getMaximumPoolSize() + mWriters.getMaximumPoolSize();
+    }
+
+    /**
+     * The handle of a registered connection.
+     */
+    public abstract class Registration {
+        final TransportConnection mConnection;
+        final OutboundQueue mQueue;
+        final Callback mCallback;
+        final AtomicBoolean mClosed = new AtomicBoolean();
+        final ArrayList<byte[]> mInFlight = new ArrayList<byte[]>();
+
+        Registration(TransportConnection connection, OutboundQueue queue, Callback callback) {
+            mConnection = connection;
+            mQueue = queue;
+            mCallback = callback;
+        }
+
+        /**
+         * Queue a message; it is written by a reactor thread.
+         *
+         * @see OutboundQueue#offer(byte[])
+         */
+        public boolean offer(byte[] message) {
+            return offer(message, OutboundQueue.PRIORITY_CONTROL);
+        }
+
+        /**
+         * Queue a message of a priority class.
+         *
+         * @see OutboundQueue#offer(byte[], int)
+         */
+        public boolean offer(byte[] message, int priority) {
+            if (mClosed.get() || !mQueue.offer(message, priority)) {
+                return false;
+            }
+            requestWrite();
+            return true;
+        }
+
+        abstract void requestWrite();
+
+        /**
+         * Close the connection without calling {@link Callback#onClosed}.
+         */
+        public void close() {
+            if (mClosed.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        void fail(IOException cause) {
+            if (mClosed.compareAndSet(false, true)) {
+                release();
+                mCallback.onClosed(cause);
+            }
+        }
+
+        void release() {
+            mQueue.close();
+            try {
+                mConnection.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of connection failed", e);
+            }
+        }
+
+        void written() {
+            for (int i = 0; i < mInFlight.size(); i++) {
+                mCallback.onWritten(mInFlight.get(i));
+            }
+            mInFlight.clear();
+        }
+    }
+
+    private class ChannelRegistration extends Registration {
+        private final SocketChannel mChannel;
+        private final EventLoop mLoop;
+        private final byte[] mBatch = new byte[BATCH_BYTES];
+        private final AtomicBoolean mWriteRequested = new AtomicBoolean();
+        private SelectionKey mKey;
+        // The bytes being written, or null when the last batch went out
+        private ByteBuffer mOut;
+
+        ChannelRegistration(SelectableConnection connection, OutboundQueue queue,
+                            Callback callback, EventLoop loop) {
+            super(connection, queue, callback);
+            mChannel = connection.getChannel();
+            mLoop = loop;
+        }
+
+        @Override
+        void requestWrite() {
+            if (mWriteRequested.compareAndSet(false, true)) {
+                mLoop.mPendingWrite.add(this);
+                mLoop.mSelector.wakeup();
+            }
+        }
+
+        /**
+         * Write as much as the channel takes. Event loop only.
+         */
+        void flush() throws IOException {
+            mWriteRequested.set(false);
+            while (true) {
+                if (mOut == null) {
+                    int length = mQueue.fillBatch(mBatch, mInFlight);
+                    if (length == 0) {
+                        setWriteInterest(false);
+                        return;
+                    }
+                    mOut = length < 0
+                            ? ByteBuffer.wrap(mInFlight.get(0))
+                            : ByteBuffer.wrap(mBatch, 0, length);
+                }
+                mChannel.write(mOut);
+                if (mOut.hasRemaining()) {
+                    // The socket buffer is full, continue when it drains
+                    setWriteInterest(true);
+                    return;
+                }
+                mOut = null;
+                written();
+            }
+        }
+
+        private void setWriteInterest(boolean write) {
+            if (mKey != null && mKey.isValid()) {
+                mKey.interestOps(write
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        void release() {
+            super.release();
+            if (mKey != null) {
+                mKey.cancel();
+            }
+        }
+    }
+
+    private class StreamRegistration extends Registration implements Runnable {
+        // Every chunk goes to the same loop, so reads stay in order
+        private final EventLoop mLoop;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+        private final byte[] mBatch = new byte[BATCH_BYTES];
+        // Set while a writer owns the stream, so writes never overlap
+        private final AtomicBoolean mWriteRequested = new AtomicBoolean();
+
+        // One blocking read on a reader thread, queued again when it is done,
+        // so a stream never has two reads at once
+        private final Runnable mRead = new Runnable() {
+            @Override
+            public void run() {
+                Chunk chunk = obtainChunk();
+                try {
+                    int n = mIn.read(chunk.mData, 0, chunk.mData.length);
+                    if (n < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    chunk.mOwner = StreamRegistration.this;
+                    chunk.mLength = n;
+                    chunk.mNanos = System.nanoTime();
+                    mLoop.post(chunk);
+                } catch (IOException e) {
+                    recycle(chunk);
+                    fail(e);
+                    return;
+                }
+                requestRead();
+            }
+        };
+
+        StreamRegistration(TransportConnection connection, OutboundQueue queue,
+                           Callback callback, EventLoop loop) throws IOException {
+            super(connection, queue, callback);
+            mLoop = loop;
+            mIn = connection.getInputStream();
+            mOut = connection.getOutputStream();
+        }
+
+        void requestRead() {
+            if (mClosed.get()) {
+                return;
+            }
+            try {
+                mReaders.execute(mRead);
+            } catch (RejectedExecutionException e) {
+                // Shut down; the connection is being closed
+            }
+        }
+
+        @Override
+        void requestWrite() {
+            if (mWriteRequested.compareAndSet(false, true)) {
+                try {
+                    mWriters.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Shut down; the connection is being closed
+                    mWriteRequested.set(false);
+                }
+            }
+        }
+
+        /**
+         * Write everything queued, on a writer thread.
+         */
+        @Override
+        public void run() {
+            try {
+                int length;
+                while (!mClosed.get() && (length = mQueue.fillBatch(mBatch, mInFlight)) != 0) {
+                    if (length < 0) {
+                        mOut.write(mInFlight.get(0));
+                    } else {
+                        mOut.write(mBatch, 0, length);
+                    }
+                    mOut.flush();
+                    written();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                mWriteRequested.set(false);
+            }
+            // A message offered after the last fillBatch() found nothing
+            if (!mClosed.get() && mQueue.size() > 0) {
+                requestWrite();
+            }
+        }
+
+        @Override
+        void release() {
+            mStreams.remove(this);
+            super.release();
+        }
+    }
+
+    /**
+     * Bytes read by a reader, on their way to an event loop.
+     */
+    private static class Chunk {
+        final byte[] mData = new byte[READ_BUFFER_SIZE];
+        Registration mOwner;
+        int mLength;
+        long mNanos;
+    }
+
+    private Chunk obtainChunk() {
+        Chunk chunk = mChunkPool.poll();
+        return chunk != null ? chunk : new Chunk();
+    }
+
+    private void recycle(Chunk chunk) {
+        chunk.mOwner = null;
+        mChunkPool.offer(chunk);
+    }
+
+    private class EventLoop extends Thread {
+        final Selector mSelector;
+        final ConcurrentLinkedQueue<ChannelRegistration> mPendingRegister =
+                new ConcurrentLinkedQueue<ChannelRegistration>();
+        final ConcurrentLinkedQueue<ChannelRegistration> mPendingWrite =
+                new ConcurrentLinkedQueue<ChannelRegistration>();
+        final ConcurrentLinkedQueue<Chunk> mInbound = new ConcurrentLinkedQueue<Chunk>();
+        private final byte[] mReadArray = new byte[READ_BUFFER_SIZE];
+        private final ByteBuffer mReadBuffer = ByteBuffer.wrap(mReadArray);
+
+        EventLoop(int index) throws IOException {
+            super("ConnectionReactor-loop-" + index);
+            mSelector = Selector.open();
+        }
+
+        void post(Chunk chunk) {
+            mInbound.add(chunk);
+            mSelector.wakeup();
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN " + getName());
+            while (!mShutdown) {
+                try {
+                    mSelector.select();
+                } catch (IOException e) {
+                    Log.e(TAG, "select() failed", e);
+                    break;
+                }
+                registerPending();
+                deliverInbound();
+                flushPending();
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelRegistration r = (ChannelRegistration) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(r);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            r.flush();
+                        }
+                    } catch (IOException e) {
+                        r.fail(e);
+                    } catch (RuntimeException e) {
+                        failed(r, e);
+                    }
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                ((ChannelRegistration) key.attachment()).close();
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of selector failed", e);
+            }
+            Log.i(TAG, "END " + getName());
+        }
+
+        private void registerPending() {
+            ChannelRegistration r;
+            while ((r = mPendingRegister.poll()) != null) {
+                if (r.mClosed.get()) {
+                    continue;
+                }
+                try {
+                    r.mChannel.configureBlocking(false);
+                    r.mKey = r.mChannel.register(mSelector, SelectionKey.OP_READ, r);
+                    // Anything offered before registration
+                    r.flush();
+                } catch (IOException e) {
+                    r.fail(e);
+                } catch (RuntimeException e) {
+                    failed(r, e);
+                }
+            }
+        }
+
+        private void flushPending() {
+            ChannelRegistration r;
+            while ((r = mPendingWrite.poll()) != null) {
+                if (r.mClosed.get() || r.mKey == null) {
+                    // Not registered yet; registerPending() flushes it
+                    r.mWriteRequested.set(false);
+                    continue;
+                }
+                try {
+                    r.flush();
+                } catch (IOException e) {
+                    r.fail(e);
+                } catch (RuntimeException e) {
+                    failed(r, e);
+                }
+            }
+        }
+
+        private void deliverInbound() {
+            Chunk chunk;
+            while ((chunk = mInbound.poll()) != null) {
+                Registration r = chunk.mOwner;
+                try {
+                    if (!r.mClosed.get()) {
+                        r.mCallback.onRead(chunk.mData, 0, chunk.mLength, chunk.mNanos);
+                    }
+                } catch (RuntimeException e) {
+                    failed(r, e);
+                } finally {
+                    recycle(chunk);
+                }
+            }
+        }
+
+        /*
+            A callback threw: close its connection and keep the loop, and the
+            other connections on it, running.
+         */
+        private void failed(Registration r, RuntimeException e) {
+            Log.e(TAG, "callback failed, closing the connection", e);
+            r.fail(new IOException("callback failed", e));
+        }
+
+        private void read(ChannelRegistration r) throws IOException {
+            for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+                mReadBuffer.clear();
+                int n = r.mChannel.read(mReadBuffer);
+                if (n < 0) {
+                    throw new IOException("end of stream");
+                }
+                if (n == 0) {
+                    return;
+                }
+                r.mCallback.onRead(mReadArray, 0, n, System.nanoTime());
+                if (n < mReadArray.length) {
+                    return;
+                }
+            }
+        }
+    }
+}
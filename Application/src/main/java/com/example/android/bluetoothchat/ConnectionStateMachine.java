@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The connection state of {@link BluetoothChatService}, changed without
+ * locks. The state and a version number are packed into one AtomicLong and
+ * moved with compareAndSet, and only the transitions declared in the
+ * table below are ever made. A transition that is not allowed is refused
+ * and counted rather than applied, so e.g. a connection finishing during
+ * stop() cannot bring a closing service back to CONNECTED. Moving to the
+ * state the machine is already in changes nothing and is not reported.
+ */
+public class ConnectionStateMachine {
+
+    // The states, numbered as the STATE_ constants of BluetoothChatService
+    public static final int NONE = 0;
+    public static final int LISTEN = 1;
+    public static final int CONNECTING = 2;
+    public static final int CONNECTED = 3;
+    public static final int RECONNECTING = 4;
+    public static final int CLOSING = 5;
+
+    private static final String[] NAMES = {
+            "NONE", "LISTEN", "CONNECTING", "CONNECTED", "RECONNECTING", "CLOSING"
+    };
+
+    // TRANSITIONS[from][to] is true when the change is allowed
+    private static final boolean[][] TRANSITIONS = new boolean[NAMES.length][NAMES.length];
+
+    static {
+        allow(NONE, NONE, LISTEN, CONNECTING, CLOSING);
+        allow(LISTEN, LISTEN, CONNECTING, CONNECTED, RECONNECTING, CLOSING);
+        allow(CONNECTING, CONNECTING, LISTEN, CONNECTED, RECONNECTING, CLOSING);
+        allow(CONNECTED, CONNECTED, LISTEN, CONNECTING, RECONNECTING, CLOSING);
+        allow(RECONNECTING, RECONNECTING, LISTEN, CONNECTING, CONNECTED, CLOSING);
+        // Once closing, only the end of stop() may move on
+        allow(CLOSING, NONE);
+    }
+
+    private static void allow(int from, int... to) {
+        for (int state : to) {
+            TRANSITIONS[from][state] = true;
+        }
+    }
+
+    /**
+     * Told about every transition made, on the thread that made it.
+     * Transitions made concurrently may be reported out of order; the
+     * version orders them.
+     */
+    public interface Listener {
+        /**
+         * @param oldState     The state left
+         * @param newState     The state entered; never equal to oldState
+         * @param version      Increases by one with every transition
+         * @param connectionId The connection that caused it, or
+         *                     {@link BluetoothChatService#NO_CONNECTION}
+         */
+        void onStateChanged(int oldState, int newState, long version, int connectionId);
+    }
+
+    // The version in the high bits, the state in the low byte
+    private final AtomicLong mStateAndVersion = new AtomicLong(NONE);
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+    private final AtomicLong mRefused = new AtomicLong();
+
+    /**
+     * Return true if the table allows going from one state to another.
+     */
+    public static boolean isAllowed(int from, int to) {
+        return from >= 0 && from < NAMES.length && to >= 0 && to < NAMES.length
+                && TRANSITIONS[from][to];
+    }
+
+    public static String nameOf(int state) {
+        return state >= 0 && state < NAMES.length ? NAMES[state] : Integer.toString(state);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public int getState() {
+        return (int) (mStateAndVersion.get() & 0xff);
+    }
+
+    /**
+     * Return the number of transitions made so far.
+     */
+    public long getVersion() {
+        return mStateAndVersion.get() >>> 8;
+    }
+
+    /**
+     * Return the number of transitions refused because the table forbids them.
+     */
+    public long getRefusedCount() {
+        return mRefused.get();
+    }
+
+    /**
+     * Move to a state if the transition from the current one is allowed.
+     *
+     * @return true if the transition was made or the machine was already
+     * in that state
+     */
+    public boolean moveTo(int state, int connectionId) {
+        while (true) {
+            long current = mStateAndVersion.get();
+            int from = (int) (current & 0xff);
+            if (from == state && isAllowed(from, state)) {
+                return true;
+            }
+            if (!isAllowed(from, state)) {
+                mRefused.incrementAndGet();
+                return false;
+            }
+            long version = (current >>> 8) + 1;
+            if (mStateAndVersion.compareAndSet(current, (version << 8) | state)) {
+                notifyListeners(from, state, version, connectionId);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move from one given state to another, failing if the current state
+     * is different or the transition is not allowed.
+     *
+     * @return true if the transition was made, or from and to are the
+     * current state
+     */
+    public boolean transition(int from, int to, int connectionId) {
+        if (!isAllowed(from, to)) {
+            mRefused.incrementAndGet();
+            return false;
+        }
+        if (from == to) {
+            return getState() == from;
+        }
+        while (true) {
+            long current = mStateAndVersion.get();
+            if ((int) (current & 0xff) != from) {
+                return false;
+            }
+            long version = (current >>> 8) + 1;
+            if (mStateAndVersion.compareAndSet(current, (version << 8) | to)) {
+                notifyListeners(from, to, version, connectionId);
+                return true;
+            }
+        }
+    }
+
+    private void notifyListeners(int from, int to, long version, int connectionId) {
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(from, to, version, connectionId);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A compact encoding of a sample stream for the binary frames of
+ * {@link FrameCodec}. Values are sent in fixed point (hundredths). A
+ * keyframe carries one absolute value, then the difference between each
+ * sample and the previous one, zig-zag mapped and written as a varint.
+ * Readings that change by a few hundredths then take one byte each.
+ *
+ * <p>Payload of {@link #TYPE_SAMPLES_KEY}: sequence, absolute value,
+ * deltas. Payload of {@link #TYPE_SAMPLES_DELTA}: sequence, deltas from the
+ * last value of the previous frame. The sequence byte counts frames, so the
+ * decoder notices a frame lost to a CRC error. It then drops delta frames
+ * until the next keyframe, which the encoder sends periodically.</p>
+ */
+public final class DeltaCodec {
+
+    // Frame types, next to those of FrameCodec
+    public static final int TYPE_SAMPLES_KEY = 4;
+    public static final int TYPE_SAMPLES_DELTA = 5;
+
+    /**
+     * Fixed point units per unit of the value.
+     */
+    public static final int SCALE = 100;
+
+    // Longest varint of a 32 bit value
+    private static final int MAX_VARINT = 5;
+
+    /**
+     * Most samples one frame is guaranteed to hold.
+     */
+    public static final int MAX_SAMPLES_PER_FRAME = (FrameCodec.MAX_PAYLOAD - 1) / MAX_VARINT;
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * Return the most bytes a frame of count samples can take.
+     */
+    public static int maxFrameLength(int count) {
+        return FrameCodec.HEADER_LENGTH + 1 + MAX_VARINT * count + FrameCodec.TRAILER_LENGTH;
+    }
+
+    static int toFixed(float value) {
+        return Math.round(value * SCALE);
+    }
+
+    static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    static int unZigZag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    static int writeVarint(int value, byte[] out, int offset) {
+        while ((value & ~0x7f) != 0) {
+            out[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Turns samples into keyframes and delta frames for one channel.
+     * Not thread safe.
+     */
+    public static class Encoder {
+        private final int mChannel;
+        private final int mKeyframeInterval;
+        private byte[] mPayload = new byte[0];
+        private int mSequence;
+        private int mFramesSinceKey;
+        private int mLast;
+        private boolean mStarted;
+
+        /**
+         * @param channel          The channel the frames are for
+         * @param keyframeInterval Frames between keyframes, at least 1
+         */
+        public Encoder(int channel, int keyframeInterval) {
+            mChannel = channel;
+            mKeyframeInterval = Math.max(1, keyframeInterval);
+        }
+
+        /**
+         * Encode samples as one frame.
+         *
+         * @param count     At most {@link #MAX_SAMPLES_PER_FRAME}
+         * @param out       Destination, at least {@link #maxFrameLength}(count) long
+         * @param outOffset Where the frame starts in out
+         * @return The number of bytes written
+         */
+        public int encode(float[] values, int offset, int count, byte[] out, int outOffset) {
+            if (count > MAX_SAMPLES_PER_FRAME) {
+                throw new IllegalArgumentException("too many samples: " + count);
+            }
+            int needed = 1 + MAX_VARINT * count;
+            if (mPayload.length < needed) {
+                mPayload = new byte[needed];
+            }
+            boolean key = !mStarted || mFramesSinceKey >= mKeyframeInterval - 1;
+            int p = 0;
+            mPayload[p++] = (byte) mSequence;
+            int i = offset;
+            if (key && count > 0) {
+                mLast = toFixed(values[i++]);
+                p = writeVarint(zigZag(mLast), mPayload, p);
+                mStarted = true;
+            }
+            for (; i < offset + count; i++) {
+                int fixed = toFixed(values[i]);
+                p = writeVarint(zigZag(fixed - mLast), mPayload, p);
+                mLast = fixed;
+            }
+            mSequence = (mSequence + 1) & 0xff;
+            mFramesSinceKey = key ? 0 : mFramesSinceKey + 1;
+            return FrameCodec.encode(key ? TYPE_SAMPLES_KEY : TYPE_SAMPLES_DELTA, mChannel,
+                    mPayload, 0, p, out, outOffset);
+        }
+
+        /**
+         * Make the next frame a keyframe, e.g. after the peer reconnected.
+         */
+        public void forceKeyframe() {
+            mStarted = false;
+        }
+    }
+
+    /**
+     * Rebuilds the samples of one channel. Not thread safe.
+     */
+    public static class Decoder {
+        private boolean mSynced;
+        private int mExpectedSequence;
+        private int mLast;
+        private long mDroppedFrames;
+
+        /**
+         * Decode the payload of a keyframe or delta frame into a ring.
+         *
+         * @param nanos The capture time given to the samples
+         * @return The number of samples added, or -1 if the frame was dropped
+         *         because the decoder is waiting for a keyframe
+         */
+        public int decode(int type, byte[] buffer, int offset, int length, long nanos,
+                          SampleRing ring) {
+            final int end = offset + length;
+            if (length < 1) {
+                return drop();
+            }
+            int sequence = buffer[offset] & 0xff;
+            int p = offset + 1;
+            if (type == TYPE_SAMPLES_KEY) {
+                mSynced = true;
+            } else if (!mSynced || sequence != mExpectedSequence) {
+                // A frame was lost; its deltas are needed to go on
+                return drop();
+            }
+            // Check every varint first, so a bad frame adds nothing to the ring
+            int run = 0;
+            for (int i = p; i < end; i++) {
+                run = buffer[i] < 0 ? run + 1 : 0;
+                if (run >= MAX_VARINT) {
+                    return drop();
+                }
+            }
+            if (run > 0) {
+                // Cut off inside the last varint
+                return drop();
+            }
+            mExpectedSequence = (sequence + 1) & 0xff;
+
+            int count = 0;
+            boolean first = type == TYPE_SAMPLES_KEY;
+            while (p < end) {
+                // Read one varint
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer[p++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                int n = unZigZag(value);
+                mLast = first ? n : mLast + n;
+                first = false;
+                ring.add(nanos, (float) mLast / SCALE);
+                count++;
+            }
+            return count;
+        }
+
+        private int drop() {
+            mSynced = false;
+            mDroppedFrames++;
+            return -1;
+        }
+
+        /**
+         * Return the number of frames dropped while out of sync.
+         */
+        public long getDroppedFrames() {
+            return mDroppedFrames;
+        }
+    }
+}
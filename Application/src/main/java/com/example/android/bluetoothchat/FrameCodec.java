@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * The binary frame format sensors switch to after the handshake, in place
+ * of newline terminated ASCII:
+ *
+ * <pre>
+ *   sync (0xA5) | type | channel | length (2, big endian) | payload | crc16 (2)
+ * </pre>
+ *
+ * The CRC is CRC-16/CCITT-FALSE over type, channel, length and payload.
+ * The sync byte is not covered; it only lets the {@link Decoder} find the
+ * next frame after a corrupt one.
+ */
+public final class FrameCodec {
+
+    public static final byte SYNC = (byte) 0xA5;
+
+    // Frame types
+    public static final int TYPE_SAMPLES_FLOAT = 1; // big endian IEEE floats
+    public static final int TYPE_TEXT = 2;          // a chat message, without newline
+    public static final int TYPE_SAMPLES_CENTI = 3; // big endian int16, hundredths
+    // Types 4 and 5 are the delta encoded samples of DeltaCodec
+    public static final int TYPE_PING = 6;          // 8 byte timestamp, echoed in the pong
+    public static final int TYPE_PONG = 7;
+    // Types 8 to 13 are the file transfer frames of BulkTransfer, 14 to 16 the
+    // backlog frames of BacklogSync
+
+    public static final int HEADER_LENGTH = 5;
+    public static final int TRAILER_LENGTH = 2;
+
+    /**
+     * Largest payload accepted; longer frames are treated as corrupt.
+     */
+    public static final int MAX_PAYLOAD = 1024;
+
+    /**
+     * The line the phone sends to offer binary framing. Old firmware
+     * ignores it and keeps sending ASCII.
+     */
+    public static final String HANDSHAKE_OFFER = "#FRAMING binary1";
+
+    /**
+     * The line a sensor answers with; its next byte starts the first frame.
+     */
+    public static final String HANDSHAKE_ACCEPT = "#FRAMING binary1 ok";
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Return the CRC-16/CCITT-FALSE of a range of bytes.
+     */
+    public static int crc16(byte[] buffer, int offset, int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ buffer[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Write one frame.
+     *
+     * @param out       Destination, with room for length + 7 bytes
+     * @param outOffset Where the frame starts in out
+     * @return The number of bytes written
+     */
+    public static int encode(int type, int channel, byte[] payload, int offset, int length,
+                             byte[] out, int outOffset) {
+        if (length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload too long: " + length);
+        }
+        int p = outOffset;
+        out[p++] = SYNC;
+        out[p++] = (byte) type;
+        out[p++] = (byte) channel;
+        out[p++] = (byte) (length >>> 8);
+        out[p++] = (byte) length;
+        System.arraycopy(payload, offset, out, p, length);
+        p += length;
+        int crc = crc16(out, outOffset + 1, HEADER_LENGTH - 1 + length);
+        out[p++] = (byte) (crc >>> 8);
+        out[p++] = (byte) crc;
+        return p - outOffset;
+    }
+
+    /**
+     * Return a new array holding one frame.
+     */
+    public static byte[] encode(int type, int channel, byte[] payload) {
+        byte[] frame = new byte[HEADER_LENGTH + payload.length + TRAILER_LENGTH];
+        encode(type, channel, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Receives the frames found by {@link Decoder#feed}. The payload is only
+     * valid for the duration of the call.
+     */
+    public interface FrameListener {
+        void onFrame(int type, int channel, byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Finds frames in a byte stream without allocating. Frames wholly inside
+     * the caller's buffer are delivered in place; others are assembled in a
+     * buffer owned by the decoder. After a bad length or CRC the decoder
+     * looks for the next sync byte.
+     */
+    public static class Decoder {
+        private final byte[] mFrame = new byte[HEADER_LENGTH + MAX_PAYLOAD + TRAILER_LENGTH];
+        private int mFrameLength;
+        private long mFrameCount;
+        private long mErrorCount;
+        private long mSkippedBytes;
+
+        /**
+         * Decode newly read bytes.
+         *
+         * @return The number of frames delivered
+         */
+        public int feed(byte[] buffer, int offset, int length, FrameListener listener) {
+            final int end = offset + length;
+            int frames = 0;
+            int p = offset;
+            while (p < end) {
+                if (mFrameLength == 0) {
+                    // Fast path: a whole frame in the caller's buffer
+                    if (buffer[p] != SYNC) {
+                        p++;
+                        mSkippedBytes++;
+                        continue;
+                    }
+                    int size = frameSize(buffer, p, end - p);
+                    if (size < 0) {
+                        // Impossible length: not really a frame start
+                        mErrorCount++;
+                        p++;
+                        continue;
+                    }
+                    if (size > 0 && p + size <= end) {
+                        if (check(buffer, p, size)) {
+                            deliver(buffer, p, listener);
+                            frames++;
+                            p += size;
+                        } else {
+                            mErrorCount++;
+                            p++;
+                        }
+                        continue;
+                    }
+                }
+                // Slow path: assemble the frame across reads
+                int n = Math.min(end - p, mFrame.length - mFrameLength);
+                System.arraycopy(buffer, p, mFrame, mFrameLength, n);
+                mFrameLength += n;
+                p += n;
+                frames += drainAssembled(listener);
+            }
+            return frames;
+        }
+
+        /**
+         * Deliver every complete frame in the assembly buffer, resyncing past
+         * corrupt ones.
+         */
+        private int drainAssembled(FrameListener listener) {
+            int frames = 0;
+            while (mFrameLength > 0) {
+                if (mFrame[0] != SYNC) {
+                    shift(1);
+                    mSkippedBytes++;
+                    continue;
+                }
+                int size = frameSize(mFrame, 0, mFrameLength);
+                if (size == 0) {
+                    return frames;
+                }
+                if (size < 0) {
+                    mErrorCount++;
+                    shift(1);
+                    continue;
+                }
+                if (size > mFrameLength) {
+                    return frames;
+                }
+                if (check(mFrame, 0, size)) {
+                    deliver(mFrame, 0, listener);
+                    frames++;
+                    shift(size);
+                } else {
+                    mErrorCount++;
+                    shift(1);
+                }
+            }
+            return frames;
+        }
+
+        /**
+         * Return the total size of the frame starting at offset, 0 if the
+         * header is not complete yet, or -1 if the length is impossible.
+         */
+        private static int frameSize(byte[] buffer, int offset, int available) {
+            if (available < HEADER_LENGTH) {
+                return 0;
+            }
+            int length = ((buffer[offset + 3] & 0xff) << 8) | (buffer[offset + 4] & 0xff);
+            if (length > MAX_PAYLOAD) {
+                return -1;
+            }
+            return HEADER_LENGTH + length + TRAILER_LENGTH;
+        }
+
+        private static boolean check(byte[] buffer, int offset, int size) {
+            int crc = ((buffer[offset + size - 2] & 0xff) << 8) | (buffer[offset + size - 1] & 0xff);
+            return crc == crc16(buffer, offset + 1, size - 1 - TRAILER_LENGTH);
+        }
+
+        private void deliver(byte[] buffer, int offset, FrameListener listener) {
+            mFrameCount++;
+            int length = ((buffer[offset + 3] & 0xff) << 8) | (buffer[offset + 4] & 0xff);
+            listener.onFrame(buffer[offset + 1] & 0xff, buffer[offset + 2] & 0xff,
+                    buffer, offset + HEADER_LENGTH, length);
+        }
+
+        private void shift(int count) {
+            mFrameLength -= count;
+            System.arraycopy(mFrame, count, mFrame, 0, mFrameLength);
+        }
+
+        /**
+         * Forget any partial frame.
+         */
+        public void reset() {
+            mFrameLength = 0;
+        }
+
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * Return the number of frames rejected for a bad length or CRC.
+         */
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        /**
+         * Return the number of bytes skipped while looking for a sync byte.
+         */
+        public long getSkippedBytes() {
+            return mSkippedBytes;
+        }
+    }
+}
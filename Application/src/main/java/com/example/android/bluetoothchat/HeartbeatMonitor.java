@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pings every registered link on a fixed period and declares a link dead
+ * after a number of heartbeats in a row during which nothing at all was
+ * received from it. Any incoming byte counts as a sign of life, so sensors
+ * with old firmware that stream readings but never answer pings stay up.
+ * Pongs give the round trip time, kept per link in a rolling histogram
+ * covering the last one to two windows of pings.
+ */
+public class HeartbeatMonitor {
+    // Debugging
+    private static final String TAG = "HeartbeatMonitor";
+
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_MAX_MISSED = 3;
+
+    // Pongs per RTT window
+    private static final int RTT_WINDOW = 64;
+
+    /**
+     * A connection watched by the monitor.
+     */
+    public interface Link {
+        /**
+         * Send a ping carrying the given timestamp, to be echoed in the pong.
+         */
+        void sendPing(long nanos);
+
+        /**
+         * Return the {@link System#nanoTime()} of the last bytes received.
+         */
+        long getLastReceiveNanos();
+
+        /**
+         * Too many heartbeats were missed; close the link so it is reported lost.
+         */
+        void onDead(int missed);
+    }
+
+    /**
+     * The heartbeat state of one link.
+     */
+    public class LinkState {
+        private final Link mLink;
+        private long mLastSeen;
+        private int mMissedInARow;
+        // Silence only counts once the link had a ping to answer
+        private boolean mPinged;
+        private volatile long mMissedTotal;
+        private volatile boolean mDead;
+        // The RTT window being filled and the one before it
+        private volatile LatencyHistogram mRtt = new LatencyHistogram();
+        private volatile LatencyHistogram mPreviousRtt = new LatencyHistogram();
+
+        LinkState(Link link) {
+            mLink = link;
+            mLastSeen = link.getLastReceiveNanos();
+        }
+
+        /**
+         * A pong came back for the ping sent at sentNanos.
+         */
+        public void onPong(long sentNanos) {
+            long rtt = System.nanoTime() - sentNanos;
+            if (rtt < 0 || rtt > TimeUnit.MINUTES.toNanos(1)) {
+                // Not one of our timestamps
+                return;
+            }
+            LatencyHistogram current = mRtt;
+            current.record(rtt);
+            if (current.getCount() >= RTT_WINDOW) {
+                synchronized (this) {
+                    if (mRtt == current) {
+                        mPreviousRtt = current;
+                        mRtt = new LatencyHistogram();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Return the round trip times of the recent pongs.
+         */
+        public LatencyHistogram.Snapshot getRtt() {
+            return mRtt.snapshot().merge(mPreviousRtt.snapshot());
+        }
+
+        /**
+         * Return the number of heartbeats missed since the link was registered.
+         */
+        public long getMissedCount() {
+            return mMissedTotal;
+        }
+
+        /**
+         * Called on the monitor thread once per interval.
+         */
+        void beat(int maxMissed) {
+            if (mDead) {
+                return;
+            }
+            long seen = mLink.getLastReceiveNanos();
+            if (seen != mLastSeen) {
+                mLastSeen = seen;
+                mMissedInARow = 0;
+            } else if (mPinged) {
+                mMissedInARow++;
+                mMissedTotal++;
+                if (mMissedInARow >= maxMissed) {
+                    Log.i(TAG, "link dead after " + mMissedInARow + " missed heartbeats");
+                    mDead = true;
+                    mLink.onDead(mMissedInARow);
+                    return;
+                }
+            }
+            mPinged = true;
+            mLink.sendPing(System.nanoTime());
+        }
+    }
+
+    private final CopyOnWriteArrayList<LinkState> mLinks = new CopyOnWriteArrayList<LinkState>();
+    private final ScheduledThreadPoolExecutor mScheduler;
+    private ScheduledFuture<?> mTask;
+    private long mIntervalMs;
+    private volatile int mMaxMissed = DEFAULT_MAX_MISSED;
+
+    public HeartbeatMonitor() {
+        mScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HeartbeatMonitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start beating, or change the period.
+     *
+     * @param intervalMs Time between heartbeats
+     * @param maxMissed  Heartbeats in a row without news after which a link is dead
+     */
+    public synchronized void start(long intervalMs, int maxMissed) {
+        stop();
+        mIntervalMs = intervalMs;
+        mMaxMissed = Math.max(1, maxMissed);
+        mTask = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                beat();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop beating. Registered links are kept.
+     */
+    public synchronized void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return mTask != null;
+    }
+
+    public synchronized long getIntervalMs() {
+        return mIntervalMs;
+    }
+
+    public LinkState register(Link link) {
+        LinkState state = new LinkState(link);
+        mLinks.add(state);
+        return state;
+    }
+
+    public void unregister(LinkState state) {
+        mLinks.remove(state);
+    }
+
+    /**
+     * Run one heartbeat over every link. Public for tests, which drive the
+     * monitor without the timer.
+     */
+    public void beat() {
+        int maxMissed = mMaxMissed;
+        for (LinkState state : mLinks) {
+            try {
+                state.beat(maxMissed);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "heartbeat failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stop for good, releasing the timer thread.
+     */
+    public void shutdown() {
+        stop();
+        mScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds that any number of threads can
+ * record into without locking. Buckets are logarithmic with eight linear
+ * steps per power of two, so a percentile is reported within 12.5% of the
+ * true value whatever its magnitude. The maximum is exact.
+ */
+public class LatencyHistogram {
+
+    // Linear steps per power of two, as a shift
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Return the largest value that falls in a bucket.
+     */
+    static long highestIn(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        long low = (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Record one duration. Negative values count as 0.
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Record the same duration count times.
+     */
+    public void record(long nanos, int count) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.addAndGet(bucketOf(nanos), count);
+        mCount.addAndGet(count);
+        mTotal.addAndGet(nanos * count);
+        long max;
+        while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+            // another thread raised it, try again
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Forget everything recorded. Records made meanwhile may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Take a copy to read percentiles from. It is not atomic with respect
+     * to concurrent records, but each bucket is read exactly once.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotal.get(), mMax.get());
+    }
+
+    /**
+     * A frozen copy of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        /**
+         * Return the sum of this snapshot and another one.
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mCounts[i] + other.mCounts[i];
+            }
+            return new Snapshot(counts, mCount + other.mCount, mTotal + other.mTotal,
+                    Math.max(mMax, other.mMax));
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxNanos() {
+            return mMax;
+        }
+
+        public long getMeanNanos() {
+            return mCount == 0 ? 0 : mTotal / mCount;
+        }
+
+        /**
+         * Return a percentile, e.g. 99.9.
+         *
+         * @return The upper bound of the bucket holding it, at most the
+         *         maximum, or 0 if nothing was recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            rank = Math.max(1, Math.min(mCount, rank));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestIn(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * Return "n=... p50=... p99=... p999=... max=..." in milliseconds.
+         */
+        @Override
+        public String toString() {
+            return String.format("n=%d p50=%.2f p99=%.2f p999=%.2f max=%.2f ms", mCount,
+                    getPercentileNanos(50) / 1e6, getPercentileNanos(99) / 1e6,
+                    getPercentileNanos(99.9) / 1e6, mMax / 1e6);
+        }
+    }
+}
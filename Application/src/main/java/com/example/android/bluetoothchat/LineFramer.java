@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Splits a stream of bytes into newline terminated lines without allocating.
+ * Only the bytes passed to {@link #feed} are scanned. Every complete line is
+ * handed to the {@link LineListener}, straight from the caller's buffer when
+ * possible, and a trailing "\r" is removed. The unfinished tail of a read is
+ * kept in a carry buffer that is reused for the life of the framer.
+ */
+public class LineFramer {
+
+    /**
+     * Default size of the carry buffer, and so the longest line accepted.
+     */
+    public static final int DEFAULT_MAX_LINE = 1024;
+
+    /**
+     * Receives the lines found by {@link LineFramer#feed}. The bytes are only
+     * valid for the duration of the call.
+     */
+    public interface LineListener {
+        void onLine(byte[] buffer, int offset, int length);
+    }
+
+    // Bytes of the current, still unterminated, line
+    private final byte[] mCarry;
+    private int mCarryLength;
+
+    // True while skipping the rest of a line that did not fit in mCarry
+    private boolean mDiscarding;
+    private long mOverflowCount;
+
+    // Set by stop() from within the listener
+    private boolean mStopRequested;
+    private int mStopOffset = -1;
+
+    public LineFramer() {
+        this(DEFAULT_MAX_LINE);
+    }
+
+    /**
+     * @param maxLine Longest line, in bytes, that will be delivered. Longer
+     *                lines are dropped and counted by {@link #getOverflowCount()}.
+     */
+    public LineFramer(int maxLine) {
+        if (maxLine <= 0) {
+            throw new IllegalArgumentException("maxLine must be positive: " + maxLine);
+        }
+        mCarry = new byte[maxLine];
+    }
+
+    /**
+     * Frame newly read bytes.
+     *
+     * @param buffer   The buffer holding the bytes just read
+     * @param offset   Offset of the first new byte
+     * @param length   Number of new bytes
+     * @param listener Called once for every complete line
+     * @return The number of lines delivered
+     */
+    public int feed(byte[] buffer, int offset, int length, LineListener listener) {
+        final int end = offset + length;
+        int lines = 0;
+        int start = offset;
+        mStopOffset = -1;
+        while (start < end) {
+            if (mStopRequested) {
+                // The rest of the buffer is no longer line oriented
+                mStopRequested = false;
+                mStopOffset = start;
+                return lines;
+            }
+            int nl = indexOfNewline(buffer, start, end);
+            if (nl < 0) {
+                append(buffer, start, end - start);
+                break;
+            }
+            if (mDiscarding) {
+                // The tail of an over long line, drop it
+                mDiscarding = false;
+                mCarryLength = 0;
+            } else if (mCarryLength == 0) {
+                // Whole line is inside the caller's buffer, no copy needed
+                if (nl - start > mCarry.length) {
+                    // Reads larger than the carry buffer hold over long lines whole
+                    mOverflowCount++;
+                } else {
+                    deliver(buffer, start, nl - start, listener);
+                    lines++;
+                }
+            } else {
+                append(buffer, start, nl - start);
+                if (!mDiscarding) {
+                    deliver(mCarry, 0, mCarryLength, listener);
+                    lines++;
+                }
+                mDiscarding = false;
+                mCarryLength = 0;
+            }
+            start = nl + 1;
+        }
+        if (mStopRequested) {
+            mStopRequested = false;
+            mStopOffset = end;
+        }
+        return lines;
+    }
+
+    /**
+     * Called from {@link LineListener#onLine} to make the current
+     * {@link #feed} return right after that line, e.g. when the line
+     * switches the stream to another format.
+     */
+    public void stop() {
+        mStopRequested = true;
+    }
+
+    /**
+     * Return the offset of the first byte the last {@link #feed} left
+     * unframed because of {@link #stop()}, or -1 if it framed everything.
+     */
+    public int getStopOffset() {
+        return mStopOffset;
+    }
+
+    /**
+     * Forget any partial line, for instance when a connection is restarted.
+     */
+    public void reset() {
+        mCarryLength = 0;
+        mDiscarding = false;
+    }
+
+    /**
+     * Return the number of lines dropped because they exceeded the maximum length.
+     */
+    public long getOverflowCount() {
+        return mOverflowCount;
+    }
+
+    /**
+     * Return the number of bytes of the current unterminated line.
+     */
+    public int getPendingLength() {
+        return mCarryLength;
+    }
+
+    private static int indexOfNewline(byte[] buffer, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void append(byte[] buffer, int offset, int length) {
+        if (mDiscarding || length == 0) {
+            return;
+        }
+        if (mCarryLength + length > mCarry.length) {
+            mDiscarding = true;
+            mCarryLength = 0;
+            mOverflowCount++;
+            return;
+        }
+        System.arraycopy(buffer, offset, mCarry, mCarryLength, length);
+        mCarryLength += length;
+    }
+
+    private static void deliver(byte[] buffer, int offset, int length, LineListener listener) {
+        if (length > 0 && buffer[offset + length - 1] == '\r') {
+            length--;
+        }
+        listener.onLine(buffer, offset, length);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters, rate meters and gauges, grouped in scopes such as one per
+ * connection. Counters and meters are cheap enough to update from the read
+ * path; gauges are read only when dumping. When a scope is retired its
+ * counters are added to the totals, so they outlive the connection.
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value computed on demand, e.g. a count kept elsewhere.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * The metrics of one component or connection.
+     */
+    public static class Scope {
+        private final String mName;
+        private final ConcurrentHashMap<String, StripedCounter> mCounters =
+                new ConcurrentHashMap<String, StripedCounter>();
+        private final ConcurrentHashMap<String, RateMeter> mMeters =
+                new ConcurrentHashMap<String, RateMeter>();
+        private final ConcurrentHashMap<String, Gauge> mGauges =
+                new ConcurrentHashMap<String, Gauge>();
+
+        Scope(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Return the counter with the given name, creating it if needed.
+         * Callers on hot paths keep the returned counter.
+         */
+        public StripedCounter counter(String name) {
+            StripedCounter counter = mCounters.get(name);
+            if (counter == null) {
+                StripedCounter created = new StripedCounter();
+                counter = mCounters.putIfAbsent(name, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            return counter;
+        }
+
+        public RateMeter meter(String name) {
+            RateMeter meter = mMeters.get(name);
+            if (meter == null) {
+                RateMeter created = new RateMeter();
+                meter = mMeters.putIfAbsent(name, created);
+                if (meter == null) {
+                    meter = created;
+                }
+            }
+            return meter;
+        }
+
+        public void gauge(String name, Gauge gauge) {
+            mGauges.put(name, gauge);
+        }
+
+        /**
+         * Return the value of a counter or gauge, 0 if there is none.
+         */
+        public long get(String name) {
+            StripedCounter counter = mCounters.get(name);
+            if (counter != null) {
+                return counter.sum();
+            }
+            Gauge gauge = mGauges.get(name);
+            return gauge == null ? 0 : gauge.get();
+        }
+
+        /**
+         * Return every counter and gauge, by name.
+         */
+        Map<String, Long> values() {
+            Map<String, Long> values = new TreeMap<String, Long>();
+            for (Map.Entry<String, StripedCounter> e : mCounters.entrySet()) {
+                values.put(e.getKey(), e.getValue().sum());
+            }
+            for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+                values.put(e.getKey(), e.getValue().get());
+            }
+            return values;
+        }
+
+        void dump(PrintWriter writer) {
+            writer.println(mName + ":");
+            for (Map.Entry<String, Long> e : values().entrySet()) {
+                writer.println("  " + e.getKey() + " = " + e.getValue());
+            }
+            for (String name : new TreeSet<String>(mMeters.keySet())) {
+                RateMeter meter = mMeters.get(name);
+                writer.println(String.format("  %s = %.1f/s (1s) %.1f/s (%ds)", name,
+                        meter.getRate(1), meter.getRate(RateMeter.MAX_WINDOW),
+                        RateMeter.MAX_WINDOW));
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Scope> mScopes =
+            new ConcurrentHashMap<String, Scope>();
+    // Counters and gauges of the retired scopes, summed by name
+    private final Map<String, Long> mRetired = new TreeMap<String, Long>();
+
+    /**
+     * Return the scope with the given name, creating it if needed.
+     */
+    public Scope scope(String name) {
+        Scope scope = mScopes.get(name);
+        if (scope == null) {
+            Scope created = new Scope(name);
+            scope = mScopes.putIfAbsent(name, created);
+            if (scope == null) {
+                scope = created;
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Remove a scope, keeping its counters and gauges in the totals.
+     */
+    public void retire(Scope scope) {
+        if (!mScopes.remove(scope.getName(), scope)) {
+            return;
+        }
+        synchronized (mRetired) {
+            for (Map.Entry<String, Long> e : scope.values().entrySet()) {
+                Long sum = mRetired.get(e.getKey());
+                mRetired.put(e.getKey(), (sum == null ? 0 : sum) + e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Return a counter or gauge summed over every scope, retired ones included.
+     */
+    public long getTotal(String name) {
+        long sum;
+        synchronized (mRetired) {
+            Long retired = mRetired.get(name);
+            sum = retired == null ? 0 : retired;
+        }
+        for (Scope scope : mScopes.values()) {
+            sum += scope.get(name);
+        }
+        return sum;
+    }
+
+    /**
+     * Print every scope, in name order, followed by the totals.
+     */
+    public void dump(PrintWriter writer) {
+        List<String> names = new ArrayList<String>(mScopes.keySet());
+        Collections.sort(names);
+        Map<String, Long> totals;
+        synchronized (mRetired) {
+            totals = new TreeMap<String, Long>(mRetired);
+        }
+        for (String name : names) {
+            Scope scope = mScopes.get(name);
+            if (scope == null) {
+                continue;
+            }
+            scope.dump(writer);
+            for (Map.Entry<String, Long> e : scope.values().entrySet()) {
+                Long sum = totals.get(e.getKey());
+                totals.put(e.getKey(), (sum == null ? 0 : sum) + e.getValue());
+            }
+        }
+        writer.println("total:");
+        for (Map.Entry<String, Long> e : totals.entrySet()) {
+            writer.println("  " + e.getKey() + " = " + e.getValue());
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded queues of messages waiting to go out on one connection, one
+ * per priority class. Any thread may offer; a single consumer (a
+ * {@link WriterThread} or a {@link ConnectionReactor}) coalesces what is
+ * queued into batches. Each batch takes control messages first, so a
+ * command queued behind a bulk transfer waits for at most the batch being
+ * written, not for the whole transfer. Bulk messages are still taken after
+ * every {@link #CONTROL_BURST} control messages, so neither class starves.
+ * Order is kept within a class, not across classes. What happens when a
+ * queue is full is chosen with {@link #setOverflowPolicy(int)}.
+ */
+public class OutboundQueue {
+
+    // Constants that select what offer() does when the queue is full
+    public static final int OVERFLOW_REJECT = 0;      // refuse the new message
+    public static final int OVERFLOW_DROP_OLDEST = 1; // discard the oldest queued message
+    public static final int OVERFLOW_BLOCK = 2;       // wait for room
+
+    // Priority classes, highest first
+    public static final int PRIORITY_CONTROL = 0;     // commands, chat, heartbeats, acks
+    public static final int PRIORITY_BULK = 1;        // file chunks and other large payloads
+    public static final int PRIORITY_COUNT = 2;
+
+    // Default number of messages that may wait to be written, per class
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Control messages taken in a row before a waiting bulk message.
+     */
+    public static final int CONTROL_BURST = 16;
+
+    private final ArrayBlockingQueue<byte[]>[] mLanes;
+    // The first message of each class, taken from its queue but not yet written
+    private final byte[][] mHeads = new byte[PRIORITY_COUNT][];
+    // Control messages taken since the last bulk one
+    private int mControlRun;
+    private volatile int mOverflowPolicy = OVERFLOW_REJECT;
+    private volatile boolean mClosed;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    // Wakes the consumer in await(); only notified while it waits
+    private final Object mSignal = new Object();
+    private volatile boolean mWaiting;
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue(int capacity) {
+        mLanes = new ArrayBlockingQueue[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mLanes[i] = new ArrayBlockingQueue<byte[]>(capacity);
+        }
+    }
+
+    /**
+     * Set what {@link #offer(byte[])} does when the queue is full.
+     *
+     * @param policy One of OVERFLOW_REJECT, OVERFLOW_DROP_OLDEST or OVERFLOW_BLOCK
+     */
+    public void setOverflowPolicy(int policy) {
+        if (policy < OVERFLOW_REJECT || policy > OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + policy);
+        }
+        mOverflowPolicy = policy;
+    }
+
+    /**
+     * Queue a control message.
+     *
+     * @see #offer(byte[], int)
+     */
+    public boolean offer(byte[] message) {
+        return offer(message, PRIORITY_CONTROL);
+    }
+
+    /**
+     * Queue a message. Does not block unless the policy is OVERFLOW_BLOCK
+     * and the queue of its class is full.
+     *
+     * @param message  The bytes to write; must not be modified afterwards
+     * @param priority PRIORITY_CONTROL or PRIORITY_BULK
+     * @return false if the message was refused
+     */
+    public boolean offer(byte[] message, int priority) {
+        if (mClosed) {
+            return false;
+        }
+        ArrayBlockingQueue<byte[]> queue = mLanes[priority];
+        switch (mOverflowPolicy) {
+            case OVERFLOW_BLOCK:
+                try {
+                    queue.put(message);
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case OVERFLOW_DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (queue.poll() != null) {
+                        mDroppedCount.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                if (!queue.offer(message)) {
+                    mDroppedCount.incrementAndGet();
+                    return false;
+                }
+                break;
+        }
+        if (mWaiting) {
+            synchronized (mSignal) {
+                mSignal.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of messages waiting to be written.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            size += size(i);
+        }
+        return size;
+    }
+
+    /**
+     * Return the number of messages of one class waiting to be written.
+     */
+    public int size(int priority) {
+        return mLanes[priority].size() + (mHeads[priority] != null ? 1 : 0);
+    }
+
+    /**
+     * Return the number of messages refused or discarded because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Block the consumer until there is something to write.
+     */
+    public void await() throws InterruptedException {
+        if (nextLane() >= 0) {
+            return;
+        }
+        synchronized (mSignal) {
+            mWaiting = true;
+            try {
+                while (nextLane() < 0) {
+                    mSignal.wait();
+                }
+            } finally {
+                mWaiting = false;
+            }
+        }
+    }
+
+    // Return the first message of a class without taking it. Consumer only.
+    private byte[] peek(int priority) {
+        byte[] head = mHeads[priority];
+        if (head == null) {
+            head = mLanes[priority].poll();
+            mHeads[priority] = head;
+        }
+        return head;
+    }
+
+    // Return the class the next message is taken from, or -1 if none is queued
+    private int nextLane() {
+        boolean bulk = peek(PRIORITY_BULK) != null;
+        if (peek(PRIORITY_CONTROL) != null && (!bulk || mControlRun < CONTROL_BURST)) {
+            return PRIORITY_CONTROL;
+        }
+        return bulk ? PRIORITY_BULK : -1;
+    }
+
+    private byte[] take(int priority) {
+        byte[] message = mHeads[priority];
+        mHeads[priority] = null;
+        mControlRun = priority == PRIORITY_CONTROL ? mControlRun + 1 : 0;
+        return message;
+    }
+
+    /**
+     * Coalesce queued messages into a batch, control messages first.
+     * Consumer only.
+     *
+     * @param batch    Buffer the messages are copied into
+     * @param messages Receives the messages that make up the batch
+     * @return The number of bytes in batch, 0 if nothing is queued, or -1 if
+     * the next message is larger than batch; it is then the only entry in
+     * messages and should be written as it is
+     */
+    public int fillBatch(byte[] batch, List<byte[]> messages) {
+        int lane = nextLane();
+        if (lane < 0) {
+            return 0;
+        }
+        if (mHeads[lane].length > batch.length) {
+            messages.add(take(lane));
+            return -1;
+        }
+
+        int length = 0;
+        while (lane >= 0) {
+            byte[] next = mHeads[lane];
+            if (length + next.length > batch.length) {
+                // Starts the next batch
+                break;
+            }
+            take(lane);
+            System.arraycopy(next, 0, batch, length, next.length);
+            length += next.length;
+            messages.add(next);
+            lane = nextLane();
+        }
+        return length;
+    }
+
+    /**
+     * Refuse further messages and discard whatever is queued.
+     */
+    public void close() {
+        mClosed = true;
+        for (ArrayBlockingQueue<byte[]> lane : mLanes) {
+            lane.clear();
+        }
+    }
+}
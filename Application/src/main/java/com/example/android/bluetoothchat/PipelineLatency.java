@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Where the time goes between a sample arriving and it being shown. Every
+ * sample carries the {@link System#nanoTime()} of the read that brought it;
+ * each later stage records how long after that read the sample reached it,
+ * into a {@link LatencyHistogram} of its own. The difference between two
+ * consecutive stages is the time spent in between.
+ *
+ * <p>Recording is off until {@link #setEnabled(boolean)}, so the pipeline
+ * pays for a volatile read per batch and nothing else.
+ */
+public class PipelineLatency {
+
+    // Stages, in pipeline order
+    public static final int STAGE_READ = 0;       // the read is handed to the framer
+    public static final int STAGE_FRAMED = 1;     // the sample is in its ring
+    public static final int STAGE_DISPATCHED = 2; // the Handler drained it
+    public static final int STAGE_PERSISTED = 3;  // its row was committed
+    public static final int STAGE_DISPLAYED = 4;  // it was added to the adapter
+
+    public static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "read", "framed", "dispatched", "persisted", "displayed"
+    };
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+    private volatile boolean mEnabled;
+
+    public PipelineLatency() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    public static String nameOf(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Record that samples read at readNanos reached a stage now.
+     *
+     * @param count Number of samples from that read
+     */
+    public void record(int stage, long readNanos, int count) {
+        record(stage, readNanos, System.nanoTime(), count);
+    }
+
+    /**
+     * Record that samples read at readNanos reached a stage at stageNanos.
+     */
+    public void record(int stage, long readNanos, long stageNanos, int count) {
+        if (mEnabled && count > 0) {
+            mStages[stage].record(stageNanos - readNanos, count);
+        }
+    }
+
+    /**
+     * Record that samples reached a stage now, each read at its own time.
+     *
+     * @param readNanos The read times, as drained from a {@link SampleRing}
+     */
+    public void record(int stage, long[] readNanos, int offset, int count) {
+        if (!mEnabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        LatencyHistogram histogram = mStages[stage];
+        for (int i = offset; i < offset + count; i++) {
+            histogram.record(now - readNanos[i]);
+        }
+    }
+
+    /**
+     * Return a copy of every stage's histogram, indexed by stage.
+     */
+    public LatencyHistogram.Snapshot[] snapshot() {
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            snapshots[i] = mStages[i].snapshot();
+        }
+        return snapshots;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mStages) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Return one line per stage that saw samples, in milliseconds since the
+     * read, e.g. for a debug overlay.
+     */
+    public static String format(LatencyHistogram.Snapshot[] snapshots) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < snapshots.length; i++) {
+            LatencyHistogram.Snapshot s = snapshots[i];
+            if (s.getCount() == 0) {
+                continue;
+            }
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(String.format("%-10s %s", STAGE_NAMES[i], s));
+        }
+        return text.toString();
+    }
+}
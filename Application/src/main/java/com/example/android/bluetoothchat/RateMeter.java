@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events per second of wall time, over the last {@link #MAX_WINDOW}
+ * seconds, without locking. Each second has a slot in a ring; the first
+ * event of a new second claims the slot and clears it. An event racing that
+ * claim may go uncounted, which a rate can live with.
+ */
+public class RateMeter {
+
+    public static final int MAX_WINDOW = 15;
+
+    private static final int SLOTS = MAX_WINDOW + 1;
+    private static final long SECOND = 1000000000L;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(SLOTS);
+    // The second each slot holds, -1 if none
+    private final AtomicLongArray mSeconds = new AtomicLongArray(SLOTS);
+    private final StripedCounter mTotal = new StripedCounter();
+
+    public RateMeter() {
+        for (int i = 0; i < SLOTS; i++) {
+            mSeconds.set(i, -1);
+        }
+    }
+
+    private static int slotOf(long second) {
+        // nanoTime() may be negative
+        return (int) ((second % SLOTS + SLOTS) % SLOTS);
+    }
+
+    public void mark(long count) {
+        mark(count, System.nanoTime());
+    }
+
+    /**
+     * Mark events that happened at nowNanos, for callers that already
+     * read the clock.
+     */
+    public void mark(long count, long nowNanos) {
+        long second = nowNanos / SECOND;
+        int slot = slotOf(second);
+        long held = mSeconds.get(slot);
+        if (held != second && mSeconds.compareAndSet(slot, held, second)) {
+            mCounts.set(slot, 0);
+        }
+        mCounts.addAndGet(slot, count);
+        mTotal.add(count);
+    }
+
+    /**
+     * Return the events per second over the last complete seconds.
+     *
+     * @param seconds How many seconds to average, 1 to {@link #MAX_WINDOW}
+     */
+    public double getRate(int seconds) {
+        return getRate(seconds, System.nanoTime());
+    }
+
+    double getRate(int seconds, long nowNanos) {
+        seconds = Math.max(1, Math.min(MAX_WINDOW, seconds));
+        long current = nowNanos / SECOND;
+        long sum = 0;
+        for (long second = current - seconds; second < current; second++) {
+            int slot = slotOf(second);
+            if (mSeconds.get(slot) == second) {
+                sum += mCounts.get(slot);
+            }
+        }
+        return (double) sum / seconds;
+    }
+
+    /**
+     * Return the number of events ever marked.
+     */
+    public long getCount() {
+        return mTotal.sum();
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings dropped links back without the user picking the device again.
+ * It remembers the devices recently connected to; when one of their links
+ * is lost, the first attempt is made at once and the following ones with
+ * exponential backoff and jitter, with only a few attempts in flight at a
+ * time. The time from losing a link to getting it back is recorded.
+ *
+ * <p>Attempts are made through a {@link Connector}, never while holding
+ * this object's lock, so the connector may call back into it.</p>
+ */
+public class ReconnectManager {
+    // Debugging
+    private static final String TAG = "ReconnectManager";
+
+    // Number of devices remembered, most recently connected first
+    private static final int MAX_REMEMBERED = 8;
+
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    public static final int DEFAULT_MAX_ATTEMPTS = 12;
+
+    /**
+     * What the manager drives, normally a {@link BluetoothChatService}.
+     */
+    public interface Connector {
+        /**
+         * Start a connection attempt. Its outcome is reported back through
+         * {@link #onConnected(String)} or {@link #onAttemptFailed(String)}.
+         */
+        void connect(String address, boolean secure);
+
+        /**
+         * The last attempt allowed for a device failed; nothing more is tried.
+         */
+        void onGaveUp(String address);
+    }
+
+    private class Device {
+        final String mAddress;
+        boolean mSecure;
+        // Set from the loss of the link until it is back or given up
+        boolean mReconnecting;
+        boolean mInFlight;
+        int mAttempts;
+        long mLostNanos;
+        ScheduledFuture<?> mPending;
+
+        Device(String address) {
+            mAddress = address;
+        }
+    }
+
+    private final Connector mConnector;
+    private final Random mRandom = new Random();
+    private final ScheduledThreadPoolExecutor mScheduler;
+    // Kept in connection order, so the eldest entry is the least recently
+    // connected device; see touch()
+    private final LinkedHashMap<String, Device> mDevices =
+            new LinkedHashMap<String, Device>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Device> eldest) {
+                    return size() > MAX_REMEMBERED && !eldest.getValue().mReconnecting;
+                }
+            };
+    // Devices due for an attempt while the in-flight limit was reached
+    private final List<Device> mWaiting = new ArrayList<Device>();
+    private int mInFlight;
+
+    private long mBaseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    // Time-to-reconnect metric
+    private long mReconnectCount;
+    private long mTotalReconnectMillis;
+    private long mMaxReconnectMillis;
+    private long mLastReconnectMillis;
+    private long mGaveUpCount;
+
+    public ReconnectManager(Connector connector) {
+        mConnector = connector;
+        mScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReconnectManager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Do not keep a thread around while nothing is scheduled
+        mScheduler.setKeepAliveTime(10, TimeUnit.SECONDS);
+        mScheduler.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param baseDelayMs Upper bound of the delay before the second attempt;
+     *                    it doubles with every further attempt
+     * @param maxDelayMs  Upper bound of any delay
+     */
+    public synchronized void setBackoff(long baseDelayMs, long maxDelayMs) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    public synchronized void setMaxConcurrentAttempts(int maxConcurrent) {
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * @param maxAttempts Attempts per lost link before giving up, 0 for no limit
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Remember a device we connected to, so its link is restored if lost.
+     *
+     * @param secure Whether the connection that worked was secure
+     */
+    public synchronized void remember(String address, boolean secure) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device(address);
+        }
+        device.mSecure = secure;
+        touch(device);
+    }
+
+    /**
+     * Move a device to the most recently connected end.
+     */
+    private void touch(Device device) {
+        mDevices.remove(device.mAddress);
+        mDevices.put(device.mAddress, device);
+    }
+
+    /**
+     * Forget a device and stop reconnecting to it.
+     */
+    public synchronized void forget(String address) {
+        cancel(address);
+        mDevices.remove(address);
+    }
+
+    /**
+     * Return the remembered addresses, most recently connected first.
+     */
+    public synchronized List<String> getRecentAddresses() {
+        List<String> addresses = new ArrayList<String>(mDevices.keySet());
+        Collections.reverse(addresses);
+        return addresses;
+    }
+
+    /**
+     * Return true while the link to a device is being restored.
+     */
+    public synchronized boolean isReconnecting(String address) {
+        Device device = mDevices.get(address);
+        return device != null && device.mReconnecting;
+    }
+
+    /**
+     * Return true while any link is being restored.
+     */
+    public synchronized boolean hasReconnecting() {
+        for (Device device : mDevices.values()) {
+            if (device.mReconnecting) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A link to a device is up, whoever started it.
+     */
+    public void onConnected(String address) {
+        Device next;
+        synchronized (this) {
+            Device device = mDevices.get(address);
+            if (device == null) {
+                return;
+            }
+            if (device.mReconnecting) {
+                long millis = (System.nanoTime() - device.mLostNanos) / 1000000;
+                mReconnectCount++;
+                mTotalReconnectMillis += millis;
+                mMaxReconnectMillis = Math.max(mMaxReconnectMillis, millis);
+                mLastReconnectMillis = millis;
+                Log.i(TAG, "reconnected " + address + " in " + millis + " ms after "
+                        + (device.mAttempts + 1) + " attempts");
+            }
+            stopReconnecting(device);
+            touch(device);
+            next = nextWaiting();
+        }
+        attempt(next);
+    }
+
+    /**
+     * A link to a device was lost. Remembered devices get an attempt at once.
+     */
+    public synchronized void onConnectionLost(String address) {
+        Device device = mDevices.get(address);
+        if (device == null || device.mReconnecting) {
+            return;
+        }
+        device.mReconnecting = true;
+        device.mAttempts = 0;
+        device.mLostNanos = System.nanoTime();
+        // The recent-device fast path: the peer is most likely still in range
+        schedule(device, 0);
+    }
+
+    /**
+     * A connection attempt failed; the next one is scheduled with backoff.
+     */
+    public void onAttemptFailed(String address) {
+        Device next;
+        boolean gaveUp = false;
+        synchronized (this) {
+            Device device = mDevices.get(address);
+            if (device == null || !device.mReconnecting) {
+                return;
+            }
+            release(device);
+            device.mAttempts++;
+            if (mMaxAttempts > 0 && device.mAttempts >= mMaxAttempts) {
+                Log.i(TAG, "giving up on " + address + " after " + device.mAttempts + " attempts");
+                stopReconnecting(device);
+                mGaveUpCount++;
+                gaveUp = true;
+            } else {
+                schedule(device, backoff(device.mAttempts));
+            }
+            next = nextWaiting();
+        }
+        if (gaveUp) {
+            mConnector.onGaveUp(address);
+        }
+        attempt(next);
+    }
+
+    /**
+     * Stop reconnecting to a device, e.g. because the user disconnected it.
+     */
+    public synchronized void cancel(String address) {
+        Device device = mDevices.get(address);
+        if (device != null) {
+            stopReconnecting(device);
+        }
+    }
+
+    /**
+     * Stop every reconnection in progress. The devices stay remembered.
+     */
+    public synchronized void cancelAll() {
+        for (Device device : mDevices.values()) {
+            stopReconnecting(device);
+        }
+    }
+
+    /**
+     * Stop for good, releasing the scheduler thread.
+     */
+    public void shutdown() {
+        cancelAll();
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * Return the delay before attempt number attempts + 1: a random value
+     * between half and all of the exponential bound, so devices that
+     * dropped together do not retry in lockstep.
+     */
+    synchronized long backoff(int attempts) {
+        long bound = mBaseDelayMs << Math.min(attempts - 1, 20);
+        bound = Math.min(bound, mMaxDelayMs);
+        long half = bound / 2;
+        return half + (long) (mRandom.nextDouble() * (bound - half + 1));
+    }
+
+    private void schedule(final Device device, long delayMs) {
+        if (device.mPending != null) {
+            device.mPending.cancel(false);
+        }
+        device.mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ReconnectManager.this) {
+                    device.mPending = null;
+                    if (!device.mReconnecting || device.mInFlight) {
+                        return;
+                    }
+                    if (mInFlight >= mMaxConcurrent) {
+                        mWaiting.add(device);
+                        return;
+                    }
+                    claim(device);
+                }
+                attempt(device);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void claim(Device device) {
+        device.mInFlight = true;
+        mInFlight++;
+    }
+
+    private void release(Device device) {
+        if (device.mInFlight) {
+            device.mInFlight = false;
+            mInFlight--;
+        }
+    }
+
+    private void stopReconnecting(Device device) {
+        device.mReconnecting = false;
+        device.mAttempts = 0;
+        if (device.mPending != null) {
+            device.mPending.cancel(false);
+            device.mPending = null;
+        }
+        mWaiting.remove(device);
+        release(device);
+    }
+
+    /**
+     * Claim a slot for the most recently connected waiting device, if any.
+     */
+    private Device nextWaiting() {
+        if (mWaiting.isEmpty() || mInFlight >= mMaxConcurrent) {
+            return null;
+        }
+        Device best = null;
+        // Iteration runs from least to most recently connected
+        for (Device device : mDevices.values()) {
+            if (mWaiting.contains(device)) {
+                best = device;
+            }
+        }
+        mWaiting.remove(best);
+        claim(best);
+        return best;
+    }
+
+    private void attempt(Device device) {
+        if (device == null) {
+            return;
+        }
+        boolean secure;
+        int attempts;
+        synchronized (this) {
+            secure = device.mSecure;
+            attempts = device.mAttempts;
+        }
+        Log.d(TAG, "attempt " + (attempts + 1) + " to reconnect " + device.mAddress);
+        mConnector.connect(device.mAddress, secure);
+    }
+
+    /**
+     * Return the number of links restored.
+     */
+    public synchronized long getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Return the number of lost links given up on.
+     */
+    public synchronized long getGaveUpCount() {
+        return mGaveUpCount;
+    }
+
+    /**
+     * Return the time-to-reconnect of the last restored link, in milliseconds.
+     */
+    public synchronized long getLastReconnectMillis() {
+        return mLastReconnectMillis;
+    }
+
+    /**
+     * Return the mean time-to-reconnect, in milliseconds.
+     */
+    public synchronized long getMeanReconnectMillis() {
+        return mReconnectCount == 0 ? 0 : mTotalReconnectMillis / mReconnectCount;
+    }
+
+    /**
+     * Return the longest time-to-reconnect, in milliseconds.
+     */
+    public synchronized long getMaxReconnectMillis() {
+        return mMaxReconnectMillis;
+    }
+}
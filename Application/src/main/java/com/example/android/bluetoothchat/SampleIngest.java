@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Persists the samples of the connected sensors. One background thread
+ * drains a reader of each registered {@link SampleRing} into a batch and
+ * hands the batch to the {@link SampleStore} in one transaction once it
+ * holds {@code batchRows} rows or its oldest row is {@code flushMillis}
+ * old, whichever comes first. The reading threads never wait for it.
+ *
+ * <p>The rings bound what may pile up while a flush runs. When the writer
+ * lags, POLICY_DROP keeps every sample it can and loses the ones
+ * overwritten in a ring; POLICY_AGGREGATE stores the mean of each run of
+ * samples of a ring that fell more than half behind, so it catches up
+ * before anything is overwritten.
+ */
+public class SampleIngest {
+    // Debugging
+    private static final String TAG = "SampleIngest";
+
+    // Constants that select what happens when the writer lags
+    public static final int POLICY_DROP = 0;
+    public static final int POLICY_AGGREGATE = 1;
+
+    public static final int DEFAULT_BATCH_ROWS = 2000;
+    public static final long DEFAULT_FLUSH_MILLIS = 500;
+
+    // Longest sleep between passes over the rings
+    private static final long MAX_POLL_MILLIS = 20;
+
+    // Sensorid of a source not looked up yet
+    private static final long UNRESOLVED = -2;
+
+    /**
+     * The ring of one device, persisted under the device's sensorid.
+     */
+    public static final class Source {
+        final String mAddress;
+        final SampleRing mRing;
+        final SampleRing.Reader mReader;
+        // Looked up on the ingest thread, so connecting never waits for the database
+        long mSensorId = UNRESOLVED;
+        volatile boolean mRemoved;
+
+        Source(String address, SampleRing ring) {
+            mAddress = address;
+            mRing = ring;
+            mReader = ring.newReader();
+        }
+    }
+
+    private final SampleStore mStore;
+    private final SampleStore.SensorIds mIds;
+    private final int mBatchRows;
+    private final long mFlushNanos;
+    private final long mPollNanos;
+    private volatile int mPolicy = POLICY_DROP;
+    private volatile PipelineLatency mLatency;
+    private final CopyOnWriteArrayList<Source> mSources = new CopyOnWriteArrayList<Source>();
+
+    // The batch being filled; ingest thread only
+    private final long[] mSensorIds;
+    private final long[] mNanos;
+    private final long[] mCreated;
+    private final float[] mValues;
+    private int mCount;
+    private long mFirstNanos;
+    // Samples drained from one ring in one go
+    private long[] mDrainTimes = new long[0];
+    private float[] mDrainValues = new float[0];
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private final AtomicLong mStored = new AtomicLong();
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mAggregated = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    // Drops of the readers of removed sources
+    private final AtomicLong mRetiredDrops = new AtomicLong();
+    private final RateMeter mRowRate = new RateMeter();
+
+    public SampleIngest(SampleStore store, SampleStore.SensorIds ids) {
+        this(store, ids, DEFAULT_BATCH_ROWS, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * @param ids         Maps devices to the sensorid their samples are stored under
+     * @param batchRows   Rows that make a batch flush at once
+     * @param flushMillis Longest time a row waits for its batch to be flushed
+     */
+    public SampleIngest(SampleStore store, SampleStore.SensorIds ids, int batchRows,
+                        long flushMillis) {
+        if (batchRows <= 0 || flushMillis <= 0) {
+            throw new IllegalArgumentException("batchRows and flushMillis must be positive");
+        }
+        mStore = store;
+        mIds = ids;
+        mBatchRows = batchRows;
+        mFlushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        mPollNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(1, Math.min(MAX_POLL_MILLIS, flushMillis / 4)));
+        mSensorIds = new long[batchRows];
+        mNanos = new long[batchRows];
+        mCreated = new long[batchRows];
+        mValues = new float[batchRows];
+    }
+
+    /**
+     * Set what happens when the writer lags.
+     *
+     * @param policy POLICY_DROP or POLICY_AGGREGATE
+     */
+    public void setPolicy(int policy) {
+        if (policy != POLICY_DROP && policy != POLICY_AGGREGATE) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        mPolicy = policy;
+    }
+
+    /**
+     * Record the persisted stage of the samples stored from now on.
+     */
+    public void setPipelineLatency(PipelineLatency latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Persist the samples added to a device's ring from now on.
+     */
+    public Source register(String address, SampleRing ring) {
+        Source source = new Source(address, ring);
+        mSources.add(source);
+        return source;
+    }
+
+    /**
+     * Stop persisting a ring. The samples it already holds are still stored.
+     */
+    public void unregister(Source source) {
+        source.mRemoved = true;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread("SampleIngest") {
+            @Override
+            public void run() {
+                ingest();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stop the thread after storing what the rings hold.
+     */
+    public void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread != null) {
+            mRunning = false;
+            LockSupport.unpark(thread);
+            thread.join();
+        }
+    }
+
+    private void ingest() {
+        Log.i(TAG, "BEGIN SampleIngest");
+        while (mRunning) {
+            drainAll();
+            if (mCount > 0 && System.nanoTime() - mFirstNanos >= mFlushNanos) {
+                flush();
+            }
+            LockSupport.parkNanos(mPollNanos);
+        }
+        drainAll();
+        flush();
+        Log.i(TAG, "END SampleIngest");
+    }
+
+    private void drainAll() {
+        for (Source source : mSources) {
+            // Read the flag first, so no sample added before removal is missed
+            boolean removed = source.mRemoved;
+            drain(source);
+            if (removed) {
+                mSources.remove(source);
+                mRetiredDrops.addAndGet(source.mReader.getDroppedCount());
+            }
+        }
+    }
+
+    private void drain(Source source) {
+        if (source.mSensorId == UNRESOLVED) {
+            source.mSensorId = mIds.sensorIdFor(source.mAddress);
+            if (source.mSensorId < 0) {
+                Log.i(TAG, "not storing the samples of " + source.mAddress);
+                source.mRemoved = true;
+            }
+        }
+        if (source.mSensorId < 0) {
+            return;
+        }
+        int capacity = source.mRing.getCapacity();
+        if (mDrainTimes.length < capacity) {
+            mDrainTimes = new long[capacity];
+            mDrainValues = new float[capacity];
+        }
+        int count = source.mReader.drain(mDrainTimes, mDrainValues);
+        if (count == 0) {
+            return;
+        }
+        if (mPolicy == POLICY_AGGREGATE && count > capacity / 2) {
+            // Store one mean per run, so the writer does a fraction of the work
+            int runs = Math.max(1, capacity / 4);
+            int run = (count + runs - 1) / runs;
+            for (int start = 0; start < count; start += run) {
+                int end = Math.min(count, start + run);
+                float sum = 0;
+                for (int i = start; i < end; i++) {
+                    sum += mDrainValues[i];
+                }
+                add(source.mSensorId, mDrainTimes[end - 1], sum / (end - start));
+            }
+            mAggregated.addAndGet(count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            add(source.mSensorId, mDrainTimes[i], mDrainValues[i]);
+        }
+    }
+
+    private void add(long sensorId, long nanos, float value) {
+        if (mCount == 0) {
+            mFirstNanos = System.nanoTime();
+        }
+        mSensorIds[mCount] = sensorId;
+        mNanos[mCount] = nanos;
+        mValues[mCount] = value;
+        if (++mCount == mBatchRows) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        int count = mCount;
+        if (count == 0) {
+            return;
+        }
+        mCount = 0;
+        // Capture times are System.nanoTime(); the table wants wall clock time
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            mCreated[i] = nowMillis - (nowNanos - mNanos[i]) / 1000000L;
+        }
+        try {
+            mStored.addAndGet(mStore.insert(mSensorIds, mCreated, mValues, count));
+        } catch (RuntimeException e) {
+            // Keep going; a full disk or a locked database may recover
+            Log.e(TAG, "storing " + count + " samples failed", e);
+            mFailed.addAndGet(count);
+            return;
+        }
+        mFlushes.incrementAndGet();
+        mRowRate.mark(count);
+        PipelineLatency latency = mLatency;
+        if (latency != null) {
+            latency.record(PipelineLatency.STAGE_PERSISTED, mNanos, 0, count);
+        }
+    }
+
+    /**
+     * Return the number of rows stored.
+     */
+    public long getStoredCount() {
+        return mStored.get();
+    }
+
+    /**
+     * Return the number of transactions.
+     */
+    public long getFlushCount() {
+        return mFlushes.get();
+    }
+
+    /**
+     * Return the number of samples folded into means by POLICY_AGGREGATE.
+     */
+    public long getAggregatedCount() {
+        return mAggregated.get();
+    }
+
+    /**
+     * Return the number of samples overwritten in a ring before they were
+     * stored, and of rows lost to failed transactions.
+     */
+    public long getDroppedCount() {
+        long dropped = mRetiredDrops.get() + mFailed.get();
+        for (Source source : mSources) {
+            dropped += source.mReader.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * Return the rows stored per second over the last few seconds.
+     */
+    public double getRowsPerSecond(int seconds) {
+        return mRowRate.getRate(seconds);
+    }
+}
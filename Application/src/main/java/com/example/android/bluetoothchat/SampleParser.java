@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Parses the ASCII decimal readings sent by the sensors ("21.53", "-0.5",
+ * "+12") directly from the framed bytes, without building a String.
+ */
+public final class SampleParser {
+
+    // Enough digits for a long mantissa without overflow
+    private static final int MAX_DIGITS = 18;
+
+    private static final double[] POW10 = new double[MAX_DIGITS + 1];
+
+    static {
+        double p = 1;
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = p;
+            p *= 10;
+        }
+    }
+
+    private SampleParser() {
+    }
+
+    /**
+     * Parse a line holding a single decimal number, ignoring surrounding spaces.
+     *
+     * @return The value, or {@link Float#NaN} if the line is not a number
+     */
+    public static float parseFloat(byte[] buffer, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && buffer[i] == ' ') i++;
+        while (end > i && buffer[end - 1] == ' ') end--;
+        if (i == end) {
+            return Float.NaN;
+        }
+
+        boolean negative = false;
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                if (digits == MAX_DIGITS) {
+                    // Further digits are below float precision; only keep counting
+                    // the integer part so the magnitude stays right
+                    if (!seenPoint) scale--;
+                    continue;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (seenPoint) scale++;
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                return Float.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+
+        // Past 36 integer digits the table runs out; Math.pow() goes to infinity
+        double value = scale >= 0 ? mantissa / POW10[scale]
+                : mantissa * (-scale < POW10.length ? POW10[-scale] : Math.pow(10, -scale));
+        return (float) (negative ? -value : value);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A preallocated ring of sensor samples kept as parallel primitive arrays.
+ * There is a single writer (the thread reading the connection) and any
+ * number of {@link Reader}s, each with its own position. When a reader
+ * falls more than the capacity behind, the oldest samples are overwritten
+ * and counted as dropped for that reader.
+ */
+public class SampleRing {
+
+    private final long[] mTimes;
+    private final float[] mValues;
+    private final int mMask;
+
+    // Number of samples ever added. Written only by the producer thread.
+    private volatile long mWriteSequence;
+
+    /**
+     * @param capacity Number of samples kept, rounded up to a power of two
+     */
+    public SampleRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mTimes = new long[size];
+        mValues = new float[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Append a sample. Must only be called from a single thread.
+     *
+     * @param nanos Capture time, from {@link System#nanoTime()}
+     * @param value The sample value
+     */
+    public void add(long nanos, float value) {
+        long seq = mWriteSequence;
+        int slot = (int) (seq & mMask);
+        mTimes[slot] = nanos;
+        mValues[slot] = value;
+        // The volatile write publishes the slot to the readers
+        mWriteSequence = seq + 1;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Return the number of samples added since the ring was created.
+     */
+    public long getWriteSequence() {
+        return mWriteSequence;
+    }
+
+    /**
+     * Create a reader positioned at the newest sample.
+     */
+    public Reader newReader() {
+        return new Reader(mWriteSequence);
+    }
+
+    /**
+     * A consumer position in the ring. A Reader is not thread safe; give each
+     * consuming thread its own.
+     */
+    public class Reader {
+        private long mNext;
+        private long mDropped;
+
+        private Reader(long next) {
+            mNext = next;
+        }
+
+        /**
+         * Copy the samples not yet seen by this reader.
+         *
+         * @param times  Destination for the capture times
+         * @param values Destination for the values, at least as long as times
+         * @return The number of samples copied
+         */
+        public int drain(long[] times, float[] values) {
+            final int capacity = mMask + 1;
+            long write = mWriteSequence;
+            if (write - mNext > capacity) {
+                mDropped += write - capacity - mNext;
+                mNext = write - capacity;
+            }
+            int count = (int) Math.min(write - mNext, times.length);
+            if (count == 0) {
+                return 0;
+            }
+            int slot = (int) (mNext & mMask);
+            int first = Math.min(count, capacity - slot);
+            System.arraycopy(mTimes, slot, times, 0, first);
+            System.arraycopy(mValues, slot, values, 0, first);
+            if (first < count) {
+                System.arraycopy(mTimes, 0, times, first, count - first);
+                System.arraycopy(mValues, 0, values, first, count - first);
+            }
+
+            // The writer may have lapped us while copying; discard what it overwrote.
+            // The slot for the next unpublished sample may be half written too.
+            long oldestIntact = mWriteSequence - capacity + 1;
+            if (mNext < oldestIntact) {
+                int torn = (int) Math.min(oldestIntact - mNext, count);
+                count -= torn;
+                System.arraycopy(times, torn, times, 0, count);
+                System.arraycopy(values, torn, values, 0, count);
+                mDropped += torn;
+                mNext += torn;
+            }
+            mNext += count;
+            return count;
+        }
+
+        /**
+         * Return the number of samples this reader missed because it fell behind.
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+    }
+}
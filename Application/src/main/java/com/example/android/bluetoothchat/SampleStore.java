@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.bluetoothchat.data.TemperatureContract.SensorEntry;
+import com.example.android.bluetoothchat.data.TemperatureContract.TemperatureEntry;
+import com.example.android.common.logger.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Where the samples of the sensors are kept, for {@link SampleIngest} and
+ * {@link BacklogSync}.
+ */
+public interface SampleStore {
+
+    /**
+     * @return The capture time of the newest stored sample of the sensor, in
+     *         milliseconds since the epoch, or -1 if there is none
+     */
+    long getLastCreated(long sensorId);
+
+    /**
+     * Store samples in one transaction.
+     *
+     * @param sensorIds The sensor of each sample
+     * @param created   Capture times, in milliseconds since the epoch
+     * @return The number of rows stored
+     */
+    int insert(long[] sensorIds, long[] created, float[] values, int count);
+
+    /**
+     * Decides which sensor the samples of a device belong to.
+     */
+    interface SensorIds {
+        /**
+         * @return The sensorid, or -1 to leave the device's samples alone
+         */
+        long sensorIdFor(String address);
+    }
+
+    /**
+     * Keeps the samples in the {@link TemperatureEntry} table, one
+     * {@link TemperatureEntry#METHOD_INSERT} call per batch, so the arrays
+     * reach the provider without a ContentValues per row. Devices map to the
+     * {@link SensorEntry} whose location is their address; one is added the
+     * first time a device is seen.
+     */
+    class ProviderStore implements SampleStore, SensorIds {
+        // Debugging
+        private static final String TAG = "SampleStore";
+
+        private final ContentResolver mResolver;
+        // Matches the DATETIME text SQLite's CURRENT_TIMESTAMP writes
+        private final SimpleDateFormat mFormat =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        private final Map<String, Long> mSensorIds = new HashMap<String, Long>();
+
+        public ProviderStore(ContentResolver resolver) {
+            mResolver = resolver;
+            mFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+
+        @Override
+        public synchronized long sensorIdFor(String address) {
+            Long known = mSensorIds.get(address);
+            if (known != null) {
+                return known;
+            }
+            long id = -1;
+            Cursor cursor = mResolver.query(SensorEntry.CONTENT_URI,
+                    new String[]{SensorEntry._ID}, SensorEntry.COLUMN_LOCATION + " = ?",
+                    new String[]{address}, null);
+            if (cursor != null) {
+                try {
+                    if (cursor.moveToFirst()) {
+                        id = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (id < 0) {
+                ContentValues sensor = new ContentValues();
+                sensor.put(SensorEntry.COLUMN_LOCATION, address);
+                sensor.put(SensorEntry.COLUMN_SENSORTYPE, "bluetooth");
+                sensor.put(SensorEntry.COLUMN_METRIC, 1);
+                sensor.put(SensorEntry.COLUMN_CALIBRATED, 0);
+                sensor.put(SensorEntry.COLUMN_CAL_A, 0);
+                sensor.put(SensorEntry.COLUMN_CAL_B, 1);
+                Uri uri = mResolver.insert(SensorEntry.CONTENT_URI, sensor);
+                if (uri == null) {
+                    Log.e(TAG, "could not add a sensor for " + address);
+                    return -1;
+                }
+                id = ContentUris.parseId(uri);
+                Log.i(TAG, "added sensor " + id + " for " + address);
+            }
+            mSensorIds.put(address, id);
+            return id;
+        }
+
+        @Override
+        public long getLastCreated(long sensorId) {
+            Cursor cursor = mResolver.query(TemperatureEntry.CONTENT_URI,
+                    new String[]{"MAX(" + TemperatureEntry.COLUMN_CREATED + ")"},
+                    TemperatureEntry.COLUMN_SENSORID + " = ?",
+                    new String[]{Long.toString(sensorId)}, null);
+            if (cursor == null) {
+                return -1;
+            }
+            try {
+                if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                    return -1;
+                }
+                // Rows are stored with whole seconds; count the rest of that second in
+                synchronized (this) {
+                    return mFormat.parse(cursor.getString(0)).getTime() + 999;
+                }
+            } catch (ParseException e) {
+                Log.e(TAG, "bad " + TemperatureEntry.COLUMN_CREATED + " of sensor " + sensorId, e);
+                return -1;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public int insert(long[] sensorIds, long[] created, float[] values, int count) {
+            Bundle extras = new Bundle();
+            extras.putLongArray(TemperatureEntry.EXTRA_SENSOR_IDS, sensorIds);
+            extras.putLongArray(TemperatureEntry.EXTRA_CREATED, created);
+            extras.putFloatArray(TemperatureEntry.EXTRA_VALUES, values);
+            extras.putInt(TemperatureEntry.EXTRA_COUNT, count);
+            Bundle result = mResolver.call(TemperatureEntry.CONTENT_URI, TemperatureEntry.METHOD_INSERT,
+                    null, extras);
+            return result == null ? 0 : result.getInt(TemperatureEntry.EXTRA_COUNT);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for hot paths, in the manner of Java 8's LongAdder: each thread
+ * adds to one of several cells, each on a cache line of its own, so threads
+ * counting the same event do not contend. Reading sums the cells and is
+ * not atomic with respect to concurrent adds.
+ */
+public class StripedCounter {
+
+    // Longs per cell, so that neighbouring cells sit on different cache lines
+    private static final int PAD = 8;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PAD);
+
+    private static int stripes() {
+        int wanted = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        return Integer.highestOneBit(Math.max(1, wanted - 1)) << 1;
+    }
+
+    private static int cell() {
+        // Thread ids are handed out in sequence, so they spread well
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+    }
+
+    public void add(long delta) {
+        mCells.addAndGet(cell(), delta);
+    }
+
+    public void increment() {
+        mCells.incrementAndGet(cell());
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    /**
+     * Set to 0. Adds made meanwhile may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            mCells.set(i * PAD, 0);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestBacklogSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBacklogSync.class.getSimpleName();
+
+    private static final long SENSOR_ID = 7;
+    // The sensor's buffer: one reading per second, starting here
+    private static final long FIRST_MILLIS = 1443694272000L;
+    private static final int BACKLOG_ROWS = 100000;
+    // Live samples sent after every this many backlog frames
+    private static final int LIVE_EVERY = 4;
+
+    private HandlerThread mHandlerThread;
+    private PipeTransport.Network mNetwork;
+    private BluetoothChatService mService;
+    private TransportServer mServer;
+    private Sensor mSensor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestBacklogSync");
+        mHandlerThread.start();
+        mNetwork = new PipeTransport.Network();
+        mService = new BluetoothChatService(new Handler(mHandlerThread.getLooper()),
+                new PipeTransport(mNetwork, "phone"));
+        mServer = new PipeTransport(mNetwork, "sensor").listen(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.stop();
+        mServer.close();
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    /*
+        The sensor's side: answers the framing handshake and, when asked
+        for its backlog, sends the buffered readings after the time asked
+        for, with a frame of live samples every few backlog frames.
+     */
+    static class Sensor extends Thread implements LineFramer.LineListener,
+            FrameCodec.FrameListener {
+        final TransportConnection mConnection;
+        final OutputStream mOut;
+        final LineFramer mFramer = new LineFramer();
+        final FrameCodec.Decoder mDecoder = new FrameCodec.Decoder();
+        final AtomicInteger mLiveSent = new AtomicInteger();
+        // Readings sent from this time on, whatever the phone asks for
+        final long mBufferStart;
+        volatile long mSince = Long.MIN_VALUE;
+        boolean mFraming;
+
+        Sensor(TransportConnection connection, long bufferStart) throws IOException {
+            mConnection = connection;
+            mBufferStart = bufferStart;
+            mOut = connection.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[4096];
+            try {
+                InputStream in = mConnection.getInputStream();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    if (mFraming) {
+                        mDecoder.feed(buffer, 0, n, this);
+                    } else {
+                        mFramer.feed(buffer, 0, n, this);
+                        int rest = mFramer.getStopOffset();
+                        if (rest >= 0) {
+                            mDecoder.feed(buffer, rest, n - rest, this);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The phone closed the link
+            }
+        }
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            if (new String(buffer, offset, length).equals(FrameCodec.HANDSHAKE_OFFER)) {
+                write((FrameCodec.HANDSHAKE_ACCEPT + "\n").getBytes());
+                mFraming = true;
+                mFramer.stop();
+            }
+        }
+
+        @Override
+        public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+            if (type == BacklogSync.TYPE_SYNC && length == 8) {
+                mSince = BulkTransfer.readLong(buffer, offset);
+                // Answer from another thread, like firmware draining its flash
+                new Thread() {
+                    @Override
+                    public void run() {
+                        sendBacklog();
+                    }
+                }.start();
+            }
+        }
+
+        void sendBacklog() {
+            long start = Math.max(mBufferStart, FIRST_MILLIS);
+            int first = (int) ((start - FIRST_MILLIS) / 1000);
+            byte[] payload = new byte[8 + BacklogSync.RECORDS_PER_FRAME * BacklogSync.RECORD_LENGTH];
+            byte[] live = new byte[2 * 8];
+            int frames = 0;
+            int sent = 0;
+            for (int row = first; row < BACKLOG_ROWS; ) {
+                long base = FIRST_MILLIS + row * 1000L;
+                BulkTransfer.writeLong(payload, 0, base);
+                int p = 8;
+                for (int i = 0; i < BacklogSync.RECORDS_PER_FRAME && row < BACKLOG_ROWS; i++) {
+                    BulkTransfer.writeInt(payload, p, (int) (FIRST_MILLIS + row * 1000L - base));
+                    short centi = valueOf(row);
+                    payload[p + 4] = (byte) (centi >> 8);
+                    payload[p + 5] = (byte) centi;
+                    p += BacklogSync.RECORD_LENGTH;
+                    row++;
+                    sent++;
+                }
+                write(FrameCodec.encode(BacklogSync.TYPE_BACKLOG, 0,
+                        Arrays.copyOf(payload, p)));
+                if (++frames % LIVE_EVERY == 0) {
+                    write(FrameCodec.encode(FrameCodec.TYPE_SAMPLES_CENTI, 0, live));
+                    mLiveSent.addAndGet(live.length / 2);
+                }
+            }
+            byte[] end = new byte[4];
+            BulkTransfer.writeInt(end, 0, sent);
+            write(FrameCodec.encode(BacklogSync.TYPE_BACKLOG_END, 0, end));
+        }
+
+        void write(byte[] bytes) {
+            try {
+                synchronized (mOut) {
+                    mOut.write(bytes);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "sensor write failed", e);
+            }
+        }
+    }
+
+    static short valueOf(int row) {
+        return (short) (2000 + row % 1000);
+    }
+
+    /*
+        The rows of one sensor, kept in memory like the provider would.
+     */
+    static class MemoryStore implements SampleStore {
+        final long mLastCreated;
+        long[] mCreated = new long[1024];
+        float[] mValues = new float[1024];
+        int mCount;
+        int mTransactions;
+
+        MemoryStore(long lastCreated) {
+            mLastCreated = lastCreated;
+        }
+
+        @Override
+        public long getLastCreated(long sensorId) {
+            assertEquals(SENSOR_ID, sensorId);
+            return mLastCreated;
+        }
+
+        @Override
+        public synchronized int insert(long[] sensorIds, long[] created, float[] values,
+                                       int count) {
+            for (int i = 0; i < count; i++) {
+                assertEquals(SENSOR_ID, sensorIds[i]);
+            }
+            while (mCount + count > mCreated.length) {
+                mCreated = Arrays.copyOf(mCreated, mCreated.length * 2);
+                mValues = Arrays.copyOf(mValues, mValues.length * 2);
+            }
+            System.arraycopy(created, 0, mCreated, mCount, count);
+            System.arraycopy(values, 0, mValues, mCount, count);
+            mCount += count;
+            mTransactions++;
+            return count;
+        }
+    }
+
+    /*
+        Waits for the end of the sync.
+     */
+    static class Result implements BacklogSync.Listener {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicInteger mProgressCalls = new AtomicInteger();
+        volatile long mStored = -1;
+        volatile long mCatchUpMillis;
+        volatile IOException mError;
+
+        @Override
+        public void onProgress(long stored, long received, double rowsPerSecond) {
+            assertTrue(stored <= received);
+            mProgressCalls.incrementAndGet();
+        }
+
+        @Override
+        public void onComplete(long stored, long catchUpMillis) {
+            mStored = stored;
+            mCatchUpMillis = catchUpMillis;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Error: the sync did not end", mDone.await(30, TimeUnit.SECONDS));
+            assertNull(mError);
+        }
+    }
+
+    private int connect(boolean binary, long bufferStart) throws Exception {
+        mService.setBinaryFramingOffered(binary);
+        mService.connect("sensor", true);
+        mSensor = new Sensor(mServer.accept(), bufferStart);
+        mSensor.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        int id;
+        while ((id = mService.getConnectionId("sensor")) == BluetoothChatService.NO_CONNECTION
+                || mService.isBinaryFraming(id) != binary) {
+            assertTrue("Error: the sensor never connected",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return id;
+    }
+
+    private SampleStore.SensorIds sensorIds() {
+        return new SampleStore.SensorIds() {
+            @Override
+            public long sensorIdFor(String address) {
+                return "sensor".equals(address) ? SENSOR_ID : -1;
+            }
+        };
+    }
+
+    /*
+        Reconnects after an outage: the phone stored a third of the
+        buffered readings earlier, and the sensor's buffer reaches back a
+        little further. Only the rows after the stored ones may be added,
+        in order, while the live samples keep arriving.
+     */
+    public void testSyncOnConnect() throws Exception {
+        int stored = BACKLOG_ROWS / 3;
+        long lastCreated = FIRST_MILLIS + (stored - 1) * 1000L;
+        MemoryStore store = new MemoryStore(lastCreated);
+        Result result = new Result();
+        mService.setBacklogSync(store, sensorIds(), result);
+        // The overlap is sent again and must be skipped
+        int id = connect(true, lastCreated - 59000);
+
+        result.await();
+        assertEquals(lastCreated, mSensor.mSince);
+        int expected = BACKLOG_ROWS - stored;
+        assertEquals(expected, result.mStored);
+        assertEquals(expected, store.mCount);
+        for (int i = 0; i < expected; i++) {
+            int row = stored + i;
+            assertEquals(FIRST_MILLIS + row * 1000L, store.mCreated[i]);
+            assertEquals(valueOf(row) / 100f, store.mValues[i]);
+        }
+        // Large transactions, not one per frame
+        int batches = (expected + BacklogSync.DEFAULT_BATCH_SIZE - 1)
+                / BacklogSync.DEFAULT_BATCH_SIZE;
+        assertTrue("Error: " + store.mTransactions + " transactions",
+                store.mTransactions <= batches + 1);
+        assertTrue(result.mProgressCalls.get() >= batches);
+
+        // The live samples were not held up behind the backlog
+        SampleRing ring = mService.getSampleRing(id);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ring.getWriteSequence() < mSensor.mLiveSent.get()) {
+            assertTrue("Error: " + ring.getWriteSequence() + " of " + mSensor.mLiveSent.get()
+                    + " live samples arrived", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        BacklogSync sync = mService.getBacklogSync(id);
+        assertTrue(sync.isComplete());
+        assertEquals(BACKLOG_ROWS - stored + 60, sync.getReceivedCount());
+        Log.d(LOG_TAG, expected + " backlog rows: " + (long) sync.getRowsPerSecond()
+                + " rows/s, caught up in " + result.mCatchUpMillis + " ms");
+    }
+
+    /*
+        A sensor the phone never stored anything for sends its whole buffer.
+     */
+    public void testSyncWithoutStoredRows() throws Exception {
+        MemoryStore store = new MemoryStore(-1);
+        Result result = new Result();
+        mService.setBacklogSync(store, sensorIds(), result);
+        connect(true, FIRST_MILLIS);
+        result.await();
+        assertEquals(-1, mSensor.mSince);
+        assertEquals(BACKLOG_ROWS, store.mCount);
+    }
+
+    /*
+        A sync asked for by hand needs a device that switched to binary frames.
+     */
+    public void testSyncNeedsBinaryFraming() throws Exception {
+        mService.setBacklogSync(new MemoryStore(-1), null, null);
+        int id = connect(false, FIRST_MILLIS);
+        try {
+            mService.syncBacklog(id, SENSOR_ID);
+            fail("Error: an ASCII device was asked for its backlog");
+        } catch (IOException expected) {
+            // As it should be
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestBufferPool extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBufferPool.class.getSimpleName();
+
+    // Churn benchmark: sensors at 1 kHz that drop the link every SESSION_MS
+    private static final int SENSORS = 8;
+    private static final long SESSION_MS = 100;
+    private static final long RUN_MS = 3000;
+
+    public void testLeasesAreReused() {
+        BufferPool pool = new BufferPool();
+        for (int i = 0; i < 100; i++) {
+            BufferPool.Lease lease = pool.acquire(1024);
+            assertEquals(1024, lease.array().length);
+            lease.release();
+        }
+        assertEquals(100, pool.getLeaseCount());
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1024, pool.getAllocatedBytes());
+    }
+
+    public void testSizesAreRounded() {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).array().length);
+        assertEquals(2048, pool.acquire(1025).array().length);
+        assertEquals(BufferPool.MAX_SIZE, pool.acquire(1 << 20).array().length);
+    }
+
+    public void testReleasedLeaseIsUnusable() {
+        BufferPool.Lease lease = new BufferPool().acquire(512);
+        lease.release();
+        lease.release();
+        try {
+            lease.array();
+            fail("Error: a released buffer was handed out");
+        } catch (IllegalStateException expected) {
+            // As it should be
+        }
+    }
+
+    public void testWithoutPooling() {
+        BufferPool pool = new BufferPool(0);
+        pool.acquire(512).release();
+        pool.acquire(512).release();
+        assertEquals(2, pool.getAllocationCount());
+    }
+
+    public void testReadSizeAdapts() {
+        BufferPool.ReadSize size = new BufferPool.ReadSize(1024);
+        // Full reads double it, up to the largest size
+        assertTrue(size.onRead(1024, 1024));
+        assertEquals(2048, size.get());
+        for (int i = 0; i < 10; i++) {
+            size.onRead(size.get(), size.get());
+        }
+        assertEquals(BufferPool.MAX_SIZE, size.get());
+
+        // A run of small reads halves it; one larger read restarts the run
+        for (int i = 1; i < BufferPool.ReadSize.SHRINK_AFTER; i++) {
+            assertFalse(size.onRead(7, size.get()));
+        }
+        size.onRead(size.get() / 2, size.get());
+        for (int i = 1; i < BufferPool.ReadSize.SHRINK_AFTER; i++) {
+            assertFalse(size.onRead(7, size.get()));
+        }
+        assertTrue(size.onRead(7, size.get()));
+        assertEquals(BufferPool.MAX_SIZE / 2, size.get());
+        for (int i = 0; i < 20 * BufferPool.ReadSize.SHRINK_AFTER; i++) {
+            size.onRead(7, size.get());
+        }
+        assertEquals(BufferPool.MIN_SIZE, size.get());
+    }
+
+    /*
+        A sensor that accepts the phone over and over, sends a reading every
+        millisecond, and hangs up after SESSION_MS.
+     */
+    static class ChurningSensor extends Thread {
+        final TransportServer mServer;
+        final AtomicInteger mSessions = new AtomicInteger();
+        volatile boolean mStopped;
+
+        ChurningSensor(PipeTransport.Network network, String address) throws IOException {
+            mServer = new PipeTransport(network, address).listen(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] line = "21.53\r\n".getBytes();
+            while (!mStopped) {
+                TransportConnection connection;
+                try {
+                    connection = mServer.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                try {
+                    OutputStream out = connection.getOutputStream();
+                    long end = System.currentTimeMillis() + SESSION_MS;
+                    while (System.currentTimeMillis() < end && !mStopped) {
+                        out.write(line);
+                        Thread.sleep(1);
+                    }
+                    connection.close();
+                } catch (IOException e) {
+                    // The phone hung up first
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mSessions.incrementAndGet();
+            }
+        }
+
+        void close() throws IOException {
+            mStopped = true;
+            mServer.close();
+        }
+    }
+
+    /*
+        Runs the churning sensors against a service whose reading threads
+        lease from pool, and logs what was allocated per minute.
+     */
+    private long churn(String label, BufferPool pool) throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestBufferPool");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.setBufferPool(pool);
+        service.getReconnectManager().setBackoff(5, 5);
+        List<ChurningSensor> sensors = new ArrayList<ChurningSensor>();
+        for (int i = 0; i < SENSORS; i++) {
+            ChurningSensor sensor = new ChurningSensor(network, "sensor-" + i);
+            sensor.start();
+            sensors.add(sensor);
+        }
+
+        long allocatedBefore = runtimeStat("art.gc.bytes-allocated");
+        long gcsBefore = runtimeStat("art.gc.gc-count");
+        long start = System.nanoTime();
+        for (int i = 0; i < SENSORS; i++) {
+            service.connect("sensor-" + i, true);
+        }
+        Thread.sleep(RUN_MS);
+        long nanos = System.nanoTime() - start;
+        long allocated = runtimeStat("art.gc.bytes-allocated") - allocatedBefore;
+        long gcs = runtimeStat("art.gc.gc-count") - gcsBefore;
+
+        int sessions = 0;
+        for (ChurningSensor sensor : sensors) {
+            sessions += sensor.mSessions.get();
+        }
+        service.stop();
+        for (ChurningSensor sensor : sensors) {
+            sensor.close();
+        }
+        handlerThread.quit();
+
+        double minutes = nanos / 60e9;
+        Log.d(LOG_TAG, label + ": " + sessions + " sessions, read buffers "
+                + (long) (pool.getAllocatedBytes() / minutes) + " bytes/min in "
+                + (long) (pool.getAllocationCount() / minutes) + " allocations/min; process "
+                + (long) (allocated / minutes) + " bytes/min, " + (long) (gcs / minutes)
+                + " GCs/min");
+        assertTrue("Error: the sensors never reconnected", sessions > SENSORS);
+        return pool.getAllocatedBytes();
+    }
+
+    /*
+        A cumulative ART counter; 0 before API 23, where ART does not report them.
+     */
+    private static long runtimeStat(String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 0;
+        }
+        return Long.parseLong(Debug.getRuntimeStat(name));
+    }
+
+    /*
+        Reconnect churn at 1 kHz, first with a fresh buffer per connection
+        and resize as before, then with the shared pool.
+     */
+    public void testReconnectChurn() throws Exception {
+        long unpooled = churn("no pool", new BufferPool(0));
+        long pooled = churn("pool", new BufferPool());
+        assertTrue("Error: the pool allocated " + pooled + " bytes, " + unpooled + " without",
+                pooled * 10 < unpooled);
+    }
+}
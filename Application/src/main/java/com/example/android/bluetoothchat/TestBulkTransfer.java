@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestBulkTransfer extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkTransfer.class.getSimpleName();
+
+    private static final int FILE_SIZE = 2 * 1024 * 1024 + 123;
+
+    private HandlerThread mHandlerThread;
+    private PipeTransport.Network mNetwork;
+    private BluetoothChatService mService;
+    private TransportServer mServer;
+    private Sensor mSensor;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestBulkTransfer");
+        mHandlerThread.start();
+        mNetwork = new PipeTransport.Network();
+        mService = new BluetoothChatService(new Handler(mHandlerThread.getLooper()),
+                new PipeTransport(mNetwork, "phone"));
+        mServer = new PipeTransport(mNetwork, "sensor").listen(true);
+        mDir = new File(System.getProperty("java.io.tmpdir"), "TestBulkTransfer-" + System.nanoTime());
+        assertTrue(mDir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.stop();
+        mServer.close();
+        if (mSensor != null) {
+            mSensor.mTimer.shutdownNow();
+        }
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    /*
+        The sensor's side: answers the framing handshake, then runs its own
+        Endpoint. Every dropEvery-th DATA frame it sends is lost on the way.
+     */
+    static class Sensor extends Thread implements LineFramer.LineListener,
+            FrameCodec.FrameListener, BulkTransfer.Link {
+        final TransportConnection mConnection;
+        final OutputStream mOut;
+        final ScheduledExecutorService mTimer = BulkTransfer.newTimer();
+        final BulkTransfer.Endpoint mEndpoint;
+        final LineFramer mFramer = new LineFramer();
+        final FrameCodec.Decoder mDecoder = new FrameCodec.Decoder();
+        final AtomicInteger mDataSent = new AtomicInteger();
+        volatile int mDropEvery;
+        // The first ACK of this value is lost on the way
+        volatile int mDropAck = -1;
+        boolean mFraming;
+
+        Sensor(TransportConnection connection) throws IOException {
+            mConnection = connection;
+            mOut = connection.getOutputStream();
+            mEndpoint = new BulkTransfer.Endpoint("phone", this, false, mTimer);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[4096];
+            try {
+                InputStream in = mConnection.getInputStream();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    if (mFraming) {
+                        mDecoder.feed(buffer, 0, n, this);
+                    } else {
+                        mFramer.feed(buffer, 0, n, this);
+                        int rest = mFramer.getStopOffset();
+                        if (rest >= 0) {
+                            mDecoder.feed(buffer, rest, n - rest, this);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The phone closed the link
+            }
+            mEndpoint.close();
+        }
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            if (new String(buffer, offset, length).equals(FrameCodec.HANDSHAKE_OFFER)) {
+                send((FrameCodec.HANDSHAKE_ACCEPT + "\n").getBytes());
+                mFraming = true;
+                mFramer.stop();
+            }
+        }
+
+        @Override
+        public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+            mEndpoint.onFrame(type, channel, buffer, offset, length);
+        }
+
+        @Override
+        public boolean send(byte[] frame) {
+            if (frame[0] == FrameCodec.SYNC && frame[1] == BulkTransfer.TYPE_DATA) {
+                int sent = mDataSent.incrementAndGet();
+                if (mDropEvery > 0 && sent % mDropEvery == 0) {
+                    return true;
+                }
+            }
+            if (frame[0] == FrameCodec.SYNC && frame[1] == BulkTransfer.TYPE_ACK
+                    && BulkTransfer.readInt(frame, FrameCodec.HEADER_LENGTH) == mDropAck) {
+                mDropAck = -1;
+                return true;
+            }
+            try {
+                synchronized (mOut) {
+                    mOut.write(frame);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            mEndpoint.onWritten(frame);
+            return true;
+        }
+    }
+
+    /*
+        Waits for the end of one transfer.
+     */
+    static class Result implements BulkTransfer.Listener {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile File mFile;
+        volatile IOException mError;
+        volatile long mProgress;
+
+        @Override
+        public void onProgress(int id, long bytes, long size) {
+            mProgress = bytes;
+        }
+
+        @Override
+        public void onComplete(int id, File file) {
+            mFile = file;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailed(int id, IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Error: the transfer did not end", mDone.await(30, TimeUnit.SECONDS));
+        }
+    }
+
+    private int connect(boolean binary) throws Exception {
+        mService.setBinaryFramingOffered(binary);
+        mService.connect("sensor", true);
+        mSensor = new Sensor(mServer.accept());
+        mSensor.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        int id;
+        while ((id = mService.getConnectionId("sensor")) == BluetoothChatService.NO_CONNECTION
+                || mService.isBinaryFraming(id) != binary) {
+            assertTrue("Error: the sensor never connected",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return id;
+    }
+
+    private File createFile(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        assertEquals(expected.length(), actual.length());
+        RandomAccessFile a = new RandomAccessFile(expected, "r");
+        RandomAccessFile b = new RandomAccessFile(actual, "r");
+        byte[] bytesA = new byte[(int) a.length()];
+        byte[] bytesB = new byte[(int) b.length()];
+        a.readFully(bytesA);
+        b.readFully(bytesB);
+        a.close();
+        b.close();
+        assertTrue("Error: " + actual + " differs from " + expected,
+                Arrays.equals(bytesA, bytesB));
+    }
+
+    /*
+        Pushes a file to the sensor a few times and compares the rate of the
+        last, warmed up, run with writing the same bytes straight into a pipe.
+     */
+    public void testSendFile() throws Exception {
+        int id = connect(true);
+        File source = createFile("firmware.bin", FILE_SIZE);
+        final AtomicInteger round = new AtomicInteger();
+        mSensor.mEndpoint.setPeerFiles(new BulkTransfer.IncomingFiles() {
+            @Override
+            public File fileFor(String address, String name, long size) {
+                return name.equals("firmware.bin")
+                        ? new File(mDir, "received-" + round.get() + ".bin") : null;
+            }
+        }, null, null);
+
+        long nanos = 0;
+        for (int i = 0; i < 3; i++) {
+            round.set(i);
+            Result result = new Result();
+            long start = System.nanoTime();
+            mService.sendFile(id, source, result);
+            result.await();
+            nanos = System.nanoTime() - start;
+            assertNull(result.mError);
+            // The sender is done once the last chunk is acknowledged, which
+            // the receiver does just before closing the file
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mSensor.mEndpoint.getActiveCount() > 0) {
+                assertTrue("Error: the receiver did not finish",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertSameContent(source, new File(mDir, "received-" + i + ".bin"));
+        }
+
+        Log.d(LOG_TAG, "bulk transfer: " + FILE_SIZE * 1000L / nanos + " MB/s, raw pipe: "
+                + rawPipeRate(FILE_SIZE) + " MB/s");
+    }
+
+    private static long rawPipeRate(int size) throws Exception {
+        final TransportConnection[] pair = PipeTransport.createPair("a", "b");
+        final byte[] chunk = new byte[BulkTransfer.CHUNK_SIZE];
+        long start = System.nanoTime();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = pair[0].getOutputStream();
+                    for (int i = 0; i < FILE_SIZE; i += chunk.length) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "raw write failed", e);
+                }
+            }
+        };
+        writer.start();
+        InputStream in = pair[1].getInputStream();
+        byte[] buffer = new byte[4096];
+        long total = 0;
+        long expected = (long) ((size + chunk.length - 1) / chunk.length) * chunk.length;
+        while (total < expected) {
+            total += in.read(buffer);
+        }
+        writer.join();
+        return size * 1000L / (System.nanoTime() - start);
+    }
+
+    /*
+        Pulls the sensor's log while one DATA frame in 97 is lost; the
+        window goes back and the file arrives whole.
+     */
+    public void testRequestFileWithLoss() throws Exception {
+        int id = connect(true);
+        final File log = createFile("sensor.log", FILE_SIZE / 4);
+        mSensor.mEndpoint.setPeerFiles(null, new BulkTransfer.OutgoingFiles() {
+            @Override
+            public File fileFor(String address, String name) {
+                return name.equals("sensor.log") ? log : null;
+            }
+        }, null);
+        mSensor.mDropEvery = 97;
+
+        File destination = new File(mDir, "pulled.log");
+        Result result = new Result();
+        mService.requestFile(id, "sensor.log", destination, result);
+        result.await();
+        assertNull("Error: " + result.mError, result.mError);
+        assertSameContent(log, destination);
+        int chunks = (int) ((log.length() + BulkTransfer.CHUNK_SIZE - 1) / BulkTransfer.CHUNK_SIZE);
+        assertTrue("Error: nothing was resent", mSensor.mDataSent.get() > chunks);
+        Log.d(LOG_TAG, chunks + " chunks took " + mSensor.mDataSent.get() + " DATA frames");
+    }
+
+    /*
+        A destination holding the start of the file makes the sender skip it.
+     */
+    public void testResume() throws Exception {
+        int id = connect(true);
+        final File log = createFile("sensor.log", FILE_SIZE / 4);
+        mSensor.mEndpoint.setPeerFiles(null, new BulkTransfer.OutgoingFiles() {
+            @Override
+            public File fileFor(String address, String name) {
+                return log;
+            }
+        }, null);
+
+        File destination = new File(mDir, "partial.log");
+        RandomAccessFile in = new RandomAccessFile(log, "r");
+        byte[] head = new byte[300000];
+        in.readFully(head);
+        in.close();
+        FileOutputStream out = new FileOutputStream(destination);
+        out.write(head);
+        out.close();
+
+        Result result = new Result();
+        mService.requestFile(id, "sensor.log", destination, result);
+        result.await();
+        assertNull(result.mError);
+        assertSameContent(log, destination);
+        long rest = log.length() - head.length;
+        assertEquals((rest + BulkTransfer.CHUNK_SIZE - 1) / BulkTransfer.CHUNK_SIZE,
+                mSensor.mDataSent.get());
+    }
+
+    /*
+        The sensor's last acknowledgement is lost: the phone resends the
+        window and the sensor, done with the file, acknowledges it again.
+     */
+    public void testFinalAckLost() throws Exception {
+        int id = connect(true);
+        File source = createFile("config.bin", FILE_SIZE / 16);
+        mSensor.mEndpoint.setPeerFiles(new BulkTransfer.IncomingFiles() {
+            @Override
+            public File fileFor(String address, String name, long size) {
+                return new File(mDir, "received.bin");
+            }
+        }, null, null);
+        int chunks = (int) ((source.length() + BulkTransfer.CHUNK_SIZE - 1)
+                / BulkTransfer.CHUNK_SIZE);
+        mSensor.mDropAck = chunks;
+
+        Result result = new Result();
+        mService.sendFile(id, source, result);
+        result.await();
+        assertNull("Error: " + result.mError, result.mError);
+        assertEquals("Error: the final ACK was not dropped", -1, mSensor.mDropAck);
+        assertSameContent(source, new File(mDir, "received.bin"));
+    }
+
+    public void testRefused() throws Exception {
+        int id = connect(true);
+        Result result = new Result();
+        mService.requestFile(id, "missing.log", new File(mDir, "missing.log"), result);
+        result.await();
+        assertNotNull("Error: a missing file was not refused", result.mError);
+
+        // Nobody on the sensor takes files
+        result = new Result();
+        mService.sendFile(id, createFile("config.bin", 10), result);
+        result.await();
+        assertNotNull("Error: an unwanted file was not refused", result.mError);
+    }
+
+    public void testNeedsBinaryFraming() throws Exception {
+        int id = connect(false);
+        try {
+            mService.sendFile(id, createFile("config.bin", 10), new Result());
+            fail("Error: sendFile() over an ASCII link should fail");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+}
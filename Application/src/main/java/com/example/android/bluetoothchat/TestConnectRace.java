@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.Transport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+public class TestConnectRace extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConnectRace.class.getSimpleName();
+
+    /*
+        A pipe transport whose secure connects take a long time, like an
+        RFCOMM connect to a device that does not answer on that channel.
+     */
+    static class SlowSecureTransport implements Transport {
+        final PipeTransport mPipe;
+        final long mSecureDelayMs;
+
+        SlowSecureTransport(PipeTransport pipe, long secureDelayMs) {
+            mPipe = pipe;
+            mSecureDelayMs = secureDelayMs;
+        }
+
+        @Override
+        public TransportServer listen(boolean secure) throws IOException {
+            return mPipe.listen(secure);
+        }
+
+        @Override
+        public TransportConnection createConnection(String address, final boolean secure)
+                throws IOException {
+            final TransportConnection connection = mPipe.createConnection(address, secure);
+            return new TransportConnection() {
+                private final Object mLock = new Object();
+                private boolean mClosed;
+
+                @Override
+                public void connect() throws IOException {
+                    if (secure) {
+                        synchronized (mLock) {
+                            long end = System.currentTimeMillis() + mSecureDelayMs;
+                            long left;
+                            while (!mClosed && (left = end - System.currentTimeMillis()) > 0) {
+                                try {
+                                    mLock.wait(left);
+                                } catch (InterruptedException e) {
+                                    throw new InterruptedIOException();
+                                }
+                            }
+                            if (mClosed) {
+                                throw new IOException("closed while connecting");
+                            }
+                        }
+                    }
+                    connection.connect();
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return connection.getInputStream();
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return connection.getOutputStream();
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return connection.getRemoteAddress();
+                }
+
+                @Override
+                public String getRemoteName() {
+                    return connection.getRemoteName();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    synchronized (mLock) {
+                        mClosed = true;
+                        mLock.notifyAll();
+                    }
+                    connection.close();
+                }
+            };
+        }
+
+        @Override
+        public void prepareConnect() {
+        }
+    }
+
+    private HandlerThread mHandlerThread;
+    private PipeTransport.Network mNetwork;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestConnectRace");
+        mHandlerThread.start();
+        mNetwork = new PipeTransport.Network();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    private BluetoothChatService newService(long secureDelayMs) {
+        return new BluetoothChatService(new Handler(mHandlerThread.getLooper()),
+                new SlowSecureTransport(new PipeTransport(mNetwork, "phone"), secureDelayMs));
+    }
+
+    private static long connectMillis(BluetoothChatService service, String address,
+                                      boolean secure) throws InterruptedException {
+        long start = System.nanoTime();
+        service.connect(address, secure);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnectionId(address) == BluetoothChatService.NO_CONNECTION) {
+            assertTrue("Error: did not connect to " + address,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    public void testPercentiles() {
+        ConnectStats stats = new ConnectStats();
+        assertEquals(-1, stats.getLatencyPercentileMillis("sensor", 50));
+        for (int i = 1; i <= 50; i++) {
+            stats.record("sensor", true, i * 1000000L);
+        }
+        assertEquals(25, stats.getLatencyPercentileMillis("sensor", 50));
+        assertEquals(50, stats.getLatencyPercentileMillis("sensor", 99));
+        assertEquals(1, stats.getLatencyPercentileMillis("sensor", 0));
+        assertTrue(stats.preferSecure("sensor", false));
+        assertFalse(stats.preferSecure("other", false));
+    }
+
+    /*
+        The secure connect hangs; the insecure one started after the stagger
+        wins long before the secure one would have given up.
+     */
+    public void testSlowTypeLosesTheRace() throws Exception {
+        TransportServer secure = new PipeTransport(mNetwork, "sensor").listen(true);
+        TransportServer insecure = new PipeTransport(mNetwork, "sensor").listen(false);
+        BluetoothChatService service = newService(3000);
+        service.setConnectStagger(50);
+        try {
+            long millis = connectMillis(service, "sensor", true);
+            Log.d(LOG_TAG, "connected in " + millis + " ms");
+            assertTrue("Error: took " + millis + " ms", millis < 1500);
+            assertFalse(service.getConnectStats().preferSecure("sensor", true));
+            assertEquals(1, service.getConnectStats().getCount("sensor"));
+        } finally {
+            service.stop();
+            secure.close();
+            insecure.close();
+        }
+    }
+
+    /*
+        A preferred type that fails outright does not wait for the stagger.
+     */
+    public void testFailedTypeSkipsTheStagger() throws Exception {
+        TransportServer insecure = new PipeTransport(mNetwork, "sensor").listen(false);
+        BluetoothChatService service = newService(0);
+        service.setConnectStagger(3000);
+        try {
+            long millis = connectMillis(service, "sensor", true);
+            assertTrue("Error: took " + millis + " ms", millis < 1500);
+        } finally {
+            service.stop();
+            insecure.close();
+        }
+    }
+
+    /*
+        The next connect to a device starts with the type that won.
+     */
+    public void testWinnerIsTriedFirst() throws Exception {
+        TransportServer insecure = new PipeTransport(mNetwork, "sensor").listen(false);
+        BluetoothChatService service = newService(0);
+        try {
+            service.setConnectStagger(0);
+            connectMillis(service, "sensor", true);
+            service.disconnect(service.getConnectionId("sensor"));
+
+            // Without racing, only the remembered type can succeed
+            service.setConnectStagger(-1);
+            connectMillis(service, "sensor", true);
+            assertEquals(2, service.getConnectStats().getCount("sensor"));
+            Log.d(LOG_TAG, "p50 " + service.getConnectStats().getLatencyPercentileMillis("sensor", 50)
+                    + " ms, p99 " + service.getConnectStats().getLatencyPercentileMillis("sensor", 99)
+                    + " ms");
+        } finally {
+            service.stop();
+            insecure.close();
+        }
+    }
+}
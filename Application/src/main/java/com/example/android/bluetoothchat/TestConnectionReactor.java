@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TcpTransport;
+import com.example.android.bluetoothchat.transport.Transport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestConnectionReactor extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConnectionReactor.class.getSimpleName();
+
+    // First port used by the TCP tests; each run takes two
+    private static final int TCP_PORT = 47301;
+
+    // Lines sent per benchmark run, shared between the connections
+    private static final int BENCH_LINES = 200000;
+
+    private HandlerThread mHandlerThread;
+    private ConnectionReactor mReactor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestConnectionReactor");
+        mHandlerThread.start();
+        mReactor = new ConnectionReactor(1, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mReactor.shutdown();
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    private BluetoothChatService newService(Transport transport, boolean reactor) {
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(mHandlerThread.getLooper()), transport);
+        if (reactor) {
+            service.setReactor(mReactor);
+        }
+        return service;
+    }
+
+    private static void waitForConnections(BluetoothChatService service, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (service.getConnectionCount() != count) {
+            assertTrue("Error: " + service.getConnectionCount() + " devices connected, expected "
+                    + count, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitForSamples(SampleRing ring, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (ring.getWriteSequence() < count) {
+            assertTrue("Error: " + ring.getWriteSequence() + " of " + count
+                    + " samples delivered", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Error: stream closed early", b >= 0);
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    /*
+        Reads, writes and the end of the connection all go through the
+        connection's callbacks, whichever way the reactor drives it.
+     */
+    private void assertReactorDrives(BluetoothChatService service, TransportConnection sensor)
+            throws Exception {
+        waitForConnections(service, 1);
+        int id = service.getConnectionIds().get(0);
+
+        OutputStream out = sensor.getOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            out.write("21.53\r\n".getBytes());
+        }
+        out.flush();
+        waitForSamples(service.getSampleRing(id), 1000);
+
+        assertTrue(service.offer(id, "ping\n".getBytes()));
+        assertTrue(service.offer(id, "pong\n".getBytes()));
+        assertEquals("ping", readLine(sensor.getInputStream()));
+        assertEquals("pong", readLine(sensor.getInputStream()));
+
+        // The sensor going away is noticed without a thread blocked in read()
+        sensor.close();
+        waitForConnections(service, 0);
+    }
+
+    public void testReactorOverPipe() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        BluetoothChatService service = newService(new PipeTransport(network, "phone"), true);
+        service.start();
+        TransportConnection sensor = new PipeTransport(network, "sensor")
+                .createConnection("phone", true);
+        sensor.connect();
+        assertReactorDrives(service, sensor);
+        service.stop();
+    }
+
+    public void testReactorOverTcp() throws Exception {
+        TcpTransport transport = new TcpTransport(TCP_PORT);
+        BluetoothChatService service = newService(transport, true);
+        service.start();
+        TransportConnection sensor = transport.createConnection("127.0.0.1", true);
+        sensor.connect();
+        assertReactorDrives(service, sensor);
+        service.stop();
+    }
+
+    /*
+        Keeps what a registered connection read and the threads it was read on.
+     */
+    private static class RecordingCallback implements ConnectionReactor.Callback {
+        final StringBuilder mReceived = new StringBuilder();
+        final List<Thread> mThreads = new ArrayList<Thread>();
+        volatile IOException mClosed;
+
+        @Override
+        public synchronized void onRead(byte[] buffer, int offset, int length, long nanos) {
+            mReceived.append(new String(buffer, offset, length));
+            if (!mThreads.contains(Thread.currentThread())) {
+                mThreads.add(Thread.currentThread());
+            }
+        }
+
+        @Override
+        public void onWritten(byte[] message) {
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            mClosed = cause;
+        }
+
+        synchronized String received() {
+            return mReceived.toString();
+        }
+
+        void waitFor(int length) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received().length() < length) {
+                assertTrue("Error: " + received().length() + " of " + length
+                        + " bytes delivered", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /*
+        With several loops, every read of a stream still runs on one loop,
+        in the order the bytes were sent.
+     */
+    public void testStreamReadsStayOrdered() throws Exception {
+        mReactor.shutdown();
+        mReactor = new ConnectionReactor(4, 1);
+        TransportConnection[] pair = PipeTransport.createPair("phone", "sensor");
+        RecordingCallback callback = new RecordingCallback();
+        mReactor.register(pair[0], new OutboundQueue(), callback);
+
+        int lines = 5000;
+        StringBuilder sent = new StringBuilder();
+        OutputStream out = pair[1].getOutputStream();
+        for (int i = 0; i < lines; i++) {
+            String line = i + "\n";
+            sent.append(line);
+            out.write(line.getBytes());
+            if (i % 50 == 0) {
+                // Let the reader pick up a chunk at a time
+                Thread.sleep(1);
+            }
+        }
+        out.flush();
+
+        callback.waitFor(sent.length());
+        assertEquals("Error: lines arrived out of order", sent.toString(), callback.received());
+        assertEquals("Error: reads ran on " + callback.mThreads.size() + " loops",
+                1, callback.mThreads.size());
+        pair[1].close();
+    }
+
+    /*
+        A peer that stops reading blocks its own writes only; the other
+        connection keeps reading and writing. Each quiet connection holds a
+        reader, so there is one per connection.
+     */
+    public void testStalledPeerDoesNotBlockOthers() throws Exception {
+        mReactor.shutdown();
+        mReactor = new ConnectionReactor(1, 2);
+        TransportConnection[] stalled = PipeTransport.createPair("phone", "stalled");
+        TransportConnection[] live = PipeTransport.createPair("phone", "live");
+        ConnectionReactor.Registration stalledRegistration =
+                mReactor.register(stalled[0], new OutboundQueue(), new RecordingCallback());
+        RecordingCallback callback = new RecordingCallback();
+        ConnectionReactor.Registration liveRegistration =
+                mReactor.register(live[0], new OutboundQueue(), callback);
+
+        // Far more than the pipe holds, so the writer blocks
+        for (int i = 0; i < 64; i++) {
+            assertTrue(stalledRegistration.offer(new byte[1024]));
+        }
+        Thread.sleep(50);
+
+        live[1].getOutputStream().write("21.53\r\n".getBytes());
+        callback.waitFor(7);
+        assertEquals("21.53\r\n", callback.received());
+        assertTrue(liveRegistration.offer("ping\n".getBytes()));
+        assertEquals("ping", readLine(live[1].getInputStream()));
+
+        stalled[1].close();
+        live[1].close();
+    }
+
+    /*
+        A callback that throws closes its own connection; the loop goes on
+        delivering to the others.
+     */
+    public void testCallbackFailureClosesOnlyItsConnection() throws Exception {
+        mReactor.shutdown();
+        mReactor = new ConnectionReactor(1, 2);
+        TransportConnection[] bad = PipeTransport.createPair("phone", "bad");
+        TransportConnection[] good = PipeTransport.createPair("phone", "good");
+        RecordingCallback failing = new RecordingCallback() {
+            @Override
+            public synchronized void onRead(byte[] buffer, int offset, int length, long nanos) {
+                throw new IllegalStateException("bad line");
+            }
+        };
+        mReactor.register(bad[0], new OutboundQueue(), failing);
+        RecordingCallback callback = new RecordingCallback();
+        mReactor.register(good[0], new OutboundQueue(), callback);
+
+        bad[1].getOutputStream().write("garbage\n".getBytes());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (failing.mClosed == null) {
+            assertTrue("Error: the failing connection was not closed",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        good[1].getOutputStream().write("21.53\r\n".getBytes());
+        callback.waitFor(7);
+        assertEquals("21.53\r\n", callback.received());
+        assertNull(callback.mClosed);
+        good[1].close();
+    }
+
+    /*
+        The end of a blocking stream is seen by the read, as available()
+        stays 0 after the peer goes, the way RFCOMM streams behave.
+     */
+    public void testStreamEndIsReported() throws Exception {
+        TransportConnection[] pair = PipeTransport.createPair("phone", "sensor");
+        RecordingCallback callback = new RecordingCallback();
+        mReactor.register(pair[0], new OutboundQueue(), callback);
+        pair[1].close();
+        assertEquals(0, pair[0].getInputStream().available());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (callback.mClosed == null) {
+            assertTrue("Error: end of stream not reported", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /*
+        Compares a thread pair per connection with the reactor at 1, 10 and
+        100 TCP connections, reporting lines/s and the threads each one needs.
+     */
+    public void testThreadsVersusReactor() throws Exception {
+        int port = TCP_PORT + 2;
+        for (int connections : new int[]{1, 10, 100}) {
+            for (boolean reactor : new boolean[]{false, true}) {
+                run(port, connections, reactor);
+                port += 2;
+            }
+        }
+    }
+
+    /*
+        Counts the live threads started for individual connections.
+     */
+    private static int countConnectionThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith("ConnectedThread") || name.startsWith("WriterThread")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void run(int port, int connections, boolean reactor) throws Exception {
+        // Let the threads of the previous run finish
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countConnectionThreads() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        TcpTransport transport = new TcpTransport(port);
+        BluetoothChatService service = newService(transport, reactor);
+        service.start();
+
+        List<TransportConnection> sensors = new ArrayList<TransportConnection>();
+        for (int i = 0; i < connections; i++) {
+            TransportConnection sensor = transport.createConnection("127.0.0.1", true);
+            sensor.connect();
+            sensors.add(sensor);
+        }
+        waitForConnections(service, connections);
+
+        // One thread feeds every sensor, a read's worth at a time
+        final int linesPerSensor = BENCH_LINES / connections;
+        byte[] chunk = new byte[7 * 100];
+        for (int i = 0; i < chunk.length; i += 7) {
+            System.arraycopy("21.53\r\n".getBytes(), 0, chunk, i, 7);
+        }
+        long start = System.nanoTime();
+        for (int sent = 0; sent < linesPerSensor; sent += 100) {
+            for (TransportConnection sensor : sensors) {
+                sensor.getOutputStream().write(chunk);
+            }
+        }
+        for (int id : service.getConnectionIds()) {
+            waitForSamples(service.getSampleRing(id), linesPerSensor);
+        }
+        long nanos = System.nanoTime() - start;
+        int threads = countConnectionThreads();
+
+        Log.d(LOG_TAG, (reactor ? "reactor" : "threads") + ", " + connections
+                + " connections: " + ((long) BENCH_LINES * 1000000000L / nanos)
+                + " lines/s, " + threads + " threads");
+        assertEquals(reactor ? 0 : 2 * connections, threads);
+        for (TransportConnection sensor : sensors) {
+            sensor.close();
+        }
+        service.stop();
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestConnectionStateMachine extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConnectionStateMachine.class.getSimpleName();
+
+    // Threads calling into the service at once, and how long they do it
+    private static final int STRESS_THREADS = 8;
+    private static final long STRESS_MILLIS = 2000;
+    private static final int SENSORS = 4;
+
+    public void testTransitionTable() {
+        ConnectionStateMachine machine = new ConnectionStateMachine();
+        assertEquals(ConnectionStateMachine.NONE, machine.getState());
+        assertTrue(machine.moveTo(ConnectionStateMachine.LISTEN, -1));
+        assertTrue(machine.moveTo(ConnectionStateMachine.CONNECTED, -1));
+
+        // Staying in a state is neither a transition nor reported
+        final List<Integer> reported = new ArrayList<Integer>();
+        machine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState, long version,
+                                       int connectionId) {
+                reported.add(newState);
+            }
+        });
+        assertTrue(machine.moveTo(ConnectionStateMachine.CONNECTED, -1));
+        assertTrue(machine.transition(ConnectionStateMachine.CONNECTED,
+                ConnectionStateMachine.CONNECTED, -1));
+        assertEquals(2, machine.getVersion());
+        assertTrue("Error: same state reported", reported.isEmpty());
+
+        assertTrue(machine.moveTo(ConnectionStateMachine.CLOSING, -1));
+
+        // Nothing but NONE follows CLOSING
+        assertFalse(machine.moveTo(ConnectionStateMachine.CONNECTED, -1));
+        assertFalse(machine.moveTo(ConnectionStateMachine.LISTEN, -1));
+        assertEquals(2, machine.getRefusedCount());
+        assertEquals(ConnectionStateMachine.CLOSING, machine.getState());
+
+        // transition() also needs the expected current state
+        assertFalse(machine.transition(ConnectionStateMachine.LISTEN,
+                ConnectionStateMachine.CONNECTING, -1));
+        assertTrue(machine.transition(ConnectionStateMachine.CLOSING,
+                ConnectionStateMachine.NONE, -1));
+        assertEquals(4, machine.getVersion());
+    }
+
+    /*
+        A transition seen by a listener.
+     */
+    static class Seen {
+        final int mFrom;
+        final int mTo;
+        final long mVersion;
+
+        Seen(int from, int to, long version) {
+            mFrom = from;
+            mTo = to;
+            mVersion = version;
+        }
+    }
+
+    /*
+        Sensors that accept any number of connections and read whatever they
+        are sent, so the writers never stall.
+     */
+    static class Sensor extends Thread {
+        final TransportServer mServer;
+
+        Sensor(PipeTransport.Network network, String address) throws IOException {
+            mServer = new PipeTransport(network, address).listen(true);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final TransportConnection connection = mServer.accept();
+                    Thread drain = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                InputStream in = connection.getInputStream();
+                                byte[] buffer = new byte[1024];
+                                while (in.read(buffer) >= 0) {
+                                    // discard
+                                }
+                            } catch (IOException e) {
+                                // connection closed
+                            }
+                        }
+                    };
+                    drain.setDaemon(true);
+                    drain.start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }
+    }
+
+    /*
+        Many threads connect, stop, restart, disconnect and write at random.
+        Ordered by version, the transitions reported must form one chain of
+        allowed moves.
+     */
+    public void testStress() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestConnectionStateMachine");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        final BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.getReconnectManager().setBackoff(5, 20);
+
+        final ConcurrentLinkedQueue<Seen> seen = new ConcurrentLinkedQueue<Seen>();
+        service.addStateListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState, long version,
+                                       int connectionId) {
+                seen.add(new Seen(oldState, newState, version));
+            }
+        });
+
+        List<Sensor> sensors = new ArrayList<Sensor>();
+        for (int i = 0; i < SENSORS; i++) {
+            Sensor sensor = new Sensor(network, "sensor-" + i);
+            sensor.start();
+            sensors.add(sensor);
+        }
+
+        final AtomicLong writes = new AtomicLong();
+        final long end = System.currentTimeMillis() + STRESS_MILLIS;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < STRESS_THREADS; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    byte[] message = "21.53\n".getBytes();
+                    while (System.currentTimeMillis() < end) {
+                        int op = random.nextInt(100);
+                        if (op < 10) {
+                            service.connect("sensor-" + random.nextInt(SENSORS), true);
+                        } else if (op < 12) {
+                            service.stop();
+                        } else if (op < 15) {
+                            service.start();
+                        } else if (op < 18) {
+                            List<Integer> ids = service.getConnectionIds();
+                            if (!ids.isEmpty()) {
+                                service.disconnect(ids.get(random.nextInt(ids.size())));
+                            }
+                        } else {
+                            service.write(message);
+                            writes.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(STRESS_MILLIS + 10000);
+            assertFalse("Error: a thread is stuck, deadlock?", thread.isAlive());
+        }
+        service.stop();
+        for (Sensor sensor : sensors) {
+            sensor.mServer.close();
+        }
+        handlerThread.quit();
+
+        List<Seen> transitions = new ArrayList<Seen>(seen);
+        Collections.sort(transitions, new Comparator<Seen>() {
+            @Override
+            public int compare(Seen a, Seen b) {
+                return a.mVersion < b.mVersion ? -1 : (a.mVersion == b.mVersion ? 0 : 1);
+            }
+        });
+        int state = ConnectionStateMachine.NONE;
+        for (int i = 0; i < transitions.size(); i++) {
+            Seen t = transitions.get(i);
+            assertEquals("Error: a transition is missing", i + 1, t.mVersion);
+            assertEquals("Error: transition " + t.mVersion + " does not follow the previous one",
+                    state, t.mFrom);
+            assertTrue("Error: illegal transition " + ConnectionStateMachine.nameOf(t.mFrom)
+                            + " -> " + ConnectionStateMachine.nameOf(t.mTo),
+                    ConnectionStateMachine.isAllowed(t.mFrom, t.mTo));
+            state = t.mTo;
+        }
+        assertEquals(BluetoothChatService.STATE_NONE, service.getState());
+        Log.d(LOG_TAG, transitions.size() + " transitions, " + writes.get() + " writes");
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+public class TestDeltaCodec extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDeltaCodec.class.getSimpleName();
+
+    // Samples per frame, frames between keyframes and samples in the benchmark
+    private static final int SAMPLES_PER_FRAME = 64;
+    private static final int KEYFRAME_INTERVAL = 16;
+    private static final int BENCH_SAMPLES = 2000000;
+
+    /*
+        A temperature drifting by a few hundredths between readings.
+     */
+    private static float[] randomWalk(int count, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[count];
+        int centi = 2153;
+        for (int i = 0; i < count; i++) {
+            centi += random.nextInt(7) - 3;
+            values[i] = centi / 100f;
+        }
+        return values;
+    }
+
+    public void testZigZagVarint() {
+        int[] samples = {0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        byte[] out = new byte[5];
+        for (int n : samples) {
+            assertEquals(n, DeltaCodec.unZigZag(DeltaCodec.zigZag(n)));
+        }
+        // Small differences take a single byte
+        assertEquals(1, DeltaCodec.writeVarint(DeltaCodec.zigZag(-3), out, 0));
+        assertEquals(5, DeltaCodec.writeVarint(DeltaCodec.zigZag(Integer.MIN_VALUE), out, 0));
+    }
+
+    public void testRoundTrip() {
+        float[] values = randomWalk(SAMPLES_PER_FRAME * 40, 1);
+        DeltaCodec.Encoder encoder = new DeltaCodec.Encoder(0, KEYFRAME_INTERVAL);
+        final DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        final SampleRing ring = new SampleRing(values.length);
+        SampleRing.Reader reader = ring.newReader();
+        FrameCodec.Decoder frames = new FrameCodec.Decoder();
+        byte[] frame = new byte[DeltaCodec.maxFrameLength(SAMPLES_PER_FRAME)];
+        FrameCodec.FrameListener listener = new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+                decoder.decode(type, buffer, offset, length, 0, ring);
+            }
+        };
+        for (int i = 0; i < values.length; i += SAMPLES_PER_FRAME) {
+            int n = encoder.encode(values, i, SAMPLES_PER_FRAME, frame, 0);
+            frames.feed(frame, 0, n, listener);
+        }
+
+        long[] times = new long[values.length];
+        float[] decoded = new float[values.length];
+        assertEquals(values.length, reader.drain(times, decoded));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], decoded[i], 0.001f);
+        }
+        assertEquals(0, frames.getErrorCount());
+    }
+
+    public void testLostFrameWaitsForKeyframe() {
+        float[] values = randomWalk(SAMPLES_PER_FRAME * 8, 2);
+        DeltaCodec.Encoder encoder = new DeltaCodec.Encoder(0, 4);
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        SampleRing ring = new SampleRing(values.length);
+        byte[] frame = new byte[DeltaCodec.maxFrameLength(SAMPLES_PER_FRAME)];
+        int[] results = new int[8];
+        for (int f = 0; f < 8; f++) {
+            encoder.encode(values, f * SAMPLES_PER_FRAME, SAMPLES_PER_FRAME, frame, 0);
+            if (f == 1) {
+                // Lost on the link
+                continue;
+            }
+            int length = ((frame[3] & 0xff) << 8) | (frame[4] & 0xff);
+            results[f] = decoder.decode(frame[1], frame, FrameCodec.HEADER_LENGTH, length, 0, ring);
+        }
+        assertEquals(SAMPLES_PER_FRAME, results[0]);
+        // Frames 2 and 3 follow the lost one, frame 4 is the next keyframe
+        assertEquals(-1, results[2]);
+        assertEquals(-1, results[3]);
+        assertEquals(SAMPLES_PER_FRAME, results[4]);
+        assertEquals(2, decoder.getDroppedFrames());
+    }
+
+    /*
+        A payload cut off inside a varint, or with a varint longer than an
+        int, is dropped whole: none of its samples reach the ring.
+     */
+    public void testTruncatedFrameAddsNothing() {
+        DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        SampleRing ring = new SampleRing(16);
+        SampleRing.Reader reader = ring.newReader();
+        byte[] payload = new byte[16];
+        int p = 0;
+        payload[p++] = 0;
+        p = DeltaCodec.writeVarint(DeltaCodec.zigZag(2150), payload, p);
+        p = DeltaCodec.writeVarint(DeltaCodec.zigZag(-3), payload, p);
+        payload[p++] = (byte) 0x80;
+        assertEquals(-1, decoder.decode(DeltaCodec.TYPE_SAMPLES_KEY, payload, 0, p, 0, ring));
+
+        p--;
+        for (int i = 0; i < 5; i++) {
+            payload[p++] = (byte) 0xff;
+        }
+        payload[p++] = 0x01;
+        assertEquals(-1, decoder.decode(DeltaCodec.TYPE_SAMPLES_KEY, payload, 0, p, 0, ring));
+
+        long[] times = new long[16];
+        float[] values = new float[16];
+        assertEquals("Error: a dropped frame added samples", 0, reader.drain(times, values));
+        assertEquals(2, decoder.getDroppedFrames());
+    }
+
+    /*
+        Encodes hundredths the way the sensor firmware does for ASCII lines.
+     */
+    private static int encodeText(int centi, byte[] out, int p) {
+        if (centi < 0) {
+            out[p++] = '-';
+            centi = -centi;
+        }
+        int whole = centi / 100;
+        if (whole >= 10) out[p++] = (byte) ('0' + whole / 10 % 10);
+        out[p++] = (byte) ('0' + whole % 10);
+        out[p++] = '.';
+        out[p++] = (byte) ('0' + centi / 10 % 10);
+        out[p++] = (byte) ('0' + centi % 10);
+        out[p++] = '\r';
+        out[p++] = '\n';
+        return p;
+    }
+
+    /*
+        Compares encode and decode speed and bytes per sample with the
+        newline text format.
+     */
+    public void testBenchmark() {
+        float[] values = randomWalk(BENCH_SAMPLES, 3);
+
+        // Text
+        byte[] text = new byte[BENCH_SAMPLES * 8];
+        long start = System.nanoTime();
+        int textLength = 0;
+        for (float value : values) {
+            textLength = encodeText(DeltaCodec.toFixed(value), text, textLength);
+        }
+        long textEncode = System.nanoTime() - start;
+        final SampleRing textRing = new SampleRing(4096);
+        LineFramer framer = new LineFramer();
+        start = System.nanoTime();
+        for (int p = 0; p < textLength; p += 1024) {
+            framer.feed(text, p, Math.min(1024, textLength - p), new LineFramer.LineListener() {
+                @Override
+                public void onLine(byte[] buffer, int offset, int length) {
+                    textRing.add(0, SampleParser.parseFloat(buffer, offset, length));
+                }
+            });
+        }
+        long textDecode = System.nanoTime() - start;
+
+        // Delta frames
+        DeltaCodec.Encoder encoder = new DeltaCodec.Encoder(0, KEYFRAME_INTERVAL);
+        byte[] stream = new byte[BENCH_SAMPLES / SAMPLES_PER_FRAME
+                * DeltaCodec.maxFrameLength(SAMPLES_PER_FRAME)];
+        int streamLength = 0;
+        start = System.nanoTime();
+        for (int i = 0; i + SAMPLES_PER_FRAME <= BENCH_SAMPLES; i += SAMPLES_PER_FRAME) {
+            streamLength += encoder.encode(values, i, SAMPLES_PER_FRAME, stream, streamLength);
+        }
+        long deltaEncode = System.nanoTime() - start;
+        final DeltaCodec.Decoder decoder = new DeltaCodec.Decoder();
+        final SampleRing deltaRing = new SampleRing(4096);
+        FrameCodec.Decoder frames = new FrameCodec.Decoder();
+        FrameCodec.FrameListener listener = new FrameCodec.FrameListener() {
+            @Override
+            public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+                decoder.decode(type, buffer, offset, length, 0, deltaRing);
+            }
+        };
+        start = System.nanoTime();
+        for (int p = 0; p < streamLength; p += 1024) {
+            frames.feed(stream, p, Math.min(1024, streamLength - p), listener);
+        }
+        long deltaDecode = System.nanoTime() - start;
+
+        double textPerSample = (double) textLength / BENCH_SAMPLES;
+        double deltaPerSample = (double) streamLength / deltaRing.getWriteSequence();
+        Log.d(LOG_TAG, String.format("text:  %.2f bytes/sample, encode %d MB/s (%d Msamples/s),"
+                        + " decode %d MB/s (%d Msamples/s)", textPerSample,
+                millionsPerSecond(textLength, textEncode), millionsPerSecond(BENCH_SAMPLES, textEncode),
+                millionsPerSecond(textLength, textDecode), millionsPerSecond(BENCH_SAMPLES, textDecode)));
+        Log.d(LOG_TAG, String.format("delta: %.2f bytes/sample, encode %d MB/s (%d Msamples/s),"
+                        + " decode %d MB/s (%d Msamples/s)", deltaPerSample,
+                millionsPerSecond(streamLength, deltaEncode), millionsPerSecond(BENCH_SAMPLES, deltaEncode),
+                millionsPerSecond(streamLength, deltaDecode), millionsPerSecond(BENCH_SAMPLES, deltaDecode)));
+
+        assertEquals(BENCH_SAMPLES, textRing.getWriteSequence());
+        assertEquals(BENCH_SAMPLES / SAMPLES_PER_FRAME * SAMPLES_PER_FRAME,
+                deltaRing.getWriteSequence());
+        assertTrue("Error: delta frames are not smaller", deltaPerSample * 4 < textPerSample);
+    }
+
+    /*
+        Millions of bytes, or of samples, per second.
+     */
+    private static long millionsPerSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1000L / nanos;
+    }
+
+    /*
+        The service decodes delta frames on the read path into the ring.
+     */
+    public void testServiceDecodesDeltaFrames() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestDeltaCodec");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.setBinaryFramingOffered(true);
+        TransportServer server = new PipeTransport(network, "sensor").listen(true);
+        try {
+            service.connect("sensor", true);
+            TransportConnection sensor = server.accept();
+            InputStream in = sensor.getInputStream();
+            while (in.read() != '\n') {
+                // the handshake offer
+            }
+            float[] values = randomWalk(SAMPLES_PER_FRAME * 4, 4);
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            byte[] accept = (FrameCodec.HANDSHAKE_ACCEPT + "\n").getBytes();
+            reply.write(accept, 0, accept.length);
+            DeltaCodec.Encoder encoder = new DeltaCodec.Encoder(0, KEYFRAME_INTERVAL);
+            byte[] frame = new byte[DeltaCodec.maxFrameLength(SAMPLES_PER_FRAME)];
+            for (int i = 0; i < values.length; i += SAMPLES_PER_FRAME) {
+                int n = encoder.encode(values, i, SAMPLES_PER_FRAME, frame, 0);
+                reply.write(frame, 0, n);
+            }
+            sensor.getOutputStream().write(reply.toByteArray());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (true) {
+                SampleRing ring = service.getSampleRing(service.getConnectionId("sensor"));
+                if (ring != null && ring.getWriteSequence() == values.length) {
+                    break;
+                }
+                assertTrue("Error: samples missing", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        } finally {
+            service.stop();
+            server.close();
+            handlerThread.quit();
+        }
+    }
+}
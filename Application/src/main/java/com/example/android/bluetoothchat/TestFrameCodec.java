@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestFrameCodec extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestFrameCodec.class.getSimpleName();
+
+    // Samples per frame and frames used by the benchmark
+    private static final int SAMPLES_PER_FRAME = 64;
+    private static final int BENCH_FRAMES = 20000;
+
+    /*
+        Keeps a copy of every frame delivered.
+     */
+    static class CollectingListener implements FrameCodec.FrameListener {
+        final List<byte[]> mPayloads = new ArrayList<byte[]>();
+        final List<Integer> mChannels = new ArrayList<Integer>();
+
+        @Override
+        public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+            byte[] payload = new byte[length];
+            System.arraycopy(buffer, offset, payload, 0, length);
+            mPayloads.add(payload);
+            mChannels.add(channel);
+        }
+    }
+
+    static class CountingListener implements FrameCodec.FrameListener {
+        long mSamples;
+
+        @Override
+        public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+            for (int i = offset; i + 2 <= offset + length; i += 2) {
+                short centi = (short) ((buffer[i] & 0xff) << 8 | (buffer[i + 1] & 0xff));
+                if (centi != Short.MIN_VALUE) mSamples++;
+            }
+        }
+    }
+
+    private static byte[] centiPayload(float... values) {
+        byte[] payload = new byte[values.length * 2];
+        for (int i = 0; i < values.length; i++) {
+            int centi = Math.round(values[i] * 100);
+            payload[2 * i] = (byte) (centi >> 8);
+            payload[2 * i + 1] = (byte) centi;
+        }
+        return payload;
+    }
+
+    public void testCrc() {
+        // The check value of CRC-16/CCITT-FALSE
+        byte[] check = "123456789".getBytes();
+        assertEquals(0x29b1, FrameCodec.crc16(check, 0, check.length));
+    }
+
+    public void testRoundTripAcrossReads() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = FrameCodec.encode(FrameCodec.TYPE_SAMPLES_CENTI, i,
+                    centiPayload(21.5f + i, -3.25f));
+            stream.write(frame, 0, frame.length);
+        }
+        byte[] bytes = stream.toByteArray();
+
+        // One byte at a time, so every frame is assembled
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+        CollectingListener listener = new CollectingListener();
+        for (int i = 0; i < bytes.length; i++) {
+            decoder.feed(bytes, i, 1, listener);
+        }
+        assertEquals(10, listener.mPayloads.size());
+        assertEquals(9, (int) listener.mChannels.get(9));
+        assertEquals(0, decoder.getErrorCount());
+
+        // All at once, so every frame takes the in place path
+        listener = new CollectingListener();
+        assertEquals(10, new FrameCodec.Decoder().feed(bytes, 0, bytes.length, listener));
+    }
+
+    public void testCorruptFrameIsSkipped() {
+        byte[] good = FrameCodec.encode(FrameCodec.TYPE_TEXT, 0, "hello".getBytes());
+        byte[] bad = FrameCodec.encode(FrameCodec.TYPE_TEXT, 0, "world".getBytes());
+        bad[7] ^= 0x10;
+        byte[] stream = new byte[3 + bad.length + good.length];
+        stream[0] = 'x';
+        stream[1] = 'y';
+        stream[2] = 'z';
+        System.arraycopy(bad, 0, stream, 3, bad.length);
+        System.arraycopy(good, 0, stream, 3 + bad.length, good.length);
+
+        for (int split : new int[]{stream.length, 5, 11}) {
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+            CollectingListener listener = new CollectingListener();
+            decoder.feed(stream, 0, split, listener);
+            decoder.feed(stream, split, stream.length - split, listener);
+            assertEquals(1, listener.mPayloads.size());
+            assertEquals("hello", new String(listener.mPayloads.get(0)));
+            assertEquals(1, decoder.getErrorCount());
+        }
+    }
+
+    /*
+        Compares the bytes per sample and the decode rate of ASCII lines
+        with those of binary frames of hundredths.
+     */
+    public void testBenchmark() {
+        byte[] line = "21.53\r\n".getBytes();
+        float[] values = new float[SAMPLES_PER_FRAME];
+        for (int i = 0; i < values.length; i++) values[i] = 21.53f;
+        byte[] frame = FrameCodec.encode(FrameCodec.TYPE_SAMPLES_CENTI, 0, centiPayload(values));
+
+        // Same number of samples both ways, in reads of about 1 KB
+        int linesPerRead = 1024 / line.length;
+        byte[] asciiRead = new byte[linesPerRead * line.length];
+        for (int i = 0; i < linesPerRead; i++) {
+            System.arraycopy(line, 0, asciiRead, i * line.length, line.length);
+        }
+        final long samples = (long) BENCH_FRAMES * SAMPLES_PER_FRAME;
+
+        final long[] parsed = new long[1];
+        LineFramer framer = new LineFramer();
+        LineFramer.LineListener parser = new LineFramer.LineListener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) {
+                if (!Float.isNaN(SampleParser.parseFloat(buffer, offset, length))) parsed[0]++;
+            }
+        };
+        long start = System.nanoTime();
+        while (parsed[0] < samples) {
+            framer.feed(asciiRead, 0, asciiRead.length, parser);
+        }
+        long asciiNanos = System.nanoTime() - start;
+
+        int framesPerRead = 1024 / frame.length;
+        byte[] binaryRead = new byte[framesPerRead * frame.length];
+        for (int i = 0; i < framesPerRead; i++) {
+            System.arraycopy(frame, 0, binaryRead, i * frame.length, frame.length);
+        }
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+        CountingListener counter = new CountingListener();
+        start = System.nanoTime();
+        while (counter.mSamples < samples) {
+            decoder.feed(binaryRead, 0, binaryRead.length, counter);
+        }
+        long binaryNanos = System.nanoTime() - start;
+
+        double asciiBytes = line.length;
+        double binaryBytes = (double) frame.length / SAMPLES_PER_FRAME;
+        Log.d(LOG_TAG, "ascii:  " + asciiBytes + " bytes/sample, "
+                + (parsed[0] * 1000000000L / asciiNanos) + " samples/s decoded");
+        Log.d(LOG_TAG, "binary: " + binaryBytes + " bytes/sample, "
+                + (counter.mSamples * 1000000000L / binaryNanos) + " samples/s decoded");
+        // Samples per second over the same link bandwidth
+        assertTrue("Error: binary frames are not denser", asciiBytes / binaryBytes > 3);
+        assertEquals(0, decoder.getErrorCount());
+    }
+
+    /*
+        A sensor that understands the handshake answers it and switches to
+        frames in the same write; one that does not keeps sending lines.
+     */
+    public void testHandshake() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestFrameCodec");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.setBinaryFramingOffered(true);
+        service.setConnectStagger(-1);
+        TransportServer newFirmware = new PipeTransport(network, "new").listen(true);
+        TransportServer oldFirmware = new PipeTransport(network, "old").listen(true);
+        try {
+            service.connect("new", true);
+            TransportConnection sensor = newFirmware.accept();
+            assertEquals(FrameCodec.HANDSHAKE_OFFER, readLine(sensor.getInputStream()));
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            byte[] accept = (FrameCodec.HANDSHAKE_ACCEPT + "\r\n").getBytes();
+            reply.write(accept, 0, accept.length);
+            byte[] frame = FrameCodec.encode(FrameCodec.TYPE_SAMPLES_CENTI, 0,
+                    centiPayload(21.5f, 21.75f));
+            reply.write(frame, 0, frame.length);
+            frame = FrameCodec.encode(FrameCodec.TYPE_SAMPLES_CENTI, 2, centiPayload(-4f));
+            reply.write(frame, 0, frame.length);
+            sensor.getOutputStream().write(reply.toByteArray());
+
+            int id = waitForSamples(service, "new", 2);
+            assertTrue(service.isBinaryFraming(id));
+            long[] times = new long[4];
+            float[] values = new float[4];
+            SampleRing.Reader reader = service.getSampleRing(id).newReader();
+            assertEquals(0, reader.drain(times, values));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (service.getSampleRing(id, 2) == null) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertEquals(1, service.getSampleRing(id, 2).getWriteSequence());
+
+            // Text from the phone now travels in frames
+            assertTrue(service.offer(id, "hi".getBytes()));
+            byte[] expected = FrameCodec.encode(FrameCodec.TYPE_TEXT, 0, "hi".getBytes());
+            byte[] received = new byte[expected.length];
+            readFully(sensor.getInputStream(), received);
+            assertEquals(new String(expected, "ISO-8859-1"), new String(received, "ISO-8859-1"));
+
+            // Old firmware ignores the offer and keeps the ASCII protocol
+            service.connect("old", true);
+            TransportConnection old = oldFirmware.accept();
+            old.getOutputStream().write("21.53\r\n".getBytes());
+            int oldId = waitForSamples(service, "old", 1);
+            assertFalse(service.isBinaryFraming(oldId));
+        } finally {
+            service.stop();
+            newFirmware.close();
+            oldFirmware.close();
+            handlerThread.quit();
+        }
+    }
+
+    private static int waitForSamples(BluetoothChatService service, String address, long count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            int id = service.getConnectionId(address);
+            SampleRing ring = service.getSampleRing(id);
+            if (ring != null && ring.getWriteSequence() >= count) {
+                return id;
+            }
+            assertTrue("Error: no samples from " + address, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Error: stream closed early", b >= 0);
+            line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int n = 0;
+        while (n < buffer.length) {
+            int r = in.read(buffer, n, buffer.length - n);
+            assertTrue("Error: stream closed early", r > 0);
+            n += r;
+        }
+    }
+}
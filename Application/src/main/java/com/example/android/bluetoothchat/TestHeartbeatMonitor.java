@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class TestHeartbeatMonitor extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHeartbeatMonitor.class.getSimpleName();
+
+    /*
+        A link whose traffic the test controls.
+     */
+    static class FakeLink implements HeartbeatMonitor.Link {
+        volatile long mLastReceive;
+        volatile int mPings;
+        volatile int mDeadAfter;
+
+        @Override
+        public void sendPing(long nanos) {
+            mPings++;
+        }
+
+        @Override
+        public long getLastReceiveNanos() {
+            return mLastReceive;
+        }
+
+        @Override
+        public void onDead(int missed) {
+            mDeadAfter = missed;
+        }
+    }
+
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000000L, snapshot.getMaxNanos());
+        assertEquals(5000500L, snapshot.getMeanNanos());
+        // Buckets are an eighth of a power of two wide
+        assertNear(5000000L, snapshot.getPercentileNanos(50));
+        assertNear(9900000L, snapshot.getPercentileNanos(99));
+        assertNear(9990000L, snapshot.getPercentileNanos(99.9));
+        assertEquals(10000000L, snapshot.getPercentileNanos(100));
+
+        // Merging two halves gives the whole
+        LatencyHistogram low = new LatencyHistogram();
+        LatencyHistogram high = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            (i <= 5000 ? low : high).record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot merged = low.snapshot().merge(high.snapshot());
+        assertEquals(snapshot.getPercentileNanos(50), merged.getPercentileNanos(50));
+        assertEquals(snapshot.getMaxNanos(), merged.getMaxNanos());
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getPercentileNanos(99));
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("Error: " + actual + " is not within 12.5% of " + expected,
+                Math.abs(actual - expected) <= expected / 8);
+    }
+
+    public void testSilentLinkIsDeclaredDead() {
+        HeartbeatMonitor monitor = new HeartbeatMonitor();
+        FakeLink link = new FakeLink();
+        HeartbeatMonitor.LinkState state = monitor.register(link);
+        monitor.start(60000, 3);
+        try {
+            // Silence before the first ping is not a missed beat
+            monitor.beat();
+            assertEquals(0, state.getMissedCount());
+
+            // Traffic on every beat keeps the link up
+            for (int i = 0; i < 10; i++) {
+                link.mLastReceive++;
+                monitor.beat();
+            }
+            assertEquals(0, state.getMissedCount());
+            assertEquals(11, link.mPings);
+
+            // Two silent beats are not enough
+            monitor.beat();
+            monitor.beat();
+            assertEquals(0, link.mDeadAfter);
+            link.mLastReceive++;
+            monitor.beat();
+            assertEquals(2, state.getMissedCount());
+
+            monitor.beat();
+            monitor.beat();
+            monitor.beat();
+            assertEquals(3, link.mDeadAfter);
+            assertEquals(5, state.getMissedCount());
+
+            // A dead link is not pinged or reported again
+            int pings = link.mPings;
+            monitor.beat();
+            assertEquals(pings, link.mPings);
+        } finally {
+            monitor.shutdown();
+        }
+    }
+
+    /*
+        A sensor that answers the pings of the phone, in ASCII or, after the
+        handshake, in binary frames, until told to go silent.
+     */
+    static class EchoSensor extends Thread implements LineFramer.LineListener,
+            FrameCodec.FrameListener {
+        private final TransportConnection mConnection;
+        private final OutputStream mOut;
+        private final boolean mBinary;
+        private final LineFramer mFramer = new LineFramer();
+        private final FrameCodec.Decoder mDecoder = new FrameCodec.Decoder();
+        private boolean mFraming;
+        volatile boolean mSilent;
+
+        EchoSensor(TransportConnection connection, boolean binary) throws IOException {
+            mConnection = connection;
+            mOut = connection.getOutputStream();
+            mBinary = binary;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[1024];
+            try {
+                InputStream in = mConnection.getInputStream();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    if (mFraming) {
+                        mDecoder.feed(buffer, 0, n, this);
+                    } else {
+                        mFramer.feed(buffer, 0, n, this);
+                        if (mFramer.getStopOffset() >= 0) {
+                            mDecoder.feed(buffer, mFramer.getStopOffset(),
+                                    n - mFramer.getStopOffset(), this);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The phone closed the link
+            }
+        }
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            String line = new String(buffer, offset, length);
+            try {
+                if (mBinary && line.equals(FrameCodec.HANDSHAKE_OFFER)) {
+                    mOut.write((FrameCodec.HANDSHAKE_ACCEPT + "\n").getBytes());
+                    mFraming = true;
+                    mFramer.stop();
+                } else if (line.startsWith("#PING ") && !mSilent) {
+                    mOut.write(("#PONG " + line.substring(6) + "\n").getBytes());
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "echo failed", e);
+            }
+        }
+
+        @Override
+        public void onFrame(int type, int channel, byte[] buffer, int offset, int length) {
+            if (type == FrameCodec.TYPE_PING && !mSilent) {
+                try {
+                    mOut.write(FrameCodec.encode(FrameCodec.TYPE_PONG, channel,
+                            Arrays.copyOfRange(buffer, offset, offset + length)));
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "echo failed", e);
+                }
+            }
+        }
+    }
+
+    public void testServiceHeartbeatAscii() throws Exception {
+        runServiceHeartbeat(false);
+    }
+
+    public void testServiceHeartbeatBinary() throws Exception {
+        runServiceHeartbeat(true);
+    }
+
+    /*
+        Pongs fill the RTT histogram of the connection; once the sensor stops
+        answering, the link is declared dead and the reconnect restores it.
+     */
+    private void runServiceHeartbeat(boolean binary) throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestHeartbeatMonitor");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.getReconnectManager().setBackoff(20, 100);
+        service.setBinaryFramingOffered(binary);
+        service.setHeartbeat(20, 3);
+        TransportServer server = new PipeTransport(network, "sensor").listen(true);
+        try {
+            service.connect("sensor", true);
+            EchoSensor sensor = new EchoSensor(server.accept(), binary);
+            sensor.start();
+            int id = waitForConnection(service);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (service.getRtt(id).getCount() < 10) {
+                assertTrue("Error: only " + service.getRtt(id).getCount() + " pongs",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+            assertEquals(binary, service.isBinaryFraming(id));
+            assertEquals(0, service.getMissedHeartbeats(id));
+            Log.d(LOG_TAG, (binary ? "binary" : "ascii") + " rtt " + service.getRtt(id));
+
+            // The sensor hangs without closing the link
+            sensor.mSilent = true;
+            long start = System.nanoTime();
+            TransportConnection second = server.accept();
+            Log.d(LOG_TAG, "silent link replaced after "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            deadline = System.currentTimeMillis() + 5000;
+            while (service.getReconnectManager().getReconnectCount() == 0) {
+                assertTrue("Error: the link was not restored",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            second.close();
+        } finally {
+            service.stop();
+            service.setHeartbeat(0, 0);
+            server.close();
+            handlerThread.quit();
+        }
+    }
+
+    private static int waitForConnection(BluetoothChatService service)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getConnectionId("sensor") == BluetoothChatService.NO_CONNECTION) {
+            assertTrue("Error: the sensor never connected",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return service.getConnectionId("sensor");
+    }
+}
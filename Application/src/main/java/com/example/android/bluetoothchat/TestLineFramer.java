@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestLineFramer extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLineFramer.class.getSimpleName();
+
+    // Number of reads used by the benchmark
+    private static final int BENCH_READS = 20000;
+
+    /*
+        Collects every delivered line as a String so the tests can compare them.
+     */
+    static class CollectingListener implements LineFramer.LineListener {
+        final List<String> mLines = new ArrayList<String>();
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            mLines.add(new String(buffer, offset, length));
+        }
+    }
+
+    /*
+        Counts lines only, so the benchmark measures the framer and not the listener.
+     */
+    static class CountingListener implements LineFramer.LineListener {
+        long mLines;
+
+        @Override
+        public void onLine(byte[] buffer, int offset, int length) {
+            mLines++;
+        }
+    }
+
+    private static int feed(LineFramer framer, String data, LineFramer.LineListener listener) {
+        byte[] bytes = data.getBytes();
+        return framer.feed(bytes, 0, bytes.length, listener);
+    }
+
+    public void testManyLinesPerRead() {
+        LineFramer framer = new LineFramer();
+        CollectingListener listener = new CollectingListener();
+        assertEquals(3, feed(framer, "21.50\n21.51\n21.52\n", listener));
+        assertEquals("21.50", listener.mLines.get(0));
+        assertEquals("21.51", listener.mLines.get(1));
+        assertEquals("21.52", listener.mLines.get(2));
+        assertEquals(0, framer.getPendingLength());
+    }
+
+    public void testCrLf() {
+        LineFramer framer = new LineFramer();
+        CollectingListener listener = new CollectingListener();
+        feed(framer, "21.50\r\n21.51\r", listener);
+        // The "\r" of the second line arrives before its "\n"
+        feed(framer, "\n", listener);
+        assertEquals(2, listener.mLines.size());
+        assertEquals("21.50", listener.mLines.get(0));
+        assertEquals("21.51", listener.mLines.get(1));
+    }
+
+    public void testLineSplitAcrossReads() {
+        LineFramer framer = new LineFramer();
+        CollectingListener listener = new CollectingListener();
+        assertEquals(0, feed(framer, "21", listener));
+        assertEquals(0, feed(framer, ".5", listener));
+        assertEquals(1, feed(framer, "0\r\n22", listener));
+        assertEquals("21.50", listener.mLines.get(0));
+        assertEquals(2, framer.getPendingLength());
+    }
+
+    public void testOverflowDropsLine() {
+        LineFramer framer = new LineFramer(8);
+        CollectingListener listener = new CollectingListener();
+        feed(framer, "0123456", listener);
+        feed(framer, "789abc\nok\n", listener);
+        assertEquals(1, listener.mLines.size());
+        assertEquals("ok", listener.mLines.get(0));
+        assertEquals(1, framer.getOverflowCount());
+    }
+
+    public void testOverflowWithinOneRead() {
+        LineFramer framer = new LineFramer(8);
+        CollectingListener listener = new CollectingListener();
+        feed(framer, "0123456789abc\nok\n", listener);
+        assertEquals(1, listener.mLines.size());
+        assertEquals("ok", listener.mLines.get(0));
+        assertEquals(1, framer.getOverflowCount());
+    }
+
+    /*
+        Compares the framer with the StringBuilder loop ConnectedThread used before,
+        reporting lines/sec and bytes allocated per line for each.
+     */
+    public void testBenchmark() throws UnsupportedEncodingException {
+        // Reads of 200 bytes carrying 7 byte "dd.dd\r\n" lines, so lines straddle reads
+        byte[] stream = new byte[200 * 7];
+        for (int i = 0; i < stream.length; i += 7) {
+            System.arraycopy("21.53\r\n".getBytes(), 0, stream, i, 7);
+        }
+        byte[] buffer = new byte[1024];
+        final int readSize = 200;
+
+        // Before: decode the whole buffer on every read, take one line per read
+        StringBuilder queue = new StringBuilder("");
+        long legacyLines = 0;
+        long allocated = bytesAllocated();
+        long start = System.nanoTime();
+        for (int r = 0; r < BENCH_READS; r++) {
+            System.arraycopy(stream, (r * readSize) % stream.length, buffer, 0, readSize);
+            String decoded = new String(buffer, "ASCII");
+            queue.append(decoded);
+            int pos = queue.indexOf("\n");
+            // (the old loop threw on pos == 0, skip that case here)
+            if (pos > 0) {
+                String temp = queue.substring(0, pos - 1);
+                queue.delete(0, pos + 1);
+                if (temp.length() > 0) legacyLines++;
+            }
+            // Keep the legacy backlog from growing without bound
+            if (queue.length() > 64 * 1024) queue.setLength(0);
+        }
+        long legacyNanos = System.nanoTime() - start;
+        long legacyBytes = bytesAllocated() - allocated;
+
+        // After: the framer, fed only the bytes actually read
+        LineFramer framer = new LineFramer();
+        CountingListener listener = new CountingListener();
+        allocated = bytesAllocated();
+        start = System.nanoTime();
+        for (int r = 0; r < BENCH_READS; r++) {
+            System.arraycopy(stream, (r * readSize) % stream.length, buffer, 0, readSize);
+            framer.feed(buffer, 0, readSize, listener);
+        }
+        long framerNanos = System.nanoTime() - start;
+        long framerBytes = bytesAllocated() - allocated;
+
+        Log.d(LOG_TAG, "legacy: " + linesPerSecond(legacyLines, legacyNanos) + " lines/s, "
+                + bytesPerLine(legacyBytes, legacyLines) + " bytes/line");
+        Log.d(LOG_TAG, "framer: " + linesPerSecond(listener.mLines, framerNanos) + " lines/s, "
+                + bytesPerLine(framerBytes, listener.mLines) + " bytes/line");
+
+        // The framer returns every line, the legacy loop only one per read
+        assertEquals(BENCH_READS * readSize / 7, listener.mLines);
+        if (allocated < 0) {
+            Log.d(LOG_TAG, "allocations not measured before API 23");
+            return;
+        }
+        // The counter covers the whole process and moves a thread-local
+        // buffer at a time, so allow less than a byte per line
+        assertTrue("Error: the framer allocated " + framerBytes + " bytes for "
+                + listener.mLines + " lines", framerBytes < listener.mLines);
+    }
+
+    /*
+        Bytes the runtime has allocated so far, or -1 where ART does not say.
+     */
+    private static long bytesAllocated() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+    }
+
+    private static long linesPerSecond(long lines, long nanos) {
+        return nanos == 0 ? 0 : lines * 1000000000L / nanos;
+    }
+
+    private static long bytesPerLine(long bytes, long lines) {
+        return lines == 0 ? 0 : bytes / lines;
+    }
+}
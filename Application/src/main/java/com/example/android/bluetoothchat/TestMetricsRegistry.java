@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestMetricsRegistry extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMetricsRegistry.class.getSimpleName();
+
+    private static final int THREADS = 8;
+    private static final int ADDS_PER_THREAD = 1000000;
+
+    public void testStripedCounterIsExact() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals((long) THREADS * ADDS_PER_THREAD, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    /*
+        Benchmark: the same contended count on one AtomicLong and on a
+        StripedCounter.
+     */
+    public void testStripedCounterBenchmark() throws InterruptedException {
+        final AtomicLong atomic = new AtomicLong();
+        final StripedCounter striped = new StripedCounter();
+        long atomicNanos = timeThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                    atomic.incrementAndGet();
+                }
+            }
+        });
+        long stripedNanos = timeThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS_PER_THREAD; i++) {
+                    striped.increment();
+                }
+            }
+        });
+        assertEquals(atomic.get(), striped.sum());
+        Log.d(LOG_TAG, THREADS + " threads: AtomicLong "
+                + atomicNanos / ((long) THREADS * ADDS_PER_THREAD / 1000) + " ps/add, striped "
+                + stripedNanos / ((long) THREADS * ADDS_PER_THREAD / 1000) + " ps/add");
+    }
+
+    private static long timeThreads(Runnable body) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(body);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public void testRateMeter() {
+        RateMeter meter = new RateMeter();
+        long second = 1000000000L;
+        long base = 1000 * second;
+        // 100 events in each of 3 seconds, then 400 in the fourth
+        for (int s = 0; s < 3; s++) {
+            for (int i = 0; i < 100; i++) {
+                meter.mark(1, base + s * second + i * 1000);
+            }
+        }
+        meter.mark(400, base + 3 * second);
+        assertEquals(700, meter.getCount());
+
+        // The second in progress is not counted
+        assertEquals(100.0, meter.getRate(1, base + 3 * second + 1));
+        assertEquals(400.0, meter.getRate(1, base + 4 * second));
+        assertEquals(175.0, meter.getRate(4, base + 4 * second));
+
+        // Seconds that went by without events count as 0
+        assertEquals(0.0, meter.getRate(1, base + 10 * second));
+        // Slots are reused after a full turn of the ring
+        meter.mark(5, base + (RateMeter.MAX_WINDOW + 1) * second);
+        assertEquals(5.0, meter.getRate(1, base + (RateMeter.MAX_WINDOW + 2) * second));
+    }
+
+    public void testRetiredScopesStayInTotals() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Scope a = registry.scope("connection 1");
+        MetricsRegistry.Scope b = registry.scope("connection 2");
+        assertSame(a, registry.scope("connection 1"));
+        a.counter("bytes_in").add(100);
+        b.counter("bytes_in").add(20);
+        b.gauge("dropped", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return 7;
+            }
+        });
+        assertEquals(120, registry.getTotal("bytes_in"));
+
+        registry.retire(a);
+        registry.retire(a);
+        a.counter("bytes_in").add(1000);
+        assertEquals(120, registry.getTotal("bytes_in"));
+        registry.retire(b);
+        assertEquals(7, registry.getTotal("dropped"));
+
+        StringWriter text = new StringWriter();
+        registry.dump(new PrintWriter(text));
+        assertFalse(text.toString().contains("connection 1"));
+        assertTrue(text.toString().contains("bytes_in = 120"));
+    }
+
+    /*
+        Streams lines and a malformed overlong one through the service and
+        checks the connection's counters and the dump.
+     */
+    public void testServiceCounters() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestMetricsRegistry");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        TransportServer server = new PipeTransport(network, "sensor").listen(true);
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        try {
+            service.connect("sensor", true);
+            TransportConnection sensor = server.accept();
+            OutputStream out = sensor.getOutputStream();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (service.getConnectionId("sensor") == BluetoothChatService.NO_CONNECTION) {
+                assertTrue("Error: the sensor never connected",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+
+            final int lines = 10000;
+            byte[] line = "21.53\r\n".getBytes();
+            for (int i = 0; i < lines; i++) {
+                out.write(line);
+            }
+            out.write(new byte[LineFramer.DEFAULT_MAX_LINE + 10]);
+            out.write("\n".getBytes());
+            service.write("hello".getBytes());
+            sensor.getInputStream().read(new byte[16]);
+
+            MetricsRegistry metrics = service.getMetrics();
+            deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getTotal("malformed_lines") == 0
+                    || metrics.getTotal("messages_out") == 0) {
+                assertTrue("Error: counters did not move, lines "
+                        + metrics.getTotal("lines"), System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertEquals((long) lines * line.length + LineFramer.DEFAULT_MAX_LINE + 11,
+                    metrics.getTotal("bytes_in"));
+            assertEquals(lines, metrics.getTotal("lines"));
+            assertEquals(1, metrics.getTotal("malformed_lines"));
+            assertEquals(5, metrics.getTotal("bytes_out"));
+            assertEquals(0, metrics.getTotal("write_failures"));
+
+            StringWriter text = new StringWriter();
+            service.dump(new PrintWriter(text));
+            Log.d(LOG_TAG, text.toString());
+            assertTrue(text.toString().contains("connection 1 sensor:"));
+
+            // The counters of a closed connection stay in the totals
+            sensor.close();
+            deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getTotal("connections_lost") == 0) {
+                assertTrue("Error: the loss was not counted",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertEquals(lines, metrics.getTotal("lines"));
+        } finally {
+            service.stop();
+            server.close();
+            handlerThread.quit();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestMultiConnection extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMultiConnection.class.getSimpleName();
+
+    // Number of simulated sensors in the load test
+    private static final int SENSORS = 40;
+    private static final int LINES_PER_SENSOR = 20000;
+
+    private HandlerThread mHandlerThread;
+    private PipeTransport.Network mNetwork;
+    private BluetoothChatService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestMultiConnection");
+        mHandlerThread.start();
+        mNetwork = new PipeTransport.Network();
+        mService = new BluetoothChatService(new Handler(mHandlerThread.getLooper()),
+                new PipeTransport(mNetwork, "phone"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mService.stop();
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    /*
+        A simulated sensor: listens on the pipe network and, once the phone
+        connects, streams a fixed number of readings.
+     */
+    static class Sensor extends Thread {
+        final String mAddress;
+        final TransportServer mServer;
+        final int mLines;
+        volatile TransportConnection mConnection;
+
+        Sensor(PipeTransport.Network network, String address, int lines) throws IOException {
+            mAddress = address;
+            mServer = new PipeTransport(network, address).listen(true);
+            mLines = lines;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mConnection = mServer.accept();
+                OutputStream out = mConnection.getOutputStream();
+                byte[] line = "21.53\r\n".getBytes();
+                for (int i = 0; i < mLines; i++) {
+                    out.write(line);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "sensor " + mAddress + " failed", e);
+            }
+        }
+
+        void close() throws IOException {
+            if (mConnection != null) mConnection.close();
+            mServer.close();
+        }
+    }
+
+    private void waitForConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mService.getConnectionCount() < count) {
+            assertTrue("Error: only " + mService.getConnectionCount() + " of " + count
+                    + " devices connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void waitForSamples(String address, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        SampleRing ring = mService.getSampleRing(mService.getConnectionId(address));
+        assertNotNull("Error: no connection to " + address, ring);
+        while (ring.getWriteSequence() < count) {
+            assertTrue("Error: " + address + " delivered " + ring.getWriteSequence()
+                    + " of " + count + " samples", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public void testConnectionIdsAreDistinct() throws Exception {
+        Sensor a = new Sensor(mNetwork, "sensor-a", 0);
+        Sensor b = new Sensor(mNetwork, "sensor-b", 0);
+        a.start();
+        b.start();
+        mService.connect("sensor-a", true);
+        mService.connect("sensor-b", true);
+        waitForConnections(2);
+
+        int idA = mService.getConnectionId("sensor-a");
+        int idB = mService.getConnectionId("sensor-b");
+        assertTrue(idA != BluetoothChatService.NO_CONNECTION);
+        assertTrue(idA != idB);
+        assertEquals("sensor-b", mService.getConnectionAddress(idB));
+
+        // Dropping one device leaves the other connected
+        mService.disconnect(idA);
+        assertEquals(1, mService.getConnectionCount());
+        assertEquals(BluetoothChatService.STATE_CONNECTED, mService.getState());
+        a.close();
+        b.close();
+    }
+
+    public void testAcceptWhileConnected() throws Exception {
+        mService.start();
+        PipeTransport sensorTransport = new PipeTransport(mNetwork, "sensor-in-1");
+        TransportConnection first = sensorTransport.createConnection("phone", true);
+        first.connect();
+        waitForConnections(1);
+
+        // The phone keeps listening after the first device connected
+        TransportConnection second = new PipeTransport(mNetwork, "sensor-in-2")
+                .createConnection("phone", true);
+        second.connect();
+        waitForConnections(2);
+        first.close();
+        second.close();
+    }
+
+    /*
+        Load test: dozens of simulated sensors stream at once, while one more
+        sensor is connected but stalled. Every sensor's samples must arrive.
+     */
+    public void testManySensors() throws Exception {
+        List<Sensor> sensors = new ArrayList<Sensor>();
+        for (int i = 0; i < SENSORS; i++) {
+            sensors.add(new Sensor(mNetwork, "sensor-" + i, LINES_PER_SENSOR));
+        }
+        Sensor stalled = new Sensor(mNetwork, "sensor-stalled", 0);
+        stalled.start();
+        mService.connect("sensor-stalled", true);
+
+        long start = System.nanoTime();
+        for (Sensor sensor : sensors) {
+            sensor.start();
+            mService.connect(sensor.mAddress, true);
+        }
+        waitForConnections(SENSORS + 1);
+        for (Sensor sensor : sensors) {
+            waitForSamples(sensor.mAddress, LINES_PER_SENSOR);
+        }
+        long nanos = System.nanoTime() - start;
+        Log.d(LOG_TAG, SENSORS + " sensors: "
+                + ((long) SENSORS * LINES_PER_SENSOR * 1000000000L / nanos) + " lines/s total");
+
+        for (Sensor sensor : sensors) {
+            sensor.close();
+        }
+        stalled.close();
+    }
+}
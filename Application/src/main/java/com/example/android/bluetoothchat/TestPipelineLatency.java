@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.OutputStream;
+
+public class TestPipelineLatency extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestPipelineLatency.class.getSimpleName();
+
+    public void testRecordsOnlyWhenEnabled() {
+        PipelineLatency latency = new PipelineLatency();
+        long read = System.nanoTime();
+        latency.record(PipelineLatency.STAGE_FRAMED, read, 5);
+        assertEquals(0, latency.snapshot()[PipelineLatency.STAGE_FRAMED].getCount());
+
+        latency.setEnabled(true);
+        latency.record(PipelineLatency.STAGE_FRAMED, read, read + 2000000, 5);
+        latency.record(PipelineLatency.STAGE_DISPLAYED, new long[]{read, read}, 0, 2);
+        LatencyHistogram.Snapshot[] snapshot = latency.snapshot();
+        assertEquals(5, snapshot[PipelineLatency.STAGE_FRAMED].getCount());
+        assertEquals(2000000, snapshot[PipelineLatency.STAGE_FRAMED].getMaxNanos());
+        assertEquals(2, snapshot[PipelineLatency.STAGE_DISPLAYED].getCount());
+        assertEquals(0, snapshot[PipelineLatency.STAGE_PERSISTED].getCount());
+
+        // Stages without samples are left out of the overlay
+        String text = PipelineLatency.format(snapshot);
+        assertTrue(text.startsWith("framed"));
+        assertEquals(2, text.split("\n").length);
+
+        latency.reset();
+        assertEquals(0, latency.snapshot()[PipelineLatency.STAGE_FRAMED].getCount());
+    }
+
+    /*
+        Streams samples through the service over the in-memory transport and
+        drains them like the Handler does; every stage sees every sample and
+        the later stages are never faster than the earlier ones.
+     */
+    public void testServiceStages() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestPipelineLatency");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        TransportServer server = new PipeTransport(network, "sensor").listen(true);
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        PipelineLatency latency = service.getPipelineLatency();
+        latency.setEnabled(true);
+        try {
+            service.connect("sensor", true);
+            TransportConnection sensor = server.accept();
+            OutputStream out = sensor.getOutputStream();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (service.getConnectionId("sensor") == BluetoothChatService.NO_CONNECTION) {
+                assertTrue("Error: the sensor never connected",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            int id = service.getConnectionId("sensor");
+
+            final int samples = 20000;
+            long[] times = new long[256];
+            float[] values = new float[256];
+            int drained = 0;
+            byte[] line = "21.53\r\n".getBytes();
+            for (int i = 0; i < samples; i++) {
+                out.write(line);
+                if (i % 100 == 99) {
+                    drained += service.drainSamples(id, times, values);
+                }
+            }
+            deadline = System.currentTimeMillis() + 10000;
+            while (drained < samples) {
+                assertTrue("Error: only " + drained + " samples drained",
+                        System.currentTimeMillis() < deadline);
+                drained += service.drainSamples(id, times, values);
+            }
+
+            LatencyHistogram.Snapshot[] snapshot = latency.snapshot();
+            Log.d(LOG_TAG, "\n" + PipelineLatency.format(snapshot));
+            assertEquals(samples, snapshot[PipelineLatency.STAGE_READ].getCount());
+            assertEquals(samples, snapshot[PipelineLatency.STAGE_FRAMED].getCount());
+            assertEquals(samples, snapshot[PipelineLatency.STAGE_DISPATCHED].getCount());
+            assertTrue(snapshot[PipelineLatency.STAGE_READ].getPercentileNanos(50)
+                    <= snapshot[PipelineLatency.STAGE_FRAMED].getPercentileNanos(50));
+            assertTrue(snapshot[PipelineLatency.STAGE_FRAMED].getMaxNanos()
+                    <= snapshot[PipelineLatency.STAGE_DISPATCHED].getMaxNanos());
+            sensor.close();
+        } finally {
+            service.stop();
+            server.close();
+            handlerThread.quit();
+        }
+    }
+}
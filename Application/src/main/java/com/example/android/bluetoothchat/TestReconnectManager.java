@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestReconnectManager extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestReconnectManager.class.getSimpleName();
+
+    /*
+        Records the attempts instead of connecting, so the tests decide
+        how each one ends.
+     */
+    static class RecordingConnector implements ReconnectManager.Connector {
+        final List<String> mAttempts = new ArrayList<String>();
+        final List<Long> mTimes = new ArrayList<Long>();
+        final List<String> mGaveUp = new ArrayList<String>();
+
+        @Override
+        public synchronized void connect(String address, boolean secure) {
+            mAttempts.add(address);
+            mTimes.add(System.nanoTime());
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onGaveUp(String address) {
+            mGaveUp.add(address);
+        }
+
+        synchronized void awaitAttempts(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mAttempts.size() < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("Error: " + mAttempts.size() + " of " + count + " attempts made",
+                        left > 0);
+                wait(left);
+            }
+        }
+
+        synchronized int count() {
+            return mAttempts.size();
+        }
+    }
+
+    private RecordingConnector mConnector;
+    private ReconnectManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mConnector = new RecordingConnector();
+        mManager = new ReconnectManager(mConnector);
+        mManager.setBackoff(40, 160);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mManager.shutdown();
+        super.tearDown();
+    }
+
+    public void testBackoffBounds() {
+        for (int i = 0; i < 100; i++) {
+            long first = mManager.backoff(1);
+            assertTrue(first >= 20 && first <= 40);
+            long third = mManager.backoff(3);
+            assertTrue(third >= 80 && third <= 160);
+            // Capped from then on
+            long tenth = mManager.backoff(10);
+            assertTrue(tenth >= 80 && tenth <= 160);
+        }
+    }
+
+    public void testFirstAttemptIsImmediate() throws Exception {
+        mManager.remember("sensor", true);
+        long lost = System.nanoTime();
+        mManager.onConnectionLost("sensor");
+        mConnector.awaitAttempts(1);
+        assertTrue("Error: the fast path waited",
+                (mConnector.mTimes.get(0) - lost) / 1000000 < 20);
+
+        // Later attempts back off
+        mManager.onAttemptFailed("sensor");
+        mConnector.awaitAttempts(2);
+        long waited = (mConnector.mTimes.get(1) - mConnector.mTimes.get(0)) / 1000000;
+        assertTrue("Error: retried after " + waited + " ms", waited >= 20);
+
+        mManager.onConnected("sensor");
+        assertFalse(mManager.isReconnecting("sensor"));
+        assertEquals(1, mManager.getReconnectCount());
+        assertTrue(mManager.getMaxReconnectMillis() >= waited);
+    }
+
+    public void testUnknownDeviceIsIgnored() throws Exception {
+        mManager.onConnectionLost("stranger");
+        Thread.sleep(50);
+        assertEquals(0, mConnector.count());
+    }
+
+    public void testConcurrentAttemptsAreCapped() throws Exception {
+        mManager.setMaxConcurrentAttempts(2);
+        mManager.remember("a", true);
+        mManager.remember("b", true);
+        mManager.remember("c", true);
+        mManager.onConnectionLost("a");
+        mManager.onConnectionLost("b");
+        mManager.onConnectionLost("c");
+        mConnector.awaitAttempts(2);
+        Thread.sleep(50);
+        assertEquals(2, mConnector.count());
+
+        // A slot frees up and the waiting device gets it
+        String first = mConnector.mAttempts.get(0);
+        mManager.onConnected(first);
+        mConnector.awaitAttempts(3);
+        assertEquals("c", mConnector.mAttempts.get(2));
+    }
+
+    public void testGivesUpAndCancels() throws Exception {
+        mManager.setMaxAttempts(2);
+        mManager.remember("sensor", false);
+        mManager.onConnectionLost("sensor");
+        mConnector.awaitAttempts(1);
+        mManager.onAttemptFailed("sensor");
+        mConnector.awaitAttempts(2);
+        mManager.onAttemptFailed("sensor");
+        assertEquals(1, mConnector.mGaveUp.size());
+        assertEquals(1, mManager.getGaveUpCount());
+
+        // Cancelling drops the retry scheduled after a failure
+        mManager.setMaxAttempts(0);
+        mManager.onConnectionLost("sensor");
+        mConnector.awaitAttempts(3);
+        mManager.onAttemptFailed("sensor");
+        mManager.cancel("sensor");
+        Thread.sleep(250);
+        assertEquals(3, mConnector.count());
+    }
+
+    /*
+        A sensor drops the link and comes back: the service reconnects on its
+        own and reports the time it took.
+     */
+    public void testServiceReconnects() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestReconnectManager");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.getReconnectManager().setBackoff(20, 100);
+        TransportServer sensor = new PipeTransport(network, "sensor").listen(true);
+        try {
+            service.connect("sensor", true);
+            TransportConnection first = sensor.accept();
+            waitForConnection(service, true);
+
+            // The link drops; the sensor keeps listening
+            first.close();
+            TransportConnection second = sensor.accept();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (service.getReconnectManager().getReconnectCount() == 0) {
+                assertTrue("Error: the link was not restored",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            Log.d(LOG_TAG, "time to reconnect: "
+                    + service.getReconnectManager().getLastReconnectMillis() + " ms");
+
+            // A disconnect asked for by the user is not undone
+            service.disconnect(service.getConnectionId("sensor"));
+            Thread.sleep(100);
+            assertEquals(0, service.getConnectionCount());
+            second.close();
+        } finally {
+            service.stop();
+            sensor.close();
+            handlerThread.quit();
+        }
+    }
+
+    private static void waitForConnection(BluetoothChatService service, boolean connected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((service.getConnectionId("sensor") != BluetoothChatService.NO_CONNECTION)
+                != connected) {
+            assertTrue("Error: connection state did not change",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.transport.PipeTransport;
+import com.example.android.bluetoothchat.transport.TransportConnection;
+import com.example.android.bluetoothchat.transport.TransportServer;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestSampleIngest extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSampleIngest.class.getSimpleName();
+
+    // Benchmark: this many rings, each written as fast as it goes
+    private static final int BENCH_SENSORS = 40;
+    private static final int BENCH_SAMPLES = 50000;
+
+    private SampleIngest mIngest;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mIngest != null) {
+            mIngest.stop();
+        }
+        super.tearDown();
+    }
+
+    /*
+        Keeps what it is given, one list entry per transaction, and can be
+        held shut while the first transaction runs.
+     */
+    static class MemoryStore implements SampleStore, SampleStore.SensorIds {
+        final List<Integer> mTransactions = new ArrayList<Integer>();
+        final CountDownLatch mGate;
+        final CountDownLatch mEntered = new CountDownLatch(1);
+        long mRows;
+        long mFirstCreated = -1;
+        long mLastCreated = -1;
+        long mSensorIds;
+
+        MemoryStore(boolean held) {
+            mGate = new CountDownLatch(held ? 1 : 0);
+        }
+
+        @Override
+        public long sensorIdFor(String address) {
+            return address.startsWith("sensor-") ? Long.parseLong(address.substring(7)) : -1;
+        }
+
+        @Override
+        public long getLastCreated(long sensorId) {
+            return -1;
+        }
+
+        @Override
+        public int insert(long[] sensorIds, long[] created, float[] values, int count) {
+            mEntered.countDown();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                mTransactions.add(count);
+                mRows += count;
+                for (int i = 0; i < count; i++) {
+                    mSensorIds |= 1L << sensorIds[i];
+                }
+                if (mFirstCreated < 0) {
+                    mFirstCreated = created[0];
+                }
+                mLastCreated = created[count - 1];
+            }
+            return count;
+        }
+
+        synchronized long rows() {
+            return mRows;
+        }
+    }
+
+    private void waitForStored(long rows) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mIngest.getStoredCount() < rows) {
+            assertTrue("Error: " + mIngest.getStoredCount() + " of " + rows + " rows stored",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public void testFlushEveryNRows() throws Exception {
+        MemoryStore store = new MemoryStore(false);
+        mIngest = new SampleIngest(store, store, 100, 60000);
+        SampleRing ring = new SampleRing(4096);
+        mIngest.register("sensor-1", ring);
+        mIngest.start();
+        for (int i = 0; i < 1000; i++) {
+            ring.add(System.nanoTime(), i);
+        }
+        waitForStored(1000);
+        // Never more than a batch per transaction, and no row waited for the timeout
+        for (int rows : store.mTransactions) {
+            assertTrue("Error: " + rows + " rows in one transaction", rows <= 100);
+        }
+        assertEquals(store.mTransactions.size(), mIngest.getFlushCount());
+        assertEquals(1L << 1, store.mSensorIds);
+    }
+
+    public void testFlushAfterTimeout() throws Exception {
+        MemoryStore store = new MemoryStore(false);
+        mIngest = new SampleIngest(store, store, 10000, 50);
+        SampleRing ring = new SampleRing(4096);
+        mIngest.register("sensor-2", ring);
+        mIngest.start();
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            ring.add(System.nanoTime(), i);
+        }
+        long after = System.currentTimeMillis();
+        waitForStored(5);
+        assertEquals(1, mIngest.getFlushCount());
+        // Capture times are stored as wall clock time
+        assertTrue(store.mFirstCreated >= before - 1 && store.mLastCreated <= after + 1);
+    }
+
+    public void testUnknownDeviceIsSkipped() throws Exception {
+        MemoryStore store = new MemoryStore(false);
+        mIngest = new SampleIngest(store, store, 10, 10);
+        SampleRing unknown = new SampleRing(64);
+        SampleRing known = new SampleRing(64);
+        mIngest.register("phone", unknown);
+        mIngest.register("sensor-3", known);
+        mIngest.start();
+        unknown.add(System.nanoTime(), 1);
+        known.add(System.nanoTime(), 2);
+        waitForStored(1);
+        mIngest.stop();
+        assertEquals(1, store.rows());
+    }
+
+    /*
+        Holds the first transaction while samples pile up in a ring, and
+        returns the ingest once everything was stored.
+     */
+    private SampleIngest lag(int policy, int piledUp) throws Exception {
+        MemoryStore store = new MemoryStore(true);
+        mIngest = new SampleIngest(store, store, 10, 10);
+        mIngest.setPolicy(policy);
+        SampleRing ring = new SampleRing(1024);
+        mIngest.register("sensor-4", ring);
+        mIngest.start();
+        for (int i = 0; i < 10; i++) {
+            ring.add(System.nanoTime(), i);
+        }
+        assertTrue(store.mEntered.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < piledUp; i++) {
+            ring.add(System.nanoTime(), 20);
+        }
+        store.mGate.countDown();
+        mIngest.stop();
+        SampleIngest ingest = mIngest;
+        mIngest = null;
+        return ingest;
+    }
+
+    public void testLagPolicies() throws Exception {
+        // Within the ring, dropping loses nothing
+        SampleIngest ingest = lag(SampleIngest.POLICY_DROP, 900);
+        assertEquals(910, ingest.getStoredCount());
+        assertEquals(0, ingest.getDroppedCount());
+
+        // Past the ring, the oldest samples are lost, and the slot being written
+        ingest = lag(SampleIngest.POLICY_DROP, 1500);
+        assertEquals(10 + 1023, ingest.getStoredCount());
+        assertEquals(1500 - 1023, ingest.getDroppedCount());
+
+        // More than half a ring behind, runs of samples are stored as their means
+        ingest = lag(SampleIngest.POLICY_AGGREGATE, 900);
+        assertEquals(900, ingest.getAggregatedCount());
+        assertEquals(10 + 225, ingest.getStoredCount());
+        assertEquals(0, ingest.getDroppedCount());
+    }
+
+    /*
+        Throughput of the ingest stage itself, with a store that costs
+        nothing: many rings written as fast as the stage keeps up with.
+     */
+    public void testBenchmark() throws Exception {
+        MemoryStore store = new MemoryStore(false);
+        mIngest = new SampleIngest(store, store);
+        final SampleIngest ingest = mIngest;
+        final List<SampleRing> rings = new ArrayList<SampleRing>();
+        for (int i = 0; i < BENCH_SENSORS; i++) {
+            SampleRing ring = new SampleRing(4096);
+            rings.add(ring);
+            mIngest.register("sensor-" + i, ring);
+        }
+        mIngest.start();
+        long start = System.nanoTime();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < BENCH_SAMPLES; i++) {
+                    for (SampleRing ring : rings) {
+                        ring.add(System.nanoTime(), i);
+                    }
+                    // Stay well within a ring of the ingest thread, so nothing is lost
+                    long written = (long) (i + 1) * BENCH_SENSORS;
+                    while (written - ingest.getStoredCount() > BENCH_SENSORS * 1024L) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        writer.start();
+        writer.join();
+        mIngest.stop();
+        long nanos = System.nanoTime() - start;
+        long rows = mIngest.getStoredCount();
+        Log.d(LOG_TAG, BENCH_SENSORS + " sensors: " + (rows * 1000000000L / nanos)
+                + " rows/s in " + mIngest.getFlushCount() + " transactions, "
+                + mIngest.getDroppedCount() + " dropped");
+        assertEquals((long) BENCH_SENSORS * BENCH_SAMPLES, rows);
+        assertEquals(0, mIngest.getDroppedCount());
+    }
+
+    /*
+        The service registers every connection, and the persisted stage of
+        the latency breakdown sees every stored sample.
+     */
+    public void testServiceIngest() throws Exception {
+        HandlerThread handlerThread = new HandlerThread("TestSampleIngest");
+        handlerThread.start();
+        PipeTransport.Network network = new PipeTransport.Network();
+        TransportServer server = new PipeTransport(network, "sensor-5").listen(true);
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(handlerThread.getLooper()), new PipeTransport(network, "phone"));
+        service.getPipelineLatency().setEnabled(true);
+        MemoryStore store = new MemoryStore(false);
+        mIngest = new SampleIngest(store, store, 500, 20);
+        mIngest.start();
+        service.setSampleIngest(mIngest);
+        try {
+            service.connect("sensor-5", true);
+            TransportConnection sensor = server.accept();
+            OutputStream out = sensor.getOutputStream();
+            for (int i = 0; i < 2000; i++) {
+                out.write("21.53\r\n".getBytes());
+            }
+            waitForStored(2000);
+            assertEquals(1L << 5, store.mSensorIds);
+            assertEquals(2000, service.getPipelineLatency().snapshot()
+                    [PipelineLatency.STAGE_PERSISTED].getCount());
+            sensor.close();
+        } finally {
+            service.stop();
+            server.close();
+            handlerThread.quit();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class TestSampleRing extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSampleRing.class.getSimpleName();
+
+    private static float parse(String line) {
+        byte[] bytes = line.getBytes();
+        return SampleParser.parseFloat(bytes, 0, bytes.length);
+    }
+
+    public void testParseFloat() {
+        assertEquals(21.53f, parse("21.53"), 0f);
+        assertEquals(-0.5f, parse("-0.5"), 0f);
+        assertEquals(12f, parse("+12"), 0f);
+        assertEquals(7f, parse(" 7. "), 0f);
+        assertEquals(0.25f, parse(".25"), 0f);
+        assertTrue(Float.isNaN(parse("")));
+        assertTrue(Float.isNaN(parse("-")));
+        assertTrue(Float.isNaN(parse("hello")));
+        assertTrue(Float.isNaN(parse("1.2.3")));
+        // More integer digits than the power table covers
+        assertEquals(1e36f, parse("1000000000000000000000000000000000000"), 1e30f);
+        assertEquals(Float.POSITIVE_INFINITY, parse("1234567890123456789012345678901234567890"), 0f);
+        assertEquals(Float.NEGATIVE_INFINITY, parse("-1234567890123456789012345678901234567890"), 0f);
+    }
+
+    public void testReaderWrapsAround() {
+        SampleRing ring = new SampleRing(4);
+        SampleRing.Reader reader = ring.newReader();
+        long[] times = new long[8];
+        float[] values = new float[8];
+
+        for (int i = 0; i < 3; i++) ring.add(i, i);
+        assertEquals(3, reader.drain(times, values));
+        for (int i = 3; i < 6; i++) ring.add(i, i);
+        assertEquals(3, reader.drain(times, values));
+        assertEquals(3L, times[0]);
+        assertEquals(5f, values[2], 0f);
+        assertEquals(0, reader.drain(times, values));
+    }
+
+    public void testSlowReaderDropsOldest() {
+        SampleRing ring = new SampleRing(4);
+        SampleRing.Reader reader = ring.newReader();
+        long[] times = new long[8];
+        float[] values = new float[8];
+
+        for (int i = 0; i < 10; i++) ring.add(i, i);
+        int count = reader.drain(times, values);
+        // The newest sample's slot is treated as possibly torn, so at most capacity - 1
+        assertTrue(count > 0 && count <= 4);
+        assertEquals(9f, values[count - 1], 0f);
+        assertEquals(10, reader.getDroppedCount() + count);
+    }
+
+    /*
+        Reports the cost per sample of parsing a line and adding it to the ring,
+        which is what ConnectedThread does for every line.
+     */
+    public void testParseAndAddCost() {
+        byte[] line = "21.53".getBytes();
+        SampleRing ring = new SampleRing(4096);
+        final int samples = 1000000;
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            ring.add(start, SampleParser.parseFloat(line, 0, line.length));
+        }
+        long nanos = System.nanoTime() - start;
+        Log.d(LOG_TAG, "parse + add: " + (nanos / samples) + " ns/sample");
+        assertEquals(samples, ring.getWriteSequence());
+    }
+}
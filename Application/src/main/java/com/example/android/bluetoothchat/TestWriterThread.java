@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestWriterThread extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWriterThread.class.getSimpleName();
+
+    // Size of a file chunk frame, see BulkTransfer
+    private static final int BULK_MESSAGE = FrameCodec.MAX_PAYLOAD + 7;
+    // Nanoseconds the simulated link takes per byte, about 2 MB/s
+    private static final long LINK_NANOS_PER_BYTE = 500;
+
+    /*
+        Records the bytes written and how many write() calls it took, and can
+        be held shut to let messages pile up in the queue.
+     */
+    static class RecordingStream extends OutputStream {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final CountDownLatch mGate = new CountDownLatch(1);
+        int mWrites;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mBytes.write(b, off, len);
+            mWrites++;
+        }
+    }
+
+    static class CountingListener implements WriterThread.Listener {
+        final CountDownLatch mWritten;
+
+        CountingListener(int expected) {
+            mWritten = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onWritten(byte[] message) {
+            mWritten.countDown();
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            fail("Error: write failed " + e);
+        }
+    }
+
+    public void testSmallWritesAreCoalesced() throws InterruptedException {
+        RecordingStream out = new RecordingStream();
+        CountingListener listener = new CountingListener(101);
+        WriterThread writer = new WriterThread(out, listener);
+        writer.start();
+
+        // The first message blocks in write(), the other 100 queue up behind it
+        assertTrue(writer.offer("a".getBytes()));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.offer("b".getBytes()));
+        }
+        out.mGate.countDown();
+        assertTrue(listener.mWritten.await(5, TimeUnit.SECONDS));
+
+        assertEquals(101, out.mBytes.size());
+        assertTrue("Error: " + out.mWrites + " writes for 101 messages", out.mWrites <= 3);
+        writer.cancel();
+    }
+
+    public void testOverflowPolicies() {
+        // Not started, so nothing leaves the queue
+        WriterThread writer = new WriterThread(new RecordingStream(),
+                new CountingListener(0), new OutboundQueue(2));
+        assertTrue(writer.offer(new byte[1]));
+        assertTrue(writer.offer(new byte[2]));
+        assertFalse(writer.offer(new byte[3]));
+        assertEquals(1, writer.getQueue().getDroppedCount());
+
+        writer.getQueue().setOverflowPolicy(OutboundQueue.OVERFLOW_DROP_OLDEST);
+        assertTrue(writer.offer(new byte[4]));
+        assertEquals(2, writer.getQueue().size());
+        assertEquals(2, writer.getQueue().getDroppedCount());
+    }
+
+    public void testControlOvertakesBulk() throws InterruptedException {
+        RecordingStream out = new RecordingStream();
+        CountingListener listener = new CountingListener(102);
+        WriterThread writer = new WriterThread(out, listener);
+        writer.start();
+
+        // The first chunk blocks in write(), 100 more queue up behind it
+        assertTrue(writer.offer(new byte[BULK_MESSAGE], OutboundQueue.PRIORITY_BULK));
+        while (writer.getQueue().size() > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.offer(new byte[BULK_MESSAGE], OutboundQueue.PRIORITY_BULK));
+        }
+        assertTrue(writer.offer("c".getBytes()));
+        out.mGate.countDown();
+        assertTrue(listener.mWritten.await(5, TimeUnit.SECONDS));
+
+        // Only the chunk already being written went out before the command
+        byte[] bytes = out.mBytes.toByteArray();
+        assertEquals('c', bytes[BULK_MESSAGE]);
+        writer.cancel();
+    }
+
+    public void testBulkIsNotStarved() {
+        OutboundQueue queue = new OutboundQueue();
+        for (int i = 0; i < 2 * OutboundQueue.CONTROL_BURST; i++) {
+            queue.offer(new byte[]{'c'});
+        }
+        queue.offer(new byte[]{'b'}, OutboundQueue.PRIORITY_BULK);
+        byte[] batch = new byte[4096];
+        ArrayList<byte[]> messages = new ArrayList<byte[]>();
+        assertEquals(2 * OutboundQueue.CONTROL_BURST + 1, queue.fillBatch(batch, messages));
+        assertEquals('b', batch[OutboundQueue.CONTROL_BURST]);
+        assertEquals(0, queue.size());
+    }
+
+    /*
+        A link of about 2 MB/s, written in chunks like a socket.
+     */
+    static class SlowStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            long until = System.nanoTime() + len * LINK_NANOS_PER_BYTE;
+            while (System.nanoTime() < until) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /*
+        Records how long each control message took from offer() to written.
+     */
+    static class LatencyListener implements WriterThread.Listener {
+        final ConcurrentHashMap<byte[], Long> mOffered = new ConcurrentHashMap<byte[], Long>();
+        final LatencyHistogram mLatency = new LatencyHistogram();
+
+        @Override
+        public void onWritten(byte[] message) {
+            Long offered = mOffered.remove(message);
+            if (offered != null) {
+                mLatency.record(System.nanoTime() - offered);
+            }
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            fail("Error: write failed " + e);
+        }
+    }
+
+    /*
+        Sends commands every few milliseconds while another thread keeps the
+        queue full of file chunks, and returns the latency of the commands.
+     */
+    private LatencyHistogram.Snapshot controlLatency(final int bulkPriority)
+            throws InterruptedException {
+        final LatencyListener listener = new LatencyListener();
+        final WriterThread writer = new WriterThread(new SlowStream(), listener);
+        writer.getQueue().setOverflowPolicy(OutboundQueue.OVERFLOW_BLOCK);
+        writer.start();
+        Thread bulk = new Thread() {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    if (!writer.offer(new byte[BULK_MESSAGE], bulkPriority)) {
+                        return;
+                    }
+                }
+            }
+        };
+        bulk.start();
+        // Let the queue fill up
+        Thread.sleep(200);
+        for (int i = 0; i < 100; i++) {
+            byte[] command = ("#RATE " + i + "\n").getBytes();
+            listener.mOffered.put(command, System.nanoTime());
+            writer.offer(command);
+            Thread.sleep(5);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (listener.mLatency.getCount() < 100) {
+            assertTrue("Error: only " + listener.mLatency.getCount() + " commands written",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        bulk.interrupt();
+        writer.cancel();
+        bulk.join();
+        return listener.mLatency.snapshot();
+    }
+
+    /*
+        Control latency while a bulk sender saturates the link, with the
+        chunks in their own class and, for comparison, in the same queue.
+     */
+    public void testControlLatencyUnderBulkLoad() throws InterruptedException {
+        LatencyHistogram.Snapshot shared = controlLatency(OutboundQueue.PRIORITY_CONTROL);
+        LatencyHistogram.Snapshot lanes = controlLatency(OutboundQueue.PRIORITY_BULK);
+        Log.d(LOG_TAG, "control latency behind bulk, one queue: " + shared);
+        Log.d(LOG_TAG, "control latency behind bulk, priority classes: " + lanes);
+
+        // A command waits for the batch being written, not the whole queue
+        long batchNanos = 4096 * LINK_NANOS_PER_BYTE;
+        assertTrue("Error: p99 " + lanes.getPercentileNanos(99) + " ns",
+                lanes.getPercentileNanos(99) < 10 * batchNanos);
+        assertTrue(lanes.getPercentileNanos(50) * 10 < shared.getPercentileNanos(50));
+    }
+}
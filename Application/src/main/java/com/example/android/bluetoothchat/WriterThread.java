@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * This thread owns the output stream of a connection. Callers queue
+ * messages with {@link #offer(byte[])} and return immediately; the thread
+ * coalesces whatever is queued into one buffer and writes it with a single
+ * write() and flush().
+ */
+public class WriterThread extends Thread {
+    // Debugging
+    private static final String TAG = "WriterThread";
+
+    // Largest number of bytes coalesced into one write
+    private static final int BATCH_BYTES = 4096;
+
+    /**
+     * Told about the outcome of each write. Called on the writer thread.
+     */
+    public interface Listener {
+        /**
+         * The message has been written and flushed.
+         */
+        void onWritten(byte[] message);
+
+        /**
+         * Writing failed; the thread stops after this.
+         */
+        void onWriteFailed(IOException e);
+    }
+
+    private final OutputStream mOutStream;
+    private final Listener mListener;
+    private final OutboundQueue mQueue;
+    private final byte[] mBatch = new byte[BATCH_BYTES];
+    private final ArrayList<byte[]> mBatchMessages = new ArrayList<byte[]>();
+    private volatile boolean mCancelled;
+
+    public WriterThread(OutputStream outStream, Listener listener) {
+        this(outStream, listener, new OutboundQueue());
+    }
+
+    public WriterThread(OutputStream outStream, Listener listener, OutboundQueue queue) {
+        super("WriterThread");
+        mOutStream = outStream;
+        mListener = listener;
+        mQueue = queue;
+    }
+
+    /**
+     * Return the queue this thread drains.
+     */
+    public OutboundQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Queue a message for writing.
+     *
+     * @see OutboundQueue#offer(byte[])
+     */
+    public boolean offer(byte[] message) {
+        return offer(message, OutboundQueue.PRIORITY_CONTROL);
+    }
+
+    /**
+     * Queue a message of a priority class for writing.
+     *
+     * @see OutboundQueue#offer(byte[], int)
+     */
+    public boolean offer(byte[] message, int priority) {
+        return !mCancelled && mQueue.offer(message, priority);
+    }
+
+    public void run() {
+        Log.i(TAG, "BEGIN mWriterThread");
+        try {
+            while (!mCancelled) {
+                mQueue.await();
+                writeBatch();
+            }
+        } catch (InterruptedException e) {
+            // cancel() was called
+        } catch (IOException e) {
+            if (!mCancelled) {
+                Log.e(TAG, "Exception during write", e);
+                mListener.onWriteFailed(e);
+            }
+        }
+        Log.i(TAG, "END mWriterThread");
+    }
+
+    private void writeBatch() throws IOException {
+        try {
+            int length = mQueue.fillBatch(mBatch, mBatchMessages);
+            if (length < 0) {
+                // Too big to coalesce, write it as it is
+                mOutStream.write(mBatchMessages.get(0));
+            } else if (length > 0) {
+                mOutStream.write(mBatch, 0, length);
+            } else {
+                return;
+            }
+            mOutStream.flush();
+            // Only now are the bytes on their way
+            for (int i = 0; i < mBatchMessages.size(); i++) {
+                mListener.onWritten(mBatchMessages.get(i));
+            }
+        } finally {
+            mBatchMessages.clear();
+        }
+    }
+
+    /**
+     * Stop writing and discard whatever is still queued.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mQueue.close();
+        interrupt();
+    }
+}
@@ -29,6 +29,16 @@ public class TemperatureContract {
     public static final String PATH_SENSOR = "sensor";
     public static final String PATH_TEMPERATURE = "temperature";
     public static final String PATH_CALIBRATION = "calibration";
+    public static final String PATH_ROLLUP = "rollup";
+
+    /*
+        ContentResolver.call(BASE_CONTENT_URI, METHOD_VACUUM, null, extras)
+        returns up to EXTRA_PAGES free pages to the file system and answers
+        with the number returned under EXTRA_PAGES. It does nothing on a
+        database created without incremental auto-vacuum.
+     */
+    public static final String METHOD_VACUUM = "vacuum";
+    public static final String EXTRA_PAGES = "pages";
 
     /* Inner class that defines the table contents of the sensor table */
     public static final class SensorEntry implements BaseColumns {
@@ -77,11 +87,72 @@ public class TemperatureContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_TEMPERATURE;
 
+        /*
+            ContentResolver.call(CONTENT_URI, METHOD_INSERT, null, extras) stores
+            readings given as primitive arrays, with no ContentValues per row.
+            The extras hold EXTRA_SENSOR_IDS (long[]), EXTRA_CREATED (long[],
+            milliseconds since the epoch), EXTRA_VALUES (float[]) and EXTRA_COUNT,
+            the number of rows to take from the front of the arrays. The result
+            holds the number of rows stored under EXTRA_COUNT.
+         */
+        public static final String METHOD_INSERT = "insertTemperatures";
+        public static final String EXTRA_SENSOR_IDS = "sensorIds";
+        public static final String EXTRA_CREATED = "created";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_COUNT = "count";
+
+        /*
+            ContentResolver.call(CONTENT_URI, METHOD_PRUNE, before, extras)
+            deletes readings created before the date "before", a bounded
+            range of _ids at a time: AUTOINCREMENT ids grow with created, so
+            the oldest readings are the lowest ids. The extras hold
+            EXTRA_COUNT, the width of the range, and EXTRA_FROM_ID, where to
+            start. The result holds the rows deleted under EXTRA_COUNT and
+            where the next call starts under EXTRA_NEXT_ID, -1 once there is
+            nothing older than "before" left. With RollupEntry.EXTRA_GRANULARITY
+            in the extras the rollups of that granularity are pruned instead.
+            Pruning does not notify observers; the caller does, once it is done.
+         */
+        public static final String METHOD_PRUNE = "prune";
+        public static final String EXTRA_FROM_ID = "fromId";
+        public static final String EXTRA_NEXT_ID = "nextId";
+
         // sacar temperaturas
         public static Uri buildTemperatureUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        /*
+            content://com.example.android.bluetoothchat/temperature/<sensorId>
+            All readings of one sensor, oldest first.
+         */
+        public static Uri buildTemperatureSensor(long sensorId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(sensorId)).build();
+        }
+
+        /*
+            content://com.example.android.bluetoothchat/temperature/<sensorId>/<start>/<end>
+            Readings of one sensor created at or after start and before end.
+            Dates use the same "yyyy-MM-dd HH:mm:ss" UTC form as the created
+            column, so they compare as text.
+         */
+        public static Uri buildTemperatureSensorWithRange(long sensorId, String start, String end) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(sensorId))
+                    .appendPath(start).appendPath(end).build();
+        }
+
+        public static String getSensorFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getStartDateFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        public static String getEndDateFromUri(Uri uri) {
+            return uri.getPathSegments().get(3);
+        }
+
     }
 
     public static final class CalibrationEntry implements BaseColumns {
@@ -114,4 +185,92 @@ public class TemperatureContract {
 
     }
 
+    /*
+        Inner class that defines the rollup tables: per sensor aggregates of
+        the temperature table over each minute, hour and day (UTC). The
+        provider keeps them up to date as readings are inserted. A reading's
+        mean is total / samples and its variance
+        sum_squares / samples - mean * mean. Deleting or updating readings
+        leaves the rollups as they were, so a day's chart outlives its raw
+        readings; METHOD_REBUILD brings them back in line.
+     */
+    public static final class RollupEntry implements BaseColumns {
+        public static final String GRANULARITY_MINUTE = "minute";
+        public static final String GRANULARITY_HOUR = "hour";
+        public static final String GRANULARITY_DAY = "day";
+
+        // Columns, the same in every granularity
+        public static final String COLUMN_SENSORID = "sensorid";
+        // Start of the period, in the "yyyy-MM-dd HH:mm:ss" UTC form of created
+        public static final String COLUMN_PERIOD = "period";
+        public static final String COLUMN_COUNT = "samples";
+        public static final String COLUMN_SUM = "total";
+        public static final String COLUMN_MIN = "minimum";
+        public static final String COLUMN_MAX = "maximum";
+        public static final String COLUMN_SUM_SQUARES = "sum_squares";
+
+        /*
+            ContentResolver.call(CONTENT_URI, METHOD_REBUILD, sensorId, null)
+            recomputes the rollups of one sensor, or of every sensor if
+            sensorId is null, from its readings in the temperature table.
+            Rollups older than a sensor's oldest reading are kept.
+         */
+        public static final String METHOD_REBUILD = "rebuildRollups";
+        // In the result of METHOD_REBUILD: the number of sensors rebuilt
+        public static final String EXTRA_COUNT = "count";
+        // Selects the rollups TemperatureEntry.METHOD_PRUNE works on
+        public static final String EXTRA_GRANULARITY = "granularity";
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ROLLUP).build();
+
+        public static final String CONTENT_DIR_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ROLLUP;
+
+        public static String getTableName(String granularity) {
+            return "temperature_" + granularity;
+        }
+
+        /*
+            content://com.example.android.bluetoothchat/rollup/<granularity>
+         */
+        public static Uri buildRollupUri(String granularity) {
+            return CONTENT_URI.buildUpon().appendPath(granularity).build();
+        }
+
+        /*
+            content://com.example.android.bluetoothchat/rollup/<granularity>/<sensorId>
+         */
+        public static Uri buildRollupSensor(String granularity, long sensorId) {
+            return buildRollupUri(granularity).buildUpon()
+                    .appendPath(Long.toString(sensorId)).build();
+        }
+
+        /*
+            content://com.example.android.bluetoothchat/rollup/<granularity>/<sensorId>/<start>/<end>
+            The periods of one sensor starting at or after start and before end.
+         */
+        public static Uri buildRollupSensorWithRange(String granularity, long sensorId,
+                                                     String start, String end) {
+            return buildRollupSensor(granularity, sensorId).buildUpon()
+                    .appendPath(start).appendPath(end).build();
+        }
+
+        public static String getGranularityFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static String getSensorFromUri(Uri uri) {
+            return uri.getPathSegments().get(2);
+        }
+
+        public static String getStartDateFromUri(Uri uri) {
+            return uri.getPathSegments().get(3);
+        }
+
+        public static String getEndDateFromUri(Uri uri) {
+            return uri.getPathSegments().get(4);
+        }
+    }
+
 }
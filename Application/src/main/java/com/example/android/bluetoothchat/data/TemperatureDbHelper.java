@@ -15,13 +15,17 @@
  */
 package com.example.android.bluetoothchat.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import com.example.android.bluetoothchat.data.TemperatureContract.SensorEntry;
 import com.example.android.bluetoothchat.data.TemperatureContract.TemperatureEntry;
 import com.example.android.bluetoothchat.data.TemperatureContract.CalibrationEntry;
+import com.example.android.bluetoothchat.data.TemperatureContract.RollupEntry;
 
 /**
  * Manages a local database for weather data.
@@ -29,12 +33,203 @@ import com.example.android.bluetoothchat.data.TemperatureContract.CalibrationEnt
 public class TemperatureDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
 
     static final String DATABASE_NAME = "temperature.db";
 
+    /**
+     * The connection settings the helper applies when it opens the database.
+     * Journal mode "WAL" lets queries run on their own read connections while
+     * the ingest writer holds a transaction; any other mode serializes them.
+     *
+     * <p>Page size is part of the file: the helper sets it, with incremental
+     * auto-vacuum, before the journal is switched to WAL, and rewrites a file
+     * created with other settings once with VACUUM. Cache size and mmap size
+     * are per connection and are set on the primary (writer) connection; the
+     * platform opens read connections with its own defaults.
+     */
+    public static final class TuningProfile {
+        public final String name;
+        public final String journalMode;
+        public final String synchronous;
+        public final int pageSize;
+        // In KiB, applied as a negative PRAGMA cache_size
+        public final int cacheSizeKb;
+        public final long mmapSize;
+
+        public TuningProfile(String name, String journalMode, String synchronous,
+                             int pageSize, int cacheSizeKb, long mmapSize) {
+            this.name = name;
+            this.journalMode = journalMode;
+            this.synchronous = synchronous;
+            this.pageSize = pageSize;
+            this.cacheSizeKb = cacheSizeKb;
+            this.mmapSize = mmapSize;
+        }
+
+        public boolean isWriteAheadLogging() {
+            return "WAL".equalsIgnoreCase(journalMode);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    // Long write transactions from the ingest stage; synchronous NORMAL is
+    // durable across app crashes in WAL mode and skips an fsync per commit
+    public static final TuningProfile INGEST_HEAVY =
+            new TuningProfile("ingest-heavy", "WAL", "NORMAL", 4096, 8 * 1024, 0);
+
+    // Charts and history screens scanning the temperature table; larger
+    // pages mean fewer of them per range scan
+    public static final TuningProfile QUERY_HEAVY =
+            new TuningProfile("query-heavy", "WAL", "NORMAL", 8192, 16 * 1024, 32L * 1024 * 1024);
+
+    // No WAL index or mapped pages; small pages and cache
+    public static final TuningProfile LOW_MEMORY =
+            new TuningProfile("low-memory", "TRUNCATE", "NORMAL", 1024, 256, 0);
+
+    private static final TuningProfile[] PROFILES = {INGEST_HEAVY, QUERY_HEAVY, LOW_MEMORY};
+
+    /**
+     * @return the profile called {@code name}, or null if there is none
+     */
+    public static TuningProfile getProfile(String name) {
+        for (TuningProfile profile : PROFILES) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    public static TuningProfile[] getProfiles() {
+        return PROFILES.clone();
+    }
+
+    private final TuningProfile mProfile;
+
     public TemperatureDbHelper(Context context) {
+        this(context, INGEST_HEAVY);
+    }
+
+    public TemperatureDbHelper(Context context, TuningProfile profile) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // WAL is not enabled here: the platform would switch to it before
+        // onConfigure(), when the page size can no longer change
+        mProfile = profile;
+    }
+
+    public TuningProfile getProfile() {
+        return mProfile;
+    }
+
+    /*
+        Called before onCreate() and outside any transaction on API 16 and
+        later, so the file layout can still change.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        configure(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            configure(db);
+            if (mProfile.isWriteAheadLogging() && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+    }
+
+    private void configure(SQLiteDatabase db) {
+        if (!db.isReadOnly()) {
+            layOut(db);
+        }
+        if (!mProfile.isWriteAheadLogging()) {
+            pragma(db, "journal_mode = " + mProfile.journalMode);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // The platform owns the switch into and out of WAL
+            db.enableWriteAheadLogging();
+        }
+        pragma(db, "synchronous = " + mProfile.synchronous);
+        pragma(db, "cache_size = " + (-mProfile.cacheSizeKb));
+        // Ignored by SQLite builds older than 3.7.17
+        pragma(db, "mmap_size = " + mProfile.mmapSize);
+    }
+
+    /*
+        Page size and incremental auto-vacuum only take effect when the file is
+        written from scratch, and page size not at all in WAL mode. The platform
+        has already created its metadata table by now, so rewrite the file with
+        VACUUM whenever it does not match; pruned pages are then handed back by
+        incrementalVacuum().
+     */
+    private void layOut(SQLiteDatabase db) {
+        // 2 is INCREMENTAL
+        boolean autoVacuum = "2".equals(query(db, "auto_vacuum"));
+        // Only before API 16 can the file still be in WAL here; its page size
+        // is then left as it is rather than vacuumed on every open
+        boolean pageSize = "wal".equalsIgnoreCase(query(db, "journal_mode"))
+                || String.valueOf(mProfile.pageSize).equals(query(db, "page_size"));
+        if (autoVacuum && pageSize) {
+            return;
+        }
+        pragma(db, "page_size = " + mProfile.pageSize);
+        pragma(db, "auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+    }
+
+    /**
+     * Hand up to {@code pages} free pages back to the file system. Bounded so
+     * that it holds the write lock only briefly.
+     *
+     * @return The number of pages freed, 0 if the database file was created
+     *         without incremental auto-vacuum
+     */
+    static int incrementalVacuum(SQLiteDatabase db, int pages) {
+        // 2 is INCREMENTAL
+        if (!"2".equals(query(db, "auto_vacuum"))) {
+            return 0;
+        }
+        int before = Integer.parseInt(query(db, "freelist_count"));
+        // SQLite frees one page per row stepped, so read them all
+        Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            while (c.moveToNext()) {
+                // nothing to read
+            }
+        } finally {
+            c.close();
+        }
+        return before - Integer.parseInt(query(db, "freelist_count"));
+    }
+
+    private static String query(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+        Some pragmas answer with a row, which execSQL() refuses, so run them
+        all as queries.
+     */
+    private static void pragma(SQLiteDatabase db, String setting) {
+        Cursor c = db.rawQuery("PRAGMA " + setting, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
     }
 
     @Override
@@ -128,19 +323,72 @@ public class TemperatureDbHelper extends SQLiteOpenHelper {
         sqLiteDatabase.execSQL(SQL_CREATE_SENSOR_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_TEMPERATURE_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_CALIBRATION_TABLE);
+        createIndexes(sqLiteDatabase);
+        createRollupTables(sqLiteDatabase);
+    }
+
+    static final String INDEX_TEMPERATURE_SENSOR_CREATED = "temperature_sensorid_created";
+
+    /*
+        Every per-sensor query filters on sensorid and ranges or sorts on
+        created, so one composite index serves both and the rows come back in
+        time order without a sort.
+     */
+    private static void createIndexes(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_TEMPERATURE_SENSOR_CREATED +
+                " ON " + TemperatureEntry.TABLE_NAME + " (" +
+                TemperatureEntry.COLUMN_SENSORID + ", " + TemperatureEntry.COLUMN_CREATED + ");");
+    }
+
+    /*
+        CREATE TABLE temperature_minute(
+            _id INTEGER PRIMARY KEY,
+            sensorid integer NOT NULL,
+            period DATETIME NOT NULL,
+            samples INTEGER NOT NULL,
+            total FLOAT NOT NULL,
+            minimum FLOAT NOT NULL,
+            maximum FLOAT NOT NULL,
+            sum_squares FLOAT NOT NULL,
+            UNIQUE(sensorid, period),
+            FOREIGN KEY(sensorid) REFERENCES sensor(_id)
+        );
+        and the same for temperature_hour and temperature_day. The unique
+        constraint's index serves both the incremental updates and the
+        per-sensor range queries.
+     */
+    private static void createRollupTables(SQLiteDatabase sqLiteDatabase) {
+        for (String granularity : TemperatureRollups.GRANULARITIES) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + RollupEntry.getTableName(granularity) + " (" +
+                    RollupEntry._ID + " INTEGER PRIMARY KEY," +
+                    RollupEntry.COLUMN_SENSORID + " INTEGER NOT NULL, " +
+                    RollupEntry.COLUMN_PERIOD + " DATETIME NOT NULL, " +
+                    RollupEntry.COLUMN_COUNT + " INTEGER NOT NULL, " +
+                    RollupEntry.COLUMN_SUM + " FLOAT NOT NULL, " +
+                    RollupEntry.COLUMN_MIN + " FLOAT NOT NULL, " +
+                    RollupEntry.COLUMN_MAX + " FLOAT NOT NULL, " +
+                    RollupEntry.COLUMN_SUM_SQUARES + " FLOAT NOT NULL, " +
+                    " UNIQUE (" + RollupEntry.COLUMN_SENSORID + ", " + RollupEntry.COLUMN_PERIOD + "), " +
+                    " FOREIGN KEY (" + RollupEntry.COLUMN_SENSORID + ") REFERENCES " +
+                    SensorEntry.TABLE_NAME + " (" + SensorEntry._ID + ")" +
+                    ");");
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SensorEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + TemperatureEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CalibrationEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        // The readings are the only copy of a sensor's history, so each version
+        // migrates the schema in place instead of discarding it.
+        if (oldVersion < 2) {
+            // Version 2 adds the (sensorid, created) index
+            createIndexes(sqLiteDatabase);
+        }
+        if (oldVersion < 3) {
+            // Version 3 adds the rollup tables; existing readings are rolled
+            // up by the provider's rebuild command, not while opening
+            createRollupTables(sqLiteDatabase);
+        }
     }
 }
@@ -17,13 +17,29 @@ package com.example.android.bluetoothchat.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
 import android.util.Log;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
 public class TemperatureProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
@@ -32,6 +48,46 @@ public class TemperatureProvider extends ContentProvider {
 
     private TemperatureDbHelper mOpenHelper;
 
+    // The columns of mInsertTemperature, in bind order
+    private static final String[] sInsertTemperatureColumns = {
+            TemperatureContract.TemperatureEntry.COLUMN_SENSORID,
+            TemperatureContract.TemperatureEntry.COLUMN_CREATED,
+            TemperatureContract.TemperatureEntry.COLUMN_VALUE,
+            TemperatureContract.TemperatureEntry.COLUMN_METRIC,
+            TemperatureContract.TemperatureEntry.COLUMN_CALIBRATED
+    };
+
+    // A null bind keeps the column's default, as a missing key does for db.insert()
+    private static final String sInsertTemperatureSql =
+            "INSERT INTO " + TemperatureContract.TemperatureEntry.TABLE_NAME + " (" +
+                    TemperatureContract.TemperatureEntry.COLUMN_SENSORID + ", " +
+                    TemperatureContract.TemperatureEntry.COLUMN_CREATED + ", " +
+                    TemperatureContract.TemperatureEntry.COLUMN_VALUE + ", " +
+                    TemperatureContract.TemperatureEntry.COLUMN_METRIC + ", " +
+                    TemperatureContract.TemperatureEntry.COLUMN_CALIBRATED + ") VALUES " +
+                    "(?, COALESCE(?, CURRENT_TIMESTAMP), ?, COALESCE(?, 1), COALESCE(?, 0))";
+
+    // How long a yield point lets a waiting writer in before the batch goes on
+    private static final long SLEEP_AFTER_YIELD_DELAY = 4000;
+
+    // The URIs changed by the applyBatch() running on this thread, notified when it ends
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
+    // Guards mInsertTemperature; held for a whole batch, taken before the
+    // database transaction is begun
+    private final Object mInsertLock = new Object();
+    private SQLiteDatabase mInsertDb;
+    private SQLiteStatement mInsertTemperature;
+    // Guards the date fields. Never held while taking another lock, so it
+    // may be taken inside a transaction or under mInsertLock
+    private final Object mFormatLock = new Object();
+    // Matches the DATETIME text SQLite's CURRENT_TIMESTAMP writes
+    private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private final Date mDate = new Date();
+    // The last second formatted; readings mostly come many per second
+    private long mFormattedSecond = Long.MIN_VALUE;
+    private String mFormatted;
+
     static final int TEMPERATURE = 100;
     static final int SENSOR = 300;
     static final int CALIBRATION = 700;
@@ -39,6 +95,10 @@ public class TemperatureProvider extends ContentProvider {
     static final int TEMPERATURE_WITH_LOCATION = 101;
     static final int TEMPERATURE_WITH_LOCATION_AND_DATE = 102;
 
+    static final int ROLLUP = 400;
+    static final int ROLLUP_WITH_SENSOR = 401;
+    static final int ROLLUP_WITH_SENSOR_AND_DATE = 402;
+
     static UriMatcher buildUriMatcher() {
         // I know what you're thinking.  Why create a UriMatcher when you can use regular
         // expressions instead?  Because you're not crazy, that's why.
@@ -56,13 +116,145 @@ public class TemperatureProvider extends ContentProvider {
         matcher.addURI(authority, TemperatureContract.PATH_SENSOR, SENSOR);
         // matcher.addURI("com.example.android.bluetoothchat", "calibration", 700);
         matcher.addURI(authority, TemperatureContract.PATH_CALIBRATION, CALIBRATION);
+        // matcher.addURI("com.example.android.bluetoothchat", "temperature/#", 101);
+        matcher.addURI(authority, TemperatureContract.PATH_TEMPERATURE + "/#", TEMPERATURE_WITH_LOCATION);
+        // matcher.addURI("com.example.android.bluetoothchat", "temperature/#/*/*", 102);
+        matcher.addURI(authority, TemperatureContract.PATH_TEMPERATURE + "/#/*/*",
+                TEMPERATURE_WITH_LOCATION_AND_DATE);
+        // matcher.addURI("com.example.android.bluetoothchat", "rollup/*", 400);
+        matcher.addURI(authority, TemperatureContract.PATH_ROLLUP + "/*", ROLLUP);
+        // matcher.addURI("com.example.android.bluetoothchat", "rollup/*/#", 401);
+        matcher.addURI(authority, TemperatureContract.PATH_ROLLUP + "/*/#", ROLLUP_WITH_SENSOR);
+        // matcher.addURI("com.example.android.bluetoothchat", "rollup/*/#/*/*", 402);
+        matcher.addURI(authority, TemperatureContract.PATH_ROLLUP + "/*/#/*/*",
+                ROLLUP_WITH_SENSOR_AND_DATE);
 
         return matcher;
     }
 
+    // temperature.sensorid = ?
+    private static final String sSensorSelection =
+            TemperatureContract.TemperatureEntry.TABLE_NAME + "." +
+                    TemperatureContract.TemperatureEntry.COLUMN_SENSORID + " = ? ";
+
+    // temperature.sensorid = ? AND created >= ? AND created < ?
+    private static final String sSensorAndRangeSelection =
+            sSensorSelection + " AND " +
+                    TemperatureContract.TemperatureEntry.COLUMN_CREATED + " >= ? AND " +
+                    TemperatureContract.TemperatureEntry.COLUMN_CREATED + " < ? ";
+
+    // The (sensorid, created) index already returns a sensor's rows in this order
+    static final String sDefaultTemperatureOrder =
+            TemperatureContract.TemperatureEntry.COLUMN_CREATED + " ASC";
+
+    /*
+        The selection for a sensor URI, with any selection the caller passed
+        ANDed on after the indexed terms.
+     */
+    static String getSensorSelection(int match, String selection) {
+        String sensorSelection = match == TEMPERATURE_WITH_LOCATION_AND_DATE
+                ? sSensorAndRangeSelection : sSensorSelection;
+        if (selection == null) {
+            return sensorSelection;
+        }
+        return sensorSelection + " AND (" + selection + ")";
+    }
+
+    static String[] getSensorSelectionArgs(Uri uri, int match, String[] selectionArgs) {
+        String[] args = match == TEMPERATURE_WITH_LOCATION_AND_DATE
+                ? new String[]{
+                        TemperatureContract.TemperatureEntry.getSensorFromUri(uri),
+                        TemperatureContract.TemperatureEntry.getStartDateFromUri(uri),
+                        TemperatureContract.TemperatureEntry.getEndDateFromUri(uri)}
+                : new String[]{TemperatureContract.TemperatureEntry.getSensorFromUri(uri)};
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return args;
+        }
+        String[] all = new String[args.length + selectionArgs.length];
+        System.arraycopy(args, 0, all, 0, args.length);
+        System.arraycopy(selectionArgs, 0, all, args.length, selectionArgs.length);
+        return all;
+    }
+
+    // The rollup table of a rollup URI's granularity
+    static String getRollupTable(Uri uri) {
+        String granularity = TemperatureContract.RollupEntry.getGranularityFromUri(uri);
+        for (String known : TemperatureRollups.GRANULARITIES) {
+            if (known.equals(granularity)) {
+                return TemperatureContract.RollupEntry.getTableName(granularity);
+            }
+        }
+        throw new UnsupportedOperationException("Unknown uri: " + uri);
+    }
+
+    // rollup.sensorid = ? [AND period >= ? AND period < ?], then the caller's selection
+    static String getRollupSelection(int match, String selection) {
+        String rollupSelection = match == ROLLUP ? null
+                : TemperatureContract.RollupEntry.COLUMN_SENSORID + " = ? ";
+        if (match == ROLLUP_WITH_SENSOR_AND_DATE) {
+            rollupSelection += " AND " +
+                    TemperatureContract.RollupEntry.COLUMN_PERIOD + " >= ? AND " +
+                    TemperatureContract.RollupEntry.COLUMN_PERIOD + " < ? ";
+        }
+        if (selection == null) {
+            return rollupSelection;
+        }
+        return rollupSelection == null ? selection : rollupSelection + " AND (" + selection + ")";
+    }
+
+    static String[] getRollupSelectionArgs(Uri uri, int match, String[] selectionArgs) {
+        String[] args;
+        if (match == ROLLUP_WITH_SENSOR_AND_DATE) {
+            args = new String[]{
+                    TemperatureContract.RollupEntry.getSensorFromUri(uri),
+                    TemperatureContract.RollupEntry.getStartDateFromUri(uri),
+                    TemperatureContract.RollupEntry.getEndDateFromUri(uri)};
+        } else if (match == ROLLUP_WITH_SENSOR) {
+            args = new String[]{TemperatureContract.RollupEntry.getSensorFromUri(uri)};
+        } else {
+            return selectionArgs;
+        }
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return args;
+        }
+        String[] all = new String[args.length + selectionArgs.length];
+        System.arraycopy(args, 0, all, 0, args.length);
+        System.arraycopy(selectionArgs, 0, all, args.length, selectionArgs.length);
+        return all;
+    }
+
+    private Cursor getRollup(Uri uri, int match, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+        return mOpenHelper.getReadableDatabase().query(
+                getRollupTable(uri),
+                projection,
+                getRollupSelection(match, selection),
+                getRollupSelectionArgs(uri, match, selectionArgs),
+                null,
+                null,
+                sortOrder == null && match != ROLLUP
+                        ? TemperatureContract.RollupEntry.COLUMN_PERIOD + " ASC" : sortOrder
+        );
+    }
+
+    private Cursor getTemperatureBySensor(
+            Uri uri, int match, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return mOpenHelper.getReadableDatabase().query(
+                TemperatureContract.TemperatureEntry.TABLE_NAME,
+                projection,
+                getSensorSelection(match, selection),
+                getSensorSelectionArgs(uri, match, selectionArgs),
+                null,
+                null,
+                sortOrder == null ? sDefaultTemperatureOrder : sortOrder
+        );
+    }
+
     @Override
     public boolean onCreate() {
         mOpenHelper = new TemperatureDbHelper(getContext());
+        mFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
         return true;
     }
 
@@ -76,9 +268,15 @@ public class TemperatureProvider extends ContentProvider {
             case SENSOR:
                 return TemperatureContract.SensorEntry.CONTENT_DIR_TYPE;
             case TEMPERATURE:
+            case TEMPERATURE_WITH_LOCATION:
+            case TEMPERATURE_WITH_LOCATION_AND_DATE:
                 return TemperatureContract.TemperatureEntry.CONTENT_DIR_TYPE;
             case CALIBRATION:
                 return TemperatureContract.CalibrationEntry.CONTENT_DIR_TYPE;
+            case ROLLUP:
+            case ROLLUP_WITH_SENSOR:
+            case ROLLUP_WITH_SENSOR_AND_DATE:
+                return TemperatureContract.RollupEntry.CONTENT_DIR_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -90,7 +288,8 @@ public class TemperatureProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
             // "sensor"
             case SENSOR: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -117,7 +316,21 @@ public class TemperatureProvider extends ContentProvider {
                 );
                 break;
             }
-            // "temperature"
+            // "temperature/#" and "temperature/#/*/*"
+            case TEMPERATURE_WITH_LOCATION:
+            case TEMPERATURE_WITH_LOCATION_AND_DATE: {
+                retCursor = getTemperatureBySensor(uri, match, projection, selection, selectionArgs,
+                        sortOrder);
+                break;
+            }
+            // "rollup/*", "rollup/*/#" and "rollup/*/#/*/*"
+            case ROLLUP:
+            case ROLLUP_WITH_SENSOR:
+            case ROLLUP_WITH_SENSOR_AND_DATE: {
+                retCursor = getRollup(uri, match, projection, selection, selectionArgs, sortOrder);
+                break;
+            }
+            // "calibration"
             case CALIBRATION: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
                         TemperatureContract.CalibrationEntry.TABLE_NAME,
@@ -154,11 +367,25 @@ public class TemperatureProvider extends ContentProvider {
                 break;
             }
             case TEMPERATURE: {
-                long _id = db.insert(TemperatureContract.TemperatureEntry.TABLE_NAME, null, values);
+                long _id;
+                // The reading and its rollups commit together
+                db.beginTransaction();
+                try {
+                    _id = db.insert(TemperatureContract.TemperatureEntry.TABLE_NAME, null, values);
+                    if (_id > 0) {
+                        TemperatureRollups rollups = new TemperatureRollups();
+                        addRollup(rollups, values);
+                        rollups.apply(db);
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
                 if (_id > 0)
                     returnUri = TemperatureContract.TemperatureEntry.buildTemperatureUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                notifyChange(TemperatureContract.RollupEntry.CONTENT_URI);
                 break;
             }
             case CALIBRATION: {
@@ -172,7 +399,7 @@ public class TemperatureProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -196,12 +423,15 @@ public class TemperatureProvider extends ContentProvider {
                 rowsDeleted = db.delete(
                         TemperatureContract.CalibrationEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case ROLLUP:
+                rowsDeleted = db.delete(getRollupTable(uri), selection, selectionArgs);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -230,7 +460,7 @@ public class TemperatureProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -241,32 +471,331 @@ public class TemperatureProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case TEMPERATURE:
-                db.beginTransaction();
                 int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        long _id = db.insert(TemperatureContract.TemperatureEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
+                synchronized (mInsertLock) {
+                    SQLiteStatement insert = getInsertTemperature(db);
+                    TemperatureRollups rollups = new TemperatureRollups();
+                    db.beginTransaction();
+                    try {
+                        for (ContentValues value : values) {
+                            long _id;
+                            if (bindTemperature(insert, value)) {
+                                _id = executeInsert(insert);
+                            } else {
+                                // Columns the statement does not cover take the generic path
+                                _id = db.insert(TemperatureContract.TemperatureEntry.TABLE_NAME, null, value);
+                            }
+                            if (_id != -1) {
+                                addRollup(rollups, value);
+                                returnCount++;
+                            }
                         }
+                        rollups.apply(db);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
+                notifyChange(TemperatureContract.RollupEntry.CONTENT_URI);
                 return returnCount;
+            case SENSOR:
+                return bulkInsert(db, uri, TemperatureContract.SensorEntry.TABLE_NAME, values);
+            case CALIBRATION:
+                return bulkInsert(db, uri, TemperatureContract.CalibrationEntry.TABLE_NAME, values);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    // One transaction and one notification for the whole array
+    private int bulkInsert(SQLiteDatabase db, Uri uri, String table, ContentValues[] values) {
+        int returnCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (db.insert(table, null, value) != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (returnCount > 0) {
+            notifyChange(uri);
+        }
+        return returnCount;
+    }
+
+    /**
+     * Applies the operations in one transaction, so provisioning sensors and
+     * their calibrations is one round trip and commits or fails as a whole.
+     * An operation built with {@code withYieldAllowed(true)} is a yield
+     * point: if another thread is waiting to write, what came before it is
+     * committed and the batch continues in a new transaction. Each URI that
+     * changed is notified once, after the batch.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Set<Uri> changes = new HashSet<Uri>();
+        mBatchChanges.set(changes);
+        int yieldPoints = 0;
+        db.beginTransaction();
+        try {
+            final int numOperations = operations.size();
+            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            for (int i = 0; i < numOperations; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()
+                        && db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY)) {
+                    yieldPoints++;
+                }
+                try {
+                    results[i] = operation.apply(this, results, i);
+                } catch (OperationApplicationException e) {
+                    // Tell the caller how much of the batch was committed at yield points
+                    throw new OperationApplicationException(e.getMessage(), yieldPoints);
+                }
+            }
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+            // Also after a failure, as yield points may have committed part of the batch
+            for (Uri uri : changes) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (TemperatureContract.TemperatureEntry.METHOD_INSERT.equals(method)) {
+            int count = insertTemperatures(
+                    extras.getLongArray(TemperatureContract.TemperatureEntry.EXTRA_SENSOR_IDS),
+                    extras.getLongArray(TemperatureContract.TemperatureEntry.EXTRA_CREATED),
+                    extras.getFloatArray(TemperatureContract.TemperatureEntry.EXTRA_VALUES),
+                    extras.getInt(TemperatureContract.TemperatureEntry.EXTRA_COUNT));
+            if (count > 0) {
+                notifyChange(TemperatureContract.TemperatureEntry.CONTENT_URI);
+                notifyChange(TemperatureContract.RollupEntry.CONTENT_URI);
+            }
+            Bundle result = new Bundle();
+            result.putInt(TemperatureContract.TemperatureEntry.EXTRA_COUNT, count);
+            return result;
+        }
+        if (TemperatureContract.RollupEntry.METHOD_REBUILD.equals(method)) {
+            final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            int rebuilt;
+            db.beginTransaction();
+            try {
+                rebuilt = TemperatureRollups.rebuild(db, arg == null ? -1 : Long.parseLong(arg));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            notifyChange(TemperatureContract.RollupEntry.CONTENT_URI);
+            Bundle result = new Bundle();
+            result.putInt(TemperatureContract.RollupEntry.EXTRA_COUNT, rebuilt);
+            return result;
+        }
+        if (TemperatureContract.TemperatureEntry.METHOD_PRUNE.equals(method)) {
+            String granularity = extras.getString(TemperatureContract.RollupEntry.EXTRA_GRANULARITY);
+            String table;
+            String timeColumn;
+            if (granularity == null) {
+                table = TemperatureContract.TemperatureEntry.TABLE_NAME;
+                timeColumn = TemperatureContract.TemperatureEntry.COLUMN_CREATED;
+            } else {
+                table = getRollupTable(TemperatureContract.RollupEntry.buildRollupUri(granularity));
+                timeColumn = TemperatureContract.RollupEntry.COLUMN_PERIOD;
+            }
+            return pruneChunk(mOpenHelper.getWritableDatabase(), table, timeColumn, arg,
+                    extras.getLong(TemperatureContract.TemperatureEntry.EXTRA_FROM_ID),
+                    extras.getInt(TemperatureContract.TemperatureEntry.EXTRA_COUNT));
+        }
+        if (TemperatureContract.METHOD_VACUUM.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(TemperatureContract.EXTRA_PAGES, TemperatureDbHelper.incrementalVacuum(
+                    mOpenHelper.getWritableDatabase(), extras.getInt(TemperatureContract.EXTRA_PAGES)));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /*
+        Deletes the rows created before "before" among the next "width" _ids
+        from fromId, in one short transaction. A delete with a date selection
+        would instead scan the table inside one transaction for the whole
+        delete, and hold off the ingest writer until it commits.
+     */
+    private static Bundle pruneChunk(SQLiteDatabase db, String table, String timeColumn,
+                                     String before, long fromId, int width) {
+        if (before == null || width <= 0) {
+            throw new IllegalArgumentException("Need a date and a range to prune");
+        }
+        Bundle result = new Bundle();
+        int deleted = 0;
+        long nextId = -1;
+        db.beginTransaction();
+        try {
+            Cursor c = db.rawQuery("SELECT MIN(" + BaseColumns._ID + ") FROM " + table +
+                    " WHERE " + BaseColumns._ID + " >= ?", new String[]{Long.toString(fromId)});
+            long first;
+            try {
+                first = c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+            } finally {
+                c.close();
+            }
+            if (first >= 0) {
+                long end = first + width;
+                deleted = db.delete(table, BaseColumns._ID + " >= ? AND " + BaseColumns._ID + " < ? AND " +
+                        timeColumn + " < ?",
+                        new String[]{Long.toString(first), Long.toString(end), before});
+                // A range with nothing old enough means the rest is newer too
+                if (deleted > 0) {
+                    nextId = end;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        result.putInt(TemperatureContract.TemperatureEntry.EXTRA_COUNT, deleted);
+        result.putLong(TemperatureContract.TemperatureEntry.EXTRA_NEXT_ID, nextId);
+        return result;
+    }
+
+    private int insertTemperatures(long[] sensorIds, long[] created, float[] values, int count) {
+        if (sensorIds == null || created == null || values == null || count < 0
+                || sensorIds.length < count || created.length < count || values.length < count) {
+            throw new IllegalArgumentException("Need " + count + " sensor ids, dates and values");
+        }
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount = 0;
+        synchronized (mInsertLock) {
+            SQLiteStatement insert = getInsertTemperature(db);
+            TemperatureRollups rollups = new TemperatureRollups();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < count; i++) {
+                    String date = formatCreated(created[i]);
+                    insert.bindLong(1, sensorIds[i]);
+                    insert.bindString(2, date);
+                    insert.bindDouble(3, values[i]);
+                    insert.bindNull(4);
+                    insert.bindNull(5);
+                    if (executeInsert(insert) != -1) {
+                        rollups.add(sensorIds[i], date, values[i]);
+                        returnCount++;
+                    }
+                }
+                rollups.apply(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return returnCount;
+    }
+
+    /*
+        Compiled once per open database, then re-bound for every row.
+        Callers hold mInsertLock.
+     */
+    private SQLiteStatement getInsertTemperature(SQLiteDatabase db) {
+        if (mInsertTemperature == null || mInsertDb != db) {
+            closeInsertTemperature();
+            mInsertTemperature = db.compileStatement(sInsertTemperatureSql);
+            mInsertDb = db;
+        }
+        return mInsertTemperature;
+    }
+
+    private void closeInsertTemperature() {
+        if (mInsertTemperature != null) {
+            mInsertTemperature.close();
+            mInsertTemperature = null;
+            mInsertDb = null;
+        }
+    }
+
+    /*
+        Binds a row onto the compiled insert. Returns false, leaving the row
+        to db.insert(), if the row has a column the statement does not cover.
+     */
+    private static boolean bindTemperature(SQLiteStatement insert, ContentValues value) {
+        int bound = 0;
+        for (int i = 0; i < sInsertTemperatureColumns.length; i++) {
+            String column = sInsertTemperatureColumns[i];
+            if (value.containsKey(column)) {
+                DatabaseUtils.bindObjectToProgram(insert, i + 1, value.get(column));
+                bound++;
+            } else {
+                insert.bindNull(i + 1);
+            }
+        }
+        return bound == value.size();
+    }
+
+    // Like db.insert(), a row that breaks a constraint is skipped and counted as -1
+    private static long executeInsert(SQLiteStatement insert) {
+        try {
+            return insert.executeInsert();
+        } catch (SQLException e) {
+            Log.e("TemperatureProvider", "Error inserting temperature", e);
+            return -1;
+        }
+    }
+
+    private void addRollup(TemperatureRollups rollups, ContentValues value) {
+        Long sensorId = value.getAsLong(TemperatureContract.TemperatureEntry.COLUMN_SENSORID);
+        Double reading = value.getAsDouble(TemperatureContract.TemperatureEntry.COLUMN_VALUE);
+        if (sensorId == null || reading == null) {
+            return;
+        }
+        String created = value.getAsString(TemperatureContract.TemperatureEntry.COLUMN_CREATED);
+        if (created == null) {
+            // The row took CURRENT_TIMESTAMP
+            created = formatCreated(System.currentTimeMillis());
+        }
+        rollups.add(sensorId, created, reading);
+    }
+
+    private String formatCreated(long millis) {
+        synchronized (mFormatLock) {
+            long second = millis / 1000;
+            if (second != mFormattedSecond) {
+                mDate.setTime(millis);
+                mFormatted = mFormat.format(mDate);
+                mFormattedSecond = second;
+            }
+            return mFormatted;
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
     @Override
     @TargetApi(11)
     public void shutdown() {
+        synchronized (mInsertLock) {
+            closeInsertTemperature();
+        }
         mOpenHelper.close();
         super.shutdown();
     }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.data.TemperatureContract.RollupEntry;
+import com.example.android.bluetoothchat.data.TemperatureContract.TemperatureEntry;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes readings and rollups older than a {@link Policy} allows, on a
+ * background thread. Each call to the provider deletes one bounded range
+ * of ids in its own short transaction, and the job sleeps between ranges,
+ * so the ingest writer never waits behind more than one range. Free pages
+ * are handed back a few at a time as the job goes.
+ */
+public class TemperatureRetention {
+
+    private static final String TAG = "TemperatureRetention";
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 6 * 60 * 60 * 1000L;
+    // Ids per range: a few milliseconds of deleting
+    public static final int DEFAULT_CHUNK_IDS = 2000;
+    // Pause between ranges, for writers waiting on the database
+    public static final long DEFAULT_PAUSE_MILLIS = 20;
+    // Free pages handed back every VACUUM_EVERY ranges and after a run
+    private static final int VACUUM_PAGES = 256;
+    private static final int VACUUM_EVERY = 16;
+
+    /**
+     * How many days of each kind of data to keep; negative keeps it forever.
+     */
+    public static class Policy {
+        public final int rawDays;
+        public final int minuteDays;
+        public final int hourDays;
+        public final int dayDays;
+
+        public Policy(int rawDays, int minuteDays, int hourDays, int dayDays) {
+            this.rawDays = rawDays;
+            this.minuteDays = minuteDays;
+            this.hourDays = hourDays;
+            this.dayDays = dayDays;
+        }
+    }
+
+    // A month of raw readings, a quarter of minutes, two years of hours, all the days
+    public static final Policy DEFAULT_POLICY = new Policy(30, 90, 730, -1);
+
+    private final ContentResolver mResolver;
+    private final Policy mPolicy;
+    private final int mChunkIds;
+    private final long mPauseMillis;
+    private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private ScheduledExecutorService mExecutor;
+    private volatile boolean mStopped;
+
+    private volatile long mDeletedCount;
+    private volatile long mVacuumedPages;
+    private volatile long mLastRunMillis;
+
+    public TemperatureRetention(ContentResolver resolver, Policy policy) {
+        this(resolver, policy, DEFAULT_CHUNK_IDS, DEFAULT_PAUSE_MILLIS);
+    }
+
+    public TemperatureRetention(ContentResolver resolver, Policy policy, int chunkIds,
+                                long pauseMillis) {
+        mResolver = resolver;
+        mPolicy = policy;
+        mChunkIds = chunkIds;
+        mPauseMillis = pauseMillis;
+        mFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Run the policy now and then every {@code intervalMillis}.
+     */
+    public synchronized void start(long intervalMillis) {
+        if (mExecutor != null) {
+            return;
+        }
+        mStopped = false;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runOnce(System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    // Try again next time rather than lose the schedule
+                    Log.e(TAG, "retention run failed", e);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        mStopped = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Prune everything the policy no longer keeps as of {@code nowMillis}.
+     *
+     * @return The number of readings and rollups deleted
+     */
+    public long runOnce(long nowMillis) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deleted = prune(null, mPolicy.rawDays, nowMillis);
+        deleted += prune(RollupEntry.GRANULARITY_MINUTE, mPolicy.minuteDays, nowMillis);
+        deleted += prune(RollupEntry.GRANULARITY_HOUR, mPolicy.hourDays, nowMillis);
+        deleted += prune(RollupEntry.GRANULARITY_DAY, mPolicy.dayDays, nowMillis);
+        if (deleted > 0) {
+            vacuum();
+            // Once per run, not per range, so open cursors requery once
+            mResolver.notifyChange(TemperatureEntry.CONTENT_URI, null);
+            mResolver.notifyChange(RollupEntry.CONTENT_URI, null);
+        }
+        mLastRunMillis = System.currentTimeMillis() - start;
+        Log.d(TAG, "deleted " + deleted + " rows in " + mLastRunMillis + " ms");
+        return deleted;
+    }
+
+    private long prune(String granularity, int days, long nowMillis) throws InterruptedException {
+        if (days < 0) {
+            return 0;
+        }
+        String before = mFormat.format(new Date(nowMillis - days * DAY_MILLIS));
+        Bundle extras = new Bundle();
+        extras.putString(RollupEntry.EXTRA_GRANULARITY, granularity);
+        extras.putInt(TemperatureEntry.EXTRA_COUNT, mChunkIds);
+        long deleted = 0;
+        long fromId = 0;
+        int ranges = 0;
+        while (fromId >= 0 && !mStopped) {
+            extras.putLong(TemperatureEntry.EXTRA_FROM_ID, fromId);
+            Bundle result = mResolver.call(TemperatureEntry.CONTENT_URI,
+                    TemperatureEntry.METHOD_PRUNE, before, extras);
+            int count = result.getInt(TemperatureEntry.EXTRA_COUNT);
+            deleted += count;
+            mDeletedCount += count;
+            fromId = result.getLong(TemperatureEntry.EXTRA_NEXT_ID);
+            if (++ranges % VACUUM_EVERY == 0) {
+                vacuum();
+            }
+            if (fromId >= 0) {
+                Thread.sleep(mPauseMillis);
+            }
+        }
+        return deleted;
+    }
+
+    private void vacuum() {
+        Bundle extras = new Bundle();
+        extras.putInt(TemperatureContract.EXTRA_PAGES, VACUUM_PAGES);
+        Bundle result = mResolver.call(TemperatureContract.BASE_CONTENT_URI,
+                TemperatureContract.METHOD_VACUUM, null, extras);
+        mVacuumedPages += result.getInt(TemperatureContract.EXTRA_PAGES);
+    }
+
+    public long getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    public long getVacuumedPages() {
+        return mVacuumedPages;
+    }
+
+    /**
+     * @return How long the last run took, in milliseconds
+     */
+    public long getLastRunMillis() {
+        return mLastRunMillis;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.data.TemperatureContract.RollupEntry;
+import com.example.android.bluetoothchat.data.TemperatureContract.SensorEntry;
+import com.example.android.bluetoothchat.data.TemperatureContract.TemperatureEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Folds inserted readings into the minute, hour and day rollup tables.
+ * Readings are summed per sensor and period in memory as they are added,
+ * then {@link #apply} writes one row per period touched, inside the
+ * transaction that inserted the readings. A batch of a few thousand
+ * readings from one sensor updates a handful of rollup rows.
+ */
+final class TemperatureRollups {
+
+    private static final String TAG = "TemperatureRollups";
+
+    // Finest first; each level is rebuilt from the one before it
+    static final String[] GRANULARITIES = {
+            RollupEntry.GRANULARITY_MINUTE, RollupEntry.GRANULARITY_HOUR, RollupEntry.GRANULARITY_DAY
+    };
+
+    // strftime() formats that truncate a "yyyy-MM-dd HH:mm:ss" date to each level
+    private static final String[] PERIOD_FORMATS = {
+            "%Y-%m-%d %H:%M:00", "%Y-%m-%d %H:00:00", "%Y-%m-%d 00:00:00"
+    };
+
+    private static class Bucket {
+        final long mSensorId;
+        final String mPeriod;
+        long mCount;
+        double mSum;
+        double mMin = Double.POSITIVE_INFINITY;
+        double mMax = Double.NEGATIVE_INFINITY;
+        double mSumSquares;
+
+        Bucket(long sensorId, String period) {
+            mSensorId = sensorId;
+            mPeriod = period;
+        }
+
+        void add(double value) {
+            mCount++;
+            mSum += value;
+            mSumSquares += value * value;
+            if (value < mMin) mMin = value;
+            if (value > mMax) mMax = value;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Map<String, Bucket>[] mBuckets = new Map[GRANULARITIES.length];
+    // Readings mostly come many per second from one sensor, so the buckets
+    // of the previous reading usually take the next one too
+    private final Bucket[] mLast = new Bucket[GRANULARITIES.length];
+    private long mLastSensorId;
+    private String mLastCreated;
+
+    TemperatureRollups() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = new HashMap<String, Bucket>();
+        }
+    }
+
+    /**
+     * @param created The reading's created text, "yyyy-MM-dd HH:mm:ss"
+     */
+    void add(long sensorId, String created, double value) {
+        if (created == null || created.length() < 19 || created.charAt(10) != ' ') {
+            // Left for a rebuild, which lets SQLite parse the date
+            Log.w(TAG, "no rollup for created " + created);
+            return;
+        }
+        if (sensorId != mLastSensorId || !created.equals(mLastCreated)) {
+            String[] periods = {
+                    created.substring(0, 16) + ":00",
+                    created.substring(0, 13) + ":00:00",
+                    created.substring(0, 10) + " 00:00:00"
+            };
+            for (int i = 0; i < periods.length; i++) {
+                if (mLast[i] != null && mLast[i].mSensorId == sensorId
+                        && mLast[i].mPeriod.equals(periods[i])) {
+                    continue;
+                }
+                String key = sensorId + " " + periods[i];
+                Bucket bucket = mBuckets[i].get(key);
+                if (bucket == null) {
+                    bucket = new Bucket(sensorId, periods[i]);
+                    mBuckets[i].put(key, bucket);
+                }
+                mLast[i] = bucket;
+            }
+            mLastSensorId = sensorId;
+            mLastCreated = created;
+        }
+        for (Bucket bucket : mLast) {
+            bucket.add(value);
+        }
+    }
+
+    /**
+     * Write the readings added since the last call into the rollup tables
+     * and start over. Call inside the transaction that inserted them.
+     */
+    void apply(SQLiteDatabase db) {
+        for (int i = 0; i < GRANULARITIES.length; i++) {
+            if (mBuckets[i].isEmpty()) {
+                continue;
+            }
+            String table = RollupEntry.getTableName(GRANULARITIES[i]);
+            SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " +
+                    RollupEntry.COLUMN_COUNT + " = " + RollupEntry.COLUMN_COUNT + " + ?, " +
+                    RollupEntry.COLUMN_SUM + " = " + RollupEntry.COLUMN_SUM + " + ?, " +
+                    RollupEntry.COLUMN_MIN + " = MIN(" + RollupEntry.COLUMN_MIN + ", ?), " +
+                    RollupEntry.COLUMN_MAX + " = MAX(" + RollupEntry.COLUMN_MAX + ", ?), " +
+                    RollupEntry.COLUMN_SUM_SQUARES + " = " + RollupEntry.COLUMN_SUM_SQUARES + " + ? " +
+                    "WHERE " + RollupEntry.COLUMN_SENSORID + " = ? AND " +
+                    RollupEntry.COLUMN_PERIOD + " = ?");
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + table + " (" +
+                    RollupEntry.COLUMN_COUNT + ", " + RollupEntry.COLUMN_SUM + ", " +
+                    RollupEntry.COLUMN_MIN + ", " + RollupEntry.COLUMN_MAX + ", " +
+                    RollupEntry.COLUMN_SUM_SQUARES + ", " + RollupEntry.COLUMN_SENSORID + ", " +
+                    RollupEntry.COLUMN_PERIOD + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+            try {
+                for (Bucket bucket : mBuckets[i].values()) {
+                    // Both statements take the same binds in the same order
+                    bind(update, bucket);
+                    if (update.executeUpdateDelete() == 0) {
+                        bind(insert, bucket);
+                        insert.executeInsert();
+                    }
+                }
+            } finally {
+                update.close();
+                insert.close();
+            }
+            mBuckets[i].clear();
+            mLast[i] = null;
+        }
+        mLastCreated = null;
+    }
+
+    private static void bind(SQLiteStatement statement, Bucket bucket) {
+        statement.bindLong(1, bucket.mCount);
+        statement.bindDouble(2, bucket.mSum);
+        statement.bindDouble(3, bucket.mMin);
+        statement.bindDouble(4, bucket.mMax);
+        statement.bindDouble(5, bucket.mSumSquares);
+        statement.bindLong(6, bucket.mSensorId);
+        statement.bindString(7, bucket.mPeriod);
+    }
+
+    /**
+     * Recompute the rollups of one sensor, or of all if sensorId is negative,
+     * from the periods of its oldest reading on. Minutes come from the
+     * readings, hours from the minutes and days from the hours; rollups of
+     * periods older than the readings are kept. Call inside a transaction.
+     *
+     * @return The number of sensors rebuilt
+     */
+    static int rebuild(SQLiteDatabase db, long sensorId) {
+        List<Long> sensorIds = new ArrayList<Long>();
+        if (sensorId >= 0) {
+            sensorIds.add(sensorId);
+        } else {
+            Cursor c = db.query(SensorEntry.TABLE_NAME, new String[]{SensorEntry._ID},
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    sensorIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        int rebuilt = 0;
+        for (long id : sensorIds) {
+            String[] sensor = {Long.toString(id)};
+            Cursor c = db.rawQuery("SELECT MIN(" + TemperatureEntry.COLUMN_CREATED + ") FROM " +
+                    TemperatureEntry.TABLE_NAME + " WHERE " + TemperatureEntry.COLUMN_SENSORID +
+                    " = ?", sensor);
+            String oldest;
+            try {
+                oldest = c.moveToFirst() ? c.getString(0) : null;
+            } finally {
+                c.close();
+            }
+            if (oldest == null) {
+                continue;
+            }
+            for (int i = 0; i < GRANULARITIES.length; i++) {
+                rebuildLevel(db, i, id, oldest);
+            }
+            rebuilt++;
+        }
+        return rebuilt;
+    }
+
+    private static void rebuildLevel(SQLiteDatabase db, int level, long sensorId, String oldest) {
+        String table = RollupEntry.getTableName(GRANULARITIES[level]);
+        Object[] from = {sensorId, oldest};
+        String start = "strftime('" + PERIOD_FORMATS[level] + "', ?)";
+        db.execSQL("DELETE FROM " + table + " WHERE " + RollupEntry.COLUMN_SENSORID + " = ? AND " +
+                RollupEntry.COLUMN_PERIOD + " >= " + start, from);
+
+        String columns = " (" + RollupEntry.COLUMN_SENSORID + ", " + RollupEntry.COLUMN_PERIOD + ", " +
+                RollupEntry.COLUMN_COUNT + ", " + RollupEntry.COLUMN_SUM + ", " +
+                RollupEntry.COLUMN_MIN + ", " + RollupEntry.COLUMN_MAX + ", " +
+                RollupEntry.COLUMN_SUM_SQUARES + ") ";
+        if (level == 0) {
+            String value = TemperatureEntry.COLUMN_VALUE;
+            db.execSQL("INSERT INTO " + table + columns +
+                    "SELECT " + TemperatureEntry.COLUMN_SENSORID + ", " +
+                    "strftime('" + PERIOD_FORMATS[level] + "', " + TemperatureEntry.COLUMN_CREATED + ") AS p, " +
+                    "COUNT(*), SUM(" + value + "), MIN(" + value + "), MAX(" + value + "), " +
+                    "SUM(" + value + " * " + value + ") FROM " + TemperatureEntry.TABLE_NAME +
+                    " WHERE " + TemperatureEntry.COLUMN_SENSORID + " = ? AND " +
+                    TemperatureEntry.COLUMN_CREATED + " >= ? GROUP BY p", from);
+        } else {
+            // The finer level's periods from the start of this level's first period
+            String finer = RollupEntry.getTableName(GRANULARITIES[level - 1]);
+            db.execSQL("INSERT INTO " + table + columns +
+                    "SELECT " + RollupEntry.COLUMN_SENSORID + ", " +
+                    "strftime('" + PERIOD_FORMATS[level] + "', " + RollupEntry.COLUMN_PERIOD + ") AS p, " +
+                    "SUM(" + RollupEntry.COLUMN_COUNT + "), SUM(" + RollupEntry.COLUMN_SUM + "), " +
+                    "MIN(" + RollupEntry.COLUMN_MIN + "), MAX(" + RollupEntry.COLUMN_MAX + "), " +
+                    "SUM(" + RollupEntry.COLUMN_SUM_SQUARES + ") FROM " + finer +
+                    " WHERE " + RollupEntry.COLUMN_SENSORID + " = ? AND " +
+                    RollupEntry.COLUMN_PERIOD + " >= " + start + " GROUP BY p", from);
+        }
+    }
+}
@@ -22,10 +22,15 @@ import android.test.AndroidTestCase;
 import android.util.Log;
 
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TestDb extends AndroidTestCase {
 
     public static final String LOG_TAG = TestDb.class.getSimpleName();
+
+    // How long each profile runs in the mixed read/write benchmark
+    private static final long BENCHMARK_MILLIS = 3000;
+    private static final int ROWS_PER_TRANSACTION = 200;
     
     // Since we want each test to start with a clean slate
     void deleteTheDatabase() {
@@ -201,5 +206,106 @@ public class TestDb extends AndroidTestCase {
         return sensorRowId;
     }
 
+    public void testProfilesByName() {
+        for (TemperatureDbHelper.TuningProfile profile : TemperatureDbHelper.getProfiles()) {
+            assertSame(profile, TemperatureDbHelper.getProfile(profile.name));
+        }
+        assertSame(TemperatureDbHelper.INGEST_HEAVY, TemperatureDbHelper.getProfile("ingest-heavy"));
+        assertNull(TemperatureDbHelper.getProfile("no-such-profile"));
+        assertSame("Error: the default helper should be tuned for ingest",
+                TemperatureDbHelper.INGEST_HEAVY, new TemperatureDbHelper(mContext).getProfile());
+    }
 
+    public void testJournalMode() {
+        for (TemperatureDbHelper.TuningProfile profile : TemperatureDbHelper.getProfiles()) {
+            deleteTheDatabase();
+            TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext, profile);
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            assertEquals("Error: " + profile + " opened with the wrong journal mode",
+                    profile.journalMode.toLowerCase(), pragma(db, "journal_mode").toLowerCase());
+            // QUERY_HEAVY is WAL with 8 KiB pages, which only stick if set before WAL
+            assertEquals("Error: " + profile + " created the wrong page size",
+                    String.valueOf(profile.pageSize), pragma(db, "page_size"));
+            assertEquals("Error: " + profile + " created without incremental auto-vacuum",
+                    "2", pragma(db, "auto_vacuum"));
+            dbHelper.close();
+        }
+    }
+
+    private static String pragma(SQLiteDatabase db, String name) {
+        Cursor c = db.rawQuery("PRAGMA " + name, null);
+        try {
+            assertTrue("Error: PRAGMA " + name + " returned nothing", c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    /*
+        Benchmark: one thread writes readings in transactions the size of an
+        ingest flush while another runs the query a history screen would, on
+        the same helper. Without WAL the reader waits for every write
+        transaction to commit.
+     */
+    public void testMixedThroughputPerProfile() throws Exception {
+        for (TemperatureDbHelper.TuningProfile profile : TemperatureDbHelper.getProfiles()) {
+            deleteTheDatabase();
+            final TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext, profile);
+            final SQLiteDatabase db = dbHelper.getWritableDatabase();
+            final long sensorRowId = db.insert(TemperatureContract.SensorEntry.TABLE_NAME, null,
+                    TestUtilities.createSensorValues());
+            assertTrue("Error: insert did not return a new sensor row id", sensorRowId != -1);
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final long[] written = new long[1];
+            final long[] reads = new long[1];
+            Thread writer = new Thread("TestDb-writer") {
+                @Override
+                public void run() {
+                    ContentValues values = TestUtilities.createTemperatureValues(sensorRowId);
+                    while (running.get()) {
+                        db.beginTransaction();
+                        try {
+                            for (int i = 0; i < ROWS_PER_TRANSACTION; i++) {
+                                db.insert(TemperatureContract.TemperatureEntry.TABLE_NAME, null, values);
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                        written[0] += ROWS_PER_TRANSACTION;
+                    }
+                }
+            };
+            Thread reader = new Thread("TestDb-reader") {
+                @Override
+                public void run() {
+                    String[] args = new String[]{Long.toString(sensorRowId)};
+                    while (running.get()) {
+                        Cursor c = db.rawQuery("SELECT COUNT(*), MAX("
+                                + TemperatureContract.TemperatureEntry.COLUMN_CREATED + ") FROM "
+                                + TemperatureContract.TemperatureEntry.TABLE_NAME + " WHERE "
+                                + TemperatureContract.TemperatureEntry.COLUMN_SENSORID + " = ?", args);
+                        c.moveToFirst();
+                        c.close();
+                        reads[0]++;
+                    }
+                }
+            };
+            long start = System.nanoTime();
+            writer.start();
+            reader.start();
+            Thread.sleep(BENCHMARK_MILLIS);
+            running.set(false);
+            writer.join();
+            reader.join();
+            long nanos = System.nanoTime() - start;
+            Log.d(LOG_TAG, profile + ": " + (written[0] * 1000000000L / nanos) + " rows/s written, "
+                    + (reads[0] * 1000000000L / nanos) + " queries/s");
+            assertTrue("Error: " + profile + " wrote nothing", written[0] > 0);
+            assertTrue("Error: " + profile + " answered no queries", reads[0] > 0);
+            dbHelper.close();
+        }
+    }
 }
@@ -15,20 +15,45 @@
  */
 package com.example.android.bluetoothchat.data;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.bluetoothchat.data.TemperatureContract.RollupEntry;
 import com.example.android.bluetoothchat.data.TemperatureContract.SensorEntry;
 import com.example.android.bluetoothchat.data.TemperatureContract.TemperatureEntry;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class TestProvider extends AndroidTestCase {
 
     public static final String LOG_TAG = TestProvider.class.getSimpleName();
 
+    // Readings in the range query benchmark: ten sensors at one per second
+    private static final int BENCHMARK_SENSORS = 10;
+    private static final int BENCHMARK_ROWS_PER_SENSOR = 100000;
+    // Batch sizes in the bulk insert benchmark
+    private static final int[] BENCHMARK_BATCHES = {1000, 10000, 100000};
+    // One year at one reading per minute for the daily chart benchmark
+    private static final int YEAR_MINUTES = 365 * 24 * 60;
+    // Sensors provisioned by one applyBatch()
+    private static final int PROVISIONED_SENSORS = 300;
+
     public void deleteAllRecordsFromProvider() {
 
         mContext.getContentResolver().delete(
@@ -75,6 +100,15 @@ public class TestProvider extends AndroidTestCase {
         );
         assertEquals("Error: Records not deleted from calibration table during delete", 0, cursor.getCount());
         cursor.close();
+
+        for (String granularity : TemperatureRollups.GRANULARITIES) {
+            Uri rollupUri = RollupEntry.buildRollupUri(granularity);
+            mContext.getContentResolver().delete(rollupUri, null, null);
+            cursor = mContext.getContentResolver().query(rollupUri, null, null, null, null);
+            assertEquals("Error: Records not deleted from " + granularity + " rollups during delete",
+                    0, cursor.getCount());
+            cursor.close();
+        }
     }
 
     /*
@@ -204,4 +238,607 @@ public class TestProvider extends AndroidTestCase {
         TestUtilities.validateCursor("testBasicWeatherQuery", sensorCursor2, novosValues);
     }
 
+    public void testTemperatureSensorGetType() {
+        Uri sensorUri = TemperatureEntry.buildTemperatureSensor(TestUtilities.TEST_SENSOR);
+        assertEquals("Error: the sensor temperature Uri should return TemperatureEntry.CONTENT_DIR_TYPE",
+                TemperatureEntry.CONTENT_DIR_TYPE, mContext.getContentResolver().getType(sensorUri));
+
+        Uri rangeUri = TemperatureEntry.buildTemperatureSensorWithRange(TestUtilities.TEST_SENSOR,
+                "2015-10-01 10:00:00", "2015-10-01 11:00:00");
+        assertEquals("Error: the sensor range Uri should return TemperatureEntry.CONTENT_DIR_TYPE",
+                TemperatureEntry.CONTENT_DIR_TYPE, mContext.getContentResolver().getType(rangeUri));
+    }
+
+    public void testTemperatureRangeQuery() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        long otherSensorId = TestUtilities.insertSensorValues(mContext);
+        String[] dates = {"2015-10-01 09:59:59", "2015-10-01 10:00:00", "2015-10-01 10:30:00",
+                "2015-10-01 11:00:00"};
+        ContentValues[] values = new ContentValues[dates.length * 2];
+        for (int i = 0; i < dates.length; i++) {
+            values[i] = TestUtilities.createTemperatureValues(sensorId);
+            values[i].put(TemperatureEntry.COLUMN_CREATED, dates[dates.length - 1 - i]);
+            values[dates.length + i] = TestUtilities.createTemperatureValues(otherSensorId);
+            values[dates.length + i].put(TemperatureEntry.COLUMN_CREATED, dates[i]);
+        }
+        mContext.getContentResolver().bulkInsert(TemperatureEntry.CONTENT_URI, values);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                TemperatureEntry.buildTemperatureSensor(sensorId), null, null, null, null);
+        assertEquals("Error: sensor Uri returned another sensor's readings",
+                dates.length, cursor.getCount());
+        cursor.close();
+
+        // The range includes its start and excludes its end, oldest first
+        cursor = mContext.getContentResolver().query(
+                TemperatureEntry.buildTemperatureSensorWithRange(sensorId,
+                        "2015-10-01 10:00:00", "2015-10-01 11:00:00"), null, null, null, null);
+        int created = cursor.getColumnIndex(TemperatureEntry.COLUMN_CREATED);
+        assertTrue("Error: range query returned nothing", cursor.moveToFirst());
+        assertEquals(dates[1], cursor.getString(created));
+        assertTrue(cursor.moveToNext());
+        assertEquals(dates[2], cursor.getString(created));
+        assertFalse("Error: range query returned rows outside the range", cursor.moveToNext());
+        cursor.close();
+
+        // A caller's selection narrows the range further
+        cursor = mContext.getContentResolver().query(
+                TemperatureEntry.buildTemperatureSensorWithRange(sensorId,
+                        "2015-10-01 10:00:00", "2015-10-01 11:00:00"), null,
+                TemperatureEntry.COLUMN_CREATED + " > ?", new String[]{dates[1]}, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    private static String explain(SQLiteDatabase db, String table, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, table, null,
+                selection, null, null, sortOrder, null);
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        StringBuilder plan = new StringBuilder();
+        int detail = c.getColumnIndex("detail");
+        while (c.moveToNext()) {
+            plan.append(c.getString(detail)).append('\n');
+        }
+        c.close();
+        return plan.toString();
+    }
+
+    private static void assertUsesSensorIndex(String what, String plan) {
+        assertTrue("Error: " + what + " does not use the sensor index:\n" + plan,
+                plan.contains(TemperatureDbHelper.INDEX_TEMPERATURE_SENSOR_CREATED));
+        assertFalse("Error: " + what + " sorts outside the index:\n" + plan,
+                plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+        Every way of asking for one sensor's readings must be a search of the
+        (sensorid, created) index, not a scan of the temperature table.
+     */
+    public void testQueryPlansUseSensorIndex() {
+        TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Uri sensorUri = TemperatureEntry.buildTemperatureSensor(TestUtilities.TEST_SENSOR);
+        Uri rangeUri = TemperatureEntry.buildTemperatureSensorWithRange(TestUtilities.TEST_SENSOR,
+                "2015-10-01 10:00:00", "2015-10-01 11:00:00");
+        int sensor = TemperatureProvider.TEMPERATURE_WITH_LOCATION;
+        int range = TemperatureProvider.TEMPERATURE_WITH_LOCATION_AND_DATE;
+
+        assertUsesSensorIndex(sensorUri.toString(), explain(db, TemperatureEntry.TABLE_NAME,
+                TemperatureProvider.getSensorSelection(sensor, null),
+                TemperatureProvider.getSensorSelectionArgs(sensorUri, sensor, null),
+                TemperatureProvider.sDefaultTemperatureOrder));
+        assertUsesSensorIndex(rangeUri.toString(), explain(db, TemperatureEntry.TABLE_NAME,
+                TemperatureProvider.getSensorSelection(range, null),
+                TemperatureProvider.getSensorSelectionArgs(rangeUri, range, null),
+                TemperatureProvider.sDefaultTemperatureOrder));
+        assertUsesSensorIndex(rangeUri + " with a selection", explain(db, TemperatureEntry.TABLE_NAME,
+                TemperatureProvider.getSensorSelection(range, TemperatureEntry.COLUMN_VALUE + " > ?"),
+                TemperatureProvider.getSensorSelectionArgs(rangeUri, range, new String[]{"20"}),
+                TemperatureProvider.sDefaultTemperatureOrder));
+
+        // The latest reading of a sensor, as SampleStore looks it up on the plain Uri
+        assertUsesSensorIndex(TemperatureEntry.CONTENT_URI + " latest reading",
+                explain(db, TemperatureEntry.TABLE_NAME,
+                TemperatureEntry.COLUMN_SENSORID + " = ?",
+                new String[]{Integer.toString(TestUtilities.TEST_SENSOR)},
+                TemperatureEntry.COLUMN_CREATED + " DESC"));
+
+        // Rollup ranges search the index of their (sensorid, period) constraint
+        int rollupRange = TemperatureProvider.ROLLUP_WITH_SENSOR_AND_DATE;
+        for (String granularity : TemperatureRollups.GRANULARITIES) {
+            Uri rollupUri = RollupEntry.buildRollupSensorWithRange(granularity, TestUtilities.TEST_SENSOR,
+                    "2015-01-01 00:00:00", "2016-01-01 00:00:00");
+            String plan = explain(db, TemperatureProvider.getRollupTable(rollupUri),
+                    TemperatureProvider.getRollupSelection(rollupRange, null),
+                    TemperatureProvider.getRollupSelectionArgs(rollupUri, rollupRange, null),
+                    RollupEntry.COLUMN_PERIOD + " ASC");
+            assertTrue("Error: " + rollupUri + " does not use an index:\n" + plan,
+                    plan.contains("USING INDEX") || plan.contains("USING COVERING INDEX"));
+            assertFalse("Error: " + rollupUri + " sorts outside the index:\n" + plan,
+                    plan.contains("TEMP B-TREE"));
+        }
+        dbHelper.close();
+    }
+
+    /*
+        Benchmark: an hour of one sensor out of a million readings. With the
+        index the cost grows with the log of the table size plus the rows
+        returned, so it stays in milliseconds as the table grows.
+     */
+    public void testRangeQueryLatency() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long base = 1443657600000L;
+
+        TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long[] sensorIds = new long[BENCHMARK_SENSORS];
+        for (int s = 0; s < BENCHMARK_SENSORS; s++) {
+            sensorIds[s] = db.insert(SensorEntry.TABLE_NAME, null, TestUtilities.createSensorValues());
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT INTO " + TemperatureEntry.TABLE_NAME
+                + " (" + TemperatureEntry.COLUMN_SENSORID + ", " + TemperatureEntry.COLUMN_CREATED
+                + ", " + TemperatureEntry.COLUMN_VALUE + ") VALUES (?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < BENCHMARK_ROWS_PER_SENSOR; i++) {
+                String created = format.format(base + i * 1000L);
+                for (int s = 0; s < BENCHMARK_SENSORS; s++) {
+                    insert.bindLong(1, sensorIds[s]);
+                    insert.bindString(2, created);
+                    insert.bindDouble(3, 20 + s);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        insert.close();
+
+        long start = base + BENCHMARK_ROWS_PER_SENSOR * 500L;
+        Uri lastHour = TemperatureEntry.buildTemperatureSensorWithRange(sensorIds[3],
+                format.format(start), format.format(start + 3600 * 1000L));
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long t0 = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(lastHour, null, null, null, null);
+            assertEquals("Error: an hour at one reading per second", 3600, cursor.getCount());
+            cursor.close();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        Log.d(LOG_TAG, "one hour of one sensor out of " + BENCHMARK_SENSORS * BENCHMARK_ROWS_PER_SENSOR
+                + " rows: " + best / 1000 + " us");
+        dbHelper.close();
+    }
+
+    public void testInsertCall() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        long[] sensorIds = {sensorId, sensorId, sensorId};
+        // 2015-10-01 10:11:12 UTC, half a second later, and one more second
+        long[] created = {1443694272000L, 1443694272500L, 1443694273000L};
+        float[] values = {21.5f, 21.75f, 0};
+        Bundle extras = new Bundle();
+        extras.putLongArray(TemperatureEntry.EXTRA_SENSOR_IDS, sensorIds);
+        extras.putLongArray(TemperatureEntry.EXTRA_CREATED, created);
+        extras.putFloatArray(TemperatureEntry.EXTRA_VALUES, values);
+        // Only the front of the arrays is stored
+        extras.putInt(TemperatureEntry.EXTRA_COUNT, 2);
+        Bundle result = mContext.getContentResolver().call(TemperatureEntry.CONTENT_URI,
+                TemperatureEntry.METHOD_INSERT, null, extras);
+        assertEquals(2, result.getInt(TemperatureEntry.EXTRA_COUNT));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                TemperatureEntry.buildTemperatureSensor(sensorId), null, null, null, null);
+        assertEquals("Error: call() stored the wrong number of rows", 2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TestUtilities.TEST_DATE_STRING,
+                cursor.getString(cursor.getColumnIndex(TemperatureEntry.COLUMN_CREATED)));
+        assertEquals(21.5, cursor.getDouble(cursor.getColumnIndex(TemperatureEntry.COLUMN_VALUE)));
+        // Columns the call leaves out keep their defaults
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(TemperatureEntry.COLUMN_METRIC)));
+        assertEquals(0, cursor.getInt(cursor.getColumnIndex(TemperatureEntry.COLUMN_CALIBRATED)));
+        cursor.close();
+    }
+
+    public void testBulkInsertDefaults() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        ContentValues full = TestUtilities.createTemperatureValues(sensorId);
+        // No created, metric or calibrated: the compiled insert must keep the defaults
+        ContentValues partial = new ContentValues();
+        partial.put(TemperatureEntry.COLUMN_SENSORID, sensorId);
+        partial.put(TemperatureEntry.COLUMN_VALUE, 19.25);
+        assertEquals(2, mContext.getContentResolver().bulkInsert(TemperatureEntry.CONTENT_URI,
+                new ContentValues[]{full, partial}));
+
+        Cursor cursor = mContext.getContentResolver().query(TemperatureEntry.CONTENT_URI, null,
+                null, null, TemperatureEntry._ID + " ASC");
+        assertTrue(cursor.moveToFirst());
+        TestUtilities.validateCurrentRecord("Error: bulkInsert changed a full row", cursor, full);
+        assertTrue(cursor.moveToNext());
+        assertFalse("Error: bulkInsert left created empty",
+                cursor.isNull(cursor.getColumnIndex(TemperatureEntry.COLUMN_CREATED)));
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(TemperatureEntry.COLUMN_METRIC)));
+        assertEquals(0, cursor.getInt(cursor.getColumnIndex(TemperatureEntry.COLUMN_CALIBRATED)));
+        cursor.close();
+    }
+
+    /*
+        Single inserts without a created date, which format the current time
+        inside their transaction, racing batches that hold the insert lock.
+     */
+    public void testConcurrentInsertAndBulkInsert() throws Exception {
+        final long sensorId = TestUtilities.insertSensorValues(mContext);
+        final int singles = 200;
+        final AtomicInteger inserted = new AtomicInteger();
+        Thread single = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < singles; i++) {
+                    ContentValues value = new ContentValues();
+                    value.put(TemperatureEntry.COLUMN_SENSORID, sensorId);
+                    value.put(TemperatureEntry.COLUMN_VALUE, 21.5);
+                    if (mContext.getContentResolver().insert(
+                            TemperatureEntry.CONTENT_URI, value) != null) {
+                        inserted.incrementAndGet();
+                    }
+                }
+            }
+        };
+        single.start();
+
+        int batches = 20;
+        ContentValues[] batch = new ContentValues[500];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new ContentValues();
+            batch[i].put(TemperatureEntry.COLUMN_SENSORID, sensorId);
+            batch[i].put(TemperatureEntry.COLUMN_VALUE, 19.0);
+        }
+        for (int i = 0; i < batches; i++) {
+            assertEquals(batch.length, mContext.getContentResolver().bulkInsert(
+                    TemperatureEntry.CONTENT_URI, batch));
+        }
+        single.join(30000);
+        assertFalse("Error: single inserts deadlocked with bulkInsert()", single.isAlive());
+        assertEquals(singles, inserted.get());
+
+        Cursor cursor = mContext.getContentResolver().query(TemperatureEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals(singles + batches * batch.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Benchmark: rows per second for each batch size, through the previous
+        bulkInsert() (a db.insert() per row, reproduced here), the compiled
+        statement behind bulkInsert(), and the primitive arrays of call().
+     */
+    public void testBulkInsertThroughput() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long base = 1443657600000L;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        for (int rows : BENCHMARK_BATCHES) {
+            long[] sensorIds = new long[rows];
+            long[] created = new long[rows];
+            float[] values = new float[rows];
+            for (int i = 0; i < rows; i++) {
+                sensorIds[i] = sensorId;
+                created[i] = base + i * 100L;
+                values[i] = 20 + (i % 100) / 10f;
+            }
+
+            // As SampleStore built them before call() existed
+            long t0 = System.nanoTime();
+            ContentValues[] contentValues = toContentValues(format, sensorIds, created, values);
+            db.beginTransaction();
+            try {
+                for (ContentValues value : contentValues) {
+                    db.insert(TemperatureEntry.TABLE_NAME, null, value);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long generic = System.nanoTime() - t0;
+            db.delete(TemperatureEntry.TABLE_NAME, null, null);
+
+            t0 = System.nanoTime();
+            contentValues = toContentValues(format, sensorIds, created, values);
+            assertEquals(rows, mContext.getContentResolver().bulkInsert(
+                    TemperatureEntry.CONTENT_URI, contentValues));
+            long compiled = System.nanoTime() - t0;
+            db.delete(TemperatureEntry.TABLE_NAME, null, null);
+
+            t0 = System.nanoTime();
+            Bundle extras = new Bundle();
+            extras.putLongArray(TemperatureEntry.EXTRA_SENSOR_IDS, sensorIds);
+            extras.putLongArray(TemperatureEntry.EXTRA_CREATED, created);
+            extras.putFloatArray(TemperatureEntry.EXTRA_VALUES, values);
+            extras.putInt(TemperatureEntry.EXTRA_COUNT, rows);
+            Bundle result = mContext.getContentResolver().call(TemperatureEntry.CONTENT_URI,
+                    TemperatureEntry.METHOD_INSERT, null, extras);
+            long primitive = System.nanoTime() - t0;
+            assertEquals(rows, result.getInt(TemperatureEntry.EXTRA_COUNT));
+            db.delete(TemperatureEntry.TABLE_NAME, null, null);
+
+            Log.d(LOG_TAG, rows + " rows: db.insert " + rows * 1000000000L / generic
+                    + " rows/s, compiled bulkInsert " + rows * 1000000000L / compiled
+                    + " rows/s, call " + rows * 1000000000L / primitive + " rows/s");
+        }
+        dbHelper.close();
+    }
+
+    private static ContentValues[] toContentValues(SimpleDateFormat format, long[] sensorIds,
+                                                   long[] created, float[] values) {
+        ContentValues[] rows = new ContentValues[sensorIds.length];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(TemperatureEntry.COLUMN_SENSORID, sensorIds[i]);
+            rows[i].put(TemperatureEntry.COLUMN_CREATED, format.format(created[i]));
+            rows[i].put(TemperatureEntry.COLUMN_VALUE, values[i]);
+        }
+        return rows;
+    }
+
+    /*
+        Counts onChange() calls. With no Handler they arrive on a binder thread.
+     */
+    static class CountingObserver extends ContentObserver {
+        final AtomicInteger mChanges = new AtomicInteger();
+
+        CountingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mChanges.incrementAndGet();
+        }
+
+        void assertChanges(String error, int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (mChanges.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Give a duplicate the chance to show up
+            Thread.sleep(200);
+            assertEquals(error, expected, mChanges.get());
+        }
+    }
+
+    public void testBulkInsertSensors() throws Exception {
+        CountingObserver observer = new CountingObserver();
+        mContext.getContentResolver().registerContentObserver(SensorEntry.CONTENT_URI, false, observer);
+        ContentValues[] sensors = new ContentValues[PROVISIONED_SENSORS];
+        for (int i = 0; i < sensors.length; i++) {
+            sensors[i] = TestUtilities.createSensorValues();
+        }
+        assertEquals(PROVISIONED_SENSORS,
+                mContext.getContentResolver().bulkInsert(SensorEntry.CONTENT_URI, sensors));
+        observer.assertChanges("Error: bulkInsert of sensors should notify once", 1);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        Cursor cursor = mContext.getContentResolver().query(SensorEntry.CONTENT_URI, null, null, null, null);
+        assertEquals(PROVISIONED_SENSORS, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Provisioning: every sensor and its first calibration in one
+        applyBatch(), the calibrations pointing back at the sensor rows.
+     */
+    public void testApplyBatchProvisioning() throws Exception {
+        CountingObserver sensorObserver = new CountingObserver();
+        CountingObserver calibrationObserver = new CountingObserver();
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.registerContentObserver(SensorEntry.CONTENT_URI, false, sensorObserver);
+        resolver.registerContentObserver(TemperatureContract.CalibrationEntry.CONTENT_URI, false,
+                calibrationObserver);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < PROVISIONED_SENSORS; i++) {
+            int sensorIndex = operations.size();
+            operations.add(ContentProviderOperation.newInsert(SensorEntry.CONTENT_URI)
+                    .withValues(TestUtilities.createSensorValues())
+                    // Let the ingest writer in between sensors
+                    .withYieldAllowed(true)
+                    .build());
+            ContentValues calibration = TestUtilities.createCalibrationValues(-1);
+            operations.add(ContentProviderOperation.newInsert(TemperatureContract.CalibrationEntry.CONTENT_URI)
+                    .withValues(calibration)
+                    .withValueBackReference(TemperatureContract.CalibrationEntry.COLUMN_SENSORID, sensorIndex)
+                    .build());
+        }
+        long start = System.nanoTime();
+        ContentProviderResult[] results =
+                resolver.applyBatch(TemperatureContract.CONTENT_AUTHORITY, operations);
+        Log.d(LOG_TAG, PROVISIONED_SENSORS + " sensors and calibrations in one batch: "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        assertEquals(operations.size(), results.length);
+
+        sensorObserver.assertChanges("Error: the batch should notify the sensor Uri once", 1);
+        calibrationObserver.assertChanges("Error: the batch should notify the calibration Uri once", 1);
+        resolver.unregisterContentObserver(sensorObserver);
+        resolver.unregisterContentObserver(calibrationObserver);
+
+        for (int i = 0; i < results.length; i += 2) {
+            long sensorId = ContentUris.parseId(results[i].uri);
+            Cursor cursor = resolver.query(TemperatureContract.CalibrationEntry.CONTENT_URI, null,
+                    TemperatureContract.CalibrationEntry._ID + " = ?",
+                    new String[]{Long.toString(ContentUris.parseId(results[i + 1].uri))}, null);
+            assertTrue("Error: calibration " + i / 2 + " was not stored", cursor.moveToFirst());
+            assertEquals("Error: calibration " + i / 2 + " points at the wrong sensor", sensorId,
+                    cursor.getLong(cursor.getColumnIndex(TemperatureContract.CalibrationEntry.COLUMN_SENSORID)));
+            cursor.close();
+        }
+    }
+
+    private Bundle insertCall(long sensorId, long[] created, float[] values, int count) {
+        long[] sensorIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            sensorIds[i] = sensorId;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(TemperatureEntry.EXTRA_SENSOR_IDS, sensorIds);
+        extras.putLongArray(TemperatureEntry.EXTRA_CREATED, created);
+        extras.putFloatArray(TemperatureEntry.EXTRA_VALUES, values);
+        extras.putInt(TemperatureEntry.EXTRA_COUNT, count);
+        return mContext.getContentResolver().call(TemperatureEntry.CONTENT_URI,
+                TemperatureEntry.METHOD_INSERT, null, extras);
+    }
+
+    private static void assertRollup(Cursor cursor, String period, long count, double sum,
+                                     double min, double max, double sumSquares) {
+        String error = "Error: wrong rollup for " + period;
+        assertEquals(error, period, cursor.getString(cursor.getColumnIndex(RollupEntry.COLUMN_PERIOD)));
+        assertEquals(error, count, cursor.getLong(cursor.getColumnIndex(RollupEntry.COLUMN_COUNT)));
+        assertEquals(error, sum, cursor.getDouble(cursor.getColumnIndex(RollupEntry.COLUMN_SUM)), 1e-6);
+        assertEquals(error, min, cursor.getDouble(cursor.getColumnIndex(RollupEntry.COLUMN_MIN)), 1e-6);
+        assertEquals(error, max, cursor.getDouble(cursor.getColumnIndex(RollupEntry.COLUMN_MAX)), 1e-6);
+        assertEquals(error, sumSquares,
+                cursor.getDouble(cursor.getColumnIndex(RollupEntry.COLUMN_SUM_SQUARES)), 1e-6);
+    }
+
+    public void testRollupsFollowInserts() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        // 2015-10-01 10:11:12, 10:11:40, 10:12:05 and 11:00:00 UTC
+        long[] created = {1443694272000L, 1443694300000L, 1443694325000L, 1443697200000L};
+        insertCall(sensorId, created, new float[]{20, 22, 24, 30}, created.length);
+        // A later batch lands in a period that already has a row
+        ContentValues late = TestUtilities.createTemperatureValues(sensorId);
+        late.put(TemperatureEntry.COLUMN_CREATED, "2015-10-01 10:11:59");
+        late.put(TemperatureEntry.COLUMN_VALUE, 18.0);
+        mContext.getContentResolver().bulkInsert(TemperatureEntry.CONTENT_URI, new ContentValues[]{late});
+
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupSensor(RollupEntry.GRANULARITY_MINUTE, sensorId),
+                null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertRollup(cursor, "2015-10-01 10:11:00", 3, 60, 18, 22, 400 + 484 + 324);
+        assertTrue(cursor.moveToNext());
+        assertRollup(cursor, "2015-10-01 10:12:00", 1, 24, 24, 24, 576);
+        assertTrue(cursor.moveToNext());
+        assertRollup(cursor, "2015-10-01 11:00:00", 1, 30, 30, 30, 900);
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupSensor(RollupEntry.GRANULARITY_HOUR, sensorId),
+                null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertRollup(cursor, "2015-10-01 10:00:00", 4, 84, 18, 24, 400 + 484 + 324 + 576);
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupSensorWithRange(RollupEntry.GRANULARITY_DAY, sensorId,
+                        "2015-10-01 00:00:00", "2015-10-02 00:00:00"),
+                null, null, null, null);
+        assertTrue("Error: no daily rollup", cursor.moveToFirst());
+        assertRollup(cursor, "2015-10-01 00:00:00", 5, 114, 18, 30, 400 + 484 + 324 + 576 + 900);
+        assertFalse(cursor.moveToNext());
+        cursor.close();
+    }
+
+    private String[] dailyRows(long sensorId) {
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupSensor(RollupEntry.GRANULARITY_DAY, sensorId),
+                new String[]{RollupEntry.COLUMN_PERIOD, RollupEntry.COLUMN_COUNT, RollupEntry.COLUMN_SUM,
+                        RollupEntry.COLUMN_MIN, RollupEntry.COLUMN_MAX, RollupEntry.COLUMN_SUM_SQUARES},
+                null, null, null);
+        String[] rows = new String[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            rows[i] = cursor.getString(0) + " " + cursor.getLong(1) + " " + cursor.getDouble(2) + " "
+                    + cursor.getDouble(3) + " " + cursor.getDouble(4) + " " + cursor.getDouble(5);
+        }
+        cursor.close();
+        return rows;
+    }
+
+    public void testRebuildRollups() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        // Three days, one reading every 7 minutes
+        int readings = 3 * 24 * 60 / 7;
+        long[] created = new long[readings];
+        float[] values = new float[readings];
+        for (int i = 0; i < readings; i++) {
+            created[i] = 1443657600000L + i * 7 * 60000L;
+            values[i] = 15 + (i % 40) / 4f;
+        }
+        insertCall(sensorId, created, values, readings);
+        String[] incremental = dailyRows(sensorId);
+        assertEquals(3, incremental.length);
+
+        // Rows written behind the provider's back are only rolled up by a rebuild
+        TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.delete(RollupEntry.getTableName(RollupEntry.GRANULARITY_MINUTE), null, null);
+        db.delete(RollupEntry.getTableName(RollupEntry.GRANULARITY_HOUR), null, null);
+        db.delete(RollupEntry.getTableName(RollupEntry.GRANULARITY_DAY), null, null);
+        Bundle result = mContext.getContentResolver().call(RollupEntry.CONTENT_URI,
+                RollupEntry.METHOD_REBUILD, Long.toString(sensorId), null);
+        assertEquals(1, result.getInt(RollupEntry.EXTRA_COUNT));
+        String[] rebuilt = dailyRows(sensorId);
+        assertEquals("Error: rebuilt daily rollups differ from the incremental ones",
+                java.util.Arrays.toString(incremental), java.util.Arrays.toString(rebuilt));
+
+        // Without the first day's readings, a rebuild keeps that day's rollup
+        db.delete(TemperatureEntry.TABLE_NAME, TemperatureEntry.COLUMN_CREATED + " < ?",
+                new String[]{"2015-10-02 00:00:00"});
+        mContext.getContentResolver().call(RollupEntry.CONTENT_URI, RollupEntry.METHOD_REBUILD, null, null);
+        assertEquals("Error: rebuild dropped rollups older than the readings",
+                java.util.Arrays.toString(incremental), java.util.Arrays.toString(dailyRows(sensorId)));
+        dbHelper.close();
+    }
+
+    /*
+        Benchmark: a year of one reading a minute goes in through the ingest
+        call, then a one-year daily chart is read from the day rollups and,
+        for comparison, aggregated from the readings.
+     */
+    public void testDailyChartFromRollups() {
+        long sensorId = TestUtilities.insertSensorValues(mContext);
+        long base = 1420070400000L;
+        int batch = 10000;
+        long[] created = new long[batch];
+        float[] values = new float[batch];
+        long t0 = System.nanoTime();
+        for (int done = 0; done < YEAR_MINUTES; done += batch) {
+            int count = Math.min(batch, YEAR_MINUTES - done);
+            for (int i = 0; i < count; i++) {
+                created[i] = base + (done + i) * 60000L;
+                values[i] = 10 + ((done + i) % 1440) / 100f;
+            }
+            insertCall(sensorId, created, values, count);
+        }
+        Log.d(LOG_TAG, YEAR_MINUTES + " readings with rollups: "
+                + YEAR_MINUTES * 1000000000L / (System.nanoTime() - t0) + " rows/s");
+
+        t0 = System.nanoTime();
+        Cursor cursor = mContext.getContentResolver().query(
+                RollupEntry.buildRollupSensorWithRange(RollupEntry.GRANULARITY_DAY, sensorId,
+                        "2015-01-01 00:00:00", "2016-01-01 00:00:00"), null, null, null, null);
+        assertEquals("Error: a year of daily rollups", 365, cursor.getCount());
+        cursor.close();
+        long fromRollups = System.nanoTime() - t0;
+
+        TemperatureDbHelper dbHelper = new TemperatureDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        t0 = System.nanoTime();
+        cursor = db.rawQuery("SELECT date(" + TemperatureEntry.COLUMN_CREATED + ") AS d, COUNT(*), AVG("
+                + TemperatureEntry.COLUMN_VALUE + ") FROM " + TemperatureEntry.TABLE_NAME + " WHERE "
+                + TemperatureEntry.COLUMN_SENSORID + " = ? GROUP BY d",
+                new String[]{Long.toString(sensorId)});
+        assertEquals(365, cursor.getCount());
+        cursor.close();
+        long fromReadings = System.nanoTime() - t0;
+        Log.d(LOG_TAG, "one-year daily chart: " + fromRollups / 1000 + " us from rollups, "
+                + fromReadings / 1000 + " us from " + YEAR_MINUTES + " readings");
+        dbHelper.close();
+    }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothchat.data;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.data.TemperatureContract.RollupEntry;
+import com.example.android.bluetoothchat.data.TemperatureContract.TemperatureEntry;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestRetention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestRetention.class.getSimpleName();
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Old readings in the ingest latency benchmark
+    private static final int BENCHMARK_OLD_ROWS = 300000;
+    private static final int INGEST_BATCH = 100;
+    private static final long INGEST_PERIOD_MILLIS = 10;
+
+    private long mNow;
+    private long mSensorId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TemperatureDbHelper.DATABASE_NAME);
+        mNow = System.currentTimeMillis();
+        mSensorId = TestUtilities.insertSensorValues(mContext);
+    }
+
+    /*
+        Stores count readings a second apart, the first at startMillis.
+     */
+    private void insertReadings(long startMillis, int count) {
+        long[] sensorIds = new long[count];
+        long[] created = new long[count];
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            sensorIds[i] = mSensorId;
+            created[i] = startMillis + i * 1000L;
+            values[i] = 20 + (i % 50) / 10f;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(TemperatureEntry.EXTRA_SENSOR_IDS, sensorIds);
+        extras.putLongArray(TemperatureEntry.EXTRA_CREATED, created);
+        extras.putFloatArray(TemperatureEntry.EXTRA_VALUES, values);
+        extras.putInt(TemperatureEntry.EXTRA_COUNT, count);
+        mContext.getContentResolver().call(TemperatureEntry.CONTENT_URI,
+                TemperatureEntry.METHOD_INSERT, null, extras);
+    }
+
+    private int count(android.net.Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    public void testPruneKeepsRecentReadings() throws Exception {
+        insertReadings(mNow - 40 * DAY_MILLIS, 5000);
+        insertReadings(mNow - DAY_MILLIS, 1000);
+        int days = count(RollupEntry.buildRollupUri(RollupEntry.GRANULARITY_DAY));
+
+        // Small ranges so the old readings take several calls
+        TemperatureRetention retention = new TemperatureRetention(mContext.getContentResolver(),
+                new TemperatureRetention.Policy(30, -1, -1, -1), 500, 0);
+        assertEquals(5000, retention.runOnce(mNow));
+        assertEquals("Error: pruning deleted recent readings", 1000,
+                count(TemperatureEntry.CONTENT_URI));
+        assertEquals("Error: pruning raw readings touched the rollups", days,
+                count(RollupEntry.buildRollupUri(RollupEntry.GRANULARITY_DAY)));
+
+        // Nothing left to prune
+        assertEquals(0, retention.runOnce(mNow));
+    }
+
+    public void testPruneRollups() throws Exception {
+        // Ten whole minutes three days ago
+        long start = mNow - 3 * DAY_MILLIS;
+        insertReadings(start - start % 60000, 600);
+        insertReadings(mNow - 60 * 1000L, 60);
+        int hours = count(RollupEntry.buildRollupUri(RollupEntry.GRANULARITY_HOUR));
+
+        TemperatureRetention retention = new TemperatureRetention(mContext.getContentResolver(),
+                new TemperatureRetention.Policy(-1, 1, -1, -1));
+        assertEquals("Error: the ten old minutes should go", 10, retention.runOnce(mNow));
+        assertEquals(660, count(TemperatureEntry.CONTENT_URI));
+        assertEquals(hours, count(RollupEntry.buildRollupUri(RollupEntry.GRANULARITY_HOUR)));
+    }
+
+    public void testPruneRejectsMissingDate() {
+        Bundle extras = new Bundle();
+        extras.putInt(TemperatureEntry.EXTRA_COUNT, 100);
+        try {
+            mContext.getContentResolver().call(TemperatureEntry.CONTENT_URI,
+                    TemperatureEntry.METHOD_PRUNE, null, extras);
+            fail("Error: prune without a date should be refused");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+        An ingest stand-in: stores a small batch every few milliseconds and
+        records how long each call took.
+     */
+    class Ingest extends Thread {
+        final AtomicBoolean mRunning = new AtomicBoolean(true);
+        final List<Long> mLatencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        Ingest() {
+            super("TestRetention-ingest");
+        }
+
+        @Override
+        public void run() {
+            long next = System.currentTimeMillis();
+            while (mRunning.get()) {
+                long t0 = System.nanoTime();
+                insertReadings(System.currentTimeMillis(), INGEST_BATCH);
+                mLatencies.add(System.nanoTime() - t0);
+                next += INGEST_PERIOD_MILLIS;
+                long sleep = next - System.currentTimeMillis();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        String finish() throws InterruptedException {
+            mRunning.set(false);
+            join();
+            List<Long> sorted = new ArrayList<Long>(mLatencies);
+            Collections.sort(sorted);
+            return sorted.size() + " batches, p50 " + sorted.get(sorted.size() / 2) / 1000
+                    + " us, p99 " + sorted.get(sorted.size() * 99 / 100) / 1000
+                    + " us, max " + sorted.get(sorted.size() - 1) / 1000 + " us";
+        }
+    }
+
+    /*
+        Benchmark: ingest latency with nothing else writing, while the
+        retention job prunes hundreds of thousands of old readings, and while
+        one delete with a date selection removes the same readings.
+     */
+    public void testIngestLatencyWhilePruning() throws Exception {
+        Ingest idle = new Ingest();
+        idle.start();
+        Thread.sleep(1500);
+        Log.d(LOG_TAG, "ingest alone: " + idle.finish());
+
+        insertReadings(mNow - 60 * DAY_MILLIS, BENCHMARK_OLD_ROWS);
+        TemperatureRetention retention = new TemperatureRetention(mContext.getContentResolver(),
+                new TemperatureRetention.Policy(30, -1, -1, -1));
+        Ingest pruning = new Ingest();
+        pruning.start();
+        long t0 = System.nanoTime();
+        assertEquals(BENCHMARK_OLD_ROWS, retention.runOnce(mNow));
+        long pruneMillis = (System.nanoTime() - t0) / 1000000;
+        Log.d(LOG_TAG, "ingest while pruning " + BENCHMARK_OLD_ROWS + " rows in ranges ("
+                + pruneMillis + " ms, " + retention.getVacuumedPages() + " pages freed): "
+                + pruning.finish());
+        assertTrue("Error: pruning handed no pages back", retention.getVacuumedPages() > 0);
+
+        insertReadings(mNow - 60 * DAY_MILLIS, BENCHMARK_OLD_ROWS);
+        Ingest deleting = new Ingest();
+        deleting.start();
+        t0 = System.nanoTime();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        int deleted = mContext.getContentResolver().delete(TemperatureEntry.CONTENT_URI,
+                TemperatureEntry.COLUMN_CREATED + " < ?",
+                new String[]{format.format(new Date(mNow - 30 * DAY_MILLIS))});
+        long deleteMillis = (System.nanoTime() - t0) / 1000000;
+        Log.d(LOG_TAG, "ingest while one delete removes " + deleted + " rows (" + deleteMillis
+                + " ms): " + deleting.finish());
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.example.android.bluetoothchat.data;
 
+import android.net.Uri;
 import android.test.AndroidTestCase;
 
 public class TestTemperatureContract extends AndroidTestCase {
@@ -23,38 +24,43 @@ public class TestTemperatureContract extends AndroidTestCase {
     private static final Integer TEST_SENSOR_ID = 1;
     private static final String TEST_DATE = "2015-10-01 14:26:30";
 
-//    public void testBuildTemperatureSensor() {
-//
-//        Uri locationUri = TemperatureContract.TemperatureEntry.buildTemperatureSensor(TEST_SENSOR_ID);
-//
-//        assertNotNull("Error: Null Uri returned.  You must fill-in buildTemperatureSensor in " +
-//                        "TemperatureContract.", locationUri);
-//
-//        assertEquals("Error: Sensor ID not properly appended to the end of the Uri",
-//                Integer.toString(TEST_SENSOR_ID), locationUri.getLastPathSegment());
-//
-//        assertEquals("Error: TemperatureSensor Uri doesn't match our expected result",
-//                locationUri.toString(),
-//                "content://com.example.android.bluetoothchat/temperature/1");
-//
-//    }
-
-//    public void testBuildTemperatureSensorWithDate() {
-//
-//        Uri locationUri = TemperatureContract.TemperatureEntry.buildTemperatureSensorWithDate(TEST_SENSOR_ID, TEST_DATE);
-//
-//        assertNotNull("Error: Null Uri returned.  You must fill-in buildTemperatureSensor in " +
-//                "TemperatureContract.", locationUri);
-//
-//        assertEquals("Error: Sensor ID not properly appended to the end of the Uri",
-//                Integer.toString(TEST_SENSOR_ID), TemperatureContract.TemperatureEntry.getSensorFromUri(locationUri));
-//
-//        assertEquals("Error: TemperatureSensorWithDate Uri path doesn't match our expected result",
-//                locationUri.getPath(),
-//                "/temperature/1/" + TEST_DATE);
-//
-//        assertEquals("Error: TemperatureSensorWithDate dates doesn't match our expected result",
-//                locationUri.getLastPathSegment(),
-//                TEST_DATE );
-//    }
+    private static final String TEST_END_DATE = "2015-10-01 15:26:30";
+
+    public void testBuildTemperatureSensor() {
+
+        Uri sensorUri = TemperatureContract.TemperatureEntry.buildTemperatureSensor(TEST_SENSOR_ID);
+
+        assertNotNull("Error: Null Uri returned.  You must fill-in buildTemperatureSensor in " +
+                        "TemperatureContract.", sensorUri);
+
+        assertEquals("Error: Sensor ID not properly appended to the end of the Uri",
+                Integer.toString(TEST_SENSOR_ID), sensorUri.getLastPathSegment());
+
+        assertEquals("Error: TemperatureSensor Uri doesn't match our expected result",
+                sensorUri.toString(),
+                "content://com.example.android.bluetoothchat/temperature/1");
+
+    }
+
+    public void testBuildTemperatureSensorWithRange() {
+
+        Uri sensorUri = TemperatureContract.TemperatureEntry.buildTemperatureSensorWithRange(
+                TEST_SENSOR_ID, TEST_DATE, TEST_END_DATE);
+
+        assertNotNull("Error: Null Uri returned.  You must fill-in buildTemperatureSensorWithRange in " +
+                "TemperatureContract.", sensorUri);
+
+        assertEquals("Error: Sensor ID not properly appended to the end of the Uri",
+                Integer.toString(TEST_SENSOR_ID), TemperatureContract.TemperatureEntry.getSensorFromUri(sensorUri));
+
+        assertEquals("Error: TemperatureSensorWithRange Uri path doesn't match our expected result",
+                sensorUri.getPath(),
+                "/temperature/1/" + TEST_DATE + "/" + TEST_END_DATE);
+
+        assertEquals("Error: TemperatureSensorWithRange start date doesn't match our expected result",
+                TEST_DATE, TemperatureContract.TemperatureEntry.getStartDateFromUri(sensorUri));
+
+        assertEquals("Error: TemperatureSensorWithRange end date doesn't match our expected result",
+                TEST_END_DATE, TemperatureContract.TemperatureEntry.getEndDateFromUri(sensorUri));
+    }
 }
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * An in-memory transport. Every PipeTransport has a local address and
+ * belongs to a {@link Network}; transports on the same network can listen
+ * for and connect to each other. Bytes travel through bounded buffers, so a
+ * slow reader applies back-pressure to the writer just like a real link.
+ */
+public class PipeTransport implements Transport {
+
+    // Bytes buffered in each direction of a connection
+    private static final int PIPE_CAPACITY = 16 * 1024;
+
+    /**
+     * The set of listening PipeTransports that can reach each other.
+     */
+    public static class Network {
+        private final Map<String, PipeServer> mServers = new HashMap<String, PipeServer>();
+
+        synchronized void register(String key, PipeServer server) throws IOException {
+            if (mServers.containsKey(key)) {
+                throw new IOException("address in use: " + key);
+            }
+            mServers.put(key, server);
+        }
+
+        synchronized void unregister(String key, PipeServer server) {
+            if (mServers.get(key) == server) {
+                mServers.remove(key);
+            }
+        }
+
+        synchronized PipeServer lookup(String key) {
+            return mServers.get(key);
+        }
+    }
+
+    private final Network mNetwork;
+    private final String mLocalAddress;
+
+    /**
+     * @param network      The network shared with the peers
+     * @param localAddress The address peers use to connect to this transport
+     */
+    public PipeTransport(Network network, String localAddress) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+    }
+
+    public String getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    private static String serverKey(String address, boolean secure) {
+        return secure ? address : address + "#insecure";
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        String key = serverKey(mLocalAddress, secure);
+        PipeServer server = new PipeServer(key);
+        mNetwork.register(key, server);
+        return server;
+    }
+
+    @Override
+    public TransportConnection createConnection(String address, boolean secure) {
+        return new PipeConnection(address, secure);
+    }
+
+    @Override
+    public void prepareConnect() {
+        // Nothing competes with an in-memory connect
+    }
+
+    /**
+     * Create two connected ends directly, without a listening server.
+     */
+    public static TransportConnection[] createPair(String addressA, String addressB) {
+        Pipe aToB = new Pipe(PIPE_CAPACITY);
+        Pipe bToA = new Pipe(PIPE_CAPACITY);
+        return new TransportConnection[]{
+                new ConnectedEnd(addressB, bToA, aToB),
+                new ConnectedEnd(addressA, aToB, bToA)
+        };
+    }
+
+    private class PipeServer implements TransportServer {
+        private final String mKey;
+        private final LinkedList<TransportConnection> mPending =
+                new LinkedList<TransportConnection>();
+        private boolean mClosed;
+
+        PipeServer(String key) {
+            mKey = key;
+        }
+
+        synchronized void offer(TransportConnection connection) throws IOException {
+            if (mClosed) {
+                throw new IOException("connection refused: " + mKey);
+            }
+            mPending.add(connection);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized TransportConnection accept() throws IOException {
+            while (mPending.isEmpty()) {
+                if (mClosed) {
+                    throw new IOException("server closed: " + mKey);
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("accept() interrupted");
+                }
+            }
+            return mPending.removeFirst();
+        }
+
+        @Override
+        public void close() {
+            mNetwork.unregister(mKey, this);
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The outgoing side of a connection, before and after connect().
+     */
+    private class PipeConnection implements TransportConnection {
+        private final String mRemoteAddress;
+        private final boolean mSecure;
+        private volatile ConnectedEnd mEnd;
+        private volatile boolean mClosed;
+
+        PipeConnection(String remoteAddress, boolean secure) {
+            mRemoteAddress = remoteAddress;
+            mSecure = secure;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            PipeServer server = mNetwork.lookup(serverKey(mRemoteAddress, mSecure));
+            if (server == null || mClosed) {
+                throw new IOException("connection refused: " + mRemoteAddress);
+            }
+            TransportConnection[] pair = createPair(mLocalAddress, mRemoteAddress);
+            mEnd = (ConnectedEnd) pair[0];
+            server.offer(pair[1]);
+            if (mClosed) {
+                mEnd.close();
+                throw new IOException("connect() aborted");
+            }
+        }
+
+        private ConnectedEnd end() throws IOException {
+            ConnectedEnd end = mEnd;
+            if (end == null) {
+                throw new IOException("not connected");
+            }
+            return end;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return end().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return end().getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            ConnectedEnd end = mEnd;
+            if (end != null) {
+                end.close();
+            }
+        }
+    }
+
+    private static class ConnectedEnd implements TransportConnection {
+        private final String mRemoteAddress;
+        private final Pipe mIn;
+        private final Pipe mOut;
+
+        ConnectedEnd(String remoteAddress, Pipe in, Pipe out) {
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public void connect() {
+            // Already connected
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mIn.mInput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut.mOutput;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public void close() {
+            // Like a socket, closing either end tears down both directions
+            mIn.close();
+            mOut.close();
+        }
+    }
+
+    /**
+     * A bounded byte queue with a stream at each end. Unlike PipedInputStream
+     * it does not care which threads read and write.
+     */
+    static class Pipe {
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (mCount == 0) {
+                if (mClosed) {
+                    return -1;
+                }
+                await();
+            }
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (mCount == mBuffer.length && !mClosed) {
+                    await();
+                }
+                if (mClosed) {
+                    throw new IOException("pipe closed");
+                }
+                int tail = (mHead + mCount) % mBuffer.length;
+                int n = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                System.arraycopy(b, off, mBuffer, tail, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Bluetooth RFCOMM, the transport used on the phone. Addresses are the
+ * remote device's MAC address.
+ */
+public class RfcommTransport implements Transport {
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "BluetoothChatSecure";
+    private static final String NAME_INSECURE = "BluetoothChatInsecure";
+
+    // Unique UUID for this application
+    // Não vou precisar disto
+    // O Android vai participar como client bluetooth
+    private static final UUID MY_UUID_SECURE =
+            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final UUID MY_UUID_INSECURE =
+            UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    //    private static final UUID MY_UUID_SECURE =
+    //            UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+    //    private static final UUID MY_UUID_INSECURE =
+    //            UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+
+    private final BluetoothAdapter mAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        final BluetoothServerSocket serverSocket;
+        if (secure) {
+            serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
+                    MY_UUID_SECURE);
+        } else {
+            serverSocket = mAdapter.listenUsingInsecureRfcommWithServiceRecord(
+                    NAME_INSECURE, MY_UUID_INSECURE);
+        }
+        return new TransportServer() {
+            @Override
+            public TransportConnection accept() throws IOException {
+                BluetoothSocket socket = serverSocket.accept();
+                return new RfcommConnection(socket, socket.getRemoteDevice());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportConnection createConnection(String address, boolean secure)
+            throws IOException {
+        // Get a BluetoothSocket for a connection with the
+        // given BluetoothDevice
+        BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        BluetoothSocket socket;
+        if (secure) {
+            socket = device.createRfcommSocketToServiceRecord(MY_UUID_SECURE);
+        } else {
+            socket = device.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
+        }
+        return new RfcommConnection(socket, device);
+    }
+
+    @Override
+    public void prepareConnect() {
+        // Always cancel discovery because it will slow down a connection
+        mAdapter.cancelDiscovery();
+    }
+
+    private static class RfcommConnection implements TransportConnection {
+        private final BluetoothSocket mSocket;
+        private final BluetoothDevice mDevice;
+
+        RfcommConnection(BluetoothSocket socket, BluetoothDevice device) {
+            mSocket = socket;
+            mDevice = device;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mDevice.getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return mDevice.getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
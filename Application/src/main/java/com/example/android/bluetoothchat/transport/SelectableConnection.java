@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat.transport;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection backed by a {@link SocketChannel}, which a
+ * {@link com.example.android.bluetoothchat.ConnectionReactor} can drive
+ * with a Selector instead of a thread. Once the channel is put in
+ * non-blocking mode the streams of the connection must no longer be used.
+ */
+public interface SelectableConnection extends TransportConnection {
+
+    SocketChannel getChannel();
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothchat.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TCP stand-in for RFCOMM, used to exercise the service without a radio.
+ * Addresses are "host:port"; a bare host uses the transport's port. Secure
+ * servers listen on the base port and insecure ones on the port after it.
+ * Connections are channel based so they can also be multiplexed by a
+ * {@link com.example.android.bluetoothchat.ConnectionReactor}. Their streams
+ * read and write the channel directly rather than through the socket's
+ * streams, which share one lock between reads and writes and would let a
+ * blocked read hold up the writer thread.
+ */
+public class TcpTransport implements Transport {
+
+    // Give up on a connect() after this long, like an RFCOMM page timeout
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final InetAddress mBindAddress;
+    private final int mPort;
+
+    /**
+     * A transport listening on the loopback interface.
+     *
+     * @param port The secure server port; the insecure server uses port + 1
+     */
+    public TcpTransport(int port) {
+        this(loopback(), port);
+    }
+
+    public TcpTransport(InetAddress bindAddress, int port) {
+        mBindAddress = bindAddress;
+        mPort = port;
+    }
+
+    private static InetAddress loopback() {
+        try {
+            // A literal address is never looked up
+            return InetAddress.getByName("127.0.0.1");
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public TransportServer listen(boolean secure) throws IOException {
+        final ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.socket().setReuseAddress(true);
+        serverSocket.socket().bind(
+                new InetSocketAddress(mBindAddress, secure ? mPort : mPort + 1));
+        return new TransportServer() {
+            @Override
+            public TransportConnection accept() throws IOException {
+                SocketChannel channel = serverSocket.accept();
+                channel.socket().setTcpNoDelay(true);
+                return new TcpConnection(channel, null);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportConnection createConnection(String address, boolean secure)
+            throws IOException {
+        String host = address;
+        int port = secure ? mPort : mPort + 1;
+        int colon = address.lastIndexOf(':');
+        if (colon >= 0) {
+            host = address.substring(0, colon);
+            port = Integer.parseInt(address.substring(colon + 1));
+        }
+        return new TcpConnection(SocketChannel.open(), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public void prepareConnect() {
+        // Nothing competes with a TCP connect
+    }
+
+    private static class TcpConnection implements SelectableConnection {
+        private final SocketChannel mChannel;
+        private final Socket mSocket;
+        private final InetSocketAddress mRemote;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+
+        TcpConnection(SocketChannel channel, InetSocketAddress remote) {
+            mChannel = channel;
+            mSocket = channel.socket();
+            mRemote = remote;
+            mIn = new ChannelInputStream(channel);
+            mOut = new ChannelOutputStream(channel);
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return mChannel;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect(mRemote, CONNECT_TIMEOUT_MS);
+            mSocket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mIn;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            InetSocketAddress remote = mRemote != null
+                    ? mRemote : (InetSocketAddress) mSocket.getRemoteSocketAddress();
+            if (remote == null) {
+                return null;
+            }
+            String host = remote.getAddress() != null
+                    ? remote.getAddress().getHostAddress() : remote.getHostName();
+            return host + ":" + remote.getPort();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Blocking reads straight from the channel, which only takes its read lock.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final SocketChannel mChannel;
+        private final byte[] mOne = new byte[1];
+
+        ChannelInputStream(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (mOne) {
+                int n = read(mOne, 0, 1);
+                return n < 0 ? -1 : mOne[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return mChannel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Blocking writes straight to the channel, which only takes its write lock.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+        private final SocketChannel mChannel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat.transport;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.BluetoothChatService;
+import com.example.android.bluetoothchat.SampleRing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class TestTransport extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestTransport.class.getSimpleName();
+
+    // Port used by the TCP tests; the insecure server takes the next one
+    private static final int TCP_PORT = 47231;
+
+    private HandlerThread mHandlerThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandlerThread = new HandlerThread("TestTransport");
+        mHandlerThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    private static void assertRoundTrip(TransportConnection a, TransportConnection b)
+            throws IOException {
+        byte[] sent = "21.53\r\n".getBytes();
+        a.getOutputStream().write(sent);
+        a.getOutputStream().flush();
+        byte[] received = new byte[sent.length];
+        InputStream in = b.getInputStream();
+        int n = 0;
+        while (n < received.length) {
+            int r = in.read(received, n, received.length - n);
+            assertTrue("Error: stream closed early", r > 0);
+            n += r;
+        }
+        assertTrue(Arrays.equals(sent, received));
+    }
+
+    public void testPipeTransport() throws IOException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        PipeTransport sensor = new PipeTransport(network, "sensor");
+        PipeTransport phone = new PipeTransport(network, "phone");
+
+        TransportServer server = sensor.listen(true);
+        TransportConnection client = phone.createConnection("sensor", true);
+        client.connect();
+        TransportConnection accepted = server.accept();
+        assertEquals("phone", accepted.getRemoteAddress());
+
+        assertRoundTrip(client, accepted);
+        assertRoundTrip(accepted, client);
+
+        // Closing one end ends the stream at the other
+        client.close();
+        assertEquals(-1, accepted.getInputStream().read());
+        server.close();
+    }
+
+    public void testPipeConnectRefused() {
+        PipeTransport phone = new PipeTransport(new PipeTransport.Network(), "phone");
+        try {
+            phone.createConnection("nobody", true).connect();
+            fail("Error: connect() to an address nobody listens on should fail");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    public void testTcpTransport() throws IOException {
+        TcpTransport transport = new TcpTransport(TCP_PORT);
+        TransportServer server = transport.listen(false);
+        TransportConnection client = transport.createConnection("127.0.0.1", false);
+        client.connect();
+        TransportConnection accepted = server.accept();
+
+        assertRoundTrip(client, accepted);
+        assertRoundTrip(accepted, client);
+
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    /*
+        A thread blocked reading a TCP connection must not hold up writes to
+        it, as the reader and writer threads of a connection run side by side.
+     */
+    public void testTcpWriteWhileReading() throws Exception {
+        TcpTransport transport = new TcpTransport(TCP_PORT + 2);
+        TransportServer server = transport.listen(true);
+        final TransportConnection client = transport.createConnection("127.0.0.1", true);
+        client.connect();
+        TransportConnection accepted = server.accept();
+
+        final int[] read = new int[]{-2};
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    read[0] = client.getInputStream().read();
+                } catch (IOException e) {
+                    read[0] = -3;
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+
+        // The reader is blocked; this must get through regardless
+        byte[] message = "21.53\r\n".getBytes();
+        client.getOutputStream().write(message);
+        byte[] received = new byte[message.length];
+        InputStream in = accepted.getInputStream();
+        for (int n = 0; n < received.length; ) {
+            n += in.read(received, n, received.length - n);
+        }
+        assertTrue("Error: write held up by a blocked read", Arrays.equals(message, received));
+
+        accepted.getOutputStream().write('x');
+        reader.join(5000);
+        assertEquals('x', read[0]);
+
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    /*
+        Runs the whole BluetoothChatService over the in-memory transport: a
+        simulated sensor streams lines and we wait for them in the sample ring.
+     */
+    public void testServiceOverPipe() throws IOException, InterruptedException {
+        PipeTransport.Network network = new PipeTransport.Network();
+        TransportServer sensorServer = new PipeTransport(network, "sensor").listen(true);
+        BluetoothChatService service = new BluetoothChatService(
+                new Handler(mHandlerThread.getLooper()), new PipeTransport(network, "phone"));
+
+        service.connect("sensor", true);
+        TransportConnection sensor = sensorServer.accept();
+        OutputStream out = sensor.getOutputStream();
+        waitForState(service, BluetoothChatService.STATE_CONNECTED);
+        SampleRing ring = service.getSampleRing(service.getConnectionId("sensor"));
+
+        // Throughput: 100k lines written in 70 byte bursts
+        final int lines = 100000;
+        byte[] burst = new byte[70];
+        for (int i = 0; i < burst.length; i += 7) {
+            System.arraycopy("21.53\r\n".getBytes(), 0, burst, i, 7);
+        }
+        long base = ring.getWriteSequence();
+        long start = System.nanoTime();
+        for (int i = 0; i < lines; i += 10) {
+            out.write(burst);
+        }
+        waitForSamples(ring, base + lines);
+        long nanos = System.nanoTime() - start;
+        Log.d(LOG_TAG, "service over pipe: " + (lines * 1000000000L / nanos) + " lines/s");
+
+        // Latency: one line at a time, from write() to the sample being in the ring
+        final int rounds = 1000;
+        long[] latencies = new long[rounds];
+        byte[] line = "21.53\r\n".getBytes();
+        for (int i = 0; i < rounds; i++) {
+            long expected = ring.getWriteSequence() + 1;
+            start = System.nanoTime();
+            out.write(line);
+            waitForSamples(ring, expected);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        Log.d(LOG_TAG, "service over pipe latency: p50 " + latencies[rounds / 2] / 1000
+                + " us, p99 " + latencies[rounds * 99 / 100] / 1000 + " us");
+
+        service.stop();
+        sensor.close();
+        sensorServer.close();
+    }
+
+    private static void waitForState(BluetoothChatService service, int state)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getState() != state) {
+            assertTrue("Error: service never reached state " + state,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static void waitForSamples(SampleRing ring, long sequence) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ring.getWriteSequence() < sequence) {
+            assertTrue("Error: samples did not arrive",
+                    System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+}
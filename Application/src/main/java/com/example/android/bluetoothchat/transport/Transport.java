@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat.transport;
+
+import java.io.IOException;
+
+/**
+ * The link layer used by {@link com.example.android.bluetoothchat.BluetoothChatService}.
+ * The service only listens, connects and moves bytes, so anything that can
+ * do those (RFCOMM, a TCP socket, an in-memory pipe) can carry the chat.
+ */
+public interface Transport {
+
+    /**
+     * Start listening for incoming connections.
+     *
+     * @param secure Socket Security type - Secure (true) , Insecure (false)
+     */
+    TransportServer listen(boolean secure) throws IOException;
+
+    /**
+     * Create an unconnected connection to a remote address. The blocking part
+     * happens in {@link TransportConnection#connect()}, so the connection can
+     * be closed from another thread to abort the attempt.
+     *
+     * @param address The remote address, in the transport's own format
+     * @param secure  Socket Security type - Secure (true) , Insecure (false)
+     */
+    TransportConnection createConnection(String address, boolean secure) throws IOException;
+
+    /**
+     * Called just before a connection attempt, to stop anything that would
+     * slow it down.
+     */
+    void prepareConnect();
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection made or accepted by a {@link Transport}.
+ */
+public interface TransportConnection extends Closeable {
+
+    /**
+     * Connect to the remote end. This is a blocking call and will only
+     * return on a successful connection or an exception. Connections
+     * returned by {@link TransportServer#accept()} are already connected.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Return the address of the remote end, in the transport's own format.
+     */
+    String getRemoteAddress();
+
+    /**
+     * Return a human readable name of the remote end.
+     */
+    String getRemoteName();
+
+    /**
+     * Close the connection, aborting a pending connect() or read().
+     */
+    void close() throws IOException;
+}